@@ -0,0 +1,123 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/*============================ 稽核日誌查詢工具 =================================
+ * 離線查詢 AuditLog 寫出的 JSON Lines 檔案，依時間順序輸出符合條件的事件（原始 JSON 行）。
+ * 編譯與執行（與 SimpleApp.java 放在同一目錄）：
+ *   javac -encoding UTF-8 SimpleApp.java AuditQuery.java
+ *   java AuditQuery [--dir=data/audit] [--student=A001] [--trip=R01-20251018-0800]
+ *                   [--type=LATE_CANCELLED] [--from=2025-10-01] [--to=2025-10-31]
+ * 條件可任意組合，全部省略時輸出所有事件；符合的筆數輸出到標準錯誤。
+ * ========================================================================= */
+public class AuditQuery {
+    private static final String FILE_PREFIX = "audit-";
+    private static final String FILE_SUFFIX = ".jsonl";
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get("data", "audit");
+        Map<String, String> criteria = new LinkedHashMap<>(); // 欄位名稱 -> 需完全相等的值
+        LocalDate from = LocalDate.MIN;
+        LocalDate to = LocalDate.MAX;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                usage("無法識別的參數: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "dir": dir = Paths.get(value); break;
+                    case "student": criteria.put("studentId", value); break;
+                    case "trip": criteria.put("tripId", value); break;
+                    case "type": criteria.put("type", value); break;
+                    case "from": from = LocalDate.parse(value); break;
+                    case "to": to = LocalDate.parse(value); break;
+                    default: usage("無法識別的參數: " + arg);
+                }
+            } catch (DateTimeException e) {
+                usage("日期格式應為 yyyy-MM-dd: " + arg);
+            }
+        }
+        if (!Files.isDirectory(dir)) {
+            usage("找不到稽核日誌目錄: " + dir);
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, "UTF-8");
+        long matched = 0;
+        long scanned = 0;
+        for (Path file : listFiles(dir, from, to)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    scanned++;
+                    if (matches(line, criteria, from, to)) {
+                        out.println(line);
+                        matched++;
+                    }
+                }
+            }
+        }
+        out.flush();
+        System.err.println("符合 " + matched + " 筆（共掃描 " + scanned + " 筆）");
+    }
+
+    // 依檔名中的日期挑出範圍內的檔案，並依日期、序號排序（序號以數值比較，10 排在 9 之後）
+    private static List<Path> listFiles(Path dir, LocalDate from, LocalDate to) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Map<Path, long[]> keys = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                String[] parts = name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()).split("-");
+                try {
+                    LocalDate date = LocalDate.parse(parts[0], DateTimeFormatter.BASIC_ISO_DATE);
+                    if (parts.length == 2 && !date.isBefore(from) && !date.isAfter(to)) {
+                        files.add(file);
+                        keys.put(file, new long[] { date.toEpochDay(), Long.parseLong(parts[1]) });
+                    }
+                } catch (DateTimeException | NumberFormatException e) {
+                    // 非稽核日誌產生的檔案，略過
+                }
+            }
+        }
+        files.sort(Comparator.<Path>comparingLong(f -> keys.get(f)[0]).thenComparingLong(f -> keys.get(f)[1]));
+        return files;
+    }
+
+    // 先以子字串快速排除，再解析 JSON 逐欄比對，避免值出現在其他欄位時誤判
+    private static boolean matches(String line, Map<String, String> criteria, LocalDate from, LocalDate to) {
+        for (String value : criteria.values()) {
+            if (!line.contains(value)) {
+                return false;
+            }
+        }
+        Map<String, String> fields = new HashMap<>();
+        try {
+            JsonRequestReader.parseObject(line.getBytes(StandardCharsets.UTF_8), fields::put);
+        } catch (RequestParseException e) {
+            return false; // 寫入中斷留下的不完整行
+        }
+        for (Map.Entry<String, String> criterion : criteria.entrySet()) {
+            if (!criterion.getValue().equals(fields.get(criterion.getKey()))) {
+                return false;
+            }
+        }
+        String ts = fields.get("ts");
+        if (ts == null || ts.length() < 10) {
+            return false;
+        }
+        LocalDate date = LocalDate.parse(ts.substring(0, 10));
+        return !date.isBefore(from) && !date.isAfter(to);
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("用法: java AuditQuery [--dir=data/audit] [--student=學號] [--trip=班次ID] [--type=事件類型] [--from=yyyy-MM-dd] [--to=yyyy-MM-dd]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,610 @@
+import java.io.*;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*============================ 負載產生器 =================================
+ * 對本機啟動的 SimpleApp 產生開放迴路流量（依排定時間送出，不等前一個請求回應），或重播 JSON Lines 紀錄，
+ * 用來在學期開始前重現早上 8 點開放預約時的尖峰。
+ * 編譯與執行（與 SimpleApp.java 放在同一目錄）：
+ *   javac -encoding UTF-8 SimpleApp.java LoadGenerator.java
+ *   java LoadGenerator [--url=http://localhost:8080] [--rate=50:10,400:20,100:30] [--arrival=poisson]
+ *                      [--mix=browse:70,hot:10,book:10,cancel:5,boundary:5] [--students=200] [--password=loadtest]
+ *                      [--days=3] [--hot-trip=R01-20251018-0800] [--max-inflight=2000] [--record=run.jsonl]
+ *   java LoadGenerator --replay=run.jsonl [--speed=2] [--url=...] [--password=...] [--max-inflight=...]
+ * --rate 為「每秒請求數:秒數」的階段清單；送出時間由排程決定，伺服器變慢時不會跟著降速。
+ * 延遲同時以「排定送出時間」（已校正協調遺漏，coordinated omission）與「實際送出時間」起算回報。
+ * 重播檔可為本工具 --record 的輸出，或 AuditLog 的稽核日誌（BOOKED / CANCELLED / LATE_CANCELLED 事件）。
+ * 伺服器預設的 PBKDF2 迭代次數讓每位學生第一次登入約需數百毫秒，壓測時建議以 --password-iterations=1000 啟動，
+ * 並視需要調高 --rate-student / --burst-student，否則大部分請求會被限流（回報於 429 欄）。
+ * 伺服器只接受名冊中的學號登入：壓測前以 --roster 提供 LOAD00000 起的學號（每行一個），並加上 --claim-unset=on
+ * 讓這些帳號第一次登入時直接以 --password 設定密碼。
+ * ========================================================================= */
+public class LoadGenerator {
+    private static final String[] DEFAULT_ROUTES = {
+        "中央大學-桃園高鐵站", "桃園高鐵站-中央大學", "中央大學-中壢火車站", "中壢火車站-中央大學"
+    };
+    private static final String[] OPS = { "login", "browse", "hot", "book", "cancel", "boundary" };
+    private static final int SEATS = 20;
+    private static final int LOGIN_ATTEMPTS = 10;
+    private static final Pattern TRIP = Pattern.compile(
+        "\\{\"id\":\"([^\"]+)\",\"date\":\"([^\"]+)\",\"route\":\"[^\"]*\",\"departureTime\":\"([^\"]+)\"");
+
+    // ----------------- 設定 -----------------
+    private String url = "http://localhost:8080";
+    private List<double[]> phases = List.of(new double[] { 100, 30 }); // {每秒請求數, 秒數}
+    private boolean poisson = true;
+    private Map<String, Integer> mix = new LinkedHashMap<>();
+    private int students = 200;
+    private String studentPrefix = "LOAD";
+    private String password = "loadtest";
+    private int days = 3;
+    private String hotTrip = null;
+    private List<String> routes = Arrays.asList(DEFAULT_ROUTES);
+    private int maxInFlight = 2_000;
+    private Path recordFile = null;
+    private Path replayFile = null;
+    private double speed = 1.0;
+
+    // ----------------- 執行狀態 -----------------
+    private final HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(5))
+        .executor(Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "load-client");
+            t.setDaemon(true);
+            return t;
+        }))
+        .build();
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+    private final List<String[]> trips = new ArrayList<>(); // {id, date, departureTime}
+    private String boundaryTrip = null;
+    private final Queue<String[]> booked = new ConcurrentLinkedQueue<>(); // {studentId, reservationId}，供取消使用
+    private final Map<String, String> replayedIds = new ConcurrentHashMap<>(); // 紀錄中的預約 ID -> 本次的預約 ID
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final LatencyHistogram correctedAll = new LatencyHistogram();
+    private final LatencyHistogram uncorrectedAll = new LatencyHistogram();
+    private Semaphore inFlight;
+    private PrintWriter recorder;
+    private long startNanos;
+    private long maxLagNanos;   // 送出時間落後排程的最大值，只由排程執行緒寫入
+    private long skipped;       // 沒有可取消的預約或重播時找不到對應預約的次數
+
+    // 單一操作類型的統計
+    private static class Stats {
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder conflict = new LongAdder();   // 400 / 409：座位已被預約、停權或預約不存在
+        final LongAdder limited = new LongAdder();    // 429
+        final LongAdder shed = new LongAdder();       // 503
+        final LongAdder failed = new LongAdder();     // 其他狀態碼與連線錯誤
+    }
+
+    // 一次要送出的操作；ref 為紀錄檔中的預約 ID（預約成功後取消時對應用）
+    private static class Op {
+        final long offsetNanos;
+        final String type;
+        final String studentId;
+        final String tripId;
+        final String seatNumber;
+        final String date;
+        final String route;
+        final String ref;
+        Op(long offsetNanos, String type, String studentId, String tripId, String seatNumber, String date, String route, String ref) {
+            this.offsetNanos = offsetNanos;
+            this.type = type;
+            this.studentId = studentId;
+            this.tripId = tripId;
+            this.seatNumber = seatNumber;
+            this.date = date;
+            this.route = route;
+            this.ref = ref;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+    }
+
+    private void parseArgs(String[] args) {
+        mix.put("browse", 70);
+        mix.put("hot", 10);
+        mix.put("book", 10);
+        mix.put("cancel", 5);
+        mix.put("boundary", 5);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                usage("無法識別的參數: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "url": url = value.endsWith("/") ? value.substring(0, value.length() - 1) : value; break;
+                    case "rate": phases = parsePhases(value); break;
+                    case "arrival": poisson = parseArrival(value); break;
+                    case "mix": mix = parseMix(value); break;
+                    case "students": students = Integer.parseInt(value); break;
+                    case "student-prefix": studentPrefix = value; break;
+                    case "password": password = value; break;
+                    case "days": days = Integer.parseInt(value); break;
+                    case "hot-trip": hotTrip = value; break;
+                    case "routes": routes = Arrays.asList(value.split(",")); break;
+                    case "max-inflight": maxInFlight = Integer.parseInt(value); break;
+                    case "record": recordFile = Paths.get(value); break;
+                    case "replay": replayFile = Paths.get(value); break;
+                    case "speed": speed = Double.parseDouble(value); break;
+                    default: usage("無法識別的參數: " + arg);
+                }
+            } catch (NumberFormatException e) {
+                usage("參數值格式錯誤: " + arg);
+            }
+        }
+        if (students <= 0 || days <= 0 || maxInFlight <= 0 || speed <= 0) {
+            usage("students、days、max-inflight 與 speed 必須為正數");
+        }
+    }
+    // 例如 50:10,400:20：每秒 50 個請求 10 秒，再每秒 400 個請求 20 秒
+    private static List<double[]> parsePhases(String value) {
+        List<double[]> phases = new ArrayList<>();
+        for (String item : value.split(",")) {
+            String[] parts = item.split(":");
+            if (parts.length != 2) {
+                usage("--rate 格式應為 每秒請求數:秒數[,...]: " + item);
+            }
+            double rate = Double.parseDouble(parts[0]);
+            double seconds = Double.parseDouble(parts[1]);
+            if (rate <= 0 || seconds <= 0) {
+                usage("--rate 的數值必須為正數: " + item);
+            }
+            phases.add(new double[] { rate, seconds });
+        }
+        return phases;
+    }
+    private static boolean parseArrival(String value) {
+        if ("poisson".equals(value) || "uniform".equals(value)) {
+            return "poisson".equals(value);
+        }
+        usage("--arrival 必須為 poisson 或 uniform: " + value);
+        return false;
+    }
+    private static Map<String, Integer> parseMix(String value) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String item : value.split(",")) {
+            String[] parts = item.split(":");
+            if (parts.length != 2 || !Arrays.asList(OPS).contains(parts[0]) || "login".equals(parts[0])) {
+                usage("--mix 格式應為 類型:權重[,...]，類型為 browse、hot、book、cancel、boundary: " + item);
+            }
+            mix.put(parts[0], Integer.parseInt(parts[1]));
+        }
+        return mix;
+    }
+
+    // ----------------- 執行 -----------------
+    private void run() throws Exception {
+        for (String op : OPS) {
+            stats.put(op, new Stats());
+        }
+        inFlight = new Semaphore(maxInFlight);
+        List<Op> ops;
+        if (replayFile != null) {
+            ops = loadReplay(replayFile);
+            Set<String> ids = new LinkedHashSet<>();
+            for (Op op : ops) {
+                ids.add(op.studentId);
+            }
+            login(ids);
+        } else {
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < students; i++) {
+                ids.add(String.format("%s%05d", studentPrefix, i));
+            }
+            login(ids);
+            discoverTrips();
+            ops = generate(ids);
+        }
+        if (recordFile != null) {
+            recorder = new PrintWriter(Files.newBufferedWriter(recordFile, StandardCharsets.UTF_8));
+        }
+        System.err.printf("送出 %d 個請求（最多 %d 個在途）...%n", ops.size(), maxInFlight);
+        startNanos = System.nanoTime();
+        for (Op op : ops) {
+            long intended = startNanos + op.offsetNanos;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquireUninterruptibly(); // 在途請求已滿時等待；等待的時間計入校正後的延遲
+            maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - intended);
+            dispatch(op, intended);
+        }
+        inFlight.acquireUninterruptibly(maxInFlight);
+        long elapsed = System.nanoTime() - startNanos;
+        if (recorder != null) {
+            recorder.close();
+        }
+        report(ops.size(), elapsed);
+    }
+
+    // 依階段與到達模式排定每個請求的送出時間，並依權重決定操作類型
+    private List<Op> generate(List<String> ids) {
+        Random random = new Random(42);
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            totalWeight += weight;
+        }
+        if (totalWeight <= 0) {
+            usage("--mix 的權重總和必須大於 0");
+        }
+        String hot = hotTrip != null ? hotTrip : defaultHotTrip();
+        List<Op> ops = new ArrayList<>();
+        double offset = 0;
+        double phaseStart = 0;
+        for (double[] phase : phases) {
+            double rate = phase[0];
+            double phaseEnd = phaseStart + phase[1];
+            while (true) {
+                offset += poisson ? -Math.log(1 - random.nextDouble()) / rate : 1 / rate;
+                if (offset >= phaseEnd) {
+                    offset = phaseEnd;
+                    break;
+                }
+                int pick = random.nextInt(totalWeight);
+                String type = null;
+                for (Map.Entry<String, Integer> e : mix.entrySet()) {
+                    pick -= e.getValue();
+                    if (pick < 0) {
+                        type = e.getKey();
+                        break;
+                    }
+                }
+                String studentId = ids.get(random.nextInt(ids.size()));
+                String seat = String.valueOf(1 + random.nextInt(SEATS));
+                long nanos = (long) (offset * 1e9);
+                switch (type) {
+                    case "browse":
+                        String[] trip = trips.get(random.nextInt(trips.size()));
+                        ops.add(new Op(nanos, type, studentId, null, null, trip[1], routes.get(random.nextInt(routes.size())), null));
+                        break;
+                    case "hot":
+                        ops.add(new Op(nanos, type, studentId, hot, seat, null, null, null));
+                        break;
+                    case "book":
+                        ops.add(new Op(nanos, type, studentId, trips.get(random.nextInt(trips.size()))[0], seat, null, null, null));
+                        break;
+                    case "boundary":
+                        // 沒有接近 30 分鐘取消期限的班次時改為一般預約
+                        ops.add(new Op(nanos, boundaryTrip != null ? type : "book", studentId,
+                            boundaryTrip != null ? boundaryTrip : trips.get(random.nextInt(trips.size()))[0], seat, null, null, null));
+                        break;
+                    default:
+                        ops.add(new Op(nanos, type, studentId, null, null, null, null, null));
+                }
+            }
+            phaseStart = phaseEnd;
+        }
+        return ops;
+    }
+
+    // ----------------- 準備 -----------------
+    // 準備階段：登入失敗（503 卸載、429 限流）時稍候重試，登入延遲仍計入 login 統計
+    private void login(Collection<String> ids) {
+        System.err.printf("登入 %d 位學生...%n", ids.size());
+        Semaphore parallel = new Semaphore(4);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (String studentId : ids) {
+            parallel.acquireUninterruptibly();
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            login(studentId, 1, done);
+            futures.add(done.whenComplete((v, e) -> parallel.release()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        System.err.printf("登入成功 %d 位%n", tokens.size());
+    }
+    private void login(String studentId, int attempt, CompletableFuture<Void> done) {
+        long start = System.nanoTime();
+        String body = "{\"username\":\"" + escape(studentId) + "\",\"password\":\"" + escape(password) + "\"}";
+        send(HttpRequest.newBuilder(URI.create(url + "/api/login")).POST(HttpRequest.BodyPublishers.ofString(body)))
+            .whenComplete((response, error) -> {
+                record("login", start, start, response, error);
+                int status = response == null ? -1 : response.statusCode();
+                if (status == 200) {
+                    String token = field(response.body(), "token");
+                    if (token != null) {
+                        tokens.put(studentId, token);
+                    }
+                } else if ((status == 503 || status == 429) && attempt < LOGIN_ATTEMPTS) {
+                    CompletableFuture.delayedExecutor(100L * attempt, TimeUnit.MILLISECONDS)
+                        .execute(() -> login(studentId, attempt + 1, done));
+                    return;
+                }
+                done.complete(null);
+            });
+    }
+
+    // 查詢今天起 days 天各路線的班次；找出發車前 25～35 分鐘的班次，作為取消期限邊界的測試對象
+    private void discoverTrips() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDate today = now.toLocalDate();
+        for (int d = 0; d < days; d++) {
+            for (String route : routes) {
+                String body = get(url + "/api/schedules?date=" + today.plusDays(d) + "&route=" + encode(route));
+                Matcher m = TRIP.matcher(body);
+                while (m.find()) {
+                    LocalDateTime departure = LocalDateTime.of(LocalDate.parse(m.group(2)), LocalTime.parse(m.group(3)));
+                    if (departure.isAfter(now)) {
+                        trips.add(new String[] { m.group(1), m.group(2), m.group(3) });
+                    }
+                    long minutes = Duration.between(now, departure).toMinutes();
+                    if (boundaryTrip == null && minutes >= 25 && minutes <= 35) {
+                        boundaryTrip = m.group(1);
+                    }
+                }
+            }
+        }
+        if (trips.isEmpty()) {
+            usage("找不到可預約的班次，請確認伺服器網址與 --routes");
+        }
+        System.err.printf("班次 %d 筆，熱門班次 %s，取消期限邊界班次 %s%n", trips.size(),
+            hotTrip != null ? hotTrip : defaultHotTrip(), boundaryTrip != null ? boundaryTrip : "（無，boundary 改為一般預約）");
+    }
+    // 明天第一班（開放預約時大家搶的班次）
+    private String defaultHotTrip() {
+        String tomorrow = LocalDate.now().plusDays(1).toString();
+        for (String[] trip : trips) {
+            if (trip[1].equals(tomorrow)) {
+                return trip[0];
+            }
+        }
+        return trips.get(0)[0];
+    }
+
+    // ----------------- 重播 -----------------
+    // 每行一個 JSON 物件：本工具的紀錄（t 為毫秒偏移、op 為操作類型）或稽核日誌（ts、type），依時間排序後依 --speed 縮放
+    private List<Op> loadReplay(Path file) throws IOException {
+        List<Op> ops = new ArrayList<>();
+        LocalDateTime first = null;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                Map<String, String> fields = new HashMap<>();
+                try {
+                    JsonRequestReader.parseObject(line.getBytes(StandardCharsets.UTF_8), fields::put);
+                } catch (RequestParseException e) {
+                    continue; // 寫入中斷留下的不完整行
+                }
+                long millis;
+                String type;
+                if (fields.containsKey("op")) {
+                    millis = Long.parseLong(fields.getOrDefault("t", "0"));
+                    type = fields.get("op");
+                } else if (fields.containsKey("type") && fields.containsKey("ts")) {
+                    LocalDateTime ts = LocalDateTime.parse(fields.get("ts"));
+                    first = first == null ? ts : first;
+                    millis = Duration.between(first, ts).toMillis();
+                    type = auditOp(fields.get("type"));
+                } else {
+                    continue;
+                }
+                if (type == null || fields.get("studentId") == null || "login".equals(type)) {
+                    continue;
+                }
+                String ref = fields.containsKey("ref") ? fields.get("ref") : fields.get("reservationId");
+                ops.add(new Op((long) (millis / speed * 1e6), type, fields.get("studentId"), fields.get("tripId"),
+                    fields.get("seatNumber"), fields.get("date"), fields.get("route"), ref));
+            }
+        }
+        ops.sort(Comparator.comparingLong(op -> op.offsetNanos));
+        System.err.printf("重播 %s：%d 個請求，原始長度 %.1f 秒%n", file, ops.size(),
+            ops.isEmpty() ? 0.0 : ops.get(ops.size() - 1).offsetNanos * speed / 1e9);
+        return ops;
+    }
+    private static String auditOp(String type) {
+        switch (type) {
+            case "BOOKED": return "book";
+            case "CANCELLED":
+            case "LATE_CANCELLED": return "cancel";
+            default: return null;
+        }
+    }
+
+    // ----------------- 送出 -----------------
+    private void dispatch(Op op, long intended) {
+        long sent = System.nanoTime();
+        String studentId = op.studentId;
+        CompletableFuture<HttpResponse<String>> future;
+        switch (op.type) {
+            case "browse":
+                future = send(HttpRequest.newBuilder(URI.create(url + "/api/schedules?date=" + op.date + "&route=" + encode(op.route))).GET());
+                recordOp(op.offsetNanos, op.type, studentId, null, null, op.date, op.route, null);
+                break;
+            case "cancel":
+                String reservationId;
+                if (op.ref != null && replayFile != null) {
+                    reservationId = replayedIds.remove(op.ref);
+                } else {
+                    String[] pending = booked.poll();
+                    reservationId = pending == null ? null : pending[1];
+                    studentId = pending == null ? studentId : pending[0];
+                }
+                if (reservationId == null) {
+                    skipped++;
+                    inFlight.release();
+                    return;
+                }
+                future = send(authorized(HttpRequest.newBuilder(URI.create(url + "/api/bookings/" + encode(reservationId)
+                    + "?studentId=" + encode(studentId))), studentId).DELETE());
+                recordOp(op.offsetNanos, "cancel", studentId, null, null, null, null, reservationId);
+                break;
+            default: // hot、book、boundary
+                String body = "{\"studentId\":\"" + escape(studentId) + "\",\"scheduleId\":\"" + escape(op.tripId)
+                    + "\",\"seatNumber\":\"" + escape(op.seatNumber) + "\"}";
+                future = send(authorized(HttpRequest.newBuilder(URI.create(url + "/api/bookings")), studentId)
+                    .POST(HttpRequest.BodyPublishers.ofString(body)));
+        }
+        String bookingStudent = studentId;
+        future.whenComplete((response, error) -> {
+            record(op.type, intended, sent, response, error);
+            if (op.tripId != null) {
+                String reservationId = response != null && response.statusCode() == 200 ? field(response.body(), "id") : null;
+                // 預約在回應後才寫入紀錄，失敗的預約沒有 ref，重播時仍會送出以重現搶位
+                recordOp(op.offsetNanos, op.type, bookingStudent, op.tripId, op.seatNumber, null, null, reservationId);
+                if (reservationId != null) {
+                    onBooked(op, bookingStudent, reservationId);
+                }
+            }
+            inFlight.release();
+        });
+    }
+    // 一般預約成功後可被之後的 cancel 取消；邊界班次的預約立即取消，時間點落在取消期限前後
+    private void onBooked(Op op, String studentId, String reservationId) {
+        if (op.ref != null) {
+            replayedIds.put(op.ref, reservationId);
+        }
+        if ("boundary".equals(op.type)) {
+            long start = System.nanoTime();
+            send(authorized(HttpRequest.newBuilder(URI.create(url + "/api/bookings/" + encode(reservationId)
+                    + "?studentId=" + encode(studentId))), studentId).DELETE())
+                .whenComplete((response, error) -> record("cancel", start, start, response, error));
+        } else if (replayFile == null) {
+            booked.add(new String[] { studentId, reservationId });
+        }
+    }
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request) {
+        return client.sendAsync(request.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+    private HttpRequest.Builder authorized(HttpRequest.Builder request, String studentId) {
+        String token = tokens.get(studentId);
+        return token == null ? request : request.header("Authorization", "Bearer " + token);
+    }
+    private String get(String target) {
+        try {
+            return client.send(HttpRequest.newBuilder(URI.create(target)).GET().build(),
+                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).body();
+        } catch (IOException e) {
+            usage("無法連線到 " + url + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "";
+    }
+
+    // ----------------- 統計與紀錄 -----------------
+    private void record(String type, long intended, long sent, HttpResponse<String> response, Throwable error) {
+        long now = System.nanoTime();
+        Stats s = stats.get(type);
+        s.corrected.record(now - intended);
+        s.uncorrected.record(now - sent);
+        if (!"login".equals(type)) {
+            correctedAll.record(now - intended);
+            uncorrectedAll.record(now - sent);
+        }
+        int status = response == null ? -1 : response.statusCode();
+        if (status >= 200 && status < 300) {
+            s.ok.increment();
+        } else if (status == 400 || status == 409) {
+            s.conflict.increment();
+        } else if (status == 429) {
+            s.limited.increment();
+        } else if (status == 503) {
+            s.shed.increment();
+        } else {
+            s.failed.increment();
+        }
+    }
+    private void recordOp(long offsetNanos, String op, String studentId, String tripId, String seatNumber, String date, String route, String ref) {
+        if (recorder == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("{\"t\":").append(offsetNanos / 1_000_000).append(",\"op\":\"").append(op).append('"');
+        appendField(line, "studentId", studentId);
+        appendField(line, "tripId", tripId);
+        appendField(line, "seatNumber", seatNumber);
+        appendField(line, "date", date);
+        appendField(line, "route", route);
+        appendField(line, "ref", ref);
+        synchronized (recorder) {
+            recorder.println(line.append('}'));
+        }
+    }
+    private static void appendField(StringBuilder line, String name, String value) {
+        if (value != null) {
+            line.append(",\"").append(name).append("\":\"").append(escape(value)).append('"');
+        }
+    }
+
+    private void report(int planned, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long completed = correctedAll.getCount();
+        System.out.printf("duration=%.1fs planned=%d completed=%d throughput=%.1f req/s maxSendLag=%.1fms skippedCancels=%d%n",
+            seconds, planned, completed, completed / seconds, maxLagNanos / 1e6, skipped);
+        System.out.printf("%-9s %8s %8s %8s %7s %7s %7s | %9s %9s %9s | %9s %9s %9s%n",
+            "op", "count", "ok", "conflict", "429", "503", "error",
+            "p50", "p99", "p99.9", "raw p50", "raw p99", "raw p99.9");
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            long count = s.corrected.getCount();
+            if (count == 0) {
+                continue;
+            }
+            System.out.printf("%-9s %8d %8d %7.1f%% %6.1f%% %6.1f%% %6.1f%% | %9s %9s %9s | %9s %9s %9s%n",
+                e.getKey(), count, s.ok.sum(), percent(s.conflict, count), percent(s.limited, count), percent(s.shed, count),
+                percent(s.failed, count), millis(s.corrected, 0.5), millis(s.corrected, 0.99), millis(s.corrected, 0.999),
+                millis(s.uncorrected, 0.5), millis(s.uncorrected, 0.99), millis(s.uncorrected, 0.999));
+        }
+        System.out.printf("%-9s %8d %8s %8s %7s %7s %7s | %9s %9s %9s | %9s %9s %9s%n",
+            "all", completed, "", "", "", "", "",
+            millis(correctedAll, 0.5), millis(correctedAll, 0.99), millis(correctedAll, 0.999),
+            millis(uncorrectedAll, 0.5), millis(uncorrectedAll, 0.99), millis(uncorrectedAll, 0.999));
+        System.out.println("p50/p99/p99.9 由排定送出時間起算（校正協調遺漏）；raw 由實際送出時間起算");
+    }
+    private static double percent(LongAdder part, long total) {
+        return part.sum() * 100.0 / total;
+    }
+    private static String millis(LatencyHistogram histogram, double q) {
+        return String.format("%.2fms", histogram.percentile(q) / 1e6);
+    }
+
+    // ----------------- 工具方法 -----------------
+    private static String field(String json, String name) {
+        Map<String, String> fields = new HashMap<>();
+        try {
+            JsonRequestReader.parseObject(json.getBytes(StandardCharsets.UTF_8), fields::put);
+        } catch (RequestParseException e) {
+            return null;
+        }
+        return fields.get(name);
+    }
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("用法: java LoadGenerator [--url=http://localhost:8080] [--rate=每秒請求數:秒數,...] [--arrival=poisson|uniform]");
+        System.err.println("                         [--mix=browse:70,hot:10,book:10,cancel:5,boundary:5] [--students=200] [--password=loadtest]");
+        System.err.println("                         [--days=3] [--hot-trip=班次ID] [--routes=路線名稱,...] [--max-inflight=2000] [--record=檔案]");
+        System.err.println("       java LoadGenerator --replay=檔案 [--speed=1] [--url=...] [--password=...]");
+        System.exit(2);
+    }
+}
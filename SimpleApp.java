@@ -1,79 +1,152 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import com.sun.net.httpserver.*;
 
 enum ReservationStatus{
-    RESERVED, CANCELLED, LATEWITHDRAW, NOSHOW
+    RESERVED, CANCELLED, LATEWITHDRAW, NOSHOW, COMPLETED // 新狀態只能加在最後，快照與日誌以序數儲存
 }
 
 /*============================ Member 類別 ================================= */
 class Member{
+    public static final String UNSET_PASSWORD = "default_pass"; // 舊版自動建立帳號時的預設值，表示尚未設定密碼
+    // 違規次數、停權解除日與密碼雜湊存放在 MemberStore 的平行陣列，Member 只是依需要建立的存取介面；
+    // 同一會員只會建立一個 Member，狀態讀寫皆在此物件的鎖內進行
+    private final MemberStore store;
+    private final int index;
     private final String studentId;
-    private final String hashedPassword;
-    private int violationTimes = 0;
-    private final List<Reservation> historyReservations = new ArrayList<>();
-    private LocalDate suspensionEndDate = null; // 記錄停權解除日期
+    // 仍有效（RESERVED）的預約，依預約 ID 索引並保留建立順序；已取消的預約移至 ReservationArchive。第一次預約時才配置
+    private Map<String, Reservation> activeReservations;
     // ----------------- 建構式 -----------------
-    public Member(String studentId, String hashedPassword){
+    Member(MemberStore store, int index, String studentId){
+        this.store = store;
+        this.index = index;
         this.studentId = studentId;
-        this.hashedPassword = hashedPassword;
     }
     // ----------------- 方法 -----------------
-	public void addReservation(Reservation reservation){
-		historyReservations.add(reservation);
+	public synchronized void addReservation(Reservation reservation){
+        if (activeReservations == null){
+            activeReservations = new LinkedHashMap<>();
+        }
+		activeReservations.put(reservation.getReservationId(), reservation);
 	}
-    public void handleViolationTimes(){
-        violationTimes += 1;
-        if (violationTimes >= 3 && suspensionEndDate == null){
+    // 預約結束（取消、逾時取消等）時移出有效預約，回傳是否原本存在
+    public synchronized boolean removeActiveReservation(String reservationId){
+        return activeReservations != null && activeReservations.remove(reservationId) != null;
+    }
+    // 回傳此次違規是否使會員進入停權
+    public synchronized boolean handleViolationTimes(){
+        return addViolations(1);
+    }
+    // 一次累加多次違規（未報到批次處理用），回傳是否因此進入停權
+    public synchronized boolean addViolations(int count){
+        int violationTimes = store.violations(index) + count;
+        store.setViolations(index, violationTimes);
+        if (violationTimes >= 3 && store.suspensionEndDay(index) == MemberStore.NO_SUSPENSION){
             // 設定停權解除日期為現在的三個月後
-            LocalDate endDate = LocalDate.now().plusMonths(3);
-            setSuspensionEndDate(endDate); 
-            System.out.println("用戶達到停權標準，停權解除日期: " + endDate);
+            setSuspensionEndDate(LocalDate.now().plusMonths(3));
+            return true;
+        }
+        return false;
+    }
+    // 停權期滿時解除停權（檢查與重設為同一個原子操作），回傳是否有解除
+    public synchronized boolean liftSuspensionIfExpired(LocalDate today){
+        int suspensionEndDay = store.suspensionEndDay(index);
+        if (suspensionEndDay != MemberStore.NO_SUSPENSION && today.toEpochDay() > suspensionEndDay){
+            resetSuspension();
+            return true;
         }
+        return false;
     }
     // ----------------- 服務方法 -----------------
     public String getStudentId(){
         return studentId;
     }
-    public String getHashedPassword(){
-        return hashedPassword;
+    public synchronized String getHashedPassword(){
+        return store.password(index);
     }
-    public int getViolationTimes(){
-        return violationTimes;
+    public synchronized void setHashedPassword(String hashedPassword){
+        store.setPassword(index, hashedPassword);
     }
-    public List<Reservation> getActiveReservations(){
-        List<Reservation> active = new ArrayList<>();
-        for (Reservation r : historyReservations){
-            if (r.getStatus() == ReservationStatus.RESERVED){
-                active.add(r);
-            }
-        }
-        return active;
+    public synchronized int getViolationTimes(){
+        return store.violations(index);
+    }
+    public synchronized Reservation findActiveReservation(String reservationId){
+        return activeReservations == null ? null : activeReservations.get(reservationId);
     }
-    public LocalDate getSuspensionEndDate(){
-        return suspensionEndDate;
+    public synchronized List<Reservation> getActiveReservations(){
+        return activeReservations == null ? new ArrayList<>() : new ArrayList<>(activeReservations.values());
     }
-    public void setSuspensionEndDate(LocalDate suspensionEndDate){
-        this.suspensionEndDate = suspensionEndDate;
+    public synchronized int getActiveReservationCount(){
+        return activeReservations == null ? 0 : activeReservations.size();
     }
-    public void resetSuspension(){
-        this.violationTimes = 0;
-        this.suspensionEndDate = null;
+    public synchronized LocalDate getSuspensionEndDate(){
+        return MemberStore.toDate(store.suspensionEndDay(index));
+    }
+    public synchronized void setSuspensionEndDate(LocalDate suspensionEndDate){
+        store.setSuspensionEndDay(index, MemberStore.toEpochDay(suspensionEndDate));
+    }
+    public synchronized void resetSuspension(){
+        store.setViolations(index, 0);
+        store.setSuspensionEndDay(index, MemberStore.NO_SUSPENSION);
+    }
+    // 由持久化資料復原違規狀態
+    public synchronized void restoreViolationState(int violationTimes, LocalDate suspensionEndDate){
+        store.setViolations(index, violationTimes);
+        store.setSuspensionEndDay(index, MemberStore.toEpochDay(suspensionEndDate));
     }
 }
 
 /*============================ Route 類別 ================================= */
 class Route{
+    public static final int DEFAULT_SEAT_CAPACITY = 20; // 預設車型座位數
+    public static final List<LocalTime> DEFAULT_TIMETABLE = List.of( // 預設每日發車時刻
+        LocalTime.of(8, 0), LocalTime.of(9, 30), LocalTime.of(11, 0),
+        LocalTime.of(13, 30), LocalTime.of(15, 0), LocalTime.of(16, 30)
+    );
     private final String routeId;
     private final String routeName;
+    private final int seatCapacity; // 該路線車輛的座位數
+    private final List<LocalTime> timetable; // 每日發車時刻，由 TripScheduler 依此產生班次
 	// ----------------- 建構式 -----------------
     public Route(String routeId, String routeName){
+        this(routeId, routeName, DEFAULT_SEAT_CAPACITY);
+    }
+    public Route(String routeId, String routeName, int seatCapacity){
+        this(routeId, routeName, seatCapacity, Collections.emptyList());
+    }
+    public Route(String routeId, String routeName, int seatCapacity, List<LocalTime> timetable){
+        if (seatCapacity <= 0){
+            throw new IllegalArgumentException("座位數必須為正整數: " + seatCapacity);
+        }
         this.routeId = routeId;
         this.routeName = routeName;
+        this.seatCapacity = seatCapacity;
+        List<LocalTime> sorted = new ArrayList<>(timetable);
+        Collections.sort(sorted);
+        this.timetable = Collections.unmodifiableList(sorted);
     }
     // ----------------- 服務方法 -----------------
     public String getRouteId(){
@@ -82,6 +155,12 @@ class Route{
     public String getRouteName(){
         return routeName;
     }
+    public int getSeatCapacity(){
+        return seatCapacity;
+    }
+    public List<LocalTime> getTimetable(){
+        return timetable;
+    }
 }
 
 /*============================ Trip 類別 ================================= */
@@ -90,43 +169,196 @@ class Trip{
     private final Route route;
     private final LocalDate date;
     private final LocalTime departureTime;
-    private final int totalSeats = 20;
-    private final List<Seat> seats = new ArrayList<>();
-    private final Map<String, Seat> seatLookup = new HashMap<>();
+    private final int totalSeats;
+    // 座位占用點陣圖：座位 n 對應第 (n - 1) 個位元；僅在持有 bookingLock 時修改
+    private final long[] occupiedBits;
+    // 已占用座位數；寫入點陣圖後才更新此 volatile 欄位，讓不加鎖的讀取也能看到一致的點陣圖
+    private volatile int occupiedCount = 0;
+    private final ReentrantLock bookingLock = new ReentrantLock(); // 該班次的預約/取消鎖，不同班次互不競爭
+    // 依座位記錄有效預約，第一次預約時才配置；以下兩個欄位僅在持有 bookingLock 時存取
+    private Reservation[] seatReservations;
+    private boolean retired = false; // 已發車並自索引移除，不再接受預約
+    // 暫時保留（HELD）的座位：同時標記在 occupiedBits（他人不可預約）與 heldBits，第一次保留時才配置；
+    // 僅在持有 bookingLock 時修改，寫入後才更新 heldCount，讓不加鎖的讀取也能看到一致的點陣圖
+    private long[] heldBits;
+    private SeatHold[] seatHolds;
+    private volatile int heldCount = 0;
+    private TripWaitlist waitlist; // 額滿後的候補名單，第一次有人候補時才配置；僅在持有 bookingLock 時存取
     // ----------------- 建構式 -----------------
     public Trip(String tripId, Route route, LocalDate date, LocalTime departureTime){
+        this(tripId, route, date, departureTime, route.getSeatCapacity());
+    }
+    // 由路線、日期與發車時間組成固定的班次 ID（例如 R01-20251018-0800），重新啟動後仍指向同一班次
+    public static String idFor(Route route, LocalDate date, LocalTime departureTime){
+        return route.getRouteId() + "-" + date.format(DateTimeFormatter.BASIC_ISO_DATE)
+            + "-" + departureTime.format(DateTimeFormatter.ofPattern("HHmm"));
+    }
+    public Trip(String tripId, Route route, LocalDate date, LocalTime departureTime, int totalSeats){
+        if (totalSeats <= 0){
+            throw new IllegalArgumentException("座位數必須為正整數: " + totalSeats);
+        }
         this.tripId = tripId;
         this.route = route;
         this.date = date;
         this.departureTime = departureTime;
-        // 初始化該 Trip 的 20 個 Seat
-        for (int i = 1; i <= totalSeats; i++){
-            Seat newSeat = new Seat(i, this); // 傳入當前的 Trip
-            this.seats.add(newSeat);
-            this.seatLookup.put(String.valueOf(newSeat.getSeatNumber()), newSeat);
-        }
+        this.totalSeats = totalSeats;
+        this.occupiedBits = new long[(totalSeats + 63) >>> 6];
     }
     // ----------------- 方法 -----------------
     public int getAvailableSeats(){
-        int availableCount = 0;
-        for (Seat seat : seats){
-            if (seat.isAvailable()){
-                availableCount += 1;
+        return totalSeats - occupiedCount;
+    }
+    // 已預約或保留中（不可預約）的座位數
+    public int getOccupiedSeatCount(){
+        return occupiedCount;
+    }
+    public int getHeldSeatCount(){
+        return heldCount;
+    }
+    // 已正式預約的座位數（不含保留中）
+    public int getBookedSeatCount(){
+        return Math.max(0, occupiedCount - heldCount);
+    }
+    public boolean isValidSeat(int seatNumber){
+        return seatNumber >= 1 && seatNumber <= totalSeats;
+    }
+    public boolean isSeatFree(int seatNumber){
+        if (!isValidSeat(seatNumber)){
+            return false;
+        }
+        int bit = seatNumber - 1;
+        return occupiedCount == 0 || (occupiedBits[bit >>> 6] & (1L << bit)) == 0;
+    }
+    public boolean isSeatHeld(int seatNumber){
+        if (heldCount == 0 || !isValidSeat(seatNumber)){
+            return false;
+        }
+        int bit = seatNumber - 1;
+        return (heldBits[bit >>> 6] & (1L << bit)) != 0;
+    }
+    // 回傳座位號碼 >= fromSeat 的第一個已占用（含保留中）座位，沒有則回傳 -1；可用於不配置記憶體地逐一列出已占用座位
+    public int nextOccupiedSeat(int fromSeat){
+        return occupiedCount == 0 ? -1 : nextSeat(occupiedBits, fromSeat);
+    }
+    // 回傳座位號碼 >= fromSeat 的第一個保留中座位，沒有則回傳 -1
+    public int nextHeldSeat(int fromSeat){
+        return heldCount == 0 ? -1 : nextSeat(heldBits, fromSeat);
+    }
+    private int nextSeat(long[] seatBits, int fromSeat){
+        if (fromSeat > totalSeats){
+            return -1;
+        }
+        int bit = Math.max(fromSeat, 1) - 1;
+        int word = bit >>> 6;
+        long bits = seatBits[word] & (-1L << bit);
+        while (true){
+            if (bits != 0){
+                int seatNumber = (word << 6) + Long.numberOfTrailingZeros(bits) + 1;
+                return seatNumber <= totalSeats ? seatNumber : -1;
             }
+            if (++word == seatBits.length){
+                return -1;
+            }
+            bits = seatBits[word];
+        }
+    }
+    // 占用座位，呼叫端須持有 bookingLock；座位已被占用或不存在時回傳 false
+    public boolean occupySeat(int seatNumber){
+        if (!isSeatFree(seatNumber)){
+            return false;
+        }
+        int bit = seatNumber - 1;
+        occupiedBits[bit >>> 6] |= (1L << bit);
+        occupiedCount = occupiedCount + 1;
+        return true;
+    }
+    // 釋放座位，呼叫端須持有 bookingLock
+    public void releaseSeat(int seatNumber){
+        if (!isValidSeat(seatNumber) || isSeatFree(seatNumber)){
+            return;
+        }
+        int bit = seatNumber - 1;
+        occupiedBits[bit >>> 6] &= ~(1L << bit);
+        occupiedCount = occupiedCount - 1;
+    }
+    // 保留座位，呼叫端須持有 bookingLock；座位已被占用、保留或班次已下架時回傳 false
+    public boolean holdSeat(int seatNumber, SeatHold hold){
+        if (retired || !occupySeat(seatNumber)){
+            return false;
+        }
+        if (seatHolds == null){
+            heldBits = new long[occupiedBits.length];
+            seatHolds = new SeatHold[totalSeats];
+        }
+        int bit = seatNumber - 1;
+        heldBits[bit >>> 6] |= (1L << bit);
+        seatHolds[bit] = hold;
+        heldCount = heldCount + 1;
+        return true;
+    }
+    // 座位目前的保留，呼叫端須持有 bookingLock
+    public SeatHold getHold(int seatNumber){
+        return seatHolds == null ? null : seatHolds[seatNumber - 1];
+    }
+    // 結束保留，呼叫端須持有 bookingLock；keepOccupied 為 true 時座位直接轉為預約占用，否則釋放
+    public void endHold(int seatNumber, boolean keepOccupied){
+        int bit = seatNumber - 1;
+        heldBits[bit >>> 6] &= ~(1L << bit);
+        seatHolds[bit] = null;
+        heldCount = heldCount - 1;
+        if (!keepOccupied){
+            releaseSeat(seatNumber);
+        }
+    }
+    // 記錄/移除座位對應的有效預約，呼叫端須持有 bookingLock
+    public void attachReservation(int seatNumber, Reservation reservation){
+        if (seatReservations == null){
+            seatReservations = new Reservation[totalSeats];
+        }
+        seatReservations[seatNumber - 1] = reservation;
+    }
+    public void detachReservation(int seatNumber){
+        if (seatReservations != null){
+            seatReservations[seatNumber - 1] = null;
         }
-        return availableCount;
     }
-    public Set<String> getOccupiedSeats(){
-        Set<String> occupied = new HashSet<>();
-        for (Seat seat : seats){
-            if (!seat.isAvailable()) {
-                occupied.add(String.valueOf(seat.getSeatNumber()));
+    public Reservation getReservationAt(int seatNumber){
+        return seatReservations == null ? null : seatReservations[seatNumber - 1];
+    }
+    // 標記班次已下架並取出所有有效預約，呼叫端須持有 bookingLock；保留中的座位一併作廢
+    public List<Reservation> retire(){
+        retired = true;
+        seatHolds = null;
+        List<Reservation> attached = new ArrayList<>();
+        if (seatReservations != null){
+            for (Reservation r : seatReservations){
+                if (r != null){
+                    attached.add(r);
+                }
             }
+            seatReservations = null;
+        }
+        return attached;
+    }
+    public boolean isRetired(){
+        return retired;
+    }
+    // 候補名單，呼叫端須持有 bookingLock；create 為 false 且尚無人候補時回傳 null
+    public TripWaitlist getWaitlist(boolean create){
+        if (waitlist == null && create){
+            waitlist = new TripWaitlist();
         }
-        return occupied;
+        return waitlist;
     }
     public Seat findSeatByNumber(String seatNumber){
-        return seatLookup.get(seatNumber);
+        try{
+            return findSeatByNumber(Integer.parseInt(seatNumber));
+        }catch (NumberFormatException e){
+            return null;
+        }
+    }
+    public Seat findSeatByNumber(int seatNumber){
+        return isValidSeat(seatNumber) ? new Seat(seatNumber, this) : null;
     }
     // ----------------- 服務方法 -----------------
     public String getTripId(){
@@ -147,13 +379,16 @@ class Trip{
     public int  getTotalSeats(){
         return totalSeats;
     }
+    public ReentrantLock getBookingLock(){
+        return bookingLock;
+    }
 }
 
 /*============================ Seat 類別 ================================= */
+// 座位的輕量檢視物件，占用狀態存放在所屬 Trip 的點陣圖中
 class Seat{
     private final int seatNumber;
     private final Trip trip;
-    private Reservation reservation = null; // 當前占用(預約)該 Seat 的 Reservation
     // ----------------- 建構式 -----------------
     public Seat(int seatNumber, Trip trip){
         this.seatNumber = seatNumber;
@@ -161,10 +396,17 @@ class Seat{
     }
     // ----------------- 方法 -----------------
 	public boolean isAvailable(){
-		return(this.reservation == null);
+		return trip.isSeatFree(seatNumber);
 	}
-    public void setReservation(Reservation reservation){
-        this.reservation = reservation;
+    public boolean isHeld(){
+        return trip.isSeatHeld(seatNumber);
+    }
+    // 占用/釋放座位，呼叫端須持有所屬班次的 bookingLock
+    public boolean occupy(){
+        return trip.occupySeat(seatNumber);
+    }
+    public void release(){
+        trip.releaseSeat(seatNumber);
     }
     /// ----------------- 服務方法 -----------------
     public int getSeatNumber(){
@@ -173,9 +415,6 @@ class Seat{
     public Trip getTrip(){
         return trip;
     }
-    public Reservation getReservation(){
-        return reservation;
-    }
 }
 
 /*============================ Reservation 類別 ================================= */
@@ -185,7 +424,8 @@ class Reservation{
     private final Member member;
     private final Seat seat;
     private final Trip trip;
-    private ReservationStatus status;
+    private volatile ReservationStatus status;
+    private volatile boolean checkedIn = false; // 已上車報到，發車後不計為未報到
     // ----------------- 建構式 -----------------
     public Reservation(String reservationId, LocalDateTime reservationDateTime, Member member, Seat seat, Trip trip){
         this.reservationId = reservationId;
@@ -195,12 +435,27 @@ class Reservation{
         this.trip = trip;
         this.status = ReservationStatus.RESERVED; // 新創的預約狀態預設為 RESERVED
 
-        seat.setReservation(this); // 確保建立 Reservation 時，立即在對應的 Seat 設置參考
+        seat.occupy(); // 確保建立 Reservation 時，立即占用對應的 Seat
+    }
+    // 由持久化資料復原預約或確認保留，不占用座位（由復原流程最後統一重建座位狀態；保留的座位已占用）
+    public Reservation(String reservationId, LocalDateTime reservationDateTime, Member member, Seat seat, Trip trip, ReservationStatus status){
+        this.reservationId = reservationId;
+        this.reservationDateTime = reservationDateTime;
+        this.member = member;
+        this.seat = seat;
+        this.trip = trip;
+        this.status = status;
     }
     // ----------------- 方法 -----------------
     public void setStatus(ReservationStatus status){
         this.status = status;
     }
+    public void checkIn(){
+        this.checkedIn = true;
+    }
+    public boolean isCheckedIn(){
+        return checkedIn;
+    }
     public String getSeatNumber(){
         return String.valueOf(this.seat.getSeatNumber());
     }
@@ -225,274 +480,6990 @@ class Reservation{
     }
 }
 
+/*============================ SeatHold 類別 ================================= */
+// 座位暫時保留：學生選位後到送出預約前，座位在期限內不會被他人預約。state 只在持有所屬班次的 bookingLock 時修改
+class SeatHold{
+    public static final int ACTIVE = 0;
+    public static final int CONFIRMED = 1;
+    public static final int RELEASED = 2;
+    public static final int EXPIRED = 3;
+
+    private final long holdId;
+    private final Member member;
+    private final Trip trip;
+    private final int seatNumber;
+    private final long expiresAtMillis; // epoch 毫秒，回應給用戶端
+    private final long deadlineNanos;   // 計時輪依此判斷到期
+    private volatile int state = ACTIVE;
+    long remainingRounds;               // 到期前計時輪還要轉幾圈，只由計時輪執行緒存取
+    // ----------------- 建構式 -----------------
+    public SeatHold(long holdId, Member member, Trip trip, int seatNumber, long ttlMillis){
+        this.holdId = holdId;
+        this.member = member;
+        this.trip = trip;
+        this.seatNumber = seatNumber;
+        this.expiresAtMillis = System.currentTimeMillis() + ttlMillis;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+    // ----------------- 方法 -----------------
+    // 呼叫端須持有所屬班次的 bookingLock
+    public void setState(int state){
+        this.state = state;
+    }
+    public boolean isActive(){
+        return state == ACTIVE;
+    }
+    // ----------------- 服務方法 -----------------
+    public long getHoldId(){ return holdId; }
+    public Member getMember(){ return member; }
+    public Trip getTrip(){ return trip; }
+    public int getSeatNumber(){ return seatNumber; }
+    public long getExpiresAtMillis(){ return expiresAtMillis; }
+    public long getDeadlineNanos(){ return deadlineNanos; }
+    public int getState(){ return state; }
+}
+
+/*============================ WaitlistEntry 類別 ================================= */
+// 額滿班次的候補登記：以雙向鏈結串在所屬班次的 TripWaitlist 中，加入與離開都是 O(1)。
+// state 與鏈結只在持有所屬班次的 bookingLock 時修改，其餘執行緒只讀 state
+class WaitlistEntry{
+    public static final int WAITING = 0;
+    public static final int PROMOTED = 1; // 已遞補為預約
+    public static final int LEFT = 2;     // 會員自行離開
+    public static final int DROPPED = 3;  // 輪到時已停權，移出候補
+    public static final int EXPIRED = 4;  // 班次發車時仍未輪到
+    private static final String[] STATE_NAMES = { "WAITING", "PROMOTED", "LEFT", "DROPPED", "EXPIRED" };
+
+    private final long entryId;
+    private final Member member;
+    private final Trip trip;
+    private volatile int state = WAITING;
+    private volatile Reservation reservation; // 遞補後建立的預約
+    private volatile long resolvedAtNanos;
+    WaitlistEntry prev;              // 以下兩個欄位由 TripWaitlist 維護
+    WaitlistEntry next;
+    List<Runnable> waiters;          // 等待結果的用戶，由 this 保護；結束候補後設為 null
+    // ----------------- 建構式 -----------------
+    public WaitlistEntry(long entryId, Member member, Trip trip){
+        this.entryId = entryId;
+        this.member = member;
+        this.trip = trip;
+    }
+    // ----------------- 方法 -----------------
+    // 以下三個方法的呼叫端須持有所屬班次的 bookingLock
+    public void setState(int state){
+        this.resolvedAtNanos = System.nanoTime();
+        this.state = state;
+    }
+    public void promote(Reservation reservation){
+        this.reservation = reservation;
+        setState(PROMOTED);
+    }
+    // 遞補的預約無法寫入日誌：回到候補狀態，由呼叫端放回隊首
+    public void requeue(){
+        this.reservation = null;
+        this.state = WAITING;
+    }
+    public boolean isWaiting(){
+        return state == WAITING;
+    }
+    // ----------------- 服務方法 -----------------
+    public long getEntryId(){ return entryId; }
+    public Member getMember(){ return member; }
+    public Trip getTrip(){ return trip; }
+    public long getResolvedAtNanos(){ return resolvedAtNanos; }
+    public int getState(){ return state; }
+    public String getStateName(){ return STATE_NAMES[state]; }
+    public Reservation getReservation(){ return reservation; }
+}
+
+/*============================ TripWaitlist 類別 ================================= */
+// 單一班次的候補名單（FIFO），所有方法的呼叫端須持有所屬班次的 bookingLock
+class TripWaitlist{
+    private WaitlistEntry head;
+    private WaitlistEntry tail;
+    private int size;
+    // ----------------- 方法 -----------------
+    public void add(WaitlistEntry entry){
+        entry.prev = tail;
+        entry.next = null;
+        if (tail == null){
+            head = entry;
+        }else{
+            tail.next = entry;
+        }
+        tail = entry;
+        size++;
+    }
+    // 放回隊首（遞補的預約無法寫入日誌時）
+    public void addFirst(WaitlistEntry entry){
+        entry.prev = null;
+        entry.next = head;
+        if (head == null){
+            tail = entry;
+        }else{
+            head.prev = entry;
+        }
+        head = entry;
+        size++;
+    }
+    // 呼叫端確認 entry 仍在候補中（WAITING）
+    public void remove(WaitlistEntry entry){
+        if (entry.prev == null){
+            head = entry.next;
+        }else{
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null){
+            tail = entry.prev;
+        }else{
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        size--;
+    }
+    public WaitlistEntry poll(){
+        WaitlistEntry first = head;
+        if (first != null){
+            remove(first);
+        }
+        return first;
+    }
+    // 取出全部候補（班次下架時）
+    public List<WaitlistEntry> drain(){
+        List<WaitlistEntry> all = new ArrayList<>(size);
+        WaitlistEntry entry;
+        while ((entry = poll()) != null){
+            all.add(entry);
+        }
+        return all;
+    }
+    // 排在第幾位（第一位為 1），只在查詢狀態時使用，成本與排在前面的人數成正比
+    public int positionOf(WaitlistEntry entry){
+        int position = 1;
+        for (WaitlistEntry e = head; e != null && e != entry; e = e.next){
+            position++;
+        }
+        return position;
+    }
+    public int size(){
+        return size;
+    }
+}
+
+/*============================ SeatChangeListener 介面 ================================= */
+// 座位被預約或釋放後的通知，於班次鎖釋放後呼叫
+interface SeatChangeListener{
+    void seatChanged(Trip trip, int seatNumber, boolean occupied);
+}
+
+/*============================ WaitlistListener 介面 ================================= */
+// 候補結束（遞補、離開、停權移出或班次下架）後的通知，於班次鎖釋放後呼叫
+interface WaitlistListener{
+    void waitlistResolved(WaitlistEntry entry);
+}
+
 /*============================ ReservationManager 類別 ================================= */
 class ReservationManager{
     private static final int MAX_VIOLATION_TIMES = 3; // 定義違規次數上限
     private static final int CANCELLATION_GRACE_PERIOD_MINUTES = 30; // 定義最晚取消時間(發車前30分鐘)
-    private long reservationIdCounter = 1; // 用於創建 Reservation 時所需的 id
+    static final int DEFAULT_WINDOW_DAYS = 30; // 開放預約的班次天數（含今天）
+    private final AtomicLong reservationIdCounter = new AtomicLong(1); // 用於創建 Reservation 時所需的 id
+    private final AtomicLong holdIdCounter = new AtomicLong(1); // 座位保留的 id，保留不寫入日誌，重啟後重新編號
+    private final AtomicLong waitlistIdCounter = new AtomicLong(1); // 候補登記的 id，候補同樣只存在記憶體中
     private final List<Trip> allTrips;
-    private final Map<String, Member> members; 
+    private final MemberStore members;
     private final Map<String, Route> routes;
+    private final TripIndex tripIndex; // 班次索引，與 allTrips 保持同步
+    private final ReservationArchive archive; // 已結束預約的歷史紀錄
+    private final WriteAheadLog wal; // 預約事件日誌，為 null 時不持久化
+    private final int windowDays;    // 與 TripScheduler 的滾動視窗相同，查詢超出視窗的日期視為尚未開放
+    private final List<SeatChangeListener> seatChangeListeners = new CopyOnWriteArrayList<>();
+    private final List<WaitlistListener> waitlistListeners = new CopyOnWriteArrayList<>();
+    private volatile SweepResult lastSweep = new SweepResult(0, 0, 0, 0, 0); // 最近一次下架班次的結算結果
+    private final AtomicLong totalNoShows = new AtomicLong();
+    // 監控指標：預約結果依 BOOKING_OUTCOMES 的索引記錄耗時
+    static final String[] BOOKING_OUTCOMES = { "booked", "seat_taken", "suspended", "departed", "invalid" };
+    private static final int OUTCOME_BOOKED = 0;
+    private static final int OUTCOME_SEAT_TAKEN = 1;
+    private static final int OUTCOME_SUSPENDED = 2;
+    private static final int OUTCOME_DEPARTED = 3;
+    private static final int OUTCOME_INVALID = 4;
+    private final MetricsRegistry metrics;
+    private final AuditLog audit; // 稽核日誌，為 null 時不記錄
+    private final LatencyHistogram[] bookingLatency = new LatencyHistogram[BOOKING_OUTCOMES.length];
+    private final LatencyHistogram batchBooked;
+    private final LatencyHistogram batchRejected;
+    private final LatencyHistogram bookLockWait;   // 等待班次鎖的時間
+    private final LatencyHistogram batchLockWait;  // 依序取得批次中所有班次鎖的時間
+    private final LatencyHistogram cancelLockWait;
+    private final LongAdder timelyCancellations;
+    private final LongAdder lateCancellations;
+    private final LatencyHistogram waitlistPromotion; // 座位釋放到遞補預約寫入日誌的時間
 
     // ----------------- 建構式 -----------------
     public ReservationManager(DataStore dataStore){
+        this(dataStore, null);
+    }
+    public ReservationManager(DataStore dataStore, WriteAheadLog wal){
+        this(dataStore, wal, new MetricsRegistry());
+    }
+    public ReservationManager(DataStore dataStore, WriteAheadLog wal, MetricsRegistry metrics){
+        this(dataStore, wal, metrics, null);
+    }
+    public ReservationManager(DataStore dataStore, WriteAheadLog wal, MetricsRegistry metrics, AuditLog audit){
+        this(dataStore, wal, metrics, audit, DEFAULT_WINDOW_DAYS);
+    }
+    public ReservationManager(DataStore dataStore, WriteAheadLog wal, MetricsRegistry metrics, AuditLog audit, int windowDays){
         this.allTrips = dataStore.getAllTrips();
         this.members = dataStore.getMembers();
         this.routes = dataStore.getRoutes();
+        this.tripIndex = new TripIndex(allTrips);
+        this.archive = dataStore.getArchive();
+        this.wal = wal;
+        this.windowDays = windowDays;
+        this.reservationIdCounter.set(dataStore.getNextReservationId());
+        this.metrics = metrics;
+        this.audit = audit;
+        String bookingHelp = "Time spent in the booking engine per request, by outcome";
+        for (int i = 0; i < BOOKING_OUTCOMES.length; i++){
+            bookingLatency[i] = metrics.histogram("bus_booking_duration_seconds", bookingHelp, MetricsRegistry.label("outcome", BOOKING_OUTCOMES[i]));
+        }
+        String batchHelp = "Time spent in the booking engine per all-or-nothing batch, by outcome";
+        this.batchBooked = metrics.histogram("bus_batch_booking_duration_seconds", batchHelp, MetricsRegistry.label("outcome", "booked"));
+        this.batchRejected = metrics.histogram("bus_batch_booking_duration_seconds", batchHelp, MetricsRegistry.label("outcome", "rejected"));
+        String lockHelp = "Time spent waiting for per-trip booking locks";
+        this.bookLockWait = metrics.histogram("bus_booking_lock_wait_seconds", lockHelp, MetricsRegistry.label("op", "book"));
+        this.batchLockWait = metrics.histogram("bus_booking_lock_wait_seconds", lockHelp, MetricsRegistry.label("op", "batch"));
+        this.cancelLockWait = metrics.histogram("bus_booking_lock_wait_seconds", lockHelp, MetricsRegistry.label("op", "cancel"));
+        String cancelHelp = "Cancelled reservations; late ones count as a violation";
+        this.timelyCancellations = metrics.counter("bus_cancellations_total", cancelHelp, MetricsRegistry.label("timely", "true"));
+        this.lateCancellations = metrics.counter("bus_cancellations_total", cancelHelp, MetricsRegistry.label("timely", "false"));
+        this.waitlistPromotion = metrics.histogram("bus_waitlist_promotion_seconds",
+            "Time from a seat being freed to the next waitlisted member's reservation being durable", "");
+        metrics.register("bus_trips_live", "Trips currently open for booking", MetricsRegistry.GAUGE,
+            sink -> sink.sample("", tripIndex.size()));
+        metrics.register("bus_no_shows_total", "Reservations settled as no-show after departure", MetricsRegistry.COUNTER,
+            sink -> sink.sample("", totalNoShows.get()));
+        metrics.register("bus_route_seat_fill_ratio", "Booked share of seats across a route's open trips", MetricsRegistry.GAUGE,
+            this::collectRouteFill);
+        metrics.register("bus_trip_seat_fill_ratio", "Booked share of seats per open trip departing today or tomorrow", MetricsRegistry.GAUGE,
+            this::collectTripFill);
     }
     // ----------------- 預約座位使用案例的相關方法 -----------------
     // 1.檢查 Member 是否可預約
     private boolean canReserve(Member member){
         // 檢查停權結束日期，並執行自動解鎖
-        if (member.getSuspensionEndDate() != null){
-            LocalDate today = LocalDate.now();
-            if (today.isAfter(member.getSuspensionEndDate())){
-                member.resetSuspension(); 
-                System.out.println("用戶 " + member.getStudentId() + " 停權期滿，已自動解除停權。");
-            }
-        }
-        // 進行停權檢查
-        if (member.getViolationTimes() >= MAX_VIOLATION_TIMES){
-            System.out.println("用戶 " + member.getStudentId() + " 違規次數過多，停權。");
-            return false;
+        if (member.liftSuspensionIfExpired(LocalDate.now())){
+            audit("SUSPENSION_LIFTED", member.getStudentId(), null, null, null, null);
         }
-        return true;
+        // 進行停權檢查（被拒絕的預約由呼叫端記錄）
+        return member.getViolationTimes() < MAX_VIOLATION_TIMES;
     }
     // 2.取得符合查詢條件的 Trip
     public List<Trip> getFilteredTrips(LocalDate date, LocalTime startTime, String routeName){
         List<Trip> filtered = new ArrayList<>();
         LocalDate today = LocalDate.now();
-        LocalDate maxDate = today.plusDays(30);
         // 檢查是否在預約日期範圍內
-        if (date.isBefore(today) || date.isAfter(maxDate)){
+        if (date.isBefore(today) || date.isAfter(getLastBookableDate())){
             return filtered;
         }
         if(routeName == null || routeName.isEmpty()){
             System.out.println("請選擇路線。");
             return filtered;
         }
-        // 將符合條件的 Trip 加入
-        for (Trip t : allTrips){
-            boolean matchesDateAndRoute = t.getDate().equals(date) && t.getRoute().getRouteName().equals(routeName);
-            if(matchesDateAndRoute){
-                boolean matchesTime = (startTime == null || t.getDepartureTime().compareTo(startTime) >= 0);
-                boolean isFuture = t.getDepartureDateTime().isAfter(LocalDateTime.now());
-                if (matchesTime && isFuture){
-                    filtered.add(t);
-                }
+        // 由索引直接取得該日期與路線、且發車時間不早於 startTime 的 Trip（已依發車時間排序）
+        LocalDateTime now = LocalDateTime.now();
+        for (Trip t : tripIndex.findTrips(date, routeName, startTime)){
+            if (t.getDepartureDateTime().isAfter(now)){
+                filtered.add(t);
             }
         }
         return filtered;
     }
+    // 開放預約的最後一天：今天起 windowDays 天（含今天）
+    public LocalDate getLastBookableDate(){
+        return LocalDate.now().plusDays(windowDays - 1);
+    }
     public Trip findTripById(String id){
-        for (Trip t : allTrips) {
-            if (t.getTripId().equals(id)){
-                return t;
+        return tripIndex.findById(id);
+    }
+    // 新增班次，同步更新索引
+    public synchronized void addTrip(Trip trip){
+        allTrips.add(trip);
+        tripIndex.add(trip);
+    }
+    // 移除已發車的班次並結算其有效預約：已報到者為 COMPLETED，未報到者為 NOSHOW，皆移入歷史紀錄
+    // 只在移除索引時持有管理器鎖；結算逐班次在班次鎖內進行，違規次數最後再依會員一次累加，不影響預約流程
+    public SweepResult expireDepartedTrips(LocalDateTime now){
+        long start = System.nanoTime();
+        ensureWritable(); // 日誌已失敗時不下架班次，狀態留待修復磁碟並重新啟動後結算
+        List<Trip> expired;
+        synchronized (this){
+            expired = tripIndex.removeDepartedBefore(now);
+            if (!expired.isEmpty()){
+                allTrips.removeIf(t -> !t.getDepartureDateTime().isAfter(now));
             }
         }
-        return null;
+        long walSeq = 0;
+        int completed = 0;
+        Map<Member, Integer> noShowsByMember = new HashMap<>();
+        List<WaitlistEntry> unserved = new ArrayList<>(); // 發車時仍在候補的登記
+        for (Trip trip : expired){
+            ReentrantLock lock = trip.getBookingLock();
+            lock.lock();
+            try{
+                TripWaitlist waitlist = trip.getWaitlist(false);
+                if (waitlist != null){
+                    for (WaitlistEntry entry : waitlist.drain()){
+                        entry.setState(WaitlistEntry.EXPIRED);
+                        unserved.add(entry);
+                    }
+                }
+                for (Reservation r : trip.retire()){
+                    if (r.getStatus() != ReservationStatus.RESERVED){
+                        continue;
+                    }
+                    if (r.isCheckedIn()){
+                        r.setStatus(ReservationStatus.COMPLETED);
+                        completed++;
+                    }else{
+                        r.setStatus(ReservationStatus.NOSHOW);
+                        noShowsByMember.merge(r.getMember(), 1, Integer::sum);
+                        audit("NOSHOW", r.getMember().getStudentId(), trip.getTripId(), r.getSeatNumber(), r.getReservationId(), null);
+                    }
+                    long cancelSeq = 0;
+                    if (wal != null){
+                        try{
+                            cancelSeq = wal.appendReservationCancelled(r); // 狀態變更紀錄，重播時同樣移入歷史紀錄
+                        }catch (JournalFailedException e){
+                            r.setStatus(ReservationStatus.RESERVED); // 尚未移入歷史紀錄，仍留在會員的有效預約中
+                            throw e;
+                        }
+                        walSeq = cancelSeq;
+                    }
+                    archive.archive(r.getMember(), r, cancelSeq);
+                }
+            }finally{
+                lock.unlock();
+            }
+        }
+        int noShows = 0;
+        for (Map.Entry<Member, Integer> entry : noShowsByMember.entrySet()){
+            Member member = entry.getKey();
+            synchronized (member){
+                int violationTimes = member.getViolationTimes();
+                LocalDate suspensionEndDate = member.getSuspensionEndDate();
+                boolean suspended = member.addViolations(entry.getValue());
+                if (wal != null){
+                    try{
+                        walSeq = wal.appendMemberState(member);
+                    }catch (JournalFailedException e){
+                        member.restoreViolationState(violationTimes, suspensionEndDate);
+                        throw e;
+                    }
+                }
+                if (suspended){
+                    auditSuspension(member);
+                }
+            }
+            noShows += entry.getValue();
+        }
+        awaitDurable(walSeq);
+        for (WaitlistEntry entry : unserved){
+            fireWaitlistResolved(entry);
+        }
+        SweepResult result = new SweepResult(expired.size(), completed, noShows, noShowsByMember.size(), System.nanoTime() - start);
+        lastSweep = result;
+        totalNoShows.addAndGet(noShows);
+        return result;
+    }
+    // 上車報到：只接受尚未發車班次的有效預約
+    public boolean checkIn(String reservationId, String studentId){
+        Member member = members.peek(studentId);
+        if (member == null){
+            return false;
+        }
+        Reservation reservation = member.findActiveReservation(reservationId);
+        if (reservation == null){
+            return false;
+        }
+        long walSeq = 0;
+        ReentrantLock lock = reservation.getTrip().getBookingLock();
+        lock.lock();
+        try{
+            if (reservation.getTrip().isRetired() || reservation.getStatus() != ReservationStatus.RESERVED){
+                return false;
+            }
+            if (!reservation.isCheckedIn()){
+                reservation.checkIn();
+                if (wal != null){
+                    walSeq = wal.appendReservationCheckedIn(reservation);
+                }
+                audit("CHECKED_IN", studentId, reservation.getTrip().getTripId(), reservation.getSeatNumber(), reservationId, null);
+            }
+        }finally{
+            lock.unlock();
+        }
+        awaitDurable(walSeq);
+        return true;
+    }
+    public SweepResult getLastSweep(){
+        return lastSweep;
+    }
+    public long getTotalNoShows(){
+        return totalNoShows.get();
+    }
+    public int getTripCount(){
+        return tripIndex.size();
+    }
+    public MetricsRegistry getMetrics(){
+        return metrics;
+    }
+    // 匯出時才走訪班次計算座位填充率，預約流程不需額外維護
+    private void collectRouteFill(MetricsRegistry.SampleSink sink){
+        Map<String, long[]> byRoute = new TreeMap<>(); // 路線 ID -> {已預約, 總座位}
+        for (Trip trip : tripIndex.trips()){
+            long[] seats = byRoute.computeIfAbsent(trip.getRoute().getRouteId(), k -> new long[2]);
+            seats[0] += trip.getBookedSeatCount();
+            seats[1] += trip.getTotalSeats();
+        }
+        for (Map.Entry<String, long[]> entry : byRoute.entrySet()){
+            long[] seats = entry.getValue();
+            sink.sample(MetricsRegistry.label("route", entry.getKey()), seats[1] == 0 ? 0 : (double) seats[0] / seats[1]);
+        }
+    }
+    // 單一班次的序列只匯出今明兩天，序列數量不隨預約視窗天數成長
+    private void collectTripFill(MetricsRegistry.SampleSink sink){
+        LocalDate lastDate = LocalDate.now().plusDays(1);
+        List<Trip> soon = new ArrayList<>();
+        for (Trip trip : tripIndex.trips()){
+            if (!trip.getDate().isAfter(lastDate)){
+                soon.add(trip);
+            }
+        }
+        soon.sort(Comparator.comparing(Trip::getTripId));
+        for (Trip trip : soon){
+            sink.sample(MetricsRegistry.label("route", trip.getRoute().getRouteId()) + "," + MetricsRegistry.label("trip", trip.getTripId()),
+                (double) trip.getBookedSeatCount() / trip.getTotalSeats());
+        }
     }
     // 3.建立預約
     public Reservation createReservation(String studentId, String tripIdStr, String seatNumber){
-        Member member = members.get(studentId);
-        Trip trip = findTripById(tripIdStr);
+        long start = System.nanoTime();
+        Reservation[] created = new Reservation[1];
+        long[] walSeq = new long[1];
+        int outcome = reserve(members.find(studentId), findTripById(tripIdStr), seatNumber, created, walSeq, 0);
+        if (outcome != OUTCOME_BOOKED){
+            return rejectBooking(outcome, start, studentId, tripIdStr, seatNumber);
+        }
+        try{
+            awaitDurable(walSeq[0]); // 在鎖外等待 fsync，讓同一班次的其他預約可以併入同一批寫入
+        }catch (JournalFailedException e){
+            undoBooking(created[0]);
+            throw e;
+        }
+        bookingLatency[OUTCOME_BOOKED].recordSince(start);
+        audit("BOOKED", studentId, tripIdStr, seatNumber, created[0].getReservationId(), null);
 
+        return created[0];
+    }
+    // 檢查會員、座位與發車時間後在班次鎖內占用座位並寫入日誌，不等待 fsync；
+    // 成功時預約與日誌序號放入 created[index]、walSeqs[index]，回傳結果代碼
+    private int reserve(Member member, Trip trip, String seatNumber, Reservation[] created, long[] walSeqs, int index){
         if (member == null || trip == null){
-            return null;
+            return OUTCOME_INVALID;
         }
 
         Seat seat = trip.findSeatByNumber(seatNumber);
         //檢查 Member 是否可預約
         if (!canReserve(member)){
-            return null;
+            return OUTCOME_SUSPENDED;
         }
-        if (seat == null || !seat.isAvailable()){
-            System.out.println("座位已被預約或不存在，無法創建預約。");
-            return null;
+        if (seat == null){
+            return OUTCOME_INVALID;
         }
         if (trip.getDepartureDateTime().isBefore(LocalDateTime.now())){
-            return null;
+            return OUTCOME_DEPARTED;
         }
-        // 實際創建預約
-        String newId = String.valueOf(reservationIdCounter++); 
-        Reservation newReservation = new Reservation(newId, LocalDateTime.now(), member, seat, trip); // 建立新預約
-        member.addReservation(newReservation); // 將新預約加入 Member 的預約列表
-        System.out.println("創建預約成功 " + newReservation.getReservationId());
-
-        return newReservation;
-    }
-    // 4.取得 Member 有效的預約列表
-    public List<Reservation> getMemberReservations(String studentId){
-        Member member = members.get(studentId);
-        if (member == null){
-            return new ArrayList<>();   
+        // 座位檢查與占用須在班次鎖內完成，避免兩人同時預約到同一座位
+        Reservation newReservation;
+        long walSeq = 0;
+        ReentrantLock lock = trip.getBookingLock();
+        long lockStart = System.nanoTime();
+        lock.lock();
+        bookLockWait.recordSince(lockStart);
+        try{
+            if (trip.isRetired() || !seat.isAvailable()){
+                newReservation = null;
+            }else{
+                ensureWritable();
+                // 實際創建預約
+                String newId = String.valueOf(reservationIdCounter.getAndIncrement());
+                newReservation = new Reservation(newId, LocalDateTime.now(), member, seat, trip); // 建立新預約
+                trip.attachReservation(seat.getSeatNumber(), newReservation);
+                member.addReservation(newReservation); // 將新預約加入 Member 的預約列表
+                if (wal != null){
+                    try{
+                        walSeq = wal.appendReservationCreated(newReservation);
+                    }catch (JournalFailedException e){
+                        detachBooking(newReservation);
+                        throw e;
+                    }
+                }
+            }
+        }finally{
+            lock.unlock();
         }
-        return member.getActiveReservations();
+        if (newReservation == null){
+            return trip.isRetired() ? OUTCOME_DEPARTED : OUTCOME_SEAT_TAKEN;
+        }
+        fireSeatChanged(trip, seat.getSeatNumber(), true);
+        created[index] = newReservation;
+        walSeqs[index] = walSeq;
+        return OUTCOME_BOOKED;
     }
-
-    // ----------------- 其他方法 -----------------
-    // 簡化登入
-    public Member findOrCreateMember(String studentId){
-        return members.computeIfAbsent(studentId, k -> new Member(k, "default_pass")); 
+    private Reservation rejectBooking(int outcome, long start, String studentId, String tripId, String seatNumber){
+        bookingLatency[outcome].recordSince(start);
+        audit("BOOK_REJECTED", studentId, tripId, seatNumber, null, BOOKING_OUTCOMES[outcome]);
+        return null;
     }
-    // 取消預約
-    public boolean cancelReservation(String reservationId, String studentId){
-        Member member = members.get(studentId);
-        String reservationIdStr = String.valueOf(reservationId); 
-        Reservation reservationToCancel = null;
-
-        if(member == null){
-            return false;
+    // 3-1.批次預約：同一會員一次預約多個班次/座位（來回、團體），全部成功或全部不建立。
+    // 所有班次鎖依班次 ID 排序後依序取得，兩個批次不會各持一部分鎖而互相等待
+    public BatchBookingResult createReservations(String studentId, String[] tripIds, String[] seatNumbers){
+        long start = System.nanoTime();
+        int size = tripIds.length;
+        String[] errors = new String[size];
+        Member member = members.find(studentId);
+        if (member == null || !canReserve(member)){
+            Arrays.fill(errors, "會員不存在或已停權");
+            return rejectBatch(start, studentId, tripIds, seatNumbers, errors);
         }
-        for(Reservation r : member.getActiveReservations()){
-            if (r.getReservationId().equals(reservationIdStr)){
-                reservationToCancel = r;
-                break;
+        Trip[] trips = new Trip[size];
+        Seat[] seats = new Seat[size];
+        Map<String, Trip> lockOrder = new TreeMap<>();
+        Set<String> requestedSeats = new HashSet<>();
+        LocalDateTime now = LocalDateTime.now();
+        boolean failed = false;
+        for (int i = 0; i < size; i++){
+            trips[i] = findTripById(tripIds[i]);
+            seats[i] = trips[i] == null ? null : trips[i].findSeatByNumber(seatNumbers[i]);
+            if (trips[i] == null){
+                errors[i] = "班次不存在";
+            }else if (seats[i] == null){
+                errors[i] = "座位不存在";
+            }else if (trips[i].getDepartureDateTime().isBefore(now)){
+                errors[i] = "班次已發車";
+            }else if (!requestedSeats.add(trips[i].getTripId() + "#" + seats[i].getSeatNumber())){
+                errors[i] = "同一批次中重複的座位";
+            }else{
+                lockOrder.put(trips[i].getTripId(), trips[i]);
+                continue;
             }
+            failed = true;
         }
-        if(reservationToCancel == null){
-            return false;
+        if (failed){
+            return rejectBatch(start, studentId, tripIds, seatNumbers, errors);
         }
-        
-        Trip trip = reservationToCancel.getTrip();
-        Seat seat = reservationToCancel.getSeat(); 
 
-        // 取消時間檢查 (決定是否計入違規)
-        boolean isCancellationTimely = LocalDateTime.now().isBefore(trip.getDepartureDateTime().minus(CANCELLATION_GRACE_PERIOD_MINUTES, ChronoUnit.MINUTES));
-        if (!isCancellationTimely){
-            member.handleViolationTimes();
-            System.out.println("警告：逾時取消，違規次數增加為 " + member.getViolationTimes());
-            reservationToCancel.setStatus(ReservationStatus.LATEWITHDRAW);
-        }else{
-            reservationToCancel.setStatus(ReservationStatus.CANCELLED);
+        Reservation[] created = new Reservation[size];
+        long walSeq = 0;
+        List<ReentrantLock> held = new ArrayList<>(lockOrder.size());
+        try{
+            long lockStart = System.nanoTime();
+            for (Trip trip : lockOrder.values()){
+                ReentrantLock lock = trip.getBookingLock();
+                lock.lock();
+                held.add(lock);
+            }
+            batchLockWait.recordSince(lockStart);
+            for (int i = 0; i < size; i++){
+                if (trips[i].isRetired() || !seats[i].isAvailable()){
+                    errors[i] = "座位已被預約";
+                    failed = true;
+                }
+            }
+            if (!failed){
+                ensureWritable();
+                for (int i = 0; i < size; i++){
+                    created[i] = new Reservation(String.valueOf(reservationIdCounter.getAndIncrement()), now, member, seats[i], trips[i]);
+                    trips[i].attachReservation(seats[i].getSeatNumber(), created[i]);
+                    member.addReservation(created[i]);
+                }
+                if (wal != null){
+                    try{
+                        walSeq = wal.appendReservationsCreated(Arrays.asList(created));
+                    }catch (JournalFailedException e){
+                        for (Reservation r : created){
+                            detachBooking(r);
+                        }
+                        throw e;
+                    }
+                }
+            }
+        }finally{
+            for (int i = held.size() - 1; i >= 0; i--){
+                held.get(i).unlock();
+            }
         }
-        // 釋放座位
-        seat.setReservation(null);
-        return true;
+        if (failed){
+            return rejectBatch(start, studentId, tripIds, seatNumbers, errors);
+        }
+        for (int i = 0; i < size; i++){
+            fireSeatChanged(trips[i], seats[i].getSeatNumber(), true);
+        }
+        try{
+            awaitDurable(walSeq); // 整批只等待一次 fsync
+        }catch (JournalFailedException e){
+            for (Reservation r : created){
+                undoBooking(r);
+            }
+            throw e;
+        }
+        batchBooked.recordSince(start);
+        for (int i = 0; i < size; i++){
+            audit("BOOKED", studentId, tripIds[i], seatNumbers[i], created[i].getReservationId(), "batch");
+        }
+        return BatchBookingResult.success(created);
     }
-}
-
-/*============================ DataStore 類別 ================================= */
-class DataStore {
-    private final List<Trip> allTrips; // 儲存所有 Trip
-    private final Map<String, Member> members; // 儲存所有 Member
-    private final Map<String, Route> routes; // 儲存所有 Route
-
-    public DataStore(List<Trip> allTrips, Map<String, Member> members, Map<String, Route> routes) {
-        this.allTrips = allTrips;
-        this.members = members;
-        this.routes = routes;
+    // 只記錄有錯誤的項目；其餘項目在結果中標示為未預約
+    private BatchBookingResult rejectBatch(long start, String studentId, String[] tripIds, String[] seatNumbers, String[] errors){
+        batchRejected.recordSince(start);
+        for (int i = 0; i < errors.length; i++){
+            if (errors[i] != null){
+                audit("BOOK_REJECTED", studentId, tripIds[i], seatNumbers[i], null, "batch: " + errors[i]);
+            }
+        }
+        return BatchBookingResult.failure(errors);
     }
-
-    public List<Trip> getAllTrips() { return allTrips; }
-    public Map<String, Member> getMembers() { return members; }
-    public Map<String, Route> getRoutes() { return routes; }
-}
-
-/*============================ 主程式 ================================= */
-public class SimpleApp { 
-    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
-
+    // 3-2.暫時保留座位：檢查與建立預約相同，座位在 ttlMillis 內不會被他人預約或保留。
+    // 保留只存在記憶體中（不寫入日誌），到期由呼叫端（SeatHoldManager 的計時輪）呼叫 releaseHold
+    public SeatHold holdSeat(String studentId, String tripIdStr, String seatNumber, long ttlMillis){
+        Member member = members.find(studentId);
+        Trip trip = findTripById(tripIdStr);
+        Seat seat = trip == null ? null : trip.findSeatByNumber(seatNumber);
+        if (member == null || seat == null || !canReserve(member) || trip.getDepartureDateTime().isBefore(LocalDateTime.now())){
+            return null;
+        }
+        SeatHold hold = new SeatHold(holdIdCounter.getAndIncrement(), member, trip, seat.getSeatNumber(), ttlMillis);
+        boolean held;
+        ReentrantLock lock = trip.getBookingLock();
+        lock.lock();
+        try{
+            held = trip.holdSeat(seat.getSeatNumber(), hold);
+        }finally{
+            lock.unlock();
+        }
+        if (!held){
+            return null;
+        }
+        fireSeatChanged(trip, seat.getSeatNumber(), true);
+        audit("HELD", studentId, tripIdStr, seatNumber, null, "hold=" + hold.getHoldId());
+        return hold;
+    }
+    // 3-3.確認保留：座位已由保留占用，在班次鎖內直接轉為預約，不需再檢查或搜尋座位。
+    // 保留已結束（逾時、已確認或已釋放）時回傳 null
+    public Reservation confirmHold(SeatHold hold){
+        long start = System.nanoTime();
+        Member member = hold.getMember();
+        Trip trip = hold.getTrip();
+        String studentId = member.getStudentId();
+        String seatNumber = String.valueOf(hold.getSeatNumber());
+        if (!canReserve(member)){
+            return rejectBooking(OUTCOME_SUSPENDED, start, studentId, trip.getTripId(), seatNumber);
+        }
+        if (trip.getDepartureDateTime().isBefore(LocalDateTime.now())){
+            return rejectBooking(OUTCOME_DEPARTED, start, studentId, trip.getTripId(), seatNumber);
+        }
+        Reservation newReservation = null;
+        JournalFailedException journalFailure = null;
+        long walSeq = 0;
+        ReentrantLock lock = trip.getBookingLock();
+        long lockStart = System.nanoTime();
+        lock.lock();
+        bookLockWait.recordSince(lockStart);
+        try{
+            if (hold.isActive() && trip.getHold(hold.getSeatNumber()) == hold){
+                ensureWritable(); // 日誌已失敗時保留維持原狀，到期後照常釋放
+                trip.endHold(hold.getSeatNumber(), true);
+                hold.setState(SeatHold.CONFIRMED);
+                newReservation = new Reservation(String.valueOf(reservationIdCounter.getAndIncrement()), LocalDateTime.now(),
+                    member, trip.findSeatByNumber(hold.getSeatNumber()), trip, ReservationStatus.RESERVED);
+                trip.attachReservation(hold.getSeatNumber(), newReservation);
+                member.addReservation(newReservation);
+                if (wal != null){
+                    try{
+                        walSeq = wal.appendReservationCreated(newReservation);
+                    }catch (JournalFailedException e){
+                        detachBooking(newReservation); // 保留已結束，座位一併釋放
+                        journalFailure = e;
+                    }
+                }
+            }
+        }finally{
+            lock.unlock();
+        }
+        if (journalFailure != null){
+            fireSeatChanged(trip, hold.getSeatNumber(), false);
+            throw journalFailure;
+        }
+        if (newReservation == null){
+            return rejectBooking(trip.isRetired() ? OUTCOME_DEPARTED : OUTCOME_SEAT_TAKEN, start, studentId, trip.getTripId(), seatNumber);
+        }
+        fireSeatChanged(trip, hold.getSeatNumber(), true); // 保留轉為預約，座位仍占用
+        try{
+            awaitDurable(walSeq);
+        }catch (JournalFailedException e){
+            undoBooking(newReservation);
+            throw e;
+        }
+        bookingLatency[OUTCOME_BOOKED].recordSince(start);
+        audit("BOOKED", studentId, trip.getTripId(), seatNumber, newReservation.getReservationId(), "hold=" + hold.getHoldId());
+        return newReservation;
+    }
+    // 3-4.結束保留並釋放座位（finalState 為 RELEASED 或 EXPIRED），回傳保留是否由此次呼叫結束
+    // 有人候補時，釋放的座位在同一個鎖內直接遞補
+    public boolean releaseHold(SeatHold hold, int finalState){
+        Trip trip = hold.getTrip();
+        boolean freed = false;
+        long walSeq = 0;
+        long freedAt = 0;
+        List<WaitlistEntry> resolved = new ArrayList<>(1);
+        ReentrantLock lock = trip.getBookingLock();
+        lock.lock();
+        try{
+            if (!hold.isActive()){
+                return false;
+            }
+            if (trip.getHold(hold.getSeatNumber()) == hold){ // 班次已下架時保留已一併作廢
+                trip.endHold(hold.getSeatNumber(), false);
+                freed = true;
+                freedAt = System.nanoTime();
+                walSeq = promoteWaiter(trip, hold.getSeatNumber(), resolved);
+            }
+            hold.setState(finalState);
+        }finally{
+            lock.unlock();
+        }
+        if (freed){
+            fireSeatChanged(trip, hold.getSeatNumber(), isPromoted(resolved));
+        }
+        try{
+            awaitDurable(walSeq);
+        }catch (JournalFailedException e){
+            finishWaitlist(undoPromotion(resolved), freedAt);
+            throw e;
+        }
+        audit(finalState == SeatHold.EXPIRED ? "HOLD_EXPIRED" : "HOLD_RELEASED", hold.getMember().getStudentId(), trip.getTripId(),
+            String.valueOf(hold.getSeatNumber()), null, "hold=" + hold.getHoldId());
+        finishWaitlist(resolved, freedAt);
+        return true;
+    }
+    // 3-5.候補額滿班次：班次仍有空位、已發車、候補人數已達 maxLength 或會員停權時回傳 null。
+    // 空位檢查與加入候補在同一個班次鎖內完成，之後釋放的座位都先遞補給候補者，不會有人候補時仍有空位
+    public WaitlistEntry joinWaitlist(String studentId, String tripIdStr, int maxLength){
+        Member member = members.find(studentId);
+        Trip trip = findTripById(tripIdStr);
+        if (member == null || trip == null || !canReserve(member) || trip.getDepartureDateTime().isBefore(LocalDateTime.now())){
+            return null;
+        }
+        WaitlistEntry entry = null;
+        ReentrantLock lock = trip.getBookingLock();
+        lock.lock();
+        try{
+            TripWaitlist waitlist = trip.getWaitlist(true);
+            if (!trip.isRetired() && trip.getAvailableSeats() == 0 && waitlist.size() < maxLength){
+                entry = new WaitlistEntry(waitlistIdCounter.getAndIncrement(), member, trip);
+                waitlist.add(entry);
+            }
+        }finally{
+            lock.unlock();
+        }
+        if (entry != null){
+            audit("WAITLISTED", studentId, tripIdStr, null, null, "entry=" + entry.getEntryId());
+        }
+        return entry;
+    }
+    // 離開候補，回傳是否由此次呼叫結束候補（已遞補或已結束時回傳 false）
+    public boolean leaveWaitlist(WaitlistEntry entry){
+        Trip trip = entry.getTrip();
+        ReentrantLock lock = trip.getBookingLock();
+        lock.lock();
+        try{
+            if (!entry.isWaiting()){
+                return false;
+            }
+            trip.getWaitlist(false).remove(entry);
+            entry.setState(WaitlistEntry.LEFT);
+        }finally{
+            lock.unlock();
+        }
+        audit("WAITLIST_LEFT", entry.getMember().getStudentId(), trip.getTripId(), null, null, "entry=" + entry.getEntryId());
+        fireWaitlistResolved(entry);
+        return true;
+    }
+    // 目前排在第幾位（第一位為 1），已結束候補時回傳 0
+    public int getWaitlistPosition(WaitlistEntry entry){
+        ReentrantLock lock = entry.getTrip().getBookingLock();
+        lock.lock();
+        try{
+            return entry.isWaiting() ? entry.getTrip().getWaitlist(false).positionOf(entry) : 0;
+        }finally{
+            lock.unlock();
+        }
+    }
+    // 呼叫端持有班次鎖且座位剛釋放：依序取出候補者，重新檢查停權後以該座位建立預約，座位不會出現可被搶的空檔；
+    // 已停權的候補者移出名單並繼續找下一位。結束候補的登記加入 resolved，回傳遞補預約的日誌序號（未遞補時為 0）
+    private long promoteWaiter(Trip trip, int seatNumber, List<WaitlistEntry> resolved){
+        TripWaitlist waitlist = trip.getWaitlist(false);
+        if (waitlist == null || trip.isRetired() || trip.getDepartureDateTime().isBefore(LocalDateTime.now())
+                || (wal != null && wal.isFailed())){ // 日誌已失敗時候補者留在名單中，座位維持空位
+            return 0;
+        }
+        WaitlistEntry entry;
+        while ((entry = waitlist.poll()) != null){
+            Member member = entry.getMember();
+            if (!canReserve(member)){
+                entry.setState(WaitlistEntry.DROPPED);
+                resolved.add(entry);
+                continue;
+            }
+            Reservation reservation = new Reservation(String.valueOf(reservationIdCounter.getAndIncrement()), LocalDateTime.now(),
+                member, trip.findSeatByNumber(seatNumber), trip);
+            trip.attachReservation(seatNumber, reservation);
+            member.addReservation(reservation);
+            entry.promote(reservation);
+            if (wal == null){
+                resolved.add(entry);
+                return 0;
+            }
+            try{
+                long walSeq = wal.appendReservationCreated(reservation);
+                resolved.add(entry);
+                return walSeq;
+            }catch (JournalFailedException e){
+                // 取消或釋放本身已寫入日誌，不因遞補失敗而回復；候補者放回隊首
+                detachBooking(reservation);
+                entry.requeue();
+                waitlist.addFirst(entry);
+                return 0;
+            }
+        }
+        return 0;
+    }
+    // 呼叫端持有班次鎖：移除尚未寫入日誌的預約，釋放座位並移出會員的有效預約
+    private static void detachBooking(Reservation reservation){
+        Trip trip = reservation.getTrip();
+        int seatNumber = reservation.getSeat().getSeatNumber();
+        if (trip.getReservationAt(seatNumber) == reservation){
+            trip.detachReservation(seatNumber);
+        }
+        trip.releaseSeat(seatNumber);
+        reservation.getMember().removeActiveReservation(reservation.getReservationId());
+    }
+    // 在班次鎖外呼叫：預約已寫入日誌但未能寫入磁碟，預約仍有效（尚未被取消或下架）時撤銷
+    private void undoBooking(Reservation reservation){
+        if (reservation == null){
+            return;
+        }
+        Trip trip = reservation.getTrip();
+        boolean undone = false;
+        ReentrantLock lock = trip.getBookingLock();
+        lock.lock();
+        try{
+            if (reservation.getStatus() == ReservationStatus.RESERVED && trip.getReservationAt(reservation.getSeat().getSeatNumber()) == reservation){
+                detachBooking(reservation);
+                undone = true;
+            }
+        }finally{
+            lock.unlock();
+        }
+        if (undone){
+            fireSeatChanged(trip, reservation.getSeat().getSeatNumber(), false);
+        }
+    }
+    // 取消或釋放保留後日誌無法寫入磁碟：撤銷遞補的預約並將候補者放回隊首，回傳的名單只留下其餘已結束的候補
+    private List<WaitlistEntry> undoPromotion(List<WaitlistEntry> resolved){
+        if (!isPromoted(resolved)){
+            return resolved;
+        }
+        WaitlistEntry entry = resolved.get(resolved.size() - 1);
+        Reservation reservation = entry.getReservation();
+        Trip trip = entry.getTrip();
+        boolean undone = false;
+        ReentrantLock lock = trip.getBookingLock();
+        lock.lock();
+        try{
+            if (reservation.getStatus() == ReservationStatus.RESERVED && trip.getReservationAt(reservation.getSeat().getSeatNumber()) == reservation){
+                detachBooking(reservation);
+                entry.requeue();
+                trip.getWaitlist(true).addFirst(entry);
+                undone = true;
+            }
+        }finally{
+            lock.unlock();
+        }
+        if (!undone){
+            return resolved;
+        }
+        fireSeatChanged(trip, reservation.getSeat().getSeatNumber(), false);
+        return resolved.subList(0, resolved.size() - 1);
+    }
+    // 遞補一定是 resolved 的最後一筆
+    private static boolean isPromoted(List<WaitlistEntry> resolved){
+        return !resolved.isEmpty() && resolved.get(resolved.size() - 1).getState() == WaitlistEntry.PROMOTED;
+    }
+    // 在班次鎖外、遞補預約已寫入日誌後呼叫：記錄遞補耗時與稽核，並通知候補監聽者
+    private void finishWaitlist(List<WaitlistEntry> resolved, long freedAt){
+        for (WaitlistEntry entry : resolved){
+            String studentId = entry.getMember().getStudentId();
+            String tripId = entry.getTrip().getTripId();
+            if (entry.getState() == WaitlistEntry.PROMOTED){
+                waitlistPromotion.recordSince(freedAt);
+                Reservation reservation = entry.getReservation();
+                audit("BOOKED", studentId, tripId, reservation.getSeatNumber(), reservation.getReservationId(), "waitlist=" + entry.getEntryId());
+            }else{
+                audit("WAITLIST_DROPPED", studentId, tripId, null, null, "entry=" + entry.getEntryId() + " suspended");
+            }
+            fireWaitlistResolved(entry);
+        }
+    }
+    // 3-6.排隊預約：為同一班次的多張號碼牌依序建立預約，各項目各自成功或失敗（不同於 createReservations 的全有全無）。
+    // 每張都先占位並寫入日誌，整批只等待一次 fsync；班次額滿後其餘項目不再嘗試，
+    // 日誌失敗時只有失敗前已寫入磁碟的項目算成功
+    public BatchBookingResult createQueuedReservations(String tripIdStr, String[] studentIds, String[] seatNumbers){
+        long start = System.nanoTime();
+        int size = studentIds.length;
+        Trip trip = findTripById(tripIdStr);
+        Reservation[] created = new Reservation[size];
+        long[] walSeqs = new long[size];
+        String[] errors = new String[size];
+        long lastSeq = 0;
+        for (int i = 0; i < size; i++){
+            if (trip != null && trip.getAvailableSeats() == 0){
+                Arrays.fill(errors, i, size, BatchBookingResult.SOLD_OUT);
+                break;
+            }
+            int outcome;
+            try{
+                outcome = reserve(members.find(studentIds[i]), trip, seatNumbers[i], created, walSeqs, i);
+            }catch (JournalFailedException e){
+                Arrays.fill(errors, i, size, BatchBookingResult.JOURNAL_FAILED); // 日誌已停止寫入，其餘項目也無法寫入
+                break;
+            }
+            if (outcome != OUTCOME_BOOKED){
+                errors[i] = BOOKING_OUTCOMES[outcome];
+                rejectBooking(outcome, start, studentIds[i], tripIdStr, seatNumbers[i]);
+            }
+            lastSeq = Math.max(lastSeq, walSeqs[i]);
+        }
+        try{
+            awaitDurable(lastSeq); // 整批只等待一次 fsync
+        }catch (JournalFailedException e){
+            // 逐項確認哪些紀錄在日誌失敗前已寫入磁碟
+            for (int i = 0; i < size; i++){
+                if (created[i] != null){
+                    try{
+                        awaitDurable(walSeqs[i]);
+                    }catch (JournalFailedException notDurable){
+                        undoBooking(created[i]);
+                        created[i] = null;
+                        errors[i] = BatchBookingResult.JOURNAL_FAILED;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < size; i++){
+            if (created[i] != null){
+                bookingLatency[OUTCOME_BOOKED].recordSince(start);
+                audit("BOOKED", studentIds[i], tripIdStr, seatNumbers[i], created[i].getReservationId(), "queued");
+            }
+        }
+        return BatchBookingResult.partial(created, errors);
+    }
+    // 4.取得 Member 有效的預約列表
+    public List<Reservation> getMemberReservations(String studentId){
+        Member member = members.peek(studentId);
+        if (member == null){
+            return new ArrayList<>();   
+        }
+        return member.getActiveReservations();
+    }
+    // 分頁查詢會員已結束的預約，由新到舊
+    public List<ArchivedReservation> getMemberReservationHistory(String studentId, int offset, int limit){
+        return archive.page(studentId, offset, limit);
+    }
+    public int getMemberReservationHistoryCount(String studentId){
+        return archive.count(studentId);
+    }
+
+    // ----------------- 其他方法 -----------------
+    // 下一個將配發的預約 ID，供快照使用
+    public long peekNextReservationId(){
+        return reservationIdCounter.get();
+    }
+    public void addSeatChangeListener(SeatChangeListener listener){
+        seatChangeListeners.add(listener);
+    }
+    private void fireSeatChanged(Trip trip, int seatNumber, boolean occupied){
+        for (SeatChangeListener listener : seatChangeListeners){
+            listener.seatChanged(trip, seatNumber, occupied);
+        }
+    }
+    public void addWaitlistListener(WaitlistListener listener){
+        waitlistListeners.add(listener);
+    }
+    private void fireWaitlistResolved(WaitlistEntry entry){
+        for (WaitlistListener listener : waitlistListeners){
+            listener.waitlistResolved(entry);
+        }
+    }
+    private void audit(String type, String studentId, String tripId, String seatNumber, String reservationId, String detail){
+        if (audit != null){
+            audit.record(type, studentId, tripId, seatNumber, reservationId, detail);
+        }
+    }
+    // 呼叫端持有會員鎖
+    private void auditSuspension(Member member){
+        audit("SUSPENDED", member.getStudentId(), null, null, null, "until=" + member.getSuspensionEndDate());
+    }
+    private void ensureWritable(){
+        if (wal != null){
+            wal.ensureWritable();
+        }
+    }
+    private void awaitDurable(long walSeq){
+        if (wal != null && walSeq > 0){
+            wal.awaitDurable(walSeq);
+        }
+    }
+    // 建立尚未設定密碼的會員（排隊、測試等不經過登入的流程）
+    public Member findOrCreateMember(String studentId){
+        return registerMember(studentId, Member.UNSET_PASSWORD);
+    }
+    public Member findMember(String studentId){
+        return members.find(studentId);
+    }
+    // 以指定密碼雜湊建立會員；會員已存在時回傳既有會員，不修改其密碼
+    public Member registerMember(String studentId, String hashedPassword){
+        return members.member(addMember(studentId, hashedPassword));
+    }
+    // 只確保會員存在而不建立 Member 物件（未啟用驗證時的登入）
+    public void ensureMember(String studentId){
+        addMember(studentId, Member.UNSET_PASSWORD);
+    }
+    private int addMember(String studentId, String hashedPassword){
+        return members.add(studentId, hashedPassword, wal == null ? null : () -> wal.appendMemberCreated(studentId, hashedPassword));
+    }
+    // 密碼仍為 expected 時才更新（首次設定或升級雜湊），回傳是否更新
+    public boolean changePassword(Member member, String expected, String hashedPassword){
+        long walSeq = 0;
+        synchronized (member){
+            if (!expected.equals(member.getHashedPassword())){
+                return false;
+            }
+            member.setHashedPassword(hashedPassword);
+            if (wal != null){
+                walSeq = wal.appendMemberPassword(member);
+            }
+        }
+        awaitDurable(walSeq);
+        audit("PASSWORD_SET", member.getStudentId(), null, null, null, Member.UNSET_PASSWORD.equals(expected) ? "first login" : "rehashed");
+        return true;
+    }
+    // 取消預約
+    public boolean cancelReservation(String reservationId, String studentId){
+        Member member = members.peek(studentId);
+        if(member == null){
+            return false;
+        }
+        Reservation reservationToCancel = member.findActiveReservation(reservationId);
+        if(reservationToCancel == null){
+            return false;
+        }
+        
+        Trip trip = reservationToCancel.getTrip();
+        Seat seat = reservationToCancel.getSeat(); 
+
+        // 取消時間檢查 (決定是否計入違規)
+        boolean isCancellationTimely = LocalDateTime.now().isBefore(trip.getDepartureDateTime().minus(CANCELLATION_GRACE_PERIOD_MINUTES, ChronoUnit.MINUTES));
+        long walSeq = 0;
+        long freedAt = 0;
+        List<WaitlistEntry> resolved = new ArrayList<>(1);
+        ReentrantLock lock = trip.getBookingLock();
+        long lockStart = System.nanoTime();
+        lock.lock();
+        cancelLockWait.recordSince(lockStart);
+        try{
+            // 重新確認狀態，避免同一筆預約被重複取消
+            if (reservationToCancel.getStatus() != ReservationStatus.RESERVED){
+                return false;
+            }
+            ensureWritable();
+            if (!isCancellationTimely){
+                // 在會員鎖內寫入日誌，確保同一會員的違規狀態紀錄依序寫入；無法寫入時回復違規狀態
+                synchronized (member){
+                    int violationTimes = member.getViolationTimes();
+                    LocalDate suspensionEndDate = member.getSuspensionEndDate();
+                    boolean suspended = member.handleViolationTimes();
+                    if (wal != null){
+                        try{
+                            wal.appendMemberState(member);
+                            reservationToCancel.setStatus(ReservationStatus.LATEWITHDRAW);
+                            walSeq = wal.appendReservationCancelled(reservationToCancel);
+                        }catch (JournalFailedException e){
+                            reservationToCancel.setStatus(ReservationStatus.RESERVED);
+                            member.restoreViolationState(violationTimes, suspensionEndDate);
+                            throw e;
+                        }
+                    }else{
+                        reservationToCancel.setStatus(ReservationStatus.LATEWITHDRAW);
+                    }
+                    if (suspended){
+                        auditSuspension(member);
+                    }
+                }
+            }else{
+                reservationToCancel.setStatus(ReservationStatus.CANCELLED);
+                if (wal != null){
+                    try{
+                        walSeq = wal.appendReservationCancelled(reservationToCancel);
+                    }catch (JournalFailedException e){
+                        reservationToCancel.setStatus(ReservationStatus.RESERVED);
+                        throw e;
+                    }
+                }
+            }
+            archive.archive(member, reservationToCancel, walSeq);
+            trip.detachReservation(seat.getSeatNumber());
+            // 釋放座位，有人候補時在同一個鎖內直接遞補
+            seat.release();
+            freedAt = System.nanoTime();
+            walSeq = Math.max(walSeq, promoteWaiter(trip, seat.getSeatNumber(), resolved));
+        }finally{
+            lock.unlock();
+        }
+        fireSeatChanged(trip, seat.getSeatNumber(), isPromoted(resolved));
+        try{
+            awaitDurable(walSeq);
+        }catch (JournalFailedException e){
+            finishWaitlist(undoPromotion(resolved), freedAt);
+            throw e;
+        }
+        (isCancellationTimely ? timelyCancellations : lateCancellations).increment();
+        audit(isCancellationTimely ? "CANCELLED" : "LATE_CANCELLED", studentId, trip.getTripId(), reservationToCancel.getSeatNumber(), reservationId,
+            isCancellationTimely ? null : "violations=" + member.getViolationTimes());
+        finishWaitlist(resolved, freedAt);
+        return true;
+    }
+}
+
+/*============================ SweepResult 類別 ================================= */
+// 一次下架已發車班次的結算結果
+class SweepResult{
+    private final int expiredTrips;
+    private final int completed;
+    private final int noShows;
+    private final int penalizedMembers;
+    private final long elapsedNanos;
+    // ----------------- 建構式 -----------------
+    public SweepResult(int expiredTrips, int completed, int noShows, int penalizedMembers, long elapsedNanos){
+        this.expiredTrips = expiredTrips;
+        this.completed = completed;
+        this.noShows = noShows;
+        this.penalizedMembers = penalizedMembers;
+        this.elapsedNanos = elapsedNanos;
+    }
+    // ----------------- 服務方法 -----------------
+    public int getExpiredTrips(){ return expiredTrips; }
+    public int getCompleted(){ return completed; }
+    public int getNoShows(){ return noShows; }
+    public int getProcessedReservations(){ return completed + noShows; }
+    public int getPenalizedMembers(){ return penalizedMembers; }
+    public double getElapsedMillis(){ return elapsedNanos / 1e6; }
+}
+
+/*============================ BatchBookingResult 類別 ================================= */
+// 批次預約的結果：成功時 reservations 依請求順序排列；任一項失敗時整批皆未建立，errors 標示各項原因
+class BatchBookingResult{
+    public static final String NOT_ATTEMPTED = "同批其他項目失敗，未預約";
+    public static final String JOURNAL_FAILED = "預約紀錄無法寫入，請稍後再試";
+    public static final String SOLD_OUT = "班次已額滿";
+
+    private final Reservation[] reservations;
+    private final String[] errors;
+    // ----------------- 建構式 -----------------
+    private BatchBookingResult(Reservation[] reservations, String[] errors){
+        this.reservations = reservations;
+        this.errors = errors;
+    }
+    public static BatchBookingResult success(Reservation[] reservations){
+        return new BatchBookingResult(reservations, null);
+    }
+    // 各項目各自成功或失敗（排隊預約）：errors[i] 為 null 的項目已建立預約
+    public static BatchBookingResult partial(Reservation[] reservations, String[] errors){
+        return new BatchBookingResult(reservations, errors);
+    }
+    // 未標示原因的項目視為受其他項目牽連
+    public static BatchBookingResult failure(String[] errors){
+        for (int i = 0; i < errors.length; i++){
+            if (errors[i] == null){
+                errors[i] = NOT_ATTEMPTED;
+            }
+        }
+        return new BatchBookingResult(null, errors);
+    }
+    // ----------------- 服務方法 -----------------
+    public boolean isSuccess(){ return errors == null; }
+    public Reservation getReservation(int index){ return reservations == null ? null : reservations[index]; }
+    public String getError(int index){ return errors[index]; }
+}
+
+/*============================ MemberStore 類別 ================================= */
+// 全校規模的會員儲存區：學號編碼成 long 放進開放定址（線性探測）雜湊表，對應到連續的會員編號；
+// 違規次數、停權解除日（epoch day）與密碼雜湊放在依編號索引的平行陣列，Member 物件只在需要時建立。
+// 陣列分塊配置，擴充時既有資料不搬移；查詢不加鎖，新增會員與建立 Member 在儲存區鎖內進行
+class MemberStore{
+    static final int NO_SUSPENSION = Integer.MIN_VALUE; // 停權解除日的「未停權」值
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_ENCODED_LENGTH = 12; // 37^12 < 2^63
+    private static final long EMPTY = 0L; // 編碼結果恆不為 0，可作為空位
+
+    // 雜湊表：keys 以 volatile 寫入發布，讀到鍵時對應的 slots 與會員資料都已可見
+    private static final class Table{
+        final AtomicLongArray keys;
+        final int[] slots;
+        final int mask;
+        Table(int capacity){
+            keys = new AtomicLongArray(capacity);
+            slots = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+    private volatile Table table;
+    // 無法編碼的學號（小寫、符號或超過 12 字元）改存一般 Map，正常情況下極少
+    private final Map<String, Integer> overflow = new ConcurrentHashMap<>();
+    private final Map<Integer, String> overflowIds = new ConcurrentHashMap<>();
+    private volatile long[][] keyChunks = new long[0][];
+    private volatile int[][] violationChunks = new int[0][];
+    private volatile int[][] suspensionChunks = new int[0][];
+    private volatile String[][] passwordChunks = new String[0][];
+    private volatile Member[][] memberChunks = new Member[0][];
+    private volatile int size;
+    // ----------------- 建構式 -----------------
+    public MemberStore(){
+        this(CHUNK_SIZE);
+    }
+    public MemberStore(int expectedMembers){
+        table = new Table(Integer.highestOneBit(Math.max(16, expectedMembers * 2 - 1)) << 1);
+    }
+    // ----------------- 學號編碼 -----------------
+    // 0-9 對應 1..10、A-Z 對應 11..36 的 37 進位，無 0 位數所以不同字串的編碼不同；無法編碼時回傳 0
+    static long encode(String studentId){
+        int length = studentId.length();
+        if (length == 0 || length > MAX_ENCODED_LENGTH){
+            return EMPTY;
+        }
+        long key = 0;
+        for (int i = 0; i < length; i++){
+            char c = studentId.charAt(i);
+            int code;
+            if (c >= '0' && c <= '9'){
+                code = c - '0' + 1;
+            }else if (c >= 'A' && c <= 'Z'){
+                code = c - 'A' + 11;
+            }else{
+                return EMPTY;
+            }
+            key = key * 37 + code;
+        }
+        return key;
+    }
+    static String decode(long key){
+        char[] chars = new char[MAX_ENCODED_LENGTH];
+        int pos = chars.length;
+        while (key != 0){
+            int code = (int) (key % 37);
+            chars[--pos] = (char) (code <= 10 ? '0' + code - 1 : 'A' + code - 11);
+            key /= 37;
+        }
+        return new String(chars, pos, chars.length - pos);
+    }
+    private static int hash(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    // ----------------- 查詢 -----------------
+    // 回傳會員編號，不存在時回傳 -1
+    public int indexOf(String studentId){
+        long key = encode(studentId);
+        if (key == EMPTY){
+            Integer index = overflow.get(studentId);
+            return index == null ? -1 : index;
+        }
+        Table t = table;
+        for (int i = hash(key) & t.mask; ; i = (i + 1) & t.mask){
+            long k = t.keys.get(i);
+            if (k == key){
+                return t.slots[i];
+            }
+            if (k == EMPTY){
+                return -1;
+            }
+        }
+    }
+    public boolean contains(String studentId){
+        return indexOf(studentId) >= 0;
+    }
+    // 取得會員的 Member，尚未建立時才建立
+    public Member find(String studentId){
+        int index = indexOf(studentId);
+        return index < 0 ? null : member(index);
+    }
+    // 只回傳已建立的 Member：尚未建立代表會員從未預約，有效預約必為空，查詢預約時不必為此建立物件
+    public Member peek(String studentId){
+        int index = indexOf(studentId);
+        return index < 0 ? null : materialized(index);
+    }
+    public Member materialized(int index){
+        return memberChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+    public Member member(int index){
+        Member member = materialized(index);
+        if (member != null){
+            return member;
+        }
+        synchronized (this){
+            Member[] chunk = memberChunks[index >>> CHUNK_BITS];
+            member = chunk[index & CHUNK_MASK];
+            if (member == null){
+                member = new Member(this, index, studentIdAt(index));
+                chunk[index & CHUNK_MASK] = member;
+            }
+            return member;
+        }
+    }
+    public int size(){
+        return size;
+    }
+    public String studentIdAt(int index){
+        long key = keyChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        return key == EMPTY ? overflowIds.get(index) : decode(key);
+    }
+    // ----------------- 新增 -----------------
+    // 會員不存在時以指定密碼雜湊新增（不建立 Member），回傳會員編號；已存在時回傳既有編號、不修改密碼
+    public int add(String studentId, String hashedPassword){
+        return add(studentId, hashedPassword, null);
+    }
+    // onCreate 在儲存區鎖內、會員可被查到之前呼叫（寫入日誌用），與 computeIfAbsent 相同只對新會員呼叫；
+    // PersistenceManager 寫快照時持有同一把鎖切換日誌分段，不會讀到「已寫入日誌、尚未加入」的會員
+    public int add(String studentId, String hashedPassword, Runnable onCreate){
+        int index = indexOf(studentId);
+        if (index >= 0){
+            return index;
+        }
+        synchronized (this){
+            index = indexOf(studentId);
+            if (index >= 0){
+                return index;
+            }
+            if (onCreate != null){
+                onCreate.run();
+            }
+            index = size;
+            ensureChunk(index);
+            long key = encode(studentId);
+            int offset = index & CHUNK_MASK;
+            int chunk = index >>> CHUNK_BITS;
+            keyChunks[chunk][offset] = key;
+            suspensionChunks[chunk][offset] = NO_SUSPENSION;
+            passwordChunks[chunk][offset] = hashedPassword;
+            if (key == EMPTY){
+                overflowIds.put(index, studentId);
+                overflow.put(studentId, index);
+            }else{
+                if ((size + 1) * 4L > table.slots.length * 3L){
+                    table = rehash(table.slots.length << 1);
+                }
+                insert(table, key, index);
+            }
+            size = index + 1;
+            return index;
+        }
+    }
+    private void insert(Table t, long key, int index){
+        int i = hash(key) & t.mask;
+        while (t.keys.get(i) != EMPTY){
+            i = (i + 1) & t.mask;
+        }
+        t.slots[i] = index;
+        t.keys.set(i, key);
+    }
+    // 建好新表後才發布，讀取端看到的永遠是完整的表
+    private Table rehash(int capacity){
+        Table old = table;
+        Table t = new Table(capacity);
+        for (int i = 0; i < old.slots.length; i++){
+            long key = old.keys.get(i);
+            if (key != EMPTY){
+                insert(t, key, old.slots[i]);
+            }
+        }
+        return t;
+    }
+    private void ensureChunk(int index){
+        int chunk = index >>> CHUNK_BITS;
+        if (chunk < keyChunks.length){
+            return;
+        }
+        keyChunks = Arrays.copyOf(keyChunks, chunk + 1);
+        keyChunks[chunk] = new long[CHUNK_SIZE];
+        violationChunks = Arrays.copyOf(violationChunks, chunk + 1);
+        violationChunks[chunk] = new int[CHUNK_SIZE];
+        suspensionChunks = Arrays.copyOf(suspensionChunks, chunk + 1);
+        suspensionChunks[chunk] = new int[CHUNK_SIZE];
+        passwordChunks = Arrays.copyOf(passwordChunks, chunk + 1);
+        passwordChunks[chunk] = new String[CHUNK_SIZE];
+        memberChunks = Arrays.copyOf(memberChunks, chunk + 1);
+        memberChunks[chunk] = new Member[CHUNK_SIZE];
+    }
+    // ----------------- 欄位存取 -----------------
+    // 已建立 Member 的會員只經由 Member 在其鎖內讀寫；未建立的會員只在啟動復原或持有儲存區鎖時存取
+    int violations(int index){
+        return violationChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+    void setViolations(int index, int violationTimes){
+        violationChunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = violationTimes;
+    }
+    int suspensionEndDay(int index){
+        return suspensionChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+    void setSuspensionEndDay(int index, int epochDay){
+        suspensionChunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = epochDay;
+    }
+    String password(int index){
+        return passwordChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+    void setPassword(int index, String hashedPassword){
+        passwordChunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = hashedPassword;
+    }
+    static int toEpochDay(LocalDate date){
+        return date == null ? NO_SUSPENSION : (int) date.toEpochDay();
+    }
+    static LocalDate toDate(int epochDay){
+        return epochDay == NO_SUSPENSION ? null : LocalDate.ofEpochDay(epochDay);
+    }
+    // 由持久化資料復原（啟動時單執行緒呼叫）：不建立 Member
+    public void restoreState(String studentId, int violationTimes, LocalDate suspensionEndDate){
+        int index = add(studentId, Member.UNSET_PASSWORD);
+        Member member = materialized(index);
+        if (member != null){
+            member.restoreViolationState(violationTimes, suspensionEndDate);
+        }else{
+            setViolations(index, violationTimes);
+            setSuspensionEndDay(index, toEpochDay(suspensionEndDate));
+        }
+    }
+    public void restorePassword(String studentId, String hashedPassword){
+        int index = add(studentId, hashedPassword);
+        Member member = materialized(index);
+        if (member != null){
+            member.setHashedPassword(hashedPassword);
+        }else{
+            setPassword(index, hashedPassword);
+        }
+    }
+}
+
+/*============================ DataStore 類別 ================================= */
+class DataStore {
+    private final List<Trip> allTrips; // 儲存所有 Trip
+    private final MemberStore members; // 儲存所有會員
+    private final Map<String, Route> routes; // 儲存所有 Route
+    private long nextReservationId = 1; // 下一個預約 ID，由持久化資料復原
+    private final ReservationArchive archive = new ReservationArchive(); // 已結束的預約
+
+    public DataStore(List<Trip> allTrips, MemberStore members, Map<String, Route> routes) {
+        this.allTrips = allTrips;
+        this.members = members;
+        this.routes = routes;
+    }
+
+    public List<Trip> getAllTrips() { return allTrips; }
+    public MemberStore getMembers() { return members; }
+    public Map<String, Route> getRoutes() { return routes; }
+    public long getNextReservationId() { return nextReservationId; }
+    public void setNextReservationId(long nextReservationId) { this.nextReservationId = nextReservationId; }
+    public ReservationArchive getArchive() { return archive; }
+}
+
+/*============================ ReservationArchive 類別 ================================= */
+// 已結束預約的歷史紀錄：以精簡的 ArchivedReservation 保存，不再引用 Member、Trip 與 Seat，
+// 讓 Member 只保留有效預約，班次下架後也不會因歷史紀錄而無法回收。
+// 分兩層：新結束的紀錄先留在記憶體，之後整批寫到歷史檔；查詢時才由檔案分頁讀取。
+// 歷史檔僅附加寫入，每筆紀錄記下同一會員前一筆紀錄的位置，記憶體只保留每位會員最新一筆的位置與筆數。
+// 未啟用持久化時歷史檔放在暫存目錄，記憶體中累積超過 maxResident 筆即寫出；
+// 啟用持久化時歷史檔放在資料目錄，只在寫快照時寫出已被快照涵蓋的紀錄（見 drain），記憶體中最多保留兩次快照之間結束的預約
+class ReservationArchive implements Closeable{
+    static final int DEFAULT_MAX_RESIDENT = 4096;
+    private static final int HEADER_BYTES = 12; // [同一會員前一筆的位置 long][內容長度 int]
+    private static final int READ_WINDOW = 8192;
+    // 寫出暫存檔的背景執行緒，所有暫存模式的歷史共用；預約與取消只負責交出工作，不在班次鎖或會員鎖內寫檔
+    private static final ExecutorService SPILLER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-spill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 單一會員的歷史：resident 為尚未寫出的紀錄（由新到舊附加在尾端），head/stored 描述檔案中的紀錄；皆由 this 保護
+    private static final class History{
+        private List<ArchivedReservation> resident = new ArrayList<>(2);
+        private long head = -1;
+        private int stored;
+    }
+    private final Map<String, History> byMember = new ConcurrentHashMap<>();
+    private final int maxResident;
+    private final AtomicInteger residentCount = new AtomicInteger();
+    private final AtomicBoolean spilling = new AtomicBoolean(); // 只有取得者交出一次寫出工作，寫完後清除
+    private volatile Future<?> pendingSpill;
+    private final Object fileLock = new Object(); // 保護 length 與檔案的附加寫入
+    private volatile FileChannel channel;         // 暫存檔在第一次寫出時才建立
+    private Path file;
+    private boolean durable;                      // 歷史檔屬於持久化資料，由快照決定寫出時機
+    private long length;
+    // ----------------- 建構式 -----------------
+    public ReservationArchive(){
+        this(DEFAULT_MAX_RESIDENT);
+    }
+    public ReservationArchive(int maxResident){
+        this.maxResident = maxResident;
+    }
+    // ----------------- 方法 -----------------
+    // 將預約自會員的有效預約移入歷史紀錄；在會員鎖內完成，快照擷取時不會漏掉或重複。
+    // walSeq 為結束預約的日誌紀錄序號（未持久化或由復原流程呼叫時為 0）
+    public void archive(Member member, Reservation reservation, long walSeq){
+        synchronized (member){
+            if (member.removeActiveReservation(reservation.getReservationId())){
+                add(member.getStudentId(), new ArchivedReservation(reservation, walSeq));
+            }
+        }
+    }
+    public void add(String studentId, ArchivedReservation record){
+        History history = byMember.computeIfAbsent(studentId, k -> new History());
+        synchronized (history){
+            history.resident.add(record);
+        }
+        if (residentCount.incrementAndGet() > maxResident && !durable && spilling.compareAndSet(false, true)){
+            pendingSpill = SPILLER.submit(() -> {
+                try{
+                    spill();
+                }finally{
+                    spilling.set(false);
+                }
+            });
+        }
+    }
+    // 把所有會員留在記憶體的紀錄寫到歷史檔；寫檔失敗時紀錄留在記憶體，下次再試
+    private void spill(){
+        for (Map.Entry<String, History> entry : byMember.entrySet()){
+            History history = entry.getValue();
+            synchronized (history){
+                if (history.resident.isEmpty()){
+                    continue;
+                }
+                try{
+                    history.head = append(entry.getKey(), history.resident, history.head);
+                }catch (IOException e){
+                    System.err.println("歷史紀錄寫入失敗，暫留記憶體: " + e);
+                    return;
+                }
+                int moved = history.resident.size();
+                history.stored += moved;
+                history.resident = new ArrayList<>(2);
+                residentCount.addAndGet(-moved);
+            }
+        }
+    }
+    // ----------------- 持久化 -----------------
+    // 改用資料目錄中的歷史檔，須在復原流程載入任何紀錄之前呼叫；之後只在 drain 時寫出
+    public void attach(Path file){
+        synchronized (fileLock){
+            this.file = file;
+            this.durable = true;
+        }
+    }
+    // 截斷快照之後才寫出的內容（由快照與日誌重新推導），再依序掃描重建每位會員的最新位置與筆數
+    public void recover(long validLength) throws IOException{
+        synchronized (fileLock){
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > validLength){
+                channel.truncate(validLength);
+            }
+            length = channel.size();
+            if (length < validLength){
+                System.err.println("歷史檔 " + file.getFileName() + " 比快照記錄的短，部分歷史紀錄已遺失。");
+            }
+            byte[] header = new byte[HEADER_BYTES];
+            long position = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))){
+                while (position + HEADER_BYTES <= length){
+                    in.readFully(header);
+                    int bodyLength = ByteBuffer.wrap(header).getInt(8);
+                    if (position + HEADER_BYTES + bodyLength > length){
+                        break;
+                    }
+                    byte[] body = new byte[bodyLength];
+                    in.readFully(body);
+                    String studentId = new DataInputStream(new ByteArrayInputStream(body)).readUTF();
+                    History history = byMember.computeIfAbsent(studentId, k -> new History());
+                    synchronized (history){
+                        history.head = position;
+                        history.stored++;
+                    }
+                    position += HEADER_BYTES + bodyLength;
+                }
+            }
+            if (position < length){
+                channel.truncate(position); // 不完整的最後一筆
+                length = position;
+            }
+        }
+    }
+    // 快照擷取會員時（持有會員鎖）呼叫：把日誌序號 <= lastSeq 的紀錄寫到歷史檔，回傳其餘紀錄由快照直接保存。
+    // 序號較大的紀錄，其日誌紀錄不會隨這次快照刪除，寫進歷史檔反而會在復原時重播出第二份
+    public List<ArchivedReservation> drain(String studentId, long lastSeq) throws IOException{
+        History history = byMember.get(studentId);
+        if (history == null){
+            return Collections.emptyList();
+        }
+        synchronized (history){
+            List<ArchivedReservation> covered = new ArrayList<>(history.resident.size());
+            List<ArchivedReservation> remaining = new ArrayList<>(2);
+            for (ArchivedReservation record : history.resident){
+                (record.getWalSeq() <= lastSeq ? covered : remaining).add(record);
+            }
+            if (!covered.isEmpty()){
+                history.head = append(studentId, covered, history.head);
+                history.stored += covered.size();
+                history.resident = remaining;
+                residentCount.addAndGet(-covered.size());
+            }
+            return new ArrayList<>(remaining);
+        }
+    }
+    // 寫完快照前呼叫：將歷史檔寫入磁碟並回傳長度，快照記下此長度作為歷史檔的有效範圍
+    public long force() throws IOException{
+        synchronized (fileLock){
+            if (channel != null){
+                channel.force(false);
+            }
+            return length;
+        }
+    }
+    // 依序附加同一會員的多筆紀錄，回傳最後一筆的位置
+    private long append(String studentId, List<ArchivedReservation> records, long head) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (fileLock){
+            if (channel == null){
+                if (durable){
+                    throw new IOException("歷史檔尚未復原");
+                }
+                file = Files.createTempFile("shuttle-history-", ".dat");
+                file.toFile().deleteOnExit();
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long position = length;
+            for (ArchivedReservation record : records){
+                byte[] body = record.encode(studentId);
+                long recordPosition = position + bytes.size();
+                out.writeLong(head);
+                out.writeInt(body.length);
+                out.write(body);
+                head = recordPosition;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()){
+                channel.write(buffer, position + buffer.position());
+            }
+            length = position + bytes.size();
+            return head;
+        }
+    }
+    // 由新到舊分頁：先取記憶體中的紀錄，不足時沿著檔案中的前一筆位置往回讀
+    public List<ArchivedReservation> page(String studentId, int offset, int limit){
+        History history = byMember.get(studentId);
+        if (history == null || limit <= 0){
+            return Collections.emptyList();
+        }
+        List<ArchivedReservation> page = new ArrayList<>(Math.min(limit, 100));
+        long position;
+        int skip;
+        synchronized (history){
+            List<ArchivedReservation> resident = history.resident;
+            for (int i = resident.size() - 1 - offset; i >= 0 && page.size() < limit; i--){
+                page.add(resident.get(i));
+            }
+            skip = Math.max(0, offset - resident.size());
+            position = history.head;
+        }
+        // 檔案中的紀錄寫入後不再變動，取得起點後可在鎖外讀取
+        readStored(studentId, position, skip, limit - page.size(), page);
+        return page;
+    }
+    public int count(String studentId){
+        History history = byMember.get(studentId);
+        if (history == null){
+            return 0;
+        }
+        synchronized (history){
+            return history.resident.size() + history.stored;
+        }
+    }
+    // 依時間順序回傳會員的全部歷史紀錄（寫入快照用），只在呼叫期間占用該會員的紀錄量
+    public List<ArchivedReservation> getAll(String studentId){
+        History history = byMember.get(studentId);
+        if (history == null){
+            return Collections.emptyList();
+        }
+        List<ArchivedReservation> resident;
+        long position;
+        int stored;
+        synchronized (history){
+            resident = new ArrayList<>(history.resident);
+            position = history.head;
+            stored = history.stored;
+        }
+        List<ArchivedReservation> all = new ArrayList<>(stored + resident.size());
+        readStored(studentId, position, 0, stored, all);
+        Collections.reverse(all);
+        all.addAll(resident);
+        return all;
+    }
+    // 自 position 起沿前一筆位置往回略過 skip 筆後讀取至多 limit 筆。
+    // 同一會員的紀錄多半在同一批寫出、位置相鄰，每次往前多讀一段，之後幾筆直接在讀取視窗內解析
+    private void readStored(String studentId, long position, int skip, int limit, List<ArchivedReservation> target){
+        ByteBuffer window = ByteBuffer.allocate(READ_WINDOW);
+        long windowStart = 0;
+        int windowLength = 0;
+        try{
+            while (position >= 0 && limit > 0){
+                if (position < windowStart || position + HEADER_BYTES > windowStart + windowLength){
+                    windowStart = Math.max(0, position + HEADER_BYTES + 256 - READ_WINDOW);
+                    windowLength = fill(window, windowStart);
+                    if (position + HEADER_BYTES > windowStart + windowLength){
+                        throw new EOFException("歷史檔在位置 " + position + " 提早結束");
+                    }
+                }
+                int offset = (int) (position - windowStart);
+                long previous = window.getLong(offset);
+                int bodyLength = window.getInt(offset + 8);
+                if (skip > 0){
+                    skip--;
+                }else{
+                    byte[] body = new byte[bodyLength];
+                    if (offset + HEADER_BYTES + bodyLength <= windowLength){
+                        System.arraycopy(window.array(), offset + HEADER_BYTES, body, 0, bodyLength);
+                    }else{
+                        readFully(ByteBuffer.wrap(body), position + HEADER_BYTES);
+                    }
+                    target.add(ArchivedReservation.decode(body));
+                    limit--;
+                }
+                position = previous;
+            }
+        }catch (IOException e){
+            throw new UncheckedIOException("讀取 " + studentId + " 的歷史紀錄失敗", e);
+        }
+    }
+    // 由 position 讀滿視窗或讀到檔尾，回傳讀到的位元組數
+    private int fill(ByteBuffer window, long position) throws IOException{
+        window.clear();
+        while (window.hasRemaining()){
+            if (channel.read(window, position + window.position()) < 0){
+                break;
+            }
+        }
+        return window.position();
+    }
+    private void readFully(ByteBuffer buffer, long position) throws IOException{
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer, position + buffer.position()) < 0){
+                throw new EOFException("歷史檔在位置 " + position + " 提早結束");
+            }
+        }
+    }
+    // ----------------- 服務方法 -----------------
+    public int getResidentCount(){
+        return residentCount.get();
+    }
+    public long getStoredBytes(){
+        synchronized (fileLock){
+            return length;
+        }
+    }
+    @Override
+    public void close() throws IOException{
+        Future<?> spill = pendingSpill;
+        if (spill != null){
+            try{
+                spill.get(); // 等待寫到一半的暫存檔完成後再關閉
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }catch (ExecutionException e){
+                System.err.println("歷史紀錄寫入失敗: " + e.getCause());
+            }
+        }
+        synchronized (fileLock){
+            if (channel != null){
+                channel.close();
+                if (!durable){
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
+
+/*============================ ArchivedReservation 類別 ================================= */
+// 已結束預約的不可變紀錄
+class ArchivedReservation{
+    private final String reservationId;
+    private final String tripId;
+    private final String routeId;
+    private final String routeName;
+    private final LocalDate date;
+    private final LocalTime departureTime;
+    private final int seatNumber;
+    private final LocalDateTime reservationDateTime;
+    private final ReservationStatus status;
+    private final long walSeq; // 結束預約的日誌序號，只存在記憶體中（決定快照時是否寫入歷史檔），由檔案讀回時為 0
+    // ----------------- 建構式 -----------------
+    public ArchivedReservation(Reservation reservation, long walSeq){
+        Trip trip = reservation.getTrip();
+        this.reservationId = reservation.getReservationId();
+        this.tripId = trip.getTripId();
+        this.routeId = trip.getRoute().getRouteId();
+        this.routeName = trip.getRoute().getRouteName();
+        this.date = trip.getDate();
+        this.departureTime = trip.getDepartureTime();
+        this.seatNumber = reservation.getSeat().getSeatNumber();
+        this.reservationDateTime = reservation.getReservationDateTime();
+        this.status = reservation.getStatus();
+        this.walSeq = walSeq;
+    }
+    private ArchivedReservation(String reservationId, String tripId, String routeId, String routeName, LocalDate date,
+                                LocalTime departureTime, int seatNumber, LocalDateTime reservationDateTime, ReservationStatus status){
+        this.reservationId = reservationId;
+        this.tripId = tripId;
+        this.routeId = routeId;
+        this.routeName = routeName;
+        this.date = date;
+        this.departureTime = departureTime;
+        this.seatNumber = seatNumber;
+        this.reservationDateTime = reservationDateTime;
+        this.status = status;
+        this.walSeq = 0;
+    }
+    // ----------------- 歷史檔格式 -----------------
+    // [學號][預約ID][班次ID][路線ID][路線名稱][日期 long][發車秒數 int][座位 int][預約時間 秒 long + 奈秒 int][狀態 byte]
+    byte[] encode(String studentId){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(112);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try{
+            out.writeUTF(studentId);
+            out.writeUTF(reservationId);
+            out.writeUTF(tripId);
+            out.writeUTF(routeId);
+            out.writeUTF(routeName);
+            out.writeLong(date.toEpochDay());
+            out.writeInt(departureTime.toSecondOfDay());
+            out.writeInt(seatNumber);
+            out.writeLong(reservationDateTime.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(reservationDateTime.getNano());
+            out.writeByte(status.ordinal());
+        }catch (IOException e){
+            throw new UncheckedIOException(e); // 寫入記憶體不會發生
+        }
+        return bytes.toByteArray();
+    }
+    static ArchivedReservation decode(byte[] body) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        in.readUTF(); // 學號，僅供重建索引
+        return new ArchivedReservation(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), LocalDate.ofEpochDay(in.readLong()),
+            LocalTime.ofSecondOfDay(in.readInt()), in.readInt(), LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC),
+            ReservationStatus.values()[in.readByte()]);
+    }
+    // ----------------- 服務方法 -----------------
+    public String getReservationId(){ return reservationId; }
+    public String getTripId(){ return tripId; }
+    public String getRouteId(){ return routeId; }
+    public String getRouteName(){ return routeName; }
+    public LocalDate getDate(){ return date; }
+    public LocalTime getDepartureTime(){ return departureTime; }
+    public int getSeatNumber(){ return seatNumber; }
+    public LocalDateTime getReservationDateTime(){ return reservationDateTime; }
+    public ReservationStatus getStatus(){ return status; }
+    long getWalSeq(){ return walSeq; }
+}
+
+/*============================ TripIndex 類別 ================================= */
+// 班次索引：以 tripId 直接查找，並依 (日期, 路線名稱) 分組、組內依發車時間排序
+// 查詢不需加鎖；新增/移除以 synchronized 序列化，並以複製後整組替換的方式更新分組
+class TripIndex{
+    private final Map<String, Trip> tripsById = new ConcurrentHashMap<>();
+    private final Map<LocalDate, Map<String, List<Trip>>> tripsByDateAndRoute = new ConcurrentHashMap<>();
+    // ----------------- 建構式 -----------------
+    public TripIndex(Collection<Trip> trips){
+        for (Trip t : trips){
+            add(t);
+        }
+    }
+    // ----------------- 方法 -----------------
+    public synchronized void add(Trip trip){
+        Trip previous = tripsById.put(trip.getTripId(), trip);
+        if (previous != null){
+            removeFromSchedule(previous);
+        }
+        Map<String, List<Trip>> routesOfDay = tripsByDateAndRoute.computeIfAbsent(trip.getDate(), d -> new ConcurrentHashMap<>());
+        String routeName = trip.getRoute().getRouteName();
+        List<Trip> bucket = new ArrayList<>(routesOfDay.getOrDefault(routeName, Collections.emptyList()));
+        // 插入在所有發車時間 <= 本班次的項目之後，維持排序
+        bucket.add(searchDeparture(bucket, trip.getDepartureTime(), true), trip);
+        routesOfDay.put(routeName, Collections.unmodifiableList(bucket));
+    }
+    public synchronized boolean remove(Trip trip){
+        if (tripsById.remove(trip.getTripId(), trip)){
+            removeFromSchedule(trip);
+            return true;
+        }
+        return false;
+    }
+    // 移除所有在 now（含）之前發車的班次，回傳被移除的 Trip
+    public synchronized List<Trip> removeDepartedBefore(LocalDateTime now){
+        List<Trip> removed = new ArrayList<>();
+        LocalDate today = now.toLocalDate();
+        Iterator<Map.Entry<LocalDate, Map<String, List<Trip>>>> dates = tripsByDateAndRoute.entrySet().iterator();
+        while (dates.hasNext()){
+            Map.Entry<LocalDate, Map<String, List<Trip>>> dateEntry = dates.next();
+            if (dateEntry.getKey().isAfter(today)){
+                continue;
+            }
+            Iterator<Map.Entry<String, List<Trip>>> buckets = dateEntry.getValue().entrySet().iterator();
+            while (buckets.hasNext()){
+                Map.Entry<String, List<Trip>> bucketEntry = buckets.next();
+                List<Trip> bucket = bucketEntry.getValue();
+                // 組內依發車時間排序，已發車的班次必定位於前段
+                int departed = dateEntry.getKey().isBefore(today)
+                    ? bucket.size()
+                    : searchDeparture(bucket, now.toLocalTime(), true);
+                if (departed == 0){
+                    continue;
+                }
+                for (Trip t : bucket.subList(0, departed)){
+                    tripsById.remove(t.getTripId(), t);
+                    removed.add(t);
+                }
+                if (departed == bucket.size()){
+                    buckets.remove();
+                }else{
+                    bucketEntry.setValue(Collections.unmodifiableList(new ArrayList<>(bucket.subList(departed, bucket.size()))));
+                }
+            }
+            if (dateEntry.getValue().isEmpty()){
+                dates.remove();
+            }
+        }
+        return removed;
+    }
+    // ----------------- 查詢方法 -----------------
+    public Trip findById(String tripId){
+        return tripsById.get(tripId);
+    }
+    // 目前索引中的所有班次（不排序，併發修改時為弱一致的檢視）
+    public Collection<Trip> trips(){
+        return Collections.unmodifiableCollection(tripsById.values());
+    }
+    // 取得指定日期與路線中，發車時間不早於 startTime 的班次（startTime 為 null 時回傳全部）
+    public List<Trip> findTrips(LocalDate date, String routeName, LocalTime startTime){
+        Map<String, List<Trip>> routesOfDay = tripsByDateAndRoute.get(date);
+        if (routesOfDay == null){
+            return Collections.emptyList();
+        }
+        List<Trip> bucket = routesOfDay.get(routeName);
+        if (bucket == null){
+            return Collections.emptyList();
+        }
+        int from = (startTime == null) ? 0 : searchDeparture(bucket, startTime, false);
+        return bucket.subList(from, bucket.size());
+    }
+    public int size(){
+        return tripsById.size();
+    }
+    // ----------------- 內部方法 -----------------
+    private void removeFromSchedule(Trip trip){
+        Map<String, List<Trip>> routesOfDay = tripsByDateAndRoute.get(trip.getDate());
+        if (routesOfDay == null){
+            return;
+        }
+        String routeName = trip.getRoute().getRouteName();
+        List<Trip> bucket = routesOfDay.get(routeName);
+        if (bucket == null){
+            return;
+        }
+        List<Trip> remaining = new ArrayList<>(bucket);
+        remaining.remove(trip);
+        if (remaining.isEmpty()){
+            routesOfDay.remove(routeName);
+            if (routesOfDay.isEmpty()){
+                tripsByDateAndRoute.remove(trip.getDate());
+            }
+        }else{
+            routesOfDay.put(routeName, Collections.unmodifiableList(remaining));
+        }
+    }
+    // 二分搜尋：回傳第一個發車時間 >= time（afterEqual 為 true 時則為 > time）的位置
+    private static int searchDeparture(List<Trip> bucket, LocalTime time, boolean afterEqual){
+        int low = 0;
+        int high = bucket.size();
+        while (low < high){
+            int mid = (low + high) >>> 1;
+            int cmp = bucket.get(mid).getDepartureTime().compareTo(time);
+            if (cmp < 0 || (afterEqual && cmp == 0)){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+/*============================ TripScheduler 類別 ================================= */
+// 維持「今天起 windowDays 天」的滾動班次視窗：依各路線時刻表逐日補上新班次，並下架已發車的班次
+class TripScheduler{
+    private final ReservationManager manager;
+    private final Collection<Route> routes;
+    private final int windowDays;
+    private LocalDate generatedThrough; // 已產生班次的最後日期
+    private ScheduledExecutorService executor;
+    // ----------------- 建構式 -----------------
+    public TripScheduler(ReservationManager manager, Collection<Route> routes, int windowDays, LocalDate generatedThrough){
+        this.manager = manager;
+        this.routes = routes;
+        this.windowDays = windowDays;
+        this.generatedThrough = generatedThrough;
+    }
+    // 依時刻表產生 [from, to] 期間的班次
+    public static List<Trip> generateTrips(Collection<Route> routes, LocalDate from, LocalDate to){
+        List<Trip> trips = new ArrayList<>();
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)){
+            for (Route route : routes){
+                for (LocalTime time : route.getTimetable()){
+                    trips.add(new Trip(Trip.idFor(route, date, time), route, date, time)); // 固定 ID，重新啟動後預約仍對應同一班次
+                }
+            }
+        }
+        return trips;
+    }
+    // ----------------- 方法 -----------------
+    // 將視窗推進到 now：補上缺少的日期並下架已發車班次，回傳新增的班次數
+    public synchronized int advance(LocalDateTime now){
+        LocalDate last = now.toLocalDate().plusDays(windowDays - 1);
+        int added = 0;
+        if (last.isAfter(generatedThrough)){
+            for (Trip trip : generateTrips(routes, generatedThrough.plusDays(1), last)){
+                manager.addTrip(trip);
+                added++;
+            }
+            generatedThrough = last;
+        }
+        SweepResult sweep = manager.expireDepartedTrips(now);
+        if (sweep.getExpiredTrips() > 0){
+            System.out.printf("未報到結算：下架 %d 筆班次，處理 %d 筆預約（完成 %d、未報到 %d，%d 位會員增加違規），耗時 %.1f ms%n",
+                sweep.getExpiredTrips(), sweep.getProcessedReservations(), sweep.getCompleted(), sweep.getNoShows(),
+                sweep.getPenalizedMembers(), sweep.getElapsedMillis());
+        }
+        return added;
+    }
+    // 每隔 intervalSeconds 以目前時間推進一次
+    public void start(long intervalSeconds){
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "trip-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try{
+                int added = advance(LocalDateTime.now());
+                if (added > 0){
+                    System.out.println("班次視窗更新：新增 " + added + " 筆，目前共 " + manager.getTripCount() + " 筆班次。");
+                }
+            }catch (RuntimeException e){
+                System.err.println("更新班次視窗失敗: " + e);
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+    public void shutdown(){
+        if (executor != null){
+            executor.shutdownNow();
+        }
+    }
+    // ----------------- 服務方法 -----------------
+    public synchronized LocalDate getGeneratedThrough(){
+        return generatedThrough;
+    }
+}
+
+/*============================ ScheduleCache 類別 ================================= */
+// 班次查詢回應快取：以 (日期, 路線, 起始時段) 為鍵，保存可直接送出的 UTF-8 位元組與 ETag
+// 起始時段取查詢結果中第一個班次的發車時間，因此同一時段內的不同 time 參數共用同一筆快取，
+// 且當天的班次發車後自然改用新的鍵。座位變動時遞增該 (日期, 路線) 的版本號，舊版本的快取即失效。
+class ScheduleCache implements SeatChangeListener{
+    // 快取內容
+    static final class Entry{
+        private final byte[] body;
+        private final String etag;
+        private final long generation;
+        private volatile long lastAccess;
+        Entry(byte[] body, String etag, long generation, long lastAccess){
+            this.body = body;
+            this.etag = etag;
+            this.generation = generation;
+            this.lastAccess = lastAccess;
+        }
+        public byte[] getBody(){ return body; }
+        public String getEtag(){ return etag; }
+    }
+    interface Renderer{
+        byte[] render(List<Trip> trips);
+    }
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong(); // 以遞增計數代替時間，作為 LRU 依據
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // ----------------- 建構式 -----------------
+    public ScheduleCache(int maxEntries){
+        this.maxEntries = maxEntries;
+    }
+    // ----------------- 方法 -----------------
+    // 取得快取的回應；未命中或已失效時以 renderer 產生並存入。trips 須為 getFilteredTrips 的非空結果
+    public Entry getOrRender(LocalDate date, String routeName, List<Trip> trips, Renderer renderer){
+        String routeDay = routeDayKey(date, routeName);
+        String key = routeDay + "|" + trips.get(0).getDepartureTime();
+        AtomicLong generation = generations.computeIfAbsent(routeDay, k -> new AtomicLong());
+        Entry entry = entries.get(key);
+        if (entry != null && entry.generation == generation.get()){
+            entry.lastAccess = clock.incrementAndGet();
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        // 先讀版本號再產生內容：產生期間若有座位變動，存入的版本即為舊版，下次查詢會重新產生
+        long renderedGeneration = generation.get();
+        byte[] body = renderer.render(trips);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        Entry rendered = new Entry(body, "\"" + Long.toHexString(renderedGeneration) + "-" + Long.toHexString(crc.getValue()) + "\"",
+            renderedGeneration, clock.incrementAndGet());
+        entries.put(key, rendered);
+        if (entries.size() > maxEntries){
+            evict();
+        }
+        return rendered;
+    }
+    @Override
+    public void seatChanged(Trip trip, int seatNumber, boolean occupied){
+        AtomicLong generation = generations.get(routeDayKey(trip.getDate(), trip.getRoute().getRouteName()));
+        if (generation != null){
+            generation.incrementAndGet();
+            invalidations.incrementAndGet();
+        }
+    }
+    // 先移除過去日期的快取，仍超過上限時依最近使用順序移除最舊的項目，保留九成容量
+    private synchronized void evict(){
+        if (entries.size() <= maxEntries){
+            return;
+        }
+        String todayPrefix = LocalDate.now().toString();
+        entries.keySet().removeIf(key -> {
+            boolean past = key.substring(0, todayPrefix.length()).compareTo(todayPrefix) < 0;
+            if (past){
+                evictions.incrementAndGet();
+            }
+            return past;
+        });
+        generations.keySet().removeIf(key -> key.substring(0, todayPrefix.length()).compareTo(todayPrefix) < 0);
+        int target = maxEntries * 9 / 10;
+        if (entries.size() > target){
+            List<Map.Entry<String, Entry>> byAge = new ArrayList<>(entries.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            for (int i = 0; i < byAge.size() - target; i++){
+                if (entries.remove(byAge.get(i).getKey(), byAge.get(i).getValue())){
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+    private static String routeDayKey(LocalDate date, String routeName){
+        return date + "|" + routeName;
+    }
+    // ----------------- 服務方法 -----------------
+    public long getHits(){ return hits.get(); }
+    public long getMisses(){ return misses.get(); }
+    public long getEvictions(){ return evictions.get(); }
+    public long getInvalidations(){ return invalidations.get(); }
+    public int size(){ return entries.size(); }
+}
+
+/*============================ StaticAssetCache 類別 ================================= */
+// 靜態檔案快取：檔案第一次被請求時整份讀入記憶體並預先以 gzip 壓縮，之後直接由記憶體回應；
+// 同一檔案至多每秒檢查一次修改時間與大小，有變動時重新載入。
+// 只提供根目錄內（含解析符號連結後）、副檔名在白名單中的檔案，避免以 ../ 或原始碼、日誌檔名讀取其他檔案
+class StaticAssetCache{
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_CACHED_BYTES = 1 << 20; // 超過此大小的檔案不放入記憶體，改以 FileChannel 傳送
+    private static final int MIN_GZIP_BYTES = 256;        // 太小的檔案壓縮效益低於標頭成本
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+        "html", "text/html; charset=utf-8",
+        "css", "text/css; charset=utf-8",
+        "js", "application/javascript; charset=utf-8",
+        "svg", "image/svg+xml",
+        "png", "image/png",
+        "jpg", "image/jpeg",
+        "ico", "image/x-icon");
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    static class Asset{
+        private final Path path;
+        private final String contentType;
+        private final long lastModifiedMillis;
+        private final long size;
+        private final byte[] body;       // 大檔案為 null
+        private final byte[] gzipBody;   // 不適合壓縮時為 null
+        private final String etag;
+        private final String gzipEtag;   // 同一內容的 gzip 表示法須有不同的強 ETag
+        private final String lastModified;
+        private volatile long checkedAt;
+
+        Asset(Path path, String contentType, long lastModifiedMillis, long size, byte[] body, byte[] gzipBody, String etag){
+            this.path = path;
+            this.contentType = contentType;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.size = size;
+            this.body = body;
+            this.gzipBody = gzipBody;
+            this.etag = "\"" + etag + "\"";
+            this.gzipEtag = "\"" + etag + "-gz\"";
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(lastModifiedMillis).atZone(ZoneOffset.UTC));
+            this.checkedAt = System.nanoTime();
+        }
+        public Path getPath(){ return path; }
+        public String getContentType(){ return contentType; }
+        public long getLastModifiedMillis(){ return lastModifiedMillis; }
+        public byte[] getBody(){ return body; }
+        public byte[] getGzipBody(){ return gzipBody; }
+        public String getEtag(){ return etag; }
+        public String getGzipEtag(){ return gzipEtag; }
+        public String getLastModified(){ return lastModified; }
+        // 頁面每次都向伺服器確認（通常得到 304），其餘資源可快取 5 分鐘
+        public String getCacheControl(){
+            return contentType.startsWith("text/html") ? "no-cache" : "public, max-age=300";
+        }
+    }
+
+    private final Path root;
+    private final Map<Path, Asset> assets = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    // ----------------- 建構式 -----------------
+    public StaticAssetCache(Path root) throws IOException{
+        this.root = root.toRealPath();
+    }
+    // ----------------- 方法 -----------------
+    // 依請求路徑取得檔案；路徑離開根目錄、檔案不存在或副檔名不在白名單時回傳 null
+    public Asset lookup(String requestPath) throws IOException{
+        String relative = requestPath.startsWith("/") ? requestPath.substring(1) : requestPath;
+        String contentType = CONTENT_TYPES.get(relative.substring(relative.lastIndexOf('.') + 1));
+        if (contentType == null || relative.indexOf('\0') >= 0){
+            return null;
+        }
+        Path file;
+        try{
+            file = root.resolve(relative).normalize();
+        }catch (InvalidPathException e){
+            return null;
+        }
+        if (!file.startsWith(root)){
+            return null;
+        }
+        long now = System.nanoTime();
+        Asset asset = assets.get(file);
+        if (asset != null && now - asset.checkedAt < CHECK_INTERVAL_NANOS){
+            hits.incrementAndGet();
+            return asset;
+        }
+        Path real;
+        BasicFileAttributes attributes;
+        try{
+            real = file.toRealPath();
+            attributes = Files.readAttributes(real, BasicFileAttributes.class);
+        }catch (IOException e){
+            assets.remove(file);
+            return null;
+        }
+        if (!real.startsWith(root) || !attributes.isRegularFile()){
+            assets.remove(file);
+            return null;
+        }
+        if (asset != null && asset.lastModifiedMillis == attributes.lastModifiedTime().toMillis() && asset.size == attributes.size()){
+            asset.checkedAt = now;
+            hits.incrementAndGet();
+            return asset;
+        }
+        asset = load(real, contentType, attributes);
+        assets.put(file, asset);
+        loads.incrementAndGet();
+        return asset;
+    }
+    private static Asset load(Path file, String contentType, BasicFileAttributes attributes) throws IOException{
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (attributes.size() > MAX_CACHED_BYTES){
+            return new Asset(file, contentType, lastModified, attributes.size(), null, null,
+                Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified));
+        }
+        byte[] body = Files.readAllBytes(file);
+        byte[] gzipBody = null;
+        if (body.length >= MIN_GZIP_BYTES && (!contentType.startsWith("image/") || contentType.equals("image/svg+xml"))){
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+            try (java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(compressed)){
+                gzip.write(body);
+            }
+            if (compressed.size() < body.length){
+                gzipBody = compressed.toByteArray();
+            }
+        }
+        return new Asset(file, contentType, lastModified, body.length, body, gzipBody, digest(body));
+    }
+    // 以內容的 SHA-256 前 16 個十六進位字元作為強 ETag
+    private static String digest(byte[] body){
+        try{
+            byte[] hash = java.security.MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++){
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return hex.toString();
+        }catch (java.security.NoSuchAlgorithmException e){
+            throw new IllegalStateException(e); // 所有 JDK 皆須提供 SHA-256
+        }
+    }
+    // ----------------- 服務方法 -----------------
+    public int size(){ return assets.size(); }
+    public long getHits(){ return hits.get(); }
+    public long getLoads(){ return loads.get(); }
+}
+
+/*============================ SeatEventStream 類別 ================================= */
+// 以 Server-Sent Events 推送座位變動：連線建立後 Handler 即返回，不為每條連線占用執行緒；
+// 座位變動時只把事件放入各訂閱者的有界佇列，再由少數寫出執行緒送出，佇列滿的慢速用戶直接斷線
+class SeatEventStream implements SeatChangeListener{
+    private static final int WRITER_THREADS = 4;
+    private static final int HEARTBEAT_SECONDS = 15; // 定期送出註解行，偵測已斷線的用戶
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxSubscribers;
+    private final int bufferEvents;
+    // 依日期索引訂閱者；未指定日期的訂閱者放在 allDates
+    private final Map<LocalDate, Set<Subscriber>> byDate = new ConcurrentHashMap<>();
+    private final Set<Subscriber> allDates = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicLong eventSequence = new AtomicLong();
+    private final AtomicLong droppedSubscribers = new AtomicLong();
+    private final ExecutorService writers;
+    private final ScheduledExecutorService heartbeat;
+    // ----------------- 建構式 -----------------
+    public SeatEventStream(int maxSubscribers, int bufferEvents){
+        this.maxSubscribers = maxSubscribers;
+        this.bufferEvents = bufferEvents;
+        AtomicInteger threadId = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(WRITER_THREADS, r -> {
+            Thread t = new Thread(r, "sse-writer-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sse-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+    // ----------------- 方法 -----------------
+    // 送出回應標頭後登記訂閱者；超過上限時回傳 false，由呼叫端回應 503
+    public boolean subscribe(HttpExchange exchange, LocalDate date, String routeName) throws IOException{
+        if (subscriberCount.incrementAndGet() > maxSubscribers){
+            subscriberCount.decrementAndGet();
+            return false;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        Subscriber subscriber = new Subscriber(exchange, date, routeName);
+        subscriber.offer("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+        (date == null ? allDates : byDate.computeIfAbsent(date, d -> ConcurrentHashMap.newKeySet())).add(subscriber);
+        return true;
+    }
+    // 由預約/取消流程在釋放班次鎖後呼叫：事件只編碼一次，放入佇列後立即返回
+    @Override
+    public void seatChanged(Trip trip, int seatNumber, boolean occupied){
+        Set<Subscriber> sameDate = byDate.get(trip.getDate());
+        if ((sameDate == null || sameDate.isEmpty()) && allDates.isEmpty()){
+            return;
+        }
+        byte[] event = encode(trip, seatNumber, occupied);
+        String routeName = trip.getRoute().getRouteName();
+        if (sameDate != null){
+            for (Subscriber s : sameDate){
+                if (s.accepts(routeName)){
+                    s.offer(event);
+                }
+            }
+        }
+        for (Subscriber s : allDates){
+            if (s.accepts(routeName)){
+                s.offer(event);
+            }
+        }
+    }
+    private byte[] encode(Trip trip, int seatNumber, boolean occupied){
+        JsonWriter json = JsonWriter.acquire();
+        try{
+            json.beginObject()
+                .name("tripId").value(trip.getTripId())
+                .name("seat").value(seatNumber)
+                .name("occupied").value(occupied)
+                .name("held").value(occupied && trip.isSeatHeld(seatNumber))
+                .name("availableSeats").value(trip.getAvailableSeats())
+                .endObject();
+            byte[] data = json.toByteArray();
+            byte[] head = ("id: " + eventSequence.incrementAndGet() + "\nevent: seat\ndata: ").getBytes(StandardCharsets.UTF_8);
+            byte[] event = Arrays.copyOf(head, head.length + data.length + 2);
+            System.arraycopy(data, 0, event, head.length, data.length);
+            event[event.length - 2] = '\n';
+            event[event.length - 1] = '\n';
+            return event;
+        }catch (IOException e){
+            throw new UncheckedIOException(e); // 只寫入記憶體，不會發生
+        }finally{
+            json.release();
+        }
+    }
+    private void sendHeartbeat(){
+        for (Set<Subscriber> subscribers : byDate.values()){
+            for (Subscriber s : subscribers){
+                s.offer(HEARTBEAT);
+            }
+        }
+        for (Subscriber s : allDates){
+            s.offer(HEARTBEAT);
+        }
+    }
+    private void remove(Subscriber subscriber){
+        Set<Subscriber> set = subscriber.date == null ? allDates : byDate.get(subscriber.date);
+        if (set != null && set.remove(subscriber)){
+            subscriberCount.decrementAndGet();
+        }
+    }
+    public void shutdown(){
+        heartbeat.shutdownNow();
+        for (Set<Subscriber> subscribers : byDate.values()){
+            for (Subscriber s : subscribers){
+                s.close();
+            }
+        }
+        for (Subscriber s : allDates){
+            s.close();
+        }
+        writers.shutdown();
+    }
+    // ----------------- 服務方法 -----------------
+    public int getSubscriberCount(){
+        return subscriberCount.get();
+    }
+    public long getDroppedSubscribers(){
+        return droppedSubscribers.get();
+    }
+    public long getPublishedEvents(){
+        return eventSequence.get();
+    }
+
+    // 單一 SSE 連線：有界事件佇列，同一時間最多一個寫出執行緒處理
+    private final class Subscriber{
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final LocalDate date;
+        private final String routeName;
+        private final ArrayBlockingQueue<byte[]> pending = new ArrayBlockingQueue<>(bufferEvents);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed = false;
+
+        Subscriber(HttpExchange exchange, LocalDate date, String routeName){
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.date = date;
+            this.routeName = routeName;
+        }
+        boolean accepts(String tripRoute){
+            return routeName == null || routeName.equals(tripRoute);
+        }
+        void offer(byte[] event){
+            if (closed){
+                return;
+            }
+            if (!pending.offer(event)){
+                droppedSubscribers.incrementAndGet(); // 用戶讀取太慢，佇列已滿
+                close();
+                return;
+            }
+            schedule();
+        }
+        private void schedule(){
+            if (scheduled.compareAndSet(false, true)){
+                try{
+                    writers.execute(this::drain);
+                }catch (RejectedExecutionException e){
+                    scheduled.set(false); // 伺服器關閉中
+                }
+            }
+        }
+        private void drain(){
+            try{
+                byte[] event;
+                while (!closed && (event = pending.poll()) != null){
+                    out.write(event);
+                }
+                out.flush();
+            }catch (IOException e){
+                close(); // 用戶已斷線
+            }finally{
+                scheduled.set(false);
+            }
+            if (closed){
+                finish();
+            }else if (!pending.isEmpty()){
+                schedule(); // 寫出期間又有新事件
+            }
+        }
+        void close(){
+            if (closed){
+                return;
+            }
+            closed = true;
+            remove(this);
+            pending.clear();
+            if (scheduled.compareAndSet(false, true)){
+                try{
+                    writers.execute(this::finish); // 在寫出執行緒關閉連線，不阻塞發布事件的執行緒
+                }catch (RejectedExecutionException e){
+                    finish();
+                }
+            }
+        }
+        private void finish(){
+            exchange.close();
+        }
+    }
+}
+
+/*============================ WaitingRoom 類別 ================================= */
+// 熱門班次的排隊模式：標記為熱門的班次（路線 + 發車時間）不直接搶位，預約請求先取得號碼牌排入該班次的佇列，
+// 以固定速率依序處理，把同時搶鎖與失敗重試變成依序的批次處理。排程執行緒每個 tick 把各班次的一批號碼牌
+// 交給處理執行緒池，同一班次同時只由一個執行緒處理（維持先來後到），不同班次的批次則平行進行；
+// 每批一次寫入日誌、只等待一次 fsync。用戶可輪詢號碼牌，或等待結果（等待期間不占用處理執行緒）
+class WaitingRoom{
+    private static final long TICK_MILLIS = 10;
+    private static final int DRAIN_THREADS = 4;
+    private static final long RESOLVED_TTL_NANOS = TimeUnit.MINUTES.toNanos(5); // 已有結果的號碼牌保留多久供查詢
+    private static final String SOLD_OUT = BatchBookingResult.SOLD_OUT;
+    private static final String BOOKING_FAILED = "預約失敗，可能原因：座位已被預約或違規停權";
+
+    // 號碼牌：結果由處理該批次的 drainers 執行緒在 resolve 中寫入一次（持有號碼牌的鎖，status 最後寫入），其餘執行緒只讀。
+    // 結果欄位皆為 volatile：看到 status 不是 QUEUED 的執行緒，也一定看得到同時寫入的 reservationId、error 與 resolvedAt
+    static class Ticket{
+        public static final String QUEUED = "QUEUED";
+        public static final String CONFIRMED = "CONFIRMED";
+        public static final String FAILED = "FAILED";
+
+        private final long ticketId;
+        private final String studentId;
+        private final String tripId;
+        private final String seatNumber;
+        private final long sequence;   // 在該班次佇列中的序號
+        private final TripQueue queue;
+        private volatile String status = QUEUED;
+        private volatile String reservationId;
+        private volatile String error;
+        private volatile long resolvedAt;
+        private List<Runnable> waiters; // 由 this 保護；結果產生後設為 null
+
+        Ticket(long ticketId, String studentId, String tripId, String seatNumber, long sequence, TripQueue queue){
+            this.ticketId = ticketId;
+            this.studentId = studentId;
+            this.tripId = tripId;
+            this.seatNumber = seatNumber;
+            this.sequence = sequence;
+            this.queue = queue;
+        }
+        public long getTicketId(){ return ticketId; }
+        public String getStudentId(){ return studentId; }
+        public String getTripId(){ return tripId; }
+        public String getSeatNumber(){ return seatNumber; }
+        public String getStatus(){ return status; }
+        public String getReservationId(){ return reservationId; }
+        public String getError(){ return error; }
+        public boolean isResolved(){ return status != QUEUED; }
+        // 前面還有幾張尚未處理的號碼牌（含自己為 1）；已有結果時為 0
+        public long getPosition(){
+            return isResolved() ? 0 : Math.max(1, sequence - queue.processedSequence);
+        }
+    }
+
+    // 單一班次的佇列；pending、lastSequence 與 draining 由 this 保護，processedSequence 只由處理該批次的執行緒寫入
+    static class TripQueue{
+        private final Deque<Ticket> pending = new ArrayDeque<>();
+        private final Map<String, Ticket> byStudent = new HashMap<>();
+        private long lastSequence;
+        private volatile long processedSequence;
+        private boolean draining; // 已有一批交給處理執行緒，尚未處理完
+        private boolean closed;   // 已自 queues 移除，新的號碼牌須改排到新的佇列
+    }
+
+    private final ReservationManager manager;
+    private final Set<String> hotTrips;
+    private final int drainPerTick;
+    private final int maxQueueLength;
+    private final Map<String, TripQueue> queues = new ConcurrentHashMap<>();
+    private final Map<Long, Ticket> tickets = new ConcurrentHashMap<>();
+    private final AtomicLong nextTicketId = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong(); // 實際呼叫 createReservation 的次數
+    private final ScheduledExecutorService sequencer;
+    private final ExecutorService drainers; // 處理各班次的批次，熱門班次之間不互相等待 fsync
+    private final ExecutorService notifier; // 回應等待中的用戶，避免慢速連線拖住處理執行緒
+    // ----------------- 建構式 -----------------
+    public WaitingRoom(ReservationManager manager, Set<String> hotTrips, int drainPerSecond, int maxQueueLength){
+        this.manager = manager;
+        this.hotTrips = hotTrips;
+        this.drainPerTick = Math.max(1, (int) (drainPerSecond * TICK_MILLIS / 1000));
+        this.maxQueueLength = maxQueueLength;
+        this.sequencer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "waiting-room");
+            t.setDaemon(true);
+            return t;
+        });
+        this.drainers = Executors.newFixedThreadPool(DRAIN_THREADS, r -> {
+            Thread t = new Thread(r, "waiting-room-drain");
+            t.setDaemon(true);
+            return t;
+        });
+        this.notifier = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "waiting-room-notify");
+            t.setDaemon(true);
+            return t;
+        });
+        sequencer.scheduleWithFixedDelay(this::drain, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        sequencer.scheduleWithFixedDelay(this::expireTickets, 1, 1, TimeUnit.SECONDS);
+    }
+    // ----------------- 方法 -----------------
+    // 熱門班次以「路線ID@HH:mm」表示，例如 R01@08:00，每天同一時段的班次皆適用
+    public static String hotTripKey(String routeId, LocalTime departureTime){
+        return routeId + "@" + departureTime;
+    }
+    public boolean isHot(Trip trip){
+        return hotTrips.contains(hotTripKey(trip.getRoute().getRouteId(), trip.getDepartureTime()));
+    }
+    // 排入佇列並回傳號碼牌；同一學號在同一班次已有排隊中的號碼牌時直接回傳該號碼牌，佇列已滿時回傳 null
+    public Ticket enqueue(String studentId, Trip trip, String seatNumber){
+        while (true){
+            TripQueue queue = queues.computeIfAbsent(trip.getTripId(), k -> new TripQueue());
+            synchronized (queue){
+                if (queue.closed){
+                    continue;
+                }
+                Ticket existing = queue.byStudent.get(studentId);
+                if (existing != null){
+                    return existing;
+                }
+                if (queue.pending.size() >= maxQueueLength){
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                Ticket ticket = new Ticket(nextTicketId.incrementAndGet(), studentId, trip.getTripId(), seatNumber,
+                    ++queue.lastSequence, queue);
+                tickets.put(ticket.ticketId, ticket);
+                queue.byStudent.put(studentId, ticket);
+                queue.pending.addLast(ticket);
+                return ticket;
+            }
+        }
+    }
+    public Ticket getTicket(long ticketId){
+        return tickets.get(ticketId);
+    }
+    // 結果產生或逾時後（以先發生者為準）在通知執行緒上呼叫 callback 一次
+    public void awaitResult(Ticket ticket, long timeoutMillis, Runnable callback){
+        AtomicBoolean fired = new AtomicBoolean();
+        Runnable once = () -> {
+            if (fired.compareAndSet(false, true)){
+                callback.run();
+            }
+        };
+        synchronized (ticket){
+            if (!ticket.isResolved()){
+                if (ticket.waiters == null){
+                    ticket.waiters = new ArrayList<>();
+                }
+                ticket.waiters.add(once);
+                sequencer.schedule(() -> notifier.execute(once), timeoutMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        notifier.execute(once);
+    }
+    public void shutdown(){
+        sequencer.shutdownNow();
+        drainers.shutdownNow();
+        notifier.shutdownNow();
+    }
+    // ----------------- 排程 -----------------
+    // 每個 tick 從每個班次的佇列依序取出至多 drainPerTick 張號碼牌交給處理執行緒；上一批尚未處理完的班次本次略過。
+    // 班次額滿後其餘號碼牌直接失敗，不再搶鎖
+    private void drain(){
+        try{
+            for (Map.Entry<String, TripQueue> entry : queues.entrySet()){
+                TripQueue queue = entry.getValue();
+                Trip trip = manager.findTripById(entry.getKey());
+                List<Ticket> batch;
+                synchronized (queue){
+                    if (queue.draining){
+                        continue;
+                    }
+                    if (queue.pending.isEmpty()){
+                        queue.closed = true;
+                        queues.remove(entry.getKey(), queue);
+                        continue;
+                    }
+                    int limit = isSoldOut(trip) ? queue.pending.size() : drainPerTick;
+                    batch = new ArrayList<>(Math.min(limit, queue.pending.size()));
+                    for (int i = 0; i < limit && !queue.pending.isEmpty(); i++){
+                        batch.add(queue.pending.pollFirst());
+                    }
+                    queue.draining = true;
+                }
+                drainers.execute(() -> drainBatch(queue, trip, batch));
+            }
+        }catch (RuntimeException e){
+            System.err.println("排隊處理發生錯誤: " + e); // 不讓例外終止排程
+        }
+    }
+    private void drainBatch(TripQueue queue, Trip trip, List<Ticket> batch){
+        try{
+            List<Ticket> attempted = new ArrayList<>(batch.size());
+            for (Ticket ticket : batch){
+                if (isSoldOut(trip)){
+                    resolve(ticket, Ticket.FAILED, null, SOLD_OUT);
+                    queue.processedSequence = ticket.sequence;
+                }else{
+                    attempted.add(ticket);
+                }
+            }
+            if (!attempted.isEmpty()){
+                String[] studentIds = new String[attempted.size()];
+                String[] seatNumbers = new String[attempted.size()];
+                for (int i = 0; i < attempted.size(); i++){
+                    studentIds[i] = attempted.get(i).studentId;
+                    seatNumbers[i] = attempted.get(i).seatNumber;
+                }
+                BatchBookingResult result = manager.createQueuedReservations(attempted.get(0).tripId, studentIds, seatNumbers);
+                for (int i = 0; i < attempted.size(); i++){
+                    Ticket ticket = attempted.get(i);
+                    Reservation r = result.getReservation(i);
+                    String error = result.getError(i);
+                    if (!SOLD_OUT.equals(error)){
+                        attempts.incrementAndGet();
+                    }
+                    if (r != null){
+                        resolve(ticket, Ticket.CONFIRMED, r.getReservationId(), null);
+                    }else if (SOLD_OUT.equals(error) || BatchBookingResult.JOURNAL_FAILED.equals(error)){
+                        resolve(ticket, Ticket.FAILED, null, error);
+                    }else{
+                        resolve(ticket, Ticket.FAILED, null, BOOKING_FAILED);
+                    }
+                    queue.processedSequence = ticket.sequence;
+                }
+            }
+        }catch (RuntimeException e){
+            System.err.println("排隊處理發生錯誤: " + e);
+            for (Ticket ticket : batch){
+                if (!ticket.isResolved()){
+                    resolve(ticket, Ticket.FAILED, null, BOOKING_FAILED);
+                }
+            }
+        }finally{
+            synchronized (queue){
+                for (Ticket ticket : batch){
+                    queue.byStudent.remove(ticket.studentId, ticket);
+                }
+                queue.draining = false;
+            }
+        }
+    }
+    private static boolean isSoldOut(Trip trip){
+        return trip == null || trip.isRetired() || trip.getAvailableSeats() == 0;
+    }
+    // 由 drainers 執行緒呼叫；status 須最後寫入，讀取端以 status 判斷其餘結果欄位已可見
+    private void resolve(Ticket ticket, String status, String reservationId, String error){
+        List<Runnable> waiters;
+        synchronized (ticket){
+            ticket.reservationId = reservationId;
+            ticket.error = error;
+            ticket.resolvedAt = System.nanoTime();
+            ticket.status = status;
+            waiters = ticket.waiters;
+            ticket.waiters = null;
+        }
+        (Ticket.CONFIRMED.equals(status) ? confirmed : failed).incrementAndGet();
+        if (waiters != null){
+            for (Runnable waiter : waiters){
+                notifier.execute(waiter);
+            }
+        }
+    }
+    private void expireTickets(){
+        long now = System.nanoTime();
+        tickets.values().removeIf(t -> t.isResolved() && now - t.resolvedAt > RESOLVED_TTL_NANOS);
+    }
+    // ----------------- 服務方法 -----------------
+    public int getHotTripCount(){ return hotTrips.size(); }
+    public int getActiveQueues(){ return queues.size(); }
+    public int getTrackedTickets(){ return tickets.size(); }
+    public long getConfirmed(){ return confirmed.get(); }
+    public long getFailed(){ return failed.get(); }
+    public long getRejected(){ return rejected.get(); }
+    public long getAttempts(){ return attempts.get(); }
+}
+
+/*============================ SeatHoldManager 類別 ================================= */
+// 座位保留：學生在座位圖選位時先保留座位，填完表單後再確認為預約，期間座位不會被他人搶走，
+// 用戶端不必因「座位已被預約」而重新查詢、重送。保留以 id 直接查表，確認時不需搜尋；
+// 到期由計時輪處理，不掃描所有保留。每個學號同時保留的座位數有上限，避免一人占住整班車
+class SeatHoldManager{
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 1024; // 一圈約 102 秒，涵蓋預設 90 秒的保留期限
+
+    private final ReservationManager manager;
+    private final long ttlMillis;
+    private final int maxPerStudent;
+    private final Map<Long, SeatHold> holds = new ConcurrentHashMap<>();
+    private final Map<String, Integer> heldByStudent = new ConcurrentHashMap<>(); // 學號 -> 保留中的座位數
+    private final HoldTimerWheel wheel;
+    private final LongAdder placed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    // ----------------- 建構式 -----------------
+    public SeatHoldManager(ReservationManager manager, long ttlMillis, int maxPerStudent){
+        this(manager, ttlMillis, maxPerStudent, TICK_MILLIS);
+    }
+    public SeatHoldManager(ReservationManager manager, long ttlMillis, int maxPerStudent, long tickMillis){
+        this.manager = manager;
+        this.ttlMillis = ttlMillis;
+        this.maxPerStudent = maxPerStudent;
+        this.wheel = new HoldTimerWheel(tickMillis, WHEEL_SLOTS, this::expire);
+    }
+    // ----------------- 方法 -----------------
+    // 保留座位；座位已被占用、學號已停權或保留數已達上限時回傳 null
+    public SeatHold hold(String studentId, String tripId, String seatNumber){
+        if (!reserveQuota(studentId)){
+            rejected.increment();
+            return null;
+        }
+        SeatHold hold = manager.holdSeat(studentId, tripId, seatNumber, ttlMillis);
+        if (hold == null){
+            releaseQuota(studentId);
+            rejected.increment();
+            return null;
+        }
+        holds.put(hold.getHoldId(), hold);
+        wheel.schedule(hold);
+        placed.increment();
+        return hold;
+    }
+    // 依 id 取得該學號仍在保留中的座位，不存在、已結束或屬於其他學號時回傳 null
+    public SeatHold find(long holdId, String studentId){
+        SeatHold hold = holds.get(holdId);
+        return hold != null && hold.getMember().getStudentId().equals(studentId) ? hold : null;
+    }
+    // 確認為預約；保留已逾時或學號已停權時回傳 null（停權時同時釋放座位）
+    public Reservation confirm(SeatHold hold){
+        Reservation reservation = manager.confirmHold(hold);
+        if (reservation != null){
+            finish(hold);
+            confirmed.increment();
+        }else if (hold.isActive()){
+            release(hold);
+        }
+        return reservation;
+    }
+    public boolean release(SeatHold hold){
+        if (!manager.releaseHold(hold, SeatHold.RELEASED)){
+            return false;
+        }
+        finish(hold);
+        released.increment();
+        return true;
+    }
+    // 由計時輪執行緒呼叫；已確認或已釋放的保留不會再被處理
+    private void expire(SeatHold hold){
+        if (manager.releaseHold(hold, SeatHold.EXPIRED)){
+            finish(hold);
+            expired.increment();
+        }
+    }
+    private boolean reserveQuota(String studentId){
+        boolean[] granted = new boolean[1];
+        heldByStudent.compute(studentId, (k, n) -> {
+            int count = n == null ? 0 : n;
+            granted[0] = count < maxPerStudent;
+            return granted[0] ? count + 1 : n;
+        });
+        return granted[0];
+    }
+    private void releaseQuota(String studentId){
+        heldByStudent.computeIfPresent(studentId, (k, n) -> n <= 1 ? null : n - 1);
+    }
+    private void finish(SeatHold hold){
+        holds.remove(hold.getHoldId());
+        releaseQuota(hold.getMember().getStudentId());
+    }
+    public void shutdown(){
+        wheel.shutdown();
+    }
+    // ----------------- 服務方法 -----------------
+    public long getTtlMillis(){ return ttlMillis; }
+    public int getActiveHolds(){ return holds.size(); }
+    public long getPlaced(){ return placed.sum(); }
+    public long getRejected(){ return rejected.sum(); }
+    public long getConfirmed(){ return confirmed.sum(); }
+    public long getReleased(){ return released.sum(); }
+    public long getExpired(){ return expired.sum(); }
+}
+
+/*============================ HoldTimerWheel 類別 ================================= */
+// 保留到期的計時輪（hashed timing wheel）：時間切成固定長度的 tick，每格一個清單。
+// 新增保留只放入待處理佇列（O(1)），每個 tick 只處理到期那一格，成本與保留總數無關；
+// 超過一圈的期限以剩餘圈數表示。已確認或釋放的保留不另外移除，輪到該格時才丟棄
+class HoldTimerWheel{
+    interface ExpiryHandler{
+        void expired(SeatHold hold);
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<SeatHold>> buckets; // 只由計時輪執行緒存取
+    private final Queue<SeatHold> pending = new ConcurrentLinkedQueue<>();
+    private final ExpiryHandler handler;
+    private final long startNanos = System.nanoTime();
+    private long nextTick = 0; // 下一個要處理的 tick，只由計時輪執行緒存取
+    private final ScheduledExecutorService ticker;
+    // ----------------- 建構式 -----------------
+    // slots 進位到 2 的次方，以位元運算取得格位
+    public HoldTimerWheel(long tickMillis, int slots, ExpiryHandler handler){
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++){
+            buckets.add(new ArrayList<>());
+        }
+        this.handler = handler;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hold-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+    // ----------------- 方法 -----------------
+    public void schedule(SeatHold hold){
+        pending.add(hold);
+    }
+    // 依實際經過的時間處理所有已到的 tick，排程延遲時一次補上
+    private void advance(){
+        try{
+            long currentTick = (System.nanoTime() - startNanos) / tickNanos;
+            while (nextTick <= currentTick){
+                transferPending();
+                expireBucket(buckets.get((int) (nextTick & mask)));
+                nextTick++;
+            }
+        }catch (RuntimeException e){
+            System.err.println("保留到期處理發生錯誤: " + e); // 不讓例外終止排程
+        }
+    }
+    // 期限換算為 tick（無條件進位，不會提早到期），已過期的放入目前這一格
+    private void transferPending(){
+        SeatHold hold;
+        while ((hold = pending.poll()) != null){
+            if (!hold.isActive()){
+                continue;
+            }
+            long elapsed = hold.getDeadlineNanos() - startNanos;
+            long tick = Math.max(nextTick, (elapsed + tickNanos - 1) / tickNanos);
+            hold.remainingRounds = (tick - nextTick) / buckets.size();
+            buckets.get((int) (tick & mask)).add(hold);
+        }
+    }
+    private void expireBucket(List<SeatHold> bucket){
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++){
+            SeatHold hold = bucket.get(i);
+            if (!hold.isActive()){
+                continue;
+            }
+            if (hold.remainingRounds > 0){
+                hold.remainingRounds--;
+                bucket.set(kept++, hold);
+                continue;
+            }
+            try{
+                handler.expired(hold);
+            }catch (RuntimeException e){
+                System.err.println("保留到期處理發生錯誤: " + e);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+    public void shutdown(){
+        ticker.shutdownNow();
+    }
+}
+
+/*============================ WaitlistManager 類別 ================================= */
+// 額滿班次的候補：學生不必反覆查詢班次等人取消。座位釋放（取消、逾時取消、保留到期或放棄）時，
+// ReservationManager 在同一個班次鎖內把座位遞補給最早候補且未停權的會員，此處再回應等待結果的用戶。
+// 每個學號同時候補的班次數與每個班次的候補人數皆有上限；已結束的登記保留一段時間供查詢
+class WaitlistManager implements WaitlistListener{
+    private static final long RESOLVED_TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final ReservationManager manager;
+    private final int maxPerStudent;
+    private final int maxLength;
+    private final Map<Long, WaitlistEntry> entries = new ConcurrentHashMap<>();
+    private final Map<String, List<WaitlistEntry>> waitingByStudent = new ConcurrentHashMap<>(); // 學號 -> 候補中的登記
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+    private final LongAdder left = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LatencyHistogram notifyLatency; // 候補結束到回應等待中用戶的時間
+    private final ScheduledExecutorService timer;
+    private final ExecutorService notifier; // 回應等待中的用戶，避免慢速連線拖住取消流程
+    // ----------------- 建構式 -----------------
+    public WaitlistManager(ReservationManager manager, int maxPerStudent, int maxLength){
+        this.manager = manager;
+        this.maxPerStudent = maxPerStudent;
+        this.maxLength = maxLength;
+        this.notifyLatency = manager.getMetrics().histogram("bus_waitlist_notify_seconds",
+            "Time from a waitlist entry being resolved to the waiting client being answered", "");
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "waitlist-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.notifier = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "waitlist-notify");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::expireEntries, 1, 1, TimeUnit.SECONDS);
+        manager.addWaitlistListener(this);
+    }
+    // ----------------- 方法 -----------------
+    // 加入候補；同一學號已在候補同一班次時直接回傳該登記。班次仍有空位、候補已滿、學號候補數已達上限或已停權時回傳 null
+    public WaitlistEntry join(String studentId, String tripId){
+        WaitlistEntry[] result = new WaitlistEntry[1];
+        // 同一學號的加入依序處理，不會重複候補同一班次；班次鎖內只做 O(1) 的串接，且不會在持有班次鎖時回頭存取此表
+        waitingByStudent.compute(studentId, (k, current) -> {
+            if (current != null){
+                for (WaitlistEntry e : current){
+                    if (e.getTrip().getTripId().equals(tripId)){
+                        result[0] = e;
+                        return current;
+                    }
+                }
+                if (current.size() >= maxPerStudent){
+                    return current;
+                }
+            }
+            WaitlistEntry entry = manager.joinWaitlist(studentId, tripId, maxLength);
+            if (entry == null){
+                return current;
+            }
+            result[0] = entry;
+            entries.put(entry.getEntryId(), entry);
+            waiting.incrementAndGet();
+            joined.increment();
+            List<WaitlistEntry> updated = current == null ? new ArrayList<>(maxPerStudent) : current;
+            updated.add(entry);
+            return updated;
+        });
+        if (result[0] == null){
+            rejected.increment();
+        }
+        return result[0];
+    }
+    // 依 id 取得該學號的候補登記（含已結束、尚未清除者），不存在或屬於其他學號時回傳 null
+    public WaitlistEntry find(long entryId, String studentId){
+        WaitlistEntry entry = entries.get(entryId);
+        return entry != null && entry.getMember().getStudentId().equals(studentId) ? entry : null;
+    }
+    public boolean leave(WaitlistEntry entry){
+        return manager.leaveWaitlist(entry);
+    }
+    public int position(WaitlistEntry entry){
+        return manager.getWaitlistPosition(entry);
+    }
+    // 候補結束或逾時後（以先發生者為準）在通知執行緒上呼叫 callback 一次；已結束時立即呼叫
+    public void awaitResult(WaitlistEntry entry, long timeoutMillis, Runnable callback){
+        AtomicBoolean fired = new AtomicBoolean();
+        Runnable onResolved = () -> {
+            if (fired.compareAndSet(false, true)){
+                callback.run();
+                notifyLatency.recordSince(entry.getResolvedAtNanos());
+            }
+        };
+        synchronized (entry){
+            if (entry.isWaiting()){
+                if (entry.waiters == null){
+                    entry.waiters = new ArrayList<>();
+                }
+                entry.waiters.add(onResolved);
+                timer.schedule(() -> {
+                    synchronized (entry){
+                        if (entry.waiters != null){
+                            entry.waiters.remove(onResolved); // 用戶逾時後重新等待，不累積舊的等待者
+                        }
+                    }
+                    if (fired.compareAndSet(false, true)){
+                        notifier.execute(callback);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        notifier.execute(callback);
+    }
+    // 由 ReservationManager 在班次鎖釋放後呼叫
+    @Override
+    public void waitlistResolved(WaitlistEntry entry){
+        waitingByStudent.computeIfPresent(entry.getMember().getStudentId(), (k, current) -> {
+            current.remove(entry);
+            return current.isEmpty() ? null : current;
+        });
+        waiting.decrementAndGet();
+        switch (entry.getState()){
+            case WaitlistEntry.PROMOTED: promoted.increment(); break;
+            case WaitlistEntry.LEFT: left.increment(); break;
+            case WaitlistEntry.DROPPED: dropped.increment(); break;
+            default: expired.increment(); break;
+        }
+        List<Runnable> waiters;
+        synchronized (entry){
+            waiters = entry.waiters;
+            entry.waiters = null;
+        }
+        if (waiters != null){
+            for (Runnable waiter : waiters){
+                try{
+                    notifier.execute(waiter);
+                }catch (RejectedExecutionException e){
+                    // 伺服器關閉中
+                }
+            }
+        }
+    }
+    private void expireEntries(){
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> !e.isWaiting() && now - e.getResolvedAtNanos() > RESOLVED_TTL_NANOS);
+    }
+    public void shutdown(){
+        timer.shutdownNow();
+        notifier.shutdownNow();
+    }
+    // ----------------- 服務方法 -----------------
+    public int getMaxPerStudent(){ return maxPerStudent; }
+    public int getMaxLength(){ return maxLength; }
+    public int getWaiting(){ return waiting.get(); }
+    public int getTrackedEntries(){ return entries.size(); }
+    public long getJoined(){ return joined.sum(); }
+    public long getRejected(){ return rejected.sum(); }
+    public long getPromoted(){ return promoted.sum(); }
+    public long getLeft(){ return left.sum(); }
+    public long getDropped(){ return dropped.sum(); }
+    public long getExpired(){ return expired.sum(); }
+}
+
+/*============================ WriteAheadLog 類別 ================================= */
+// 僅附加寫入的預約事件日誌，檔案依起始序號分段（journal-<序號>.log）
+// 每筆紀錄格式：[內容長度 int][CRC32 int][序號 long][類型 byte][欄位...]
+// 追加時只寫入記憶體緩衝；背景執行緒批次寫檔並 fsync（group commit），同一批的等待者共用一次 fsync
+// 寫檔或 fsync 失敗後日誌即停止運作：已寫入序號不再前進、等待者與之後的追加都收到 JournalFailedException
+class WriteAheadLog implements Closeable{
+    private static final byte MEMBER_CREATED = 1;
+    private static final byte RESERVATION_CREATED = 2;
+    private static final byte RESERVATION_CANCELLED = 3;
+    private static final byte MEMBER_STATE = 4;
+    private static final byte RESERVATION_CHECKED_IN = 5;
+    private static final byte MEMBER_PASSWORD = 6;
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // 重播日誌時的回呼
+    interface RecordVisitor{
+        void memberCreated(String studentId, String hashedPassword);
+        void reservationCreated(String reservationId, String studentId, String tripId, String routeId,
+                                LocalDate date, LocalTime departureTime, int seatNumber, LocalDateTime reservedAt);
+        void reservationCancelled(String reservationId, String studentId, ReservationStatus status);
+        void memberState(String studentId, int violationTimes, LocalDate suspensionEndDate);
+        void reservationCheckedIn(String reservationId);
+        void memberPassword(String studentId, String hashedPassword);
+    }
+    private interface RecordBody{
+        void write(DataOutputStream out) throws IOException;
+    }
+    // 開啟分段檔的方式，預設為本機檔案；效能測試以此注入會失敗的檔案通道
+    interface SegmentOpener{
+        FileChannel open(Path file) throws IOException;
+    }
+    private static final SegmentOpener LOCAL_FILES = file ->
+        FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+    private final Path directory;
+    private final SegmentOpener opener;
+    // 鎖的取得順序固定為 writeLock -> appendLock，避免死結
+    private final Object writeLock = new Object();   // 保護目前的分段檔
+    private final Object appendLock = new Object();  // 保護序號與待寫緩衝
+    private final Object durableLock = new Object(); // 等待 fsync 完成
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long nextSeq;
+    private long pendingLastSeq;
+    private long recordsSinceRotate = 0;
+    private long durableSeq;
+    private FileChannel segment;
+    private final Thread flusher;
+    private volatile boolean closed = false;
+    private volatile IOException failure; // 第一次寫檔失敗的原因，設定後不再清除
+    // ----------------- 建構式 -----------------
+    // 開啟新的分段檔，序號由 lastSeq + 1 開始
+    public WriteAheadLog(Path directory, long lastSeq) throws IOException{
+        this(directory, lastSeq, LOCAL_FILES);
+    }
+    WriteAheadLog(Path directory, long lastSeq, SegmentOpener opener) throws IOException{
+        this.directory = directory;
+        this.opener = opener;
+        this.nextSeq = lastSeq + 1;
+        this.pendingLastSeq = lastSeq;
+        this.durableSeq = lastSeq;
+        Files.createDirectories(directory);
+        this.segment = openSegment(nextSeq);
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    // ----------------- 追加紀錄 -----------------
+    public long appendMemberCreated(String studentId, String hashedPassword){
+        return append(MEMBER_CREATED, out -> {
+            out.writeUTF(studentId);
+            out.writeUTF(hashedPassword);
+        });
+    }
+    public long appendReservationCreated(Reservation reservation){
+        return appendAll(Collections.singletonList(encodeReservationCreated(reservation)));
+    }
+    // 批次預約的紀錄在同一次 appendLock 內寫入緩衝，背景寫入不會只寫出其中一部分
+    public long appendReservationsCreated(List<Reservation> reservations){
+        List<byte[]> records = new ArrayList<>(reservations.size());
+        for (Reservation r : reservations){
+            records.add(encodeReservationCreated(r));
+        }
+        return appendAll(records);
+    }
+    private static byte[] encodeReservationCreated(Reservation reservation){
+        Trip trip = reservation.getTrip();
+        return encode(RESERVATION_CREATED, out -> {
+            out.writeUTF(reservation.getReservationId());
+            out.writeUTF(reservation.getMember().getStudentId());
+            out.writeUTF(trip.getTripId());
+            out.writeUTF(trip.getRoute().getRouteId());
+            out.writeLong(trip.getDate().toEpochDay());
+            out.writeInt(trip.getDepartureTime().toSecondOfDay());
+            out.writeInt(reservation.getSeat().getSeatNumber());
+            out.writeUTF(reservation.getReservationDateTime().toString());
+        });
+    }
+    public long appendReservationCancelled(Reservation reservation){
+        return append(RESERVATION_CANCELLED, out -> {
+            out.writeUTF(reservation.getReservationId());
+            out.writeUTF(reservation.getMember().getStudentId());
+            out.writeByte(reservation.getStatus().ordinal());
+        });
+    }
+    public long appendReservationCheckedIn(Reservation reservation){
+        return append(RESERVATION_CHECKED_IN, out -> out.writeUTF(reservation.getReservationId()));
+    }
+    // 呼叫端須持有該 Member 的鎖，確保同一會員的狀態紀錄依序寫入
+    public long appendMemberPassword(Member member){
+        String hashedPassword = member.getHashedPassword();
+        return append(MEMBER_PASSWORD, out -> {
+            out.writeUTF(member.getStudentId());
+            out.writeUTF(hashedPassword);
+        });
+    }
+    public long appendMemberState(Member member){
+        LocalDate suspensionEndDate = member.getSuspensionEndDate();
+        int violationTimes = member.getViolationTimes();
+        return append(MEMBER_STATE, out -> {
+            out.writeUTF(member.getStudentId());
+            out.writeInt(violationTimes);
+            out.writeLong(suspensionEndDate == null ? Long.MIN_VALUE : suspensionEndDate.toEpochDay());
+        });
+    }
+    private long append(byte type, RecordBody body){
+        return appendAll(Collections.singletonList(encode(type, body)));
+    }
+    private static byte[] encode(byte type, RecordBody body){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try{
+            out.writeLong(0); // 序號預留位置
+            out.writeByte(type);
+            body.write(out);
+        }catch (IOException e){
+            throw new UncheckedIOException(e); // 寫入記憶體不會發生
+        }
+        return bytes.toByteArray();
+    }
+    // 依序配發序號並放入待寫緩衝，回傳最後一筆的序號
+    private long appendAll(List<byte[]> records){
+        synchronized (appendLock){
+            if (closed){
+                throw new IllegalStateException("日誌已關閉");
+            }
+            if (failure != null){
+                throw new JournalFailedException(failure);
+            }
+            long seq = 0;
+            for (byte[] record : records){
+                seq = nextSeq++;
+                writeLong(record, 0, seq);
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, record.length);
+                writeInt(pending, record.length);
+                writeInt(pending, (int) crc.getValue());
+                pending.write(record, 0, record.length);
+                recordsSinceRotate++;
+            }
+            pendingLastSeq = seq;
+            appendLock.notifyAll();
+            return seq;
+        }
+    }
+    // 等待指定序號的紀錄寫入磁碟；日誌已失敗而紀錄尚未寫入時拋出 JournalFailedException
+    public void awaitDurable(long seq){
+        synchronized (durableLock){
+            boolean interrupted = false;
+            while (durableSeq < seq){
+                if (failure != null){
+                    if (interrupted){
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new JournalFailedException(failure);
+                }
+                try{
+                    durableLock.wait();
+                }catch (InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if (interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    // ----------------- 背景寫入 -----------------
+    private void flushLoop(){
+        while (true){
+            synchronized (appendLock){
+                while (pending.size() == 0 && !closed){
+                    try{
+                        appendLock.wait();
+                    }catch (InterruptedException e){
+                        return;
+                    }
+                }
+                if (pending.size() == 0){
+                    return; // 已關閉且沒有待寫資料
+                }
+            }
+            synchronized (writeLock){
+                flushPending();
+            }
+        }
+    }
+    // 將目前緩衝寫入分段檔並 fsync，呼叫端須持有 writeLock。
+    // 失敗時不推進 durableSeq：這一批與之後的紀錄都不回報為已寫入，喚醒的等待者改為收到例外
+    private void flushPending(){
+        ByteArrayOutputStream batch;
+        long batchLastSeq;
+        synchronized (appendLock){
+            batch = pending;
+            batchLastSeq = pendingLastSeq;
+            pending = new ByteArrayOutputStream(Math.max(1024, batch.size()));
+        }
+        if (batch.size() > 0 && failure == null){
+            try{
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()){
+                    segment.write(buffer);
+                }
+                segment.force(false);
+            }catch (IOException e){
+                synchronized (appendLock){
+                    failure = e; // 之後的追加直接拒絕
+                }
+                System.err.println("預約日誌寫入失敗，停止接受新的預約異動: " + e);
+            }
+        }
+        synchronized (durableLock){
+            if (failure == null){
+                durableSeq = Math.max(durableSeq, batchLastSeq);
+            }
+            durableLock.notifyAll();
+        }
+    }
+    public boolean isFailed(){
+        return failure != null;
+    }
+    // 日誌已失敗時拋出 JournalFailedException；異動記憶體狀態前先呼叫，失敗後不再留下無法寫入的變更
+    public void ensureWritable(){
+        IOException cause = failure;
+        if (cause != null){
+            throw new JournalFailedException(cause);
+        }
+    }
+    // ----------------- 分段管理 -----------------
+    // 關閉目前分段並開啟新分段，回傳舊分段中最後一筆紀錄的序號（供快照使用）
+    public long rotate() throws IOException{
+        synchronized (writeLock){
+            long lastSeq;
+            synchronized (appendLock){
+                lastSeq = nextSeq - 1;
+                recordsSinceRotate = 0;
+            }
+            flushPending();
+            if (failure != null){
+                // 記憶體中可能有未寫入的異動，不能以快照取代日誌
+                throw new IOException("預約日誌已停止寫入，略過快照", failure);
+            }
+            segment.close();
+            segment = openSegment(lastSeq + 1);
+            return lastSeq;
+        }
+    }
+    public long getRecordsSinceRotate(){
+        synchronized (appendLock){
+            return recordsSinceRotate;
+        }
+    }
+    // 刪除起始序號 <= seq 的分段（其內容已包含於快照）
+    public void deleteSegmentsUpTo(long seq) throws IOException{
+        for (Path file : listSegments(directory)){
+            if (segmentFirstSeq(file) <= seq){
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+    private FileChannel openSegment(long firstSeq) throws IOException{
+        Path file = directory.resolve(SEGMENT_PREFIX + String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+        // 同名檔案只可能是上次當機時殘留、沒有任何完整紀錄的分段，直接覆寫
+        return opener.open(file);
+    }
+    @Override
+    public void close() throws IOException{
+        synchronized (appendLock){
+            closed = true;
+            appendLock.notifyAll();
+        }
+        try{
+            flusher.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock){
+            flushPending();
+            segment.close();
+        }
+    }
+    // ----------------- 重播 -----------------
+    // 依序重播序號大於 afterSeq 的紀錄，回傳讀到的最大序號；遇到不完整或損毀的紀錄即停止該分段
+    public static long replay(Path directory, long afterSeq, RecordVisitor visitor) throws IOException{
+        long lastSeq = afterSeq;
+        for (Path file : listSegments(directory)){
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))){
+                while (true){
+                    byte[] record;
+                    int expectedCrc;
+                    try{
+                        int length = in.readInt();
+                        expectedCrc = in.readInt();
+                        if (length < 9 || length > MAX_RECORD_LENGTH){
+                            break;
+                        }
+                        record = new byte[length];
+                        in.readFully(record);
+                    }catch (EOFException e){
+                        break;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(record, 0, record.length);
+                    if ((int) crc.getValue() != expectedCrc){
+                        System.err.println("預約日誌 " + file.getFileName() + " 出現損毀的紀錄，略過其後內容。");
+                        break;
+                    }
+                    DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                    long seq = fields.readLong();
+                    if (seq > afterSeq){
+                        dispatch(fields.readByte(), fields, visitor);
+                        lastSeq = Math.max(lastSeq, seq);
+                    }
+                }
+            }
+        }
+        return lastSeq;
+    }
+    private static void dispatch(byte type, DataInputStream in, RecordVisitor visitor) throws IOException{
+        switch (type){
+            case MEMBER_CREATED:
+                visitor.memberCreated(in.readUTF(), in.readUTF());
+                break;
+            case RESERVATION_CREATED:
+                visitor.reservationCreated(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+                    LocalDate.ofEpochDay(in.readLong()), LocalTime.ofSecondOfDay(in.readInt()),
+                    in.readInt(), LocalDateTime.parse(in.readUTF()));
+                break;
+            case RESERVATION_CANCELLED:
+                visitor.reservationCancelled(in.readUTF(), in.readUTF(), ReservationStatus.values()[in.readByte()]);
+                break;
+            case MEMBER_STATE:
+                String studentId = in.readUTF();
+                int violationTimes = in.readInt();
+                long suspensionEnd = in.readLong();
+                visitor.memberState(studentId, violationTimes, suspensionEnd == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(suspensionEnd));
+                break;
+            case RESERVATION_CHECKED_IN:
+                visitor.reservationCheckedIn(in.readUTF());
+                break;
+            case MEMBER_PASSWORD:
+                visitor.memberPassword(in.readUTF(), in.readUTF());
+                break;
+            default:
+                throw new IOException("未知的日誌紀錄類型: " + type);
+        }
+    }
+    private static List<Path> listSegments(Path directory) throws IOException{
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)){
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)){
+            for (Path file : files){
+                segments.add(file);
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::segmentFirstSeq));
+        return segments;
+    }
+    private static long segmentFirstSeq(Path file){
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+    private static void writeLong(byte[] target, int offset, long value){
+        for (int i = 7; i >= 0; i--){
+            target[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+    private static void writeInt(ByteArrayOutputStream out, int value){
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
+
+/*============================ JournalFailedException 類別 ================================= */
+// 預約日誌已無法寫入：異動可能只存在記憶體中，呼叫端不可回報成功，由 Handler 回應 503
+class JournalFailedException extends RuntimeException{
+    private static final long serialVersionUID = 1L;
+    public JournalFailedException(IOException cause){
+        super("預約日誌無法寫入", cause);
+    }
+}
+
+/*============================ PersistenceManager 類別 ================================= */
+// 啟動時由最新快照與其後的日誌復原 DataStore；執行期間定期寫入快照並清除已涵蓋的日誌分段
+// 快照為「模糊快照」：擷取狀態時預約仍可進行，因此日誌重播必須具冪等性（重複建立略過、狀態以絕對值記錄）
+class PersistenceManager implements WriteAheadLog.RecordVisitor, Closeable{
+    private static final int SNAPSHOT_MAGIC_V1 = 0x53484C31; // "SHL1"：歷史紀錄全部寫在快照內
+    private static final int SNAPSHOT_MAGIC = 0x53484C32;    // "SHL2"：已寫入歷史檔的紀錄只記錄歷史檔長度
+    private static final String ARCHIVE_FILE = "history.dat";
+    private static final int CHECKED_IN_FLAG = 0x40; // 預約狀態位元組中表示已報到的旗標，舊快照沒有此位元
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final DataStore dataStore;
+    private final WriteAheadLog wal;
+    // 以下欄位僅在復原期間使用
+    private final Map<String, Reservation> recoveredReservations = new HashMap<>();
+    private final Map<String, Trip> tripsById = new HashMap<>();
+    private long maxReservationId = 0;
+    private long recoveredRecords = 0;
+    private long recoveryMillis = 0;
+    private long archiveLength = 0; // 載入的快照所涵蓋的歷史檔長度
+    private ScheduledExecutorService snapshotScheduler;
+    private ReservationManager manager;
+    // ----------------- 建構式 -----------------
+    private PersistenceManager(Path directory, DataStore dataStore) throws IOException{
+        this.directory = directory;
+        this.dataStore = dataStore;
+        long start = System.nanoTime();
+        for (Trip t : dataStore.getAllTrips()){
+            tripsById.put(t.getTripId(), t);
+        }
+        dataStore.getArchive().attach(directory.resolve(ARCHIVE_FILE));
+        long snapshotSeq = loadLatestSnapshot();
+        dataStore.getArchive().recover(archiveLength);
+        long lastSeq = WriteAheadLog.replay(directory, snapshotSeq, this);
+        rebuildSeats();
+        dataStore.setNextReservationId(Math.max(dataStore.getNextReservationId(), maxReservationId + 1));
+        this.recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("持久化：由快照（序號 " + snapshotSeq + "）與 " + recoveredRecords
+            + " 筆日誌紀錄復原 " + recoveredReservations.size() + " 筆預約，耗時 " + recoveryMillis + " ms。");
+        recoveredReservations.clear();
+        tripsById.clear();
+        this.wal = new WriteAheadLog(directory, lastSeq);
+    }
+    public static PersistenceManager open(Path directory, DataStore dataStore) throws IOException{
+        return new PersistenceManager(directory, dataStore);
+    }
+    // ----------------- 方法 -----------------
+    // 每隔 checkIntervalSeconds 檢查一次，日誌累積超過 recordsPerSnapshot 筆時寫入快照
+    public void startSnapshots(ReservationManager manager, long recordsPerSnapshot, long checkIntervalSeconds){
+        this.manager = manager;
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try{
+                if (wal.getRecordsSinceRotate() >= recordsPerSnapshot){
+                    writeSnapshot(manager);
+                }
+            }catch (IOException e){
+                System.err.println("寫入快照失敗: " + e);
+            }
+        }, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+    // 切換日誌分段後擷取目前狀態，寫入暫存檔後以原子方式更名，再刪除已涵蓋的分段與舊快照。
+    // 已結束的預約只把上次快照後新增的部分附加到歷史檔，快照本身只保存有效預約與尚未寫出的少量紀錄
+    public synchronized void writeSnapshot(ReservationManager manager) throws IOException{
+        // 新會員先寫入建立紀錄、才加入儲存區（兩者都在儲存區鎖內）；持有同一把鎖切換分段並讀取會員數，
+        // 序號 <= lastSeq 的會員一定在 memberCount 之內，刪除舊分段不會遺失會員與其密碼雜湊
+        MemberStore members = dataStore.getMembers();
+        long lastSeq;
+        int memberCount;
+        synchronized (members){
+            lastSeq = wal.rotate();
+            memberCount = members.size();
+        }
+        Path target = snapshotFile(lastSeq);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), crc), 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(lastSeq);
+            out.writeLong(manager.peekNextReservationId());
+            out.writeInt(memberCount);
+            for (int i = 0; i < memberCount; i++){
+                writeMember(out, members, i, lastSeq);
+            }
+            out.writeLong(dataStore.getArchive().force());
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        wal.deleteSegmentsUpTo(lastSeq);
+        for (Path old : listSnapshots()){
+            if (snapshotSeq(old) < lastSeq){
+                Files.deleteIfExists(old);
+            }
+        }
+    }
+    // 已建立 Member 的會員在會員鎖內擷取；尚未建立的會員在儲存區鎖內直接讀取平行陣列（期間無法建立 Member，欄位不會變動）
+    private void writeMember(DataOutputStream out, MemberStore members, int index, long lastSeq) throws IOException{
+        String studentId = members.studentIdAt(index);
+        String hashedPassword = null;
+        int violationTimes = 0;
+        LocalDate suspensionEndDate = null;
+        List<Reservation> active = Collections.emptyList();
+        List<ArchivedReservation> archived = Collections.emptyList();
+        Member member;
+        synchronized (members){
+            member = members.materialized(index);
+            if (member == null){
+                hashedPassword = members.password(index);
+                violationTimes = members.violations(index);
+                suspensionEndDate = MemberStore.toDate(members.suspensionEndDay(index));
+                archived = dataStore.getArchive().drain(studentId, lastSeq);
+            }
+        }
+        if (member != null){
+            synchronized (member){
+                hashedPassword = member.getHashedPassword();
+                violationTimes = member.getViolationTimes();
+                suspensionEndDate = member.getSuspensionEndDate();
+                active = member.getActiveReservations();
+                archived = dataStore.getArchive().drain(studentId, lastSeq);
+            }
+        }
+        out.writeUTF(studentId);
+        out.writeUTF(hashedPassword);
+        out.writeInt(violationTimes);
+        out.writeLong(suspensionEndDate == null ? Long.MIN_VALUE : suspensionEndDate.toEpochDay());
+        out.writeInt(archived.size() + active.size());
+        for (ArchivedReservation r : archived){
+            writeReservation(out, r.getReservationId(), r.getTripId(), r.getRouteId(), r.getDate(), r.getDepartureTime(),
+                r.getSeatNumber(), r.getReservationDateTime(), r.getStatus(), false);
+        }
+        for (Reservation r : active){
+            Trip trip = r.getTrip();
+            writeReservation(out, r.getReservationId(), trip.getTripId(), trip.getRoute().getRouteId(), trip.getDate(),
+                trip.getDepartureTime(), r.getSeat().getSeatNumber(), r.getReservationDateTime(), r.getStatus(), r.isCheckedIn());
+        }
+    }
+    private static void writeReservation(DataOutputStream out, String reservationId, String tripId, String routeId, LocalDate date,
+                                         LocalTime departureTime, int seatNumber, LocalDateTime reservedAt, ReservationStatus status,
+                                         boolean checkedIn) throws IOException{
+        out.writeUTF(reservationId);
+        out.writeUTF(tripId);
+        out.writeUTF(routeId);
+        out.writeLong(date.toEpochDay());
+        out.writeInt(departureTime.toSecondOfDay());
+        out.writeInt(seatNumber);
+        out.writeUTF(reservedAt.toString());
+        out.writeByte(status.ordinal() | (checkedIn ? CHECKED_IN_FLAG : 0));
+    }
+    // ----------------- 復原 -----------------
+    // 載入序號最大且內容完整的快照，回傳快照涵蓋的最後序號（無快照時為 0）
+    private long loadLatestSnapshot() throws IOException{
+        List<Path> snapshots = listSnapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--){
+            Path file = snapshots.get(i);
+            byte[] content = Files.readAllBytes(file);
+            if (content.length < 4){
+                continue;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length - 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            in.skipBytes(content.length - 4);
+            if ((int) crc.getValue() != in.readInt()){
+                System.err.println("快照 " + file.getFileName() + " 已損毀，改用較舊的快照。");
+                continue;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 4));
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1){
+                continue;
+            }
+            long lastSeq = in.readLong();
+            dataStore.setNextReservationId(in.readLong());
+            int memberCount = in.readInt();
+            for (int m = 0; m < memberCount; m++){
+                String studentId = in.readUTF();
+                String hashedPassword = in.readUTF();
+                applyMemberCreated(studentId, hashedPassword);
+                int violationTimes = in.readInt();
+                long suspensionEnd = in.readLong();
+                applyMemberState(studentId, violationTimes, suspensionEnd == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(suspensionEnd));
+                int reservationCount = in.readInt();
+                for (int r = 0; r < reservationCount; r++){
+                    String reservationId = in.readUTF();
+                    String tripId = in.readUTF();
+                    String routeId = in.readUTF();
+                    LocalDate date = LocalDate.ofEpochDay(in.readLong());
+                    LocalTime departureTime = LocalTime.ofSecondOfDay(in.readInt());
+                    int seatNumber = in.readInt();
+                    LocalDateTime reservedAt = LocalDateTime.parse(in.readUTF());
+                    int statusByte = in.readByte();
+                    ReservationStatus status = ReservationStatus.values()[statusByte & ~CHECKED_IN_FLAG];
+                    applyReservationCreated(reservationId, studentId, tripId, routeId, date, departureTime, seatNumber, reservedAt);
+                    if ((statusByte & CHECKED_IN_FLAG) != 0){
+                        applyReservationCheckedIn(reservationId);
+                    }
+                    if (status != ReservationStatus.RESERVED){
+                        applyReservationCancelled(reservationId, status);
+                    }
+                }
+            }
+            archiveLength = magic == SNAPSHOT_MAGIC ? in.readLong() : 0;
+            return lastSeq;
+        }
+        return 0;
+    }
+    // 日誌重播回呼：計數後套用至 DataStore
+    @Override
+    public void memberCreated(String studentId, String hashedPassword){
+        recoveredRecords++;
+        applyMemberCreated(studentId, hashedPassword);
+    }
+    @Override
+    public void reservationCreated(String reservationId, String studentId, String tripId, String routeId,
+                                   LocalDate date, LocalTime departureTime, int seatNumber, LocalDateTime reservedAt){
+        recoveredRecords++;
+        applyReservationCreated(reservationId, studentId, tripId, routeId, date, departureTime, seatNumber, reservedAt);
+    }
+    @Override
+    public void reservationCancelled(String reservationId, String studentId, ReservationStatus status){
+        recoveredRecords++;
+        applyReservationCancelled(reservationId, status);
+    }
+    @Override
+    public void memberState(String studentId, int violationTimes, LocalDate suspensionEndDate){
+        recoveredRecords++;
+        applyMemberState(studentId, violationTimes, suspensionEndDate);
+    }
+    @Override
+    public void reservationCheckedIn(String reservationId){
+        recoveredRecords++;
+        applyReservationCheckedIn(reservationId);
+    }
+    @Override
+    public void memberPassword(String studentId, String hashedPassword){
+        recoveredRecords++;
+        dataStore.getMembers().restorePassword(studentId, hashedPassword);
+    }
+    private void applyMemberCreated(String studentId, String hashedPassword){
+        dataStore.getMembers().add(studentId, hashedPassword);
+    }
+    private void applyReservationCreated(String reservationId, String studentId, String tripId, String routeId,
+                                         LocalDate date, LocalTime departureTime, int seatNumber, LocalDateTime reservedAt){
+        if (recoveredReservations.containsKey(reservationId)){
+            return; // 模糊快照已包含此預約
+        }
+        MemberStore members = dataStore.getMembers();
+        Member member = members.member(members.add(studentId, Member.UNSET_PASSWORD));
+        Trip trip = tripsById.computeIfAbsent(tripId, id -> new Trip(id, findRoute(routeId), date, departureTime));
+        Reservation reservation = new Reservation(reservationId, reservedAt, member, new Seat(seatNumber, trip), trip, ReservationStatus.RESERVED);
+        member.addReservation(reservation);
+        recoveredReservations.put(reservationId, reservation);
+        try{
+            maxReservationId = Math.max(maxReservationId, Long.parseLong(reservationId));
+        }catch (NumberFormatException e){
+            // 非數字 ID 不影響後續配發
+        }
+    }
+    private void applyReservationCancelled(String reservationId, ReservationStatus status){
+        Reservation reservation = recoveredReservations.get(reservationId);
+        if (reservation != null && reservation.getStatus() == ReservationStatus.RESERVED){
+            reservation.setStatus(status);
+            dataStore.getArchive().archive(reservation.getMember(), reservation, 0);
+        }
+    }
+    private void applyReservationCheckedIn(String reservationId){
+        Reservation reservation = recoveredReservations.get(reservationId);
+        if (reservation != null){
+            reservation.checkIn();
+        }
+    }
+    private void applyMemberState(String studentId, int violationTimes, LocalDate suspensionEndDate){
+        dataStore.getMembers().restoreState(studentId, violationTimes, suspensionEndDate);
+    }
+    // 依復原後仍為 RESERVED 的預約重建班次座位狀態
+    // 仍有有效預約但不在班次清單中的班次（例如停機期間已發車）會加回清單，由 TripScheduler 下一次檢查時收尾
+    private void rebuildSeats(){
+        Set<Trip> liveTrips = Collections.newSetFromMap(new IdentityHashMap<>());
+        liveTrips.addAll(dataStore.getAllTrips());
+        for (Reservation r : recoveredReservations.values()){
+            if (r.getStatus() != ReservationStatus.RESERVED){
+                continue;
+            }
+            Trip trip = r.getTrip();
+            if (liveTrips.add(trip)){
+                dataStore.getAllTrips().add(trip);
+            }
+            if (trip.occupySeat(r.getSeat().getSeatNumber())){
+                trip.attachReservation(r.getSeat().getSeatNumber(), r);
+            }else{
+                System.err.println("復原時座位衝突：預約 " + r.getReservationId() + " 的座位已被占用。");
+            }
+        }
+    }
+    private Route findRoute(String routeId){
+        for (Route route : dataStore.getRoutes().values()){
+            if (route.getRouteId().equals(routeId)){
+                return route;
+            }
+        }
+        return new Route(routeId, routeId); // 路線已停駛，僅供歷史預約顯示
+    }
+    // ----------------- 服務方法 -----------------
+    public WriteAheadLog getWriteAheadLog(){
+        return wal;
+    }
+    public long getRecoveryMillis(){
+        return recoveryMillis;
+    }
+    public long getRecoveredRecords(){
+        return recoveredRecords;
+    }
+    // 停止排程並寫入最後一次快照，讓下次啟動不需重播日誌
+    @Override
+    public void close() throws IOException{
+        if (snapshotScheduler != null){
+            snapshotScheduler.shutdownNow();
+        }
+        if (manager != null){
+            writeSnapshot(manager);
+        }
+        wal.close();
+        dataStore.getArchive().close();
+    }
+    private List<Path> listSnapshots() throws IOException{
+        List<Path> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)){
+            return snapshots;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)){
+            for (Path file : files){
+                snapshots.add(file);
+            }
+        }
+        snapshots.sort(Comparator.comparingLong(PersistenceManager::snapshotSeq));
+        return snapshots;
+    }
+    private Path snapshotFile(long lastSeq){
+        return directory.resolve(SNAPSHOT_PREFIX + String.format("%020d", lastSeq) + SNAPSHOT_SUFFIX);
+    }
+    private static long snapshotSeq(Path file){
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+    }
+}
+
+/*============================ AuditLog 類別 ================================= */
+// 非同步稽核日誌：預約流程只把事件放進無鎖環狀緩衝，由背景執行緒批次寫成 JSON Lines 檔案，
+// 取代在預約 / 取消路徑上同步呼叫 System.out（PrintStream 內部加鎖，所有工作執行緒會在 stdout 上排隊）。
+// 檔案依日期與大小輪替：audit-20251018-0.jsonl、audit-20251018-1.jsonl…，以 AuditQuery 離線查詢
+class AuditLog implements Closeable{
+    public static final String OVERFLOW_BLOCK = "block"; // 緩衝滿時等待寫入執行緒騰出空間，不遺失事件
+    public static final String OVERFLOW_DROP = "drop";   // 緩衝滿時捨棄事件並計數，預約流程永不等待
+    private static final int MAX_BATCH = 4096;           // 每批最多寫出的事件數，寫完才 flush
+    private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.");
+
+    static final class Event{
+        final long timestamp;
+        final String type;
+        final String studentId;
+        final String tripId;
+        final String seatNumber;
+        final String reservationId;
+        final String detail;
+        Event(long timestamp, String type, String studentId, String tripId, String seatNumber, String reservationId, String detail){
+            this.timestamp = timestamp;
+            this.type = type;
+            this.studentId = studentId;
+            this.tripId = tripId;
+            this.seatNumber = seatNumber;
+            this.reservationId = reservationId;
+            this.detail = detail;
+        }
+    }
+
+    private final Path dir;
+    private final long rotateBytes;
+    private final boolean dropOnOverflow;
+    // 有界多生產者環狀緩衝：每格的序號表示該格目前可被哪個位置的生產者寫入（等於位置）或可被讀出（位置 + 1）
+    private final int mask;
+    private final AtomicReferenceArray<Event> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // 下一個生產者要佔用的位置
+    private long head = 0;                             // 下一個要讀出的位置，只由寫入執行緒存取
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // 目前寫入的檔案，只由寫入執行緒存取
+    private OutputStream out;
+    private LocalDate fileDate;
+    private int fileIndex;
+    private long fileBytes;
+    // 同一秒內的事件共用已格式化的時間前綴，只補上毫秒
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedPrefix;
+    private LocalDate cachedDate;
+    private final StringBuilder timestamp = new StringBuilder(32);
+    // ----------------- 建構式 -----------------
+    public AuditLog(Path dir, int bufferEvents, String overflow, long rotateBytes) throws IOException{
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.rotateBytes = rotateBytes;
+        this.dropOnOverflow = OVERFLOW_DROP.equals(overflow);
+        int capacity = Integer.highestOneBit(Math.max(2, bufferEvents - 1)) << 1; // 進位到 2 的次方
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++){
+            sequences.set(i, i);
+        }
+        this.writer = new Thread(this::runWriter, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    // ----------------- 方法 -----------------
+    public void record(String type, String studentId, String tripId, String seatNumber, String reservationId, String detail){
+        Event event = new Event(System.currentTimeMillis(), type, studentId, tripId, seatNumber, reservationId, detail);
+        while (!offer(event)){
+            if (dropOnOverflow || closed){
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(100_000); // 寫入執行緒落後整個緩衝時才會等待
+        }
+    }
+    private boolean offer(Event event){
+        while (true){
+            long position = tail.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0){
+                if (tail.compareAndSet(position, position + 1)){
+                    slots.set(index, event);
+                    sequences.set(index, position + 1); // 發布：寫入執行緒看到序號後才讀取內容
+                    return true;
+                }
+            }else if (available < 0){
+                return false; // 該格尚未被讀出，緩衝已滿
+            }
+            // available > 0：其他生產者已佔用此位置，重讀 tail
+        }
+    }
+    private Event poll(){
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1){
+            return null; // 空的，或生產者已佔用位置但尚未寫入內容
+        }
+        Event event = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + mask + 1); // 交還給下一圈的生產者
+        head++;
+        return event;
+    }
+    private void runWriter(){
+        JsonWriter json = JsonWriter.acquire();
+        try{
+            while (!closed || head != tail.get()){
+                int count = 0;
+                Event event;
+                while (count < MAX_BATCH && (event = poll()) != null){
+                    write(json, event);
+                    count++;
+                }
+                if (count > 0){
+                    out.flush();
+                    written.addAndGet(count);
+                }else{
+                    LockSupport.parkNanos(5_000_000);
+                }
+            }
+        }catch (IOException e){
+            System.err.println("稽核日誌寫入失敗，停止記錄: " + e);
+            closed = true;
+        }finally{
+            json.release();
+            closeFile();
+        }
+    }
+    private void write(JsonWriter json, Event event) throws IOException{
+        long second = Math.floorDiv(event.timestamp, 1000);
+        if (second != cachedSecond){
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault());
+            cachedSecond = second;
+            cachedPrefix = time.format(SECOND_FORMAT);
+            cachedDate = time.toLocalDate();
+        }
+        if (out == null || !cachedDate.equals(fileDate) || fileBytes >= rotateBytes){
+            rotate(cachedDate);
+        }
+        int millis = (int) Math.floorMod(event.timestamp, 1000L);
+        timestamp.setLength(0);
+        timestamp.append(cachedPrefix).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+        json.reset();
+        json.beginObject().name("ts").value(timestamp.toString()).name("type").value(event.type);
+        if (event.studentId != null){
+            json.name("studentId").value(event.studentId);
+        }
+        if (event.tripId != null){
+            json.name("tripId").value(event.tripId);
+        }
+        if (event.seatNumber != null){
+            json.name("seatNumber").value(event.seatNumber);
+        }
+        if (event.reservationId != null){
+            json.name("reservationId").value(event.reservationId);
+        }
+        if (event.detail != null){
+            json.name("detail").value(event.detail);
+        }
+        json.endObject();
+        json.writeTo(out);
+        out.write('\n');
+        fileBytes += json.size() + 1;
+    }
+    // 換日或超過大小時開新檔；重啟後同一天的檔案接續編號，不覆寫舊檔
+    private void rotate(LocalDate date) throws IOException{
+        closeFile();
+        if (!date.equals(fileDate)){
+            fileDate = date;
+            fileIndex = nextIndex(date);
+        }else{
+            fileIndex++;
+        }
+        Path file = dir.resolve(fileName(date, fileIndex));
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+    private int nextIndex(LocalDate date) throws IOException{
+        String prefix = "audit-" + date.format(DateTimeFormatter.BASIC_ISO_DATE) + "-";
+        int next = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*.jsonl")){
+            for (Path file : files){
+                String name = file.getFileName().toString();
+                try{
+                    next = Math.max(next, Integer.parseInt(name.substring(prefix.length(), name.length() - ".jsonl".length())) + 1);
+                }catch (NumberFormatException e){
+                    // 非本類別產生的檔案，略過
+                }
+            }
+        }
+        return next;
+    }
+    static String fileName(LocalDate date, int index){
+        return "audit-" + date.format(DateTimeFormatter.BASIC_ISO_DATE) + "-" + index + ".jsonl";
+    }
+    private void closeFile(){
+        if (out != null){
+            try{
+                out.close();
+            }catch (IOException e){
+                System.err.println("關閉稽核日誌時發生錯誤: " + e);
+            }
+            out = null;
+        }
+    }
+    // 寫完緩衝中的所有事件後關閉檔案
+    public void close(){
+        closed = true;
+        LockSupport.unpark(writer);
+        try{
+            writer.join(10_000);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+    // ----------------- 服務方法 -----------------
+    public long getWritten(){ return written.get(); }
+    public long getDropped(){ return dropped.sum(); }
+    public long getPending(){ return tail.get() - written.get(); }
+}
+
+/*============================ ServerConfig 類別 ================================= */
+// 啟動參數，格式為 --key=value，例如：java SimpleApp --executor=pool --threads=32 --queue=512
+class ServerConfig{
+    private int port = 8080;
+    private String executorMode = "pool";    // single / pool / virtual
+    private int workerThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private int queueCapacity = 256;          // pool 模式的等待佇列長度
+    private int retryAfterSeconds = 2;        // 503 回應中的 Retry-After 秒數
+    private boolean persistenceEnabled = true; // 是否啟用預約日誌與快照
+    private String dataDir = "data";          // 日誌與快照存放目錄
+    private int snapshotEvery = 50_000;       // 日誌累積多少筆紀錄後寫入快照
+    private int scheduleCacheSize = 10_000;   // 班次查詢回應快取的最大筆數
+    private int maxBodyBytes = 16 * 1024;     // 請求內容的最大位元組數
+    private int streamMaxClients = 10_000;    // 座位變動推送的最大連線數
+    private int streamBufferEvents = 64;      // 每條推送連線最多暫存的事件數，超過即視為慢速用戶並斷線
+    private int windowDays = ReservationManager.DEFAULT_WINDOW_DAYS; // 開放預約的班次天數（含今天）
+    private int tripCheckSeconds = 60;        // 檢查班次視窗（補新班次、下架已發車班次）的間隔秒數
+    private boolean admissionEnabled = true;  // 是否啟用限流與分級卸載
+    private int studentRate = 2;              // 每個學號每秒可發出的請求數
+    private int studentBurst = 5;             // 每個學號允許的突發請求數
+    private int ipRate = 50;                  // 每個 IP 每秒可發出的請求數
+    private int ipBurst = 100;                // 每個 IP 允許的突發請求數
+    private int maxInFlight = 0;              // 同時執行的請求上限，0 表示依執行緒數決定
+    private int maxQueueWaitMillis = 20;      // 預約類請求在佇列中等待超過此毫秒數即卸載（瀏覽類為一半）
+    private int limiterKeys = 100_000;        // 限流器最多追蹤的學號 / IP 數
+    private Set<String> hotTrips = Collections.emptySet(); // 啟用排隊模式的班次（路線ID@HH:mm），空集合表示不啟用
+    private int queueRate = 200;              // 每個熱門班次每秒處理的排隊預約數
+    private int queueMax = 5_000;             // 每個熱門班次最多排隊的預約數，超過時回應 503
+    private String staticDir = ".";           // 前端靜態檔案的根目錄
+    private boolean auditEnabled = true;      // 是否寫入稽核日誌
+    private String auditDir = null;           // 稽核日誌目錄，未指定時為 data-dir 下的 audit
+    private int auditBuffer = 65_536;         // 稽核事件環狀緩衝的容量（進位到 2 的次方）
+    private String auditOverflow = AuditLog.OVERFLOW_BLOCK; // 緩衝滿時 block（等待）或 drop（捨棄並計數）
+    private int auditRotateMb = 64;           // 單一稽核檔案超過此大小即輪替
+    private boolean authEnabled = true;       // 是否驗證密碼並要求預約相關請求附帶 Token
+    private String authSecret = null;         // Token 簽章密鑰，未指定時每次啟動隨機產生
+    private int passwordIterations = 310_000; // PBKDF2-HMAC-SHA256 迭代次數
+    private int tokenTtlMinutes = 480;        // Token 有效分鐘數
+    private int credentialCacheSize = 10_000; // 憑證快取最多保留的會員數
+    private String roster = null;             // 名冊檔（每行「學號」或「學號,開通碼」），啟動時建立其中的帳號
+    private boolean claimUnset = false;       // 是否允許未設定密碼的帳號在第一次登入時直接設定密碼（不需開通碼）
+    private int holdTtlSeconds = 90;          // 座位保留的期限秒數
+    private int holdMax = 4;                  // 每個學號同時保留的座位數上限
+    private int waitlistMax = 3;              // 每個學號同時候補的班次數上限
+    private int waitlistLength = 200;         // 每個班次的候補人數上限
+    // ----------------- 建構式 -----------------
+    public static ServerConfig fromArgs(String[] args){
+        ServerConfig config = new ServerConfig();
+        for (String arg : args){
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0){
+                throw new IllegalArgumentException("無法識別的參數: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key){
+                case "port": config.port = parsePositive(key, value); break;
+                case "executor": config.executorMode = value; break;
+                case "threads": config.workerThreads = parsePositive(key, value); break;
+                case "queue": config.queueCapacity = parsePositive(key, value); break;
+                case "retry-after": config.retryAfterSeconds = parsePositive(key, value); break;
+                case "persistence": config.persistenceEnabled = parseSwitch(key, value); break;
+                case "data-dir": config.dataDir = value; break;
+                case "snapshot-every": config.snapshotEvery = parsePositive(key, value); break;
+                case "schedule-cache": config.scheduleCacheSize = parsePositive(key, value); break;
+                case "max-body": config.maxBodyBytes = parsePositive(key, value); break;
+                case "stream-max": config.streamMaxClients = parsePositive(key, value); break;
+                case "stream-buffer": config.streamBufferEvents = parsePositive(key, value); break;
+                case "window-days": config.windowDays = parsePositive(key, value); break;
+                case "trip-check": config.tripCheckSeconds = parsePositive(key, value); break;
+                case "admission": config.admissionEnabled = parseSwitch(key, value); break;
+                case "rate-student": config.studentRate = parsePositive(key, value); break;
+                case "burst-student": config.studentBurst = parsePositive(key, value); break;
+                case "rate-ip": config.ipRate = parsePositive(key, value); break;
+                case "burst-ip": config.ipBurst = parsePositive(key, value); break;
+                case "max-inflight": config.maxInFlight = parsePositive(key, value); break;
+                case "max-queue-wait": config.maxQueueWaitMillis = parsePositive(key, value); break;
+                case "limiter-keys": config.limiterKeys = parsePositive(key, value); break;
+                case "hot-trips": config.hotTrips = parseHotTrips(key, value); break;
+                case "queue-rate": config.queueRate = parsePositive(key, value); break;
+                case "queue-max": config.queueMax = parsePositive(key, value); break;
+                case "static-dir": config.staticDir = value; break;
+                case "audit": config.auditEnabled = parseSwitch(key, value); break;
+                case "audit-dir": config.auditDir = value; break;
+                case "audit-buffer": config.auditBuffer = parsePositive(key, value); break;
+                case "audit-overflow": config.auditOverflow = parseOverflow(key, value); break;
+                case "audit-rotate-mb": config.auditRotateMb = parsePositive(key, value); break;
+                case "auth": config.authEnabled = parseSwitch(key, value); break;
+                case "auth-secret": config.authSecret = value; break;
+                case "password-iterations": config.passwordIterations = parsePositive(key, value); break;
+                case "token-ttl": config.tokenTtlMinutes = parsePositive(key, value); break;
+                case "credential-cache": config.credentialCacheSize = parsePositive(key, value); break;
+                case "roster": config.roster = value; break;
+                case "claim-unset": config.claimUnset = parseSwitch(key, value); break;
+                case "hold-ttl": config.holdTtlSeconds = parsePositive(key, value); break;
+                case "hold-max": config.holdMax = parsePositive(key, value); break;
+                case "waitlist-max": config.waitlistMax = parsePositive(key, value); break;
+                case "waitlist-length": config.waitlistLength = parsePositive(key, value); break;
+                default: throw new IllegalArgumentException("無法識別的參數: " + arg);
+            }
+        }
+        return config;
+    }
+    private static boolean parseSwitch(String key, String value){
+        if ("on".equals(value)){
+            return true;
+        }
+        if ("off".equals(value)){
+            return false;
+        }
+        throw new IllegalArgumentException("參數 " + key + " 必須為 on 或 off: " + value);
+    }
+    private static String parseOverflow(String key, String value){
+        if (AuditLog.OVERFLOW_BLOCK.equals(value) || AuditLog.OVERFLOW_DROP.equals(value)){
+            return value;
+        }
+        throw new IllegalArgumentException("參數 " + key + " 必須為 block 或 drop: " + value);
+    }
+    // 以逗號分隔的「路線ID@HH:mm」，例如 R01@08:00,R02@17:30
+    private static Set<String> parseHotTrips(String key, String value){
+        Set<String> keys = new HashSet<>();
+        for (String item : value.split(",")){
+            int at = item.indexOf('@');
+            try{
+                if (at <= 0){
+                    throw new DateTimeException(item);
+                }
+                keys.add(WaitingRoom.hotTripKey(item.substring(0, at).trim(), LocalTime.parse(item.substring(at + 1).trim())));
+            }catch (DateTimeException e){
+                throw new IllegalArgumentException("參數 " + key + " 格式應為 路線ID@HH:mm: " + item);
+            }
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+    private static int parsePositive(String key, String value){
+        try{
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0){
+                return parsed;
+            }
+        }catch (NumberFormatException e){
+            // 交由下方統一拋出
+        }
+        throw new IllegalArgumentException("參數 " + key + " 必須為正整數: " + value);
+    }
+    // ----------------- 服務方法 -----------------
+    public int getPort(){ return port; }
+    public String getExecutorMode(){ return executorMode; }
+    public int getWorkerThreads(){ return workerThreads; }
+    public int getQueueCapacity(){ return queueCapacity; }
+    public int getRetryAfterSeconds(){ return retryAfterSeconds; }
+    public boolean isPersistenceEnabled(){ return persistenceEnabled; }
+    public String getDataDir(){ return dataDir; }
+    public int getSnapshotEvery(){ return snapshotEvery; }
+    public int getScheduleCacheSize(){ return scheduleCacheSize; }
+    public int getMaxBodyBytes(){ return maxBodyBytes; }
+    public int getStreamMaxClients(){ return streamMaxClients; }
+    public int getStreamBufferEvents(){ return streamBufferEvents; }
+    public int getWindowDays(){ return windowDays; }
+    public int getTripCheckSeconds(){ return tripCheckSeconds; }
+    public boolean isAdmissionEnabled(){ return admissionEnabled; }
+    public int getStudentRate(){ return studentRate; }
+    public int getStudentBurst(){ return studentBurst; }
+    public int getIpRate(){ return ipRate; }
+    public int getIpBurst(){ return ipBurst; }
+    public int getMaxInFlight(){ return maxInFlight > 0 ? maxInFlight : workerThreads * 4; }
+    public int getLimiterKeys(){ return limiterKeys; }
+    public int getMaxQueueWaitMillis(){ return maxQueueWaitMillis; }
+    public Set<String> getHotTrips(){ return hotTrips; }
+    public int getQueueRate(){ return queueRate; }
+    public int getQueueMax(){ return queueMax; }
+    public String getStaticDir(){ return staticDir; }
+    public boolean isAuditEnabled(){ return auditEnabled; }
+    public String getAuditDir(){ return auditDir != null ? auditDir : Paths.get(dataDir, "audit").toString(); }
+    public int getAuditBuffer(){ return auditBuffer; }
+    public String getAuditOverflow(){ return auditOverflow; }
+    public long getAuditRotateBytes(){ return auditRotateMb * 1024L * 1024L; }
+    public boolean isAuthEnabled(){ return authEnabled; }
+    public String getAuthSecret(){ return authSecret; }
+    public int getPasswordIterations(){ return passwordIterations; }
+    public long getTokenTtlSeconds(){ return tokenTtlMinutes * 60L; }
+    public int getCredentialCacheSize(){ return credentialCacheSize; }
+    public String getRoster(){ return roster; }
+    public boolean isClaimUnset(){ return claimUnset; }
+    public long getHoldTtlMillis(){ return holdTtlSeconds * 1000L; }
+    public int getHoldMax(){ return holdMax; }
+    public int getWaitlistMax(){ return waitlistMax; }
+    public int getWaitlistLength(){ return waitlistLength; }
+}
+
+/*============================ RequestExecutor 類別 ================================= */
+// HttpServer 的請求執行器，支援三種模式：
+//   single  - 在 dispatcher 執行緒上直接處理（等同 setExecutor(null)）
+//   pool    - 固定大小的工作執行緒池 + 有界佇列，佇列滿時回應 503
+//   virtual - 每個請求一個虛擬執行緒（需 JDK 21 以上，否則退回 pool）
+class RequestExecutor implements Executor{
+    // 被拒絕的請求仍在 dispatcher 執行緒上執行，但由 OverloadFilter 直接回應 503，不進入 Handler
+    private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<>();
+    // 目前請求在佇列中等待的奈秒數，供 AdmissionController 判斷是否卸載（以陣列存放避免每次裝箱）
+    private static final ThreadLocal<long[]> QUEUE_WAIT = ThreadLocal.withInitial(() -> new long[1]);
+    private final String mode;
+    private final ThreadPoolExecutor pool;
+    private final ExecutorService virtualThreads;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final int retryAfterSeconds;
+    // ----------------- 建構式 -----------------
+    private RequestExecutor(String mode, ThreadPoolExecutor pool, ExecutorService virtualThreads, int retryAfterSeconds){
+        this.mode = mode;
+        this.pool = pool;
+        this.virtualThreads = virtualThreads;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    public static RequestExecutor create(ServerConfig config){
+        switch (config.getExecutorMode()){
+            case "single":
+                return new RequestExecutor("single", null, null, config.getRetryAfterSeconds());
+            case "virtual":
+                ExecutorService virtualThreads = newVirtualThreadExecutor();
+                if (virtualThreads != null){
+                    return new RequestExecutor("virtual", null, virtualThreads, config.getRetryAfterSeconds());
+                }
+                System.out.println("目前的 JDK 不支援虛擬執行緒，改用 pool 模式。");
+                return createPool(config);
+            case "pool":
+                return createPool(config);
+            default:
+                throw new IllegalArgumentException("未知的 executor 模式: " + config.getExecutorMode());
+        }
+    }
+    private static RequestExecutor createPool(ServerConfig config){
+        AtomicInteger threadCounter = new AtomicInteger(1);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            config.getWorkerThreads(), config.getWorkerThreads(), 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(config.getQueueCapacity()),
+            r -> new Thread(r, "http-worker-" + threadCounter.getAndIncrement()));
+        RequestExecutor executor = new RequestExecutor("pool", pool, null, config.getRetryAfterSeconds());
+        pool.setRejectedExecutionHandler((task, p) -> executor.runRejected(task));
+        return executor;
+    }
+    // 以反射建立虛擬執行緒執行器，讓程式仍可在 JDK 21 以前的版本編譯
+    private static ExecutorService newVirtualThreadExecutor(){
+        try{
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (ReflectiveOperationException e){
+            return null;
+        }
+    }
+    // ----------------- 方法 -----------------
+    @Override
+    public void execute(Runnable task){
+        long enqueuedAt = System.nanoTime();
+        Runnable tracked = () -> {
+            QUEUE_WAIT.get()[0] = System.nanoTime() - enqueuedAt;
+            activeWorkers.incrementAndGet();
+            try{
+                task.run();
+            }finally{
+                activeWorkers.decrementAndGet();
+            }
+        };
+        if (pool != null){
+            pool.execute(tracked);
+        }else if (virtualThreads != null){
+            virtualThreads.execute(tracked);
+        }else{
+            tracked.run();
+        }
+    }
+    private void runRejected(Runnable task){
+        REJECTED.set(Boolean.TRUE);
+        try{
+            task.run();
+        }finally{
+            REJECTED.remove();
+        }
+    }
+    public boolean isCurrentRequestRejected(){
+        return REJECTED.get() != null;
+    }
+    public long getCurrentQueueWaitNanos(){
+        return QUEUE_WAIT.get()[0];
+    }
+    // 由 OverloadFilter 在實際回應 503 時呼叫
+    public void recordRejection(){
+        rejectedCount.incrementAndGet();
+    }
+    public void shutdown(){
+        if (pool != null){
+            pool.shutdown();
+        }
+        if (virtualThreads != null){
+            virtualThreads.shutdown();
+        }
+    }
+    // ----------------- 服務方法 -----------------
+    public String getMode(){
+        return mode;
+    }
+    public int getQueueDepth(){
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+    public int getActiveWorkers(){
+        return activeWorkers.get();
+    }
+    public int getPoolSize(){
+        return pool == null ? 0 : pool.getPoolSize();
+    }
+    public long getRejectedCount(){
+        return rejectedCount.get();
+    }
+    public int getRetryAfterSeconds(){
+        return retryAfterSeconds;
+    }
+}
+
+/*============================ RateLimiter 類別 ================================= */
+// 依鍵值（學號或 IP）限流的權杖桶，以 GCRA 實作：每個鍵只存「理論到達時間」(TAT)，
+// 補充權杖不需背景執行緒，取得權杖只是一次 CAS，不加鎖
+class RateLimiter{
+    private final long emissionIntervalNanos; // 每個權杖的補充間隔（1 / 每秒速率）
+    private final long burstToleranceNanos;   // 允許的突發量換算成時間
+    private final int maxKeys;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    // ----------------- 建構式 -----------------
+    public RateLimiter(double permitsPerSecond, int burst, int maxKeys){
+        this.emissionIntervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+        this.maxKeys = maxKeys;
+    }
+    // ----------------- 方法 -----------------
+    // 取得一個權杖：成功回傳 0，否則回傳需要等待的奈秒數
+    public long tryAcquire(String key, long now){
+        AtomicLong tat = buckets.get(key);
+        if (tat == null){
+            if (buckets.size() >= maxKeys){
+                evictIdle(now);
+                if (buckets.size() >= maxKeys){
+                    return emissionIntervalNanos; // 追蹤的鍵已達上限，新鍵一律視為超量，避免記憶體無限成長
+                }
+            }
+            tat = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        while (true){
+            long current = tat.get();
+            long base = Math.max(current, now);
+            long wait = base - now - burstToleranceNanos;
+            if (wait > 0){
+                return wait;
+            }
+            if (tat.compareAndSet(current, base + emissionIntervalNanos)){
+                return 0;
+            }
+        }
+    }
+    // 移除權杖已補滿的鍵：移除後再出現時重新建立，狀態與原本相同
+    // （與 tryAcquire 競爭時，最多讓該鍵多一次突發量，不影響整體上限）
+    public void evictIdle(long now){
+        if (!evicting.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            buckets.values().removeIf(tat -> tat.get() <= now);
+        }finally{
+            evicting.set(false);
+        }
+    }
+    public int size(){
+        return buckets.size();
+    }
+}
+
+/*============================ AdmissionController 類別 ================================= */
+// 請求進入 Handler 前的准入控制：學號與 IP 各自限流（回應 429），
+// 並依執行中的請求數與佇列等待時間分級卸載（回應 503）：瀏覽類請求的門檻較低，先被拒絕，保留容量給預約類請求。
+// 以等待時間而非佇列長度判斷，佇列中多為即將被快速拒絕的請求時，仍能照常接受新請求
+class AdmissionController{
+    public static final int PRIORITY_BOOKING = 0; // 登入、預約、取消、報到
+    public static final int PRIORITY_BROWSE = 1;  // 查詢班次、查詢個人預約
+
+    // 准入結果：0 表示通過；RATE_LIMITED / SHED 時附帶建議的重試秒數
+    public static final int ADMITTED = 0;
+    public static final int RATE_LIMITED = 1;
+    public static final int SHED = 2;
+
+    private final RateLimiter studentLimiter;
+    private final RateLimiter ipLimiter;
+    private final RequestExecutor executor;
+    private final int maxInFlight;
+    private final int browseLimit;
+    private final long maxQueueWaitNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong shedBooking = new AtomicLong();
+    private final AtomicLong shedBrowse = new AtomicLong();
+    private final ScheduledExecutorService evictor;
+    // ----------------- 建構式 -----------------
+    public AdmissionController(ServerConfig config, RequestExecutor executor){
+        this.studentLimiter = new RateLimiter(config.getStudentRate(), config.getStudentBurst(), config.getLimiterKeys());
+        this.ipLimiter = new RateLimiter(config.getIpRate(), config.getIpBurst(), config.getLimiterKeys());
+        this.executor = executor;
+        this.maxInFlight = config.getMaxInFlight();
+        this.browseLimit = Math.max(1, config.getMaxInFlight() * 3 / 4);
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxQueueWaitMillis());
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "limiter-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            studentLimiter.evictIdle(now);
+            ipLimiter.evictIdle(now);
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+    // ----------------- 方法 -----------------
+    // 回傳准入結果；通過時呼叫端必須在處理完後呼叫 release()
+    public int tryAdmit(String ip, String studentId, int priority){
+        long now = System.nanoTime();
+        if (ipLimiter.tryAcquire(ip, now) > 0 || (studentId != null && studentLimiter.tryAcquire(studentId, now) > 0)){
+            rateLimited.incrementAndGet();
+            return RATE_LIMITED;
+        }
+        boolean booking = priority == PRIORITY_BOOKING;
+        long waitLimit = booking ? maxQueueWaitNanos : maxQueueWaitNanos / 2;
+        int running = inFlight.incrementAndGet();
+        if (running > (booking ? maxInFlight : browseLimit) || executor.getCurrentQueueWaitNanos() > waitLimit){
+            inFlight.decrementAndGet();
+            (booking ? shedBooking : shedBrowse).incrementAndGet();
+            return SHED;
+        }
+        admitted.incrementAndGet();
+        return ADMITTED;
+    }
+    public void release(){
+        inFlight.decrementAndGet();
+    }
+    public void shutdown(){
+        evictor.shutdownNow();
+    }
+    // ----------------- 服務方法 -----------------
+    public int getInFlight(){ return inFlight.get(); }
+    public long getAdmitted(){ return admitted.get(); }
+    public long getRateLimited(){ return rateLimited.get(); }
+    public long getShedBooking(){ return shedBooking.get(); }
+    public long getShedBrowse(){ return shedBrowse.get(); }
+    public int getTrackedKeys(){ return studentLimiter.size() + ipLimiter.size(); }
+}
+
+/*============================ AuthService 類別 ================================= */
+// 登入與請求驗證。密碼以 PBKDF2 儲存；驗證成功後把密碼的快速摘要放進憑證快取，同一會員再次登入不必重算慢雜湊。
+// 登入後發出無狀態的簽章 Token（學號、到期時間與隨機 ID，以 HMAC-SHA256 簽章），驗證請求只需一次 MAC 計算，不查表。
+// 登出的 Token 放進撤銷集合，到期後移除
+class AuthService{
+    static final String HASH_PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final long PURGE_INTERVAL_SECONDS = 60;
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // 登入成功後發出的 Token
+    static final class Session{
+        private final String token;
+        private final String studentId;
+        private final long expiresAt; // epoch 秒
+        Session(String token, String studentId, long expiresAt){
+            this.token = token;
+            this.studentId = studentId;
+            this.expiresAt = expiresAt;
+        }
+        public String getToken(){ return token; }
+        public String getStudentId(){ return studentId; }
+        public long getExpiresAt(){ return expiresAt; }
+    }
+    // 憑證快取：記錄驗證成功時的密碼雜湊與密碼摘要；密碼雜湊變更後自動失效
+    private static final class CachedCredential{
+        final String hashedPassword;
+        final byte[] digest;
+        CachedCredential(String hashedPassword, byte[] digest){
+            this.hashedPassword = hashedPassword;
+            this.digest = digest;
+        }
+    }
+
+    private final ReservationManager manager;
+    private final int iterations;
+    private final long tokenTtlSeconds;
+    private final boolean claimUnset; // 尚未設定密碼的帳號是否可在第一次登入時直接設定（--claim-unset）
+    private final ThreadLocal<Mac> tokenMacs; // Mac 不是執行緒安全的，每個執行緒各用一個
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> newInstance("SHA-256"));
+    private final byte[] cachePepper = new byte[32]; // 只存在記憶體中，快取內容無法離線比對
+    private final Semaphore hashPermits; // 限制同時計算的慢雜湊數，登入尖峰不會占滿所有工作執行緒
+    private final Map<String, CachedCredential> credentialCache;
+    private final Map<String, byte[]> enrolmentCodes = new ConcurrentHashMap<>(); // 學號 -> 開通碼摘要，設定密碼後移除
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>(); // Token ID -> 到期時間（epoch 秒）
+    private final AtomicLong nextPurge = new AtomicLong();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder failedLogins = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder slowHashes = new LongAdder();
+    // ----------------- 建構式 -----------------
+    public AuthService(ReservationManager manager, byte[] signingKey, int iterations, long tokenTtlSeconds, int cacheSize){
+        this(manager, signingKey, iterations, tokenTtlSeconds, cacheSize, false);
+    }
+    public AuthService(ReservationManager manager, byte[] signingKey, int iterations, long tokenTtlSeconds, int cacheSize,
+                       boolean claimUnset){
+        this.manager = manager;
+        this.iterations = iterations;
+        this.tokenTtlSeconds = tokenTtlSeconds;
+        this.claimUnset = claimUnset;
+        SecretKeySpec key = new SecretKeySpec(signingKey.clone(), "HmacSHA256");
+        this.tokenMacs = ThreadLocal.withInitial(() -> {
+            try{
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            }catch (GeneralSecurityException e){
+                throw new IllegalStateException(e);
+            }
+        });
+        RANDOM.nextBytes(cachePepper);
+        this.hashPermits = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        this.credentialCache = Collections.synchronizedMap(new LinkedHashMap<String, CachedCredential>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCredential> eldest){
+                return size() > cacheSize;
+            }
+        });
+    }
+    // 未指定密鑰時每次啟動隨機產生，重啟後所有 Token 失效；多台伺服器或需跨重啟保留登入時以 --auth-secret 指定
+    public static byte[] signingKey(String secret){
+        if (secret == null){
+            byte[] key = new byte[32];
+            RANDOM.nextBytes(key);
+            return key;
+        }
+        return newInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+    }
+    // ----------------- 名冊 -----------------
+    // 名冊檔每行一個學號，可在逗號後附上開通碼（「學號,開通碼」）；空行與 # 開頭的行略過。
+    // 名冊中尚未存在的學號建立為未設定密碼的帳號；auth 為 null（未啟用驗證）時只建立帳號。回傳名冊中的學號數
+    public static int loadRoster(Path file, ReservationManager manager, AuthService auth) throws IOException{
+        int count = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)){
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            int comma = line.indexOf(',');
+            String studentId = (comma < 0 ? line : line.substring(0, comma)).trim();
+            String code = comma < 0 ? "" : line.substring(comma + 1).trim();
+            manager.ensureMember(studentId);
+            if (auth != null && !code.isEmpty()){
+                auth.addEnrolmentCode(studentId, code);
+            }
+            count++;
+        }
+        return count;
+    }
+    // 帳號尚未設定密碼時，憑此開通碼在登入時設定密碼；只保存摘要
+    public void addEnrolmentCode(String studentId, String code){
+        enrolmentCodes.put(studentId, cacheDigest(studentId, code));
+    }
+    private boolean matchesEnrolmentCode(String studentId, String code){
+        byte[] expected = enrolmentCodes.get(studentId);
+        return expected != null && code != null && MessageDigest.isEqual(expected, cacheDigest(studentId, code));
+    }
+    // ----------------- 登入 -----------------
+    public Session login(String studentId, String password){
+        return login(studentId, password, null);
+    }
+    // 驗證密碼並發出 Token，失敗時回傳 null。只接受會員資料中已有的學號（名冊或既有帳號），不會自動建立帳號。
+    // 尚未設定密碼的帳號須附上名冊中的開通碼，以此次密碼完成開通；以 --claim-unset 啟動時才允許不附開通碼直接設定
+    public Session login(String studentId, String password, String enrolmentCode){
+        if (studentId == null || studentId.isEmpty() || password == null || password.isEmpty()){
+            failedLogins.increment();
+            return null;
+        }
+        Member member = manager.findMember(studentId);
+        if (member == null){
+            failedLogins.increment();
+            return null;
+        }
+        String stored = member.getHashedPassword();
+        if (isCached(studentId, stored, password)){
+            cacheHits.increment();
+            logins.increment();
+            return issue(studentId);
+        }
+        boolean verified = false;
+        if (Member.UNSET_PASSWORD.equals(stored)){
+            if (claimUnset || matchesEnrolmentCode(studentId, enrolmentCode)){
+                // 同一帳號同時開通時只有一個請求的密碼生效
+                verified = manager.changePassword(member, stored, hashPassword(password));
+                if (verified){
+                    enrolmentCodes.remove(studentId);
+                }
+            }
+        }else if (verifyPassword(password, stored)){
+            verified = true;
+            if (!stored.startsWith(HASH_PREFIX + iterations + "$")){
+                manager.changePassword(member, stored, hashPassword(password)); // 明碼或舊的迭代次數，升級雜湊
+            }
+        }
+        if (!verified){
+            failedLogins.increment();
+            return null;
+        }
+        credentialCache.put(studentId, new CachedCredential(member.getHashedPassword(), cacheDigest(studentId, password)));
+        logins.increment();
+        return issue(studentId);
+    }
+    private boolean isCached(String studentId, String stored, String password){
+        CachedCredential cached = credentialCache.get(studentId);
+        return cached != null && cached.hashedPassword.equals(stored)
+            && MessageDigest.isEqual(cached.digest, cacheDigest(studentId, password));
+    }
+    private byte[] cacheDigest(String studentId, String password){
+        MessageDigest digest = digests.get();
+        digest.update(cachePepper);
+        digest.update(studentId.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+    // 格式：pbkdf2-sha256$迭代次數$鹽$雜湊（Base64）
+    String hashPassword(String password){
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        return HASH_PREFIX + iterations + "$" + BASE64.encodeToString(salt) + "$" + BASE64.encodeToString(hash);
+    }
+    // 非 PBKDF2 格式的舊資料視為明碼比對
+    boolean verifyPassword(String password, String stored){
+        if (!stored.startsWith(HASH_PREFIX)){
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(HASH_PREFIX.length()).split("\\$");
+        try{
+            if (parts.length != 3){
+                return false;
+            }
+            byte[] expected = BASE64_DECODER.decode(parts[2]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, BASE64_DECODER.decode(parts[1]), Integer.parseInt(parts[0])));
+        }catch (IllegalArgumentException e){
+            return false; // 格式損毀（含 NumberFormatException）
+        }
+    }
+    private byte[] pbkdf2(String password, byte[] salt, int rounds){
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, HASH_BITS);
+        hashPermits.acquireUninterruptibly();
+        try{
+            slowHashes.increment();
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        }catch (GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }finally{
+            hashPermits.release();
+            spec.clearPassword();
+        }
+    }
+    // ----------------- Token -----------------
+    // 內容：學號|到期時間|隨機 ID，以 Base64URL(內容).Base64URL(HMAC) 表示
+    private Session issue(String studentId){
+        long expiresAt = System.currentTimeMillis() / 1000 + tokenTtlSeconds;
+        String payload = studentId + "|" + expiresAt + "|" + Long.toHexString(RANDOM.nextLong());
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        String token = BASE64.encodeToString(bytes) + "." + BASE64.encodeToString(tokenMacs.get().doFinal(bytes));
+        return new Session(token, studentId, expiresAt);
+    }
+    // 回傳 Token 所屬學號；簽章不符、已過期或已撤銷時回傳 null
+    public String authenticate(String token){
+        String[] claims = verifyToken(token);
+        if (claims == null || (!revoked.isEmpty() && revoked.containsKey(claims[2]))){
+            return null;
+        }
+        return claims[0];
+    }
+    // 由 Authorization: Bearer 標頭取得學號
+    public String authenticateHeader(String authorization){
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)){
+            return null;
+        }
+        return authenticate(authorization.substring(7).trim());
+    }
+    // 登出：撤銷到 Token 原本的到期時間為止
+    public boolean revoke(String token){
+        String[] claims = verifyToken(token);
+        if (claims == null){
+            return false;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        revoked.put(claims[2], Long.parseLong(claims[1]));
+        long purgeAt = nextPurge.get();
+        if (now >= purgeAt && nextPurge.compareAndSet(purgeAt, now + PURGE_INTERVAL_SECONDS)){
+            revoked.values().removeIf(expiresAt -> expiresAt < now);
+        }
+        return true;
+    }
+    // 驗證簽章與到期時間，回傳 {學號, 到期時間, Token ID}
+    private String[] verifyToken(String token){
+        int dot = token == null ? -1 : token.indexOf('.');
+        if (dot <= 0){
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try{
+            payload = BASE64_DECODER.decode(token.substring(0, dot));
+            signature = BASE64_DECODER.decode(token.substring(dot + 1));
+        }catch (IllegalArgumentException e){
+            return null;
+        }
+        if (!MessageDigest.isEqual(tokenMacs.get().doFinal(payload), signature)){
+            return null;
+        }
+        String text = new String(payload, StandardCharsets.UTF_8);
+        int second = text.lastIndexOf('|');
+        int first = second <= 0 ? -1 : text.lastIndexOf('|', second - 1);
+        if (first <= 0){
+            return null;
+        }
+        String expiresAt = text.substring(first + 1, second);
+        try{
+            if (Long.parseLong(expiresAt) < System.currentTimeMillis() / 1000){
+                return null;
+            }
+        }catch (NumberFormatException e){
+            return null;
+        }
+        return new String[] { text.substring(0, first), expiresAt, text.substring(second + 1) };
+    }
+    private static MessageDigest newInstance(String algorithm){
+        try{
+            return MessageDigest.getInstance(algorithm);
+        }catch (GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }
+    }
+    // ----------------- 服務方法 -----------------
+    public long getLogins(){ return logins.sum(); }
+    public long getFailedLogins(){ return failedLogins.sum(); }
+    public long getCacheHits(){ return cacheHits.sum(); }
+    public long getSlowHashes(){ return slowHashes.sum(); }
+    public int getRevokedCount(){ return revoked.size(); }
+    public int getCachedCredentials(){ return credentialCache.size(); }
+}
+
+/*============================ LatencyHistogram 類別 ================================= */
+// HDR 風格的延遲直方圖：以 2 的次方分級、每級再細分 8 格（相對誤差約 12%），
+// 記錄只是一次陣列索引計算加一次原子遞增，不加鎖也不配置物件
+class LatencyHistogram{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^41 奈秒（約 36 分鐘），更長的延遲歸入最後一格
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - 1) * SUB_BUCKETS;
+    // 匯出給 Prometheus 的累計上界（秒）
+    static final String[] EXPORT_BOUNDS = {
+        "0.00005", "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+        "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+    private static final long[] EXPORT_BOUNDS_NANOS = new long[EXPORT_BOUNDS.length];
+    static {
+        for (int i = 0; i < EXPORT_BOUNDS.length; i++){
+            EXPORT_BOUNDS_NANOS[i] = (long) (Double.parseDouble(EXPORT_BOUNDS[i]) * 1e9);
+        }
+    }
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sumNanos = new LongAdder();
+    // ----------------- 方法 -----------------
+    public void record(long nanos){
+        counts.getAndIncrement(bucketIndex(nanos));
+        sumNanos.add(Math.max(0, nanos));
+    }
+    public void recordSince(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+    static int bucketIndex(long nanos){
+        if (nanos < SUB_BUCKETS){
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT){
+            return BUCKET_COUNT - 1;
+        }
+        int mantissa = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+    // 該格的上界（不含）
+    static long bucketUpperBound(int index){
+        if (index < SUB_BUCKETS){
+            return index + 1;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift;
+    }
+    public long getCount(){
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            total += counts.get(i);
+        }
+        return total;
+    }
+    public long getSumNanos(){
+        return sumNanos.sum();
+    }
+    // 第 q 分位數的近似值（所在格的上界），沒有資料時回傳 0
+    public long percentile(double q){
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long c : snapshot){
+            total += c;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0){
+                return bucketUpperBound(i);
+            }
+        }
+        return 0;
+    }
+    // 以 Prometheus histogram 格式寫出；各格計數先各自讀取一次，_count 與 +Inf 因此一致
+    void writePrometheus(StringBuilder out, String name, String labels){
+        long[] snapshot = snapshot();
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long cumulative = 0;
+        int bucket = 0;
+        for (int b = 0; b < EXPORT_BOUNDS.length; b++){
+            while (bucket < BUCKET_COUNT && bucketUpperBound(bucket) <= EXPORT_BOUNDS_NANOS[b]){
+                cumulative += snapshot[bucket++];
+            }
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(EXPORT_BOUNDS[b]).append("\"} ").append(cumulative).append('\n');
+        }
+        while (bucket < BUCKET_COUNT){
+            cumulative += snapshot[bucket++];
+        }
+        out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(getSumNanos() / 1e9).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+    private long[] snapshot(){
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+}
+
+/*============================ MetricsRegistry 類別 ================================= */
+// 監控指標登錄處：計數器與直方圖在第一次取得時建立，呼叫端保留參照後，記錄時不再查表；
+// 由其他元件既有統計換算的數值（座位填充率、佇列深度…）在匯出時才向 Collector 取得
+class MetricsRegistry{
+    public static final String COUNTER = "counter";
+    public static final String GAUGE = "gauge";
+    public static final String HISTOGRAM = "histogram";
+
+    // 匯出時逐筆寫入樣本
+    interface SampleSink{
+        void sample(String labels, double value);
+    }
+    interface Collector{
+        void collect(SampleSink sink);
+    }
+
+    private static final class Family{
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new ConcurrentSkipListMap<>(); // 標籤 -> LongAdder / LatencyHistogram
+        final List<Collector> collectors = new CopyOnWriteArrayList<>();
+        Family(String name, String help, String type){
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    // ----------------- 方法 -----------------
+    public LongAdder counter(String name, String help, String labels){
+        return (LongAdder) family(name, help, COUNTER).series.computeIfAbsent(labels, k -> new LongAdder());
+    }
+    public LatencyHistogram histogram(String name, String help, String labels){
+        return (LatencyHistogram) family(name, help, HISTOGRAM).series.computeIfAbsent(labels, k -> new LatencyHistogram());
+    }
+    public void register(String name, String help, String type, Collector collector){
+        family(name, help, type).collectors.add(collector);
+    }
+    private Family family(String name, String help, String type){
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)){
+            throw new IllegalArgumentException("指標 " + name + " 已登錄為 " + family.type);
+        }
+        return family;
+    }
+    // Prometheus 文字格式 0.0.4
+    public String toPrometheusText(){
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families.values()){
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : family.series.entrySet()){
+                Object metric = entry.getValue();
+                if (metric instanceof LatencyHistogram){
+                    ((LatencyHistogram) metric).writePrometheus(out, family.name, entry.getKey());
+                }else{
+                    appendSample(out, family.name, entry.getKey(), ((LongAdder) metric).sum());
+                }
+            }
+            for (Collector collector : family.collectors){
+                collector.collect((labels, value) -> appendSample(out, family.name, labels, value));
+            }
+        }
+        return out.toString();
+    }
+    private static void appendSample(StringBuilder out, String name, String labels, double value){
+        out.append(name);
+        if (!labels.isEmpty()){
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15){
+            out.append((long) value);
+        }else{
+            out.append(value);
+        }
+        out.append('\n');
+    }
+    // 標籤值跳脫：反斜線、雙引號與換行
+    public static String label(String name, String value){
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + escaped + "\"";
+    }
+}
+
+/*============================ JsonWriter 類別 ================================= */
+// 輕量 JSON 編碼器：直接將跳脫後的 UTF-8 位元組寫入可重複使用的緩衝，不經過 String 串接
+// 透過 streamTo 綁定 HttpExchange 時，內容超過 STREAM_THRESHOLD 會改用 chunked 傳輸邊寫邊送
+class JsonWriter{
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int STREAM_THRESHOLD = 64 * 1024;
+    private static final int MAX_POOLED_CAPACITY = 1 << 20;
+    private static final int MAX_POOL_SIZE = 64;
+    private static final ConcurrentLinkedQueue<JsonWriter> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size = 0;
+    private boolean needsComma = false;
+    private boolean afterName = false;
+    private HttpExchange exchange;   // 以 streamTo 綁定的回應
+    private int statusCode;
+    private OutputStream stream;     // 已送出 chunked 標頭後的回應串流
+    // ----------------- 建構式 -----------------
+    // 由緩衝池取得 JsonWriter，使用完畢須呼叫 release
+    public static JsonWriter acquire(){
+        JsonWriter writer = POOL.poll();
+        if (writer == null){
+            return new JsonWriter();
+        }
+        POOL_SIZE.decrementAndGet();
+        return writer;
+    }
+    public void release(){
+        reset();
+        exchange = null;
+        stream = null;
+        if (buffer.length > MAX_POOLED_CAPACITY){
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        if (POOL_SIZE.incrementAndGet() <= MAX_POOL_SIZE){
+            POOL.offer(this);
+        }else{
+            POOL_SIZE.decrementAndGet();
+        }
+    }
+    // 清空已寫入的內容以便連續輸出多份文件（例如稽核日誌的每一行），不歸還緩衝池
+    public void reset(){
+        size = 0;
+        needsComma = false;
+        afterName = false;
+    }
+    // ----------------- 結構 -----------------
+    public JsonWriter beginObject() throws IOException{
+        beforeValue();
+        writeByte('{');
+        needsComma = false;
+        return this;
+    }
+    public JsonWriter endObject() throws IOException{
+        writeByte('}');
+        needsComma = true;
+        return this;
+    }
+    public JsonWriter beginArray() throws IOException{
+        beforeValue();
+        writeByte('[');
+        needsComma = false;
+        return this;
+    }
+    public JsonWriter endArray() throws IOException{
+        writeByte(']');
+        needsComma = true;
+        return this;
+    }
+    public JsonWriter name(String name) throws IOException{
+        if (needsComma){
+            writeByte(',');
+        }
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+    // ----------------- 值 -----------------
+    public JsonWriter value(String value) throws IOException{
+        beforeValue();
+        if (value == null){
+            writeAscii("null");
+        }else{
+            writeString(value);
+        }
+        needsComma = true;
+        return this;
+    }
+    public JsonWriter value(long value) throws IOException{
+        beforeValue();
+        writeLong(value);
+        needsComma = true;
+        return this;
+    }
+    public JsonWriter value(boolean value) throws IOException{
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        needsComma = true;
+        return this;
+    }
+    // 將數字以 JSON 字串輸出（例如座位號碼 "5"）
+    public JsonWriter stringValue(long value) throws IOException{
+        beforeValue();
+        writeByte('"');
+        writeLong(value);
+        writeByte('"');
+        needsComma = true;
+        return this;
+    }
+    // 以 ISO 格式輸出日期（yyyy-MM-dd），與 LocalDate.toString 相同但不建立字串
+    public JsonWriter value(LocalDate date) throws IOException{
+        int year = date.getYear();
+        if (year < 0 || year > 9999){
+            return value(date.toString());
+        }
+        beforeValue();
+        writeByte('"');
+        writeDigits(year, 4);
+        writeByte('-');
+        writeDigits(date.getMonthValue(), 2);
+        writeByte('-');
+        writeDigits(date.getDayOfMonth(), 2);
+        writeByte('"');
+        needsComma = true;
+        return this;
+    }
+    // 以 HH:mm 或 HH:mm:ss 輸出時間，與 LocalTime.toString 相同但不建立字串
+    public JsonWriter value(LocalTime time) throws IOException{
+        if (time.getNano() != 0){
+            return value(time.toString());
+        }
+        beforeValue();
+        writeByte('"');
+        writeDigits(time.getHour(), 2);
+        writeByte(':');
+        writeDigits(time.getMinute(), 2);
+        if (time.getSecond() != 0){
+            writeByte(':');
+            writeDigits(time.getSecond(), 2);
+        }
+        writeByte('"');
+        needsComma = true;
+        return this;
+    }
+    // ----------------- 輸出 -----------------
+    public int size(){
+        return size;
+    }
+    public byte[] toByteArray(){
+        return Arrays.copyOf(buffer, size);
+    }
+    public void writeTo(OutputStream out) throws IOException{
+        out.write(buffer, 0, size);
+    }
+    // 綁定回應：之後寫入的內容若超過門檻，會先以 chunked 模式送出標頭並開始串流
+    public JsonWriter streamTo(HttpExchange exchange, int statusCode){
+        this.exchange = exchange;
+        this.statusCode = statusCode;
+        return this;
+    }
+    // 完成回應：尚未開始串流時以 Content-Length 一次送出，否則送出剩餘內容並結束 chunked 串流
+    public void finish() throws IOException{
+        if (stream == null){
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(statusCode, size);
+            stream = exchange.getResponseBody();
+        }
+        try (OutputStream os = stream){
+            os.write(buffer, 0, size);
+            size = 0;
+        }
+    }
+    // ----------------- 內部方法 -----------------
+    private void beforeValue(){
+        if (afterName){
+            afterName = false;
+        }else if (needsComma){
+            writeByteUnchecked(',');
+        }
+    }
+    private void writeString(String value) throws IOException{
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\'){
+                writeByte(c);
+            }else if (c < 0x80){
+                writeEscaped(c);
+            }else if (c < 0x800){
+                ensureCapacity(2);
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensureCapacity(4);
+                buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            }else if (Character.isSurrogate(c)){
+                writeByte('?'); // 不成對的代理字元無法以 UTF-8 表示
+            }else{
+                ensureCapacity(3);
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+    private void writeEscaped(char c) throws IOException{
+        switch (c){
+            case '"': writeAscii("\\\""); break;
+            case '\\': writeAscii("\\\\"); break;
+            case '\n': writeAscii("\\n"); break;
+            case '\r': writeAscii("\\r"); break;
+            case '\t': writeAscii("\\t"); break;
+            case '\b': writeAscii("\\b"); break;
+            case '\f': writeAscii("\\f"); break;
+            default:
+                writeAscii("\\u00");
+                writeByte(HEX[c >> 4]);
+                writeByte(HEX[c & 0xF]);
+        }
+    }
+    private void writeLong(long value) throws IOException{
+        if (value == Long.MIN_VALUE){
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0){
+            writeByte('-');
+            value = -value;
+        }
+        ensureCapacity(19);
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10){
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--){
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size += digits;
+    }
+    private void writeDigits(int value, int width) throws IOException{
+        ensureCapacity(width);
+        for (int i = size + width - 1; i >= size; i--){
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size += width;
+    }
+    private void writeAscii(String text) throws IOException{
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++){
+            buffer[size++] = (byte) text.charAt(i);
+        }
+    }
+    private void writeByte(int b) throws IOException{
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+    private void writeByteUnchecked(int b){
+        if (size == buffer.length){
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[size++] = (byte) b;
+    }
+    // 確保緩衝有足夠空間；已綁定回應且超過門檻時，先把目前內容以 chunked 模式送出
+    private void ensureCapacity(int extra) throws IOException{
+        if (exchange != null && size + extra > STREAM_THRESHOLD){
+            if (stream == null){
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(statusCode, 0); // 0 表示 chunked 傳輸
+                stream = exchange.getResponseBody();
+            }
+            stream.write(buffer, 0, size);
+            size = 0;
+        }
+        if (size + extra > buffer.length){
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
+
+/*============================ JsonRequestReader 類別 ================================= */
+// 單次掃描的 JSON 請求解析器：讀入請求位元組後只走訪一次，逐一回呼最上層物件的欄位
+// 字串值會處理所有跳脫字元；數字、true/false 以原文字串回傳，null 回傳 null；巢狀物件與陣列會被略過
+class JsonRequestReader{
+    interface FieldHandler{
+        void field(String name, String value);
+        // 欄位值為物件陣列時，回傳處理第 index 個物件的 handler；回傳 null 表示略過此陣列（預設）
+        default FieldHandler arrayItem(String name, int index){
+            return null;
+        }
+    }
+
+    private final byte[] body;
+    private final int length;
+    private int pos = 0;
+    // ----------------- 建構式 -----------------
+    private JsonRequestReader(byte[] body, int length){
+        this.body = body;
+        this.length = length;
+    }
+    // 讀取請求內容，超過 maxBytes 時拋出 413 例外；先依 Content-Length 提早拒絕
+    public static byte[] readBody(HttpExchange exchange, int maxBytes) throws IOException, RequestParseException{
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (declared != null){
+            try{
+                if (Long.parseLong(declared.trim()) > maxBytes){
+                    throw new RequestParseException(413, "請求內容過大");
+                }
+            }catch (NumberFormatException e){
+                throw new RequestParseException(400, "Content-Length 格式錯誤");
+            }
+        }
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[Math.min(maxBytes + 1, 1024)];
+        int size = 0;
+        int read;
+        while ((read = in.read(buffer, size, buffer.length - size)) != -1){
+            size += read;
+            if (size > maxBytes){
+                throw new RequestParseException(413, "請求內容過大");
+            }
+            if (size == buffer.length){
+                buffer = Arrays.copyOf(buffer, Math.min(maxBytes + 1, buffer.length * 2));
+            }
+        }
+        return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+    }
+    public static void parseObject(byte[] body, FieldHandler handler) throws RequestParseException{
+        new JsonRequestReader(body, body.length).readObject(handler);
+    }
+    // ----------------- 解析 -----------------
+    private void readObject(FieldHandler handler) throws RequestParseException{
+        skipWhitespace();
+        readMembers(handler);
+        skipWhitespace();
+        if (pos != length){
+            throw error("物件結束後仍有多餘內容");
+        }
+    }
+    private void readMembers(FieldHandler handler) throws RequestParseException{
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}'){
+            pos++;
+            return;
+        }
+        while (true){
+            skipWhitespace();
+            expect('"');
+            String name = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (peek() == '['){
+                readArray(name, handler);
+            }else{
+                handler.field(name, readValue());
+            }
+            skipWhitespace();
+            int c = next();
+            if (c == '}'){
+                return;
+            }
+            if (c != ','){
+                throw error("缺少 , 或 }");
+            }
+        }
+    }
+    // 物件陣列：每個元素交給 handler.arrayItem 取得的 handler；不處理此欄位時略過整個陣列
+    private void readArray(String name, FieldHandler handler) throws RequestParseException{
+        int start = pos;
+        pos++;
+        skipWhitespace();
+        if (peek() == ']'){
+            pos++;
+            handler.field(name, null);
+            return;
+        }
+        for (int index = 0; ; index++){
+            skipWhitespace();
+            FieldHandler item = handler.arrayItem(name, index);
+            if (item == null){
+                pos = start;
+                skipContainer();
+                handler.field(name, null);
+                return;
+            }
+            if (peek() != '{'){
+                throw error("陣列元素必須為物件");
+            }
+            readMembers(item);
+            skipWhitespace();
+            int c = next();
+            if (c == ']'){
+                return;
+            }
+            if (c != ','){
+                throw error("缺少 , 或 ]");
+            }
+        }
+    }
+    private String readValue() throws RequestParseException{
+        int c = peek();
+        switch (c){
+            case '"':
+                pos++;
+                return readString();
+            case '{':
+            case '[':
+                skipContainer();
+                return null;
+            case 't':
+                return readLiteral("true");
+            case 'f':
+                return readLiteral("false");
+            case 'n':
+                readLiteral("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')){
+                    int start = pos;
+                    while (pos < length && isNumberByte(body[pos])){
+                        pos++;
+                    }
+                    return new String(body, start, pos - start, StandardCharsets.US_ASCII);
+                }
+                throw error("無法識別的值");
+        }
+    }
+    // 讀取字串內容（起始引號已讀過）；沒有跳脫字元時直接以原始位元組建立字串
+    private String readString() throws RequestParseException{
+        int start = pos;
+        while (pos < length){
+            byte b = body[pos];
+            if (b == '"'){
+                String value = new String(body, start, pos - start, StandardCharsets.UTF_8);
+                pos++;
+                return value;
+            }
+            if (b == '\\'){
+                return readEscapedString(start);
+            }
+            if ((b & 0xFF) < 0x20){
+                throw error("字串中不可包含控制字元");
+            }
+            pos++;
+        }
+        throw error("字串未結束");
+    }
+    private String readEscapedString(int start) throws RequestParseException{
+        StringBuilder value = new StringBuilder(pos - start + 16);
+        int runStart = start;
+        while (pos < length){
+            byte b = body[pos];
+            if (b == '"'){
+                value.append(new String(body, runStart, pos - runStart, StandardCharsets.UTF_8));
+                pos++;
+                return value.toString();
+            }
+            if ((b & 0xFF) < 0x20){
+                throw error("字串中不可包含控制字元");
+            }
+            if (b != '\\'){
+                pos++;
+                continue;
+            }
+            value.append(new String(body, runStart, pos - runStart, StandardCharsets.UTF_8));
+            pos++;
+            int escaped = next();
+            switch (escaped){
+                case '"': value.append('"'); break;
+                case '\\': value.append('\\'); break;
+                case '/': value.append('/'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > length){
+                        throw error("\\u 跳脫字元不完整");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++){
+                        int digit = Character.digit(body[pos++], 16);
+                        if (digit < 0){
+                            throw error("\\u 跳脫字元格式錯誤");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    value.append((char) code); // 代理字元對由前後兩個 \\u 依序組成
+                    break;
+                default:
+                    throw error("無效的跳脫字元");
+            }
+            runStart = pos;
+        }
+        throw error("字串未結束");
+    }
+    // 略過巢狀物件或陣列（需正確處理其中字串內的括號與引號）
+    private void skipContainer() throws RequestParseException{
+        int depth = 0;
+        while (pos < length){
+            byte b = body[pos++];
+            if (b == '"'){
+                while (true){
+                    if (pos >= length){
+                        throw error("字串未結束");
+                    }
+                    byte c = body[pos++];
+                    if (c == '\\'){
+                        pos++;
+                    }else if (c == '"'){
+                        break;
+                    }
+                }
+            }else if (b == '{' || b == '['){
+                depth++;
+            }else if (b == '}' || b == ']'){
+                if (--depth == 0){
+                    return;
+                }
+            }
+        }
+        throw error("物件或陣列未結束");
+    }
+    private String readLiteral(String literal) throws RequestParseException{
+        for (int i = 0; i < literal.length(); i++){
+            if (next() != literal.charAt(i)){
+                throw error("無法識別的值");
+            }
+        }
+        return literal;
+    }
+    private static boolean isNumberByte(byte b){
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+    private void skipWhitespace(){
+        while (pos < length && (body[pos] == ' ' || body[pos] == '\n' || body[pos] == '\r' || body[pos] == '\t')){
+            pos++;
+        }
+    }
+    private int peek() throws RequestParseException{
+        if (pos >= length){
+            throw error("內容不完整");
+        }
+        return body[pos];
+    }
+    private int next() throws RequestParseException{
+        int c = peek();
+        pos++;
+        return c;
+    }
+    private void expect(char c) throws RequestParseException{
+        if (next() != c){
+            throw error("預期為 " + c);
+        }
+    }
+    private RequestParseException error(String message){
+        return new RequestParseException(400, "JSON 格式錯誤（位置 " + pos + "）：" + message);
+    }
+}
+
+/*============================ RequestParseException 類別 ================================= */
+// 請求內容無法解析時拋出，附帶應回應的 HTTP 狀態碼
+class RequestParseException extends Exception{
+    private static final long serialVersionUID = 1L;
+    private final int statusCode;
+    public RequestParseException(int statusCode, String message){
+        super(message);
+        this.statusCode = statusCode;
+    }
+    public int getStatusCode(){
+        return statusCode;
+    }
+}
+
+/*============================ 請求物件 ================================= */
+// POST /api/login
+class LoginRequest{
+    private String username;
+    private String password;
+    private String enrolmentCode;
+    public static LoginRequest parse(byte[] body) throws RequestParseException{
+        LoginRequest request = new LoginRequest();
+        JsonRequestReader.parseObject(body, (name, value) -> {
+            switch (name){
+                case "username": request.username = value; break;
+                case "password": request.password = value; break;
+                case "enrolmentCode": request.enrolmentCode = value; break;
+                default: break;
+            }
+        });
+        return request;
+    }
+    public String getUsername(){ return username; }
+    public String getPassword(){ return password; }
+    public String getEnrolmentCode(){ return enrolmentCode; }
+}
+
+// POST /api/bookings
+class BookingRequest{
+    private String studentId;
+    private String scheduleId;
+    private String seatNumber;
+    public static BookingRequest parse(byte[] body) throws RequestParseException{
+        BookingRequest request = new BookingRequest();
+        JsonRequestReader.parseObject(body, (name, value) -> {
+            switch (name){
+                case "studentId": request.studentId = value; break;
+                case "scheduleId": request.scheduleId = value; break;
+                case "seatNumber": request.seatNumber = value; break;
+                default: break;
+            }
+        });
+        return request;
+    }
+    public boolean isComplete(){
+        return studentId != null && scheduleId != null && seatNumber != null;
+    }
+    public String getStudentId(){ return studentId; }
+    public String getScheduleId(){ return scheduleId; }
+    public String getSeatNumber(){ return seatNumber; }
+}
+
+// POST /api/bookings/batch
+class BatchBookingRequest{
+    public static final int MAX_ITEMS = 20;
+    private String studentId;
+    private final List<String> scheduleIds = new ArrayList<>();
+    private final List<String> seatNumbers = new ArrayList<>();
+    public static BatchBookingRequest parse(byte[] body) throws RequestParseException{
+        BatchBookingRequest request = new BatchBookingRequest();
+        JsonRequestReader.parseObject(body, new JsonRequestReader.FieldHandler(){
+            public void field(String name, String value){
+                if ("studentId".equals(name)){
+                    request.studentId = value;
+                }
+            }
+            public JsonRequestReader.FieldHandler arrayItem(String name, int index){
+                if (!"items".equals(name)){
+                    return null;
+                }
+                request.scheduleIds.add(null);
+                request.seatNumbers.add(null);
+                return (field, value) -> {
+                    switch (field){
+                        case "scheduleId": request.scheduleIds.set(index, value); break;
+                        case "seatNumber": request.seatNumbers.set(index, value); break;
+                        default: break;
+                    }
+                };
+            }
+        });
+        if (request.scheduleIds.size() > MAX_ITEMS){
+            throw new RequestParseException(400, "一次最多預約 " + MAX_ITEMS + " 個座位");
+        }
+        return request;
+    }
+    public boolean isComplete(){
+        return studentId != null && !scheduleIds.isEmpty() && !scheduleIds.contains(null) && !seatNumbers.contains(null);
+    }
+    public String getStudentId(){ return studentId; }
+    public int size(){ return scheduleIds.size(); }
+    public String getScheduleId(int index){ return scheduleIds.get(index); }
+    public String getSeatNumber(int index){ return seatNumbers.get(index); }
+    public String[] getScheduleIds(){ return scheduleIds.toArray(new String[0]); }
+    public String[] getSeatNumbers(){ return seatNumbers.toArray(new String[0]); }
+}
+
+// POST /api/waitlist
+class WaitlistRequest{
+    private String studentId;
+    private String scheduleId;
+    public static WaitlistRequest parse(byte[] body) throws RequestParseException{
+        WaitlistRequest request = new WaitlistRequest();
+        JsonRequestReader.parseObject(body, (name, value) -> {
+            switch (name){
+                case "studentId": request.studentId = value; break;
+                case "scheduleId": request.scheduleId = value; break;
+                default: break;
+            }
+        });
+        return request;
+    }
+    public boolean isComplete(){
+        return studentId != null && scheduleId != null;
+    }
+    public String getStudentId(){ return studentId; }
+    public String getScheduleId(){ return scheduleId; }
+}
+
+// DELETE /api/bookings/{reservationId}?studentId=...
+class CancelRequest{
+    private final String reservationId;
+    private final String studentId;
+    public CancelRequest(String reservationId, String studentId){
+        this.reservationId = reservationId;
+        this.studentId = studentId;
+    }
+    public boolean isComplete(){
+        return reservationId != null && !reservationId.isEmpty() && studentId != null;
+    }
+    public String getReservationId(){ return reservationId; }
+    public String getStudentId(){ return studentId; }
+}
+
+/*============================ 主程式 ================================= */
+public class SimpleApp { 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+
     public static void main(String[] args) throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(args);
+
         // 初始化所有系統資料
-        DataStore initialData = initializeSystemData();
+        DataStore initialData = initializeSystemData(config.getWindowDays());
+        
+        // 由日誌與快照復原預約與會員狀態
+        final PersistenceManager persistence = config.isPersistenceEnabled()
+            ? PersistenceManager.open(Paths.get(config.getDataDir()), initialData)
+            : null;
+        
+        // 用初始化好的資料創建 Service
+        MetricsRegistry metrics = new MetricsRegistry();
+        final AuditLog audit = config.isAuditEnabled()
+            ? new AuditLog(Paths.get(config.getAuditDir()), config.getAuditBuffer(), config.getAuditOverflow(), config.getAuditRotateBytes())
+            : null;
+        final ReservationManager service = new ReservationManager(initialData,
+            persistence == null ? null : persistence.getWriteAheadLog(), metrics, audit, config.getWindowDays());
+        if (persistence != null) {
+            persistence.startSnapshots(service, config.getSnapshotEvery(), 10);
+        }
+        // 滾動班次視窗：啟動時立即檢查一次（收尾停機期間已發車的班次），之後定期補上新班次
+        TripScheduler tripScheduler = new TripScheduler(service, initialData.getRoutes().values(),
+            config.getWindowDays(), LocalDate.now().plusDays(config.getWindowDays() - 1));
+        tripScheduler.start(config.getTripCheckSeconds());
+        ScheduleCache scheduleCache = new ScheduleCache(config.getScheduleCacheSize());
+        service.addSeatChangeListener(scheduleCache);
+        SeatEventStream seatStream = new SeatEventStream(config.getStreamMaxClients(), config.getStreamBufferEvents());
+        service.addSeatChangeListener(seatStream);
+        
+        // 內建 HttpServer 將回應標頭與內容分次寫出，預設的 Nagle 演算法會與用戶端的延遲確認互相等待（每個回應約 40ms）
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(config.getPort()), 0);
+        RequestExecutor executor = RequestExecutor.create(config);
+        Filter overloadFilter = new OverloadFilter(executor);
+        AuthService auth = config.isAuthEnabled()
+            ? new AuthService(service, AuthService.signingKey(config.getAuthSecret()), config.getPasswordIterations(),
+                config.getTokenTtlSeconds(), config.getCredentialCacheSize(), config.isClaimUnset())
+            : null;
+        AdmissionController admission = config.isAdmissionEnabled() ? new AdmissionController(config, executor) : null;
+        Filter[] apiFilters = admission != null
+            ? new Filter[] { overloadFilter, new AdmissionFilter(admission, auth, config.getMaxBodyBytes()) }
+            : new Filter[] { overloadFilter };
+        if (config.getRoster() != null) {
+            int enrolled = AuthService.loadRoster(Paths.get(config.getRoster()), service, auth);
+            System.out.println("名冊已載入: " + enrolled + " 位學生");
+        }
+        // 預約相關的 Context 另外驗證 Token；未啟用驗證時與其他 API 相同
+        Filter[] memberFilters = apiFilters;
+        if (auth != null) {
+            memberFilters = Arrays.copyOf(apiFilters, apiFilters.length + 1);
+            memberFilters[apiFilters.length] = new AuthFilter(auth);
+        }
+        
+        createContext(server, metrics, "/api/login", new LoginHandler(service, auth, config.getMaxBodyBytes()), apiFilters);
+        createContext(server, metrics, "/api/schedules", new ScheduleHandler(service, scheduleCache), apiFilters);
+        createContext(server, metrics, "/api/schedules/stream", new ScheduleStreamHandler(seatStream), apiFilters);
+        WaitingRoom waitingRoom = config.getHotTrips().isEmpty() ? null
+            : new WaitingRoom(service, config.getHotTrips(), config.getQueueRate(), config.getQueueMax());
+        createContext(server, metrics, "/api/bookings", new ReservationHandler(service, config.getMaxBodyBytes(), waitingRoom), memberFilters);
+        if (waitingRoom != null) {
+            createContext(server, metrics, "/api/queue", new QueueHandler(waitingRoom), memberFilters);
+        }
+        SeatHoldManager seatHolds = new SeatHoldManager(service, config.getHoldTtlMillis(), config.getHoldMax());
+        createContext(server, metrics, "/api/holds", new HoldHandler(service, seatHolds, config.getMaxBodyBytes(), waitingRoom), memberFilters);
+        WaitlistManager waitlist = new WaitlistManager(service, config.getWaitlistMax(), config.getWaitlistLength());
+        createContext(server, metrics, "/api/waitlist", new WaitlistHandler(waitlist, config.getMaxBodyBytes()), memberFilters);
+        createContext(server, metrics, "/api/status", new StatusHandler(service, executor, scheduleCache, seatStream, admission, waitingRoom, seatHolds, waitlist), overloadFilter);
+        createContext(server, metrics, "/api/metrics", new MetricsHandler(metrics), overloadFilter);
+        createContext(server, metrics, "/", new StaticFileHandler(new StaticAssetCache(Paths.get(config.getStaticDir()))), overloadFilter);
+        
+        registerComponentMetrics(metrics, executor, scheduleCache, seatStream, admission, waitingRoom, seatHolds, waitlist, audit, auth);
+        
+        server.setExecutor(executor);
+        server.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            tripScheduler.shutdown();
+            seatStream.shutdown();
+            if (admission != null) {
+                admission.shutdown();
+            }
+            if (waitingRoom != null) {
+                waitingRoom.shutdown();
+            }
+            seatHolds.shutdown();
+            waitlist.shutdown();
+            server.stop(1);
+            executor.shutdown();
+            if (audit != null) {
+                audit.close();
+            }
+            if (persistence != null) {
+                try {
+                    persistence.close();
+                } catch (IOException e) {
+                    System.err.println("關閉持久化時發生錯誤: " + e);
+                }
+            }
+        }, "shutdown"));
+        
+        System.out.println("Server started at http://localhost:" + config.getPort() + " (executor: " + executor.getMode() + ")");
+    }
+
+    // 每個 Context 最外層都加上 MetricsFilter，以 Context 路徑作為端點標籤
+    private static void createContext(HttpServer server, MetricsRegistry metrics, String path, HttpHandler handler, Filter... filters) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new MetricsFilter(metrics, path));
+        context.getFilters().add(new JournalFailureFilter());
+        context.getFilters().addAll(Arrays.asList(filters));
+    }
+    
+    // 其他元件既有的統計，於 /api/metrics 匯出時讀取
+    private static void registerComponentMetrics(MetricsRegistry metrics, RequestExecutor executor, ScheduleCache scheduleCache,
+                                                 SeatEventStream seatStream, AdmissionController admission, WaitingRoom waitingRoom,
+                                                 SeatHoldManager seatHolds, WaitlistManager waitlist, AuditLog audit, AuthService auth) {
+        metrics.register("bus_executor_queue_depth", "Requests waiting for a worker", MetricsRegistry.GAUGE,
+            sink -> sink.sample("", executor.getQueueDepth()));
+        metrics.register("bus_executor_active_workers", "Workers currently handling a request", MetricsRegistry.GAUGE,
+            sink -> sink.sample("", executor.getActiveWorkers()));
+        metrics.register("bus_executor_rejected_total", "Requests rejected because the worker queue was full", MetricsRegistry.COUNTER,
+            sink -> sink.sample("", executor.getRejectedCount()));
+        metrics.register("bus_schedule_cache_requests_total", "Schedule cache lookups by result", MetricsRegistry.COUNTER, sink -> {
+            sink.sample(MetricsRegistry.label("result", "hit"), scheduleCache.getHits());
+            sink.sample(MetricsRegistry.label("result", "miss"), scheduleCache.getMisses());
+        });
+        metrics.register("bus_seat_stream_subscribers", "Connected seat-event stream clients", MetricsRegistry.GAUGE,
+            sink -> sink.sample("", seatStream.getSubscriberCount()));
+        if (admission != null) {
+            metrics.register("bus_admission_in_flight", "Admitted requests still being handled", MetricsRegistry.GAUGE,
+                sink -> sink.sample("", admission.getInFlight()));
+            metrics.register("bus_admission_decisions_total", "Admission control decisions", MetricsRegistry.COUNTER, sink -> {
+                sink.sample(MetricsRegistry.label("decision", "admitted"), admission.getAdmitted());
+                sink.sample(MetricsRegistry.label("decision", "rate_limited"), admission.getRateLimited());
+                sink.sample(MetricsRegistry.label("decision", "shed_booking"), admission.getShedBooking());
+                sink.sample(MetricsRegistry.label("decision", "shed_browse"), admission.getShedBrowse());
+            });
+        }
+        if (waitingRoom != null) {
+            metrics.register("bus_waiting_room_tickets_total", "Waiting-room tickets by final result", MetricsRegistry.COUNTER, sink -> {
+                sink.sample(MetricsRegistry.label("result", "confirmed"), waitingRoom.getConfirmed());
+                sink.sample(MetricsRegistry.label("result", "failed"), waitingRoom.getFailed());
+                sink.sample(MetricsRegistry.label("result", "rejected"), waitingRoom.getRejected());
+            });
+        }
+        metrics.register("bus_seat_holds_total", "Seat holds by result", MetricsRegistry.COUNTER, sink -> {
+            sink.sample(MetricsRegistry.label("result", "placed"), seatHolds.getPlaced());
+            sink.sample(MetricsRegistry.label("result", "rejected"), seatHolds.getRejected());
+            sink.sample(MetricsRegistry.label("result", "confirmed"), seatHolds.getConfirmed());
+            sink.sample(MetricsRegistry.label("result", "released"), seatHolds.getReleased());
+            sink.sample(MetricsRegistry.label("result", "expired"), seatHolds.getExpired());
+        });
+        metrics.register("bus_seat_holds_active", "Seats currently held and not yet confirmed", MetricsRegistry.GAUGE,
+            sink -> sink.sample("", seatHolds.getActiveHolds()));
+        metrics.register("bus_waitlist_entries_total", "Waitlist entries by result", MetricsRegistry.COUNTER, sink -> {
+            sink.sample(MetricsRegistry.label("result", "joined"), waitlist.getJoined());
+            sink.sample(MetricsRegistry.label("result", "rejected"), waitlist.getRejected());
+            sink.sample(MetricsRegistry.label("result", "promoted"), waitlist.getPromoted());
+            sink.sample(MetricsRegistry.label("result", "left"), waitlist.getLeft());
+            sink.sample(MetricsRegistry.label("result", "dropped"), waitlist.getDropped());
+            sink.sample(MetricsRegistry.label("result", "expired"), waitlist.getExpired());
+        });
+        metrics.register("bus_waitlist_waiting", "Members currently waitlisted for a full trip", MetricsRegistry.GAUGE,
+            sink -> sink.sample("", waitlist.getWaiting()));
+        if (audit != null) {
+            metrics.register("bus_audit_events_total", "Audit events by result; dropped only with --audit-overflow=drop", MetricsRegistry.COUNTER, sink -> {
+                sink.sample(MetricsRegistry.label("result", "written"), audit.getWritten());
+                sink.sample(MetricsRegistry.label("result", "dropped"), audit.getDropped());
+            });
+            metrics.register("bus_audit_pending_events", "Audit events waiting for the writer thread", MetricsRegistry.GAUGE,
+                sink -> sink.sample("", audit.getPending()));
+        }
+        if (auth != null) {
+            metrics.register("bus_logins_total", "Login attempts by result; cached logins skip the password hash", MetricsRegistry.COUNTER, sink -> {
+                sink.sample(MetricsRegistry.label("result", "success"), auth.getLogins() - auth.getCacheHits());
+                sink.sample(MetricsRegistry.label("result", "cached"), auth.getCacheHits());
+                sink.sample(MetricsRegistry.label("result", "failure"), auth.getFailedLogins());
+            });
+            metrics.register("bus_password_hashes_total", "PBKDF2 computations (logins, first-time passwords and rehashes)", MetricsRegistry.COUNTER,
+                sink -> sink.sample("", auth.getSlowHashes()));
+            metrics.register("bus_revoked_tokens", "Logged-out tokens that have not expired yet", MetricsRegistry.GAUGE,
+                sink -> sink.sample("", auth.getRevokedCount()));
+        }
+    }
+
+    // 資料生成方法
+    private static DataStore initializeSystemData(int windowDays) {
+        // Member 初始化
+        MemberStore members = new MemberStore();
+        members.add("A001", "password123");
+        members.add("B11100001", "pass");
+        // Route 初始化
+        Map<String, Route> routes = new HashMap<>();
+        List<LocalTime> times = Route.DEFAULT_TIMETABLE;
+        Route route1 = new Route("R01", "中央大學-桃園高鐵站", Route.DEFAULT_SEAT_CAPACITY, times);
+        Route route2 = new Route("R02", "桃園高鐵站-中央大學", Route.DEFAULT_SEAT_CAPACITY, times);
+        Route route3 = new Route("R03", "中央大學-中壢火車站", Route.DEFAULT_SEAT_CAPACITY, times);
+        Route route4 = new Route("R04", "中壢火車站-中央大學", Route.DEFAULT_SEAT_CAPACITY, times);
+        
+        routes.put(route1.getRouteName(), route1);
+        routes.put(route2.getRouteName(), route2);
+        routes.put(route3.getRouteName(), route3);
+        routes.put(route4.getRouteName(), route4);
+        
+        List<Route> allRoutes = List.of(route1, route2, route3, route4);
+
+        // Trip 初始化：依時刻表生成 windowDays 天的班次，之後由 TripScheduler 逐日補上
+        LocalDate today = LocalDate.now();
+        List<Trip> allTrips = TripScheduler.generateTrips(allRoutes, today, today.plusDays(windowDays - 1));
+        System.out.println("系統初始化：共生成 " + allTrips.size() + " 筆班次資料。");
+        
+        return new DataStore(allTrips, members, routes);
+    }
+
+    /*============================ Handler 1: Login ================================= */
+    static class LoginHandler implements HttpHandler {
+        private final ReservationManager service;
+        private final AuthService auth; // 未啟用驗證時為 null，任何密碼皆可登入
+        private final int maxBodyBytes;
+        
+        public LoginHandler(ReservationManager service, AuthService auth, int maxBodyBytes) {
+            this.service = service;
+            this.auth = auth;
+            this.maxBodyBytes = maxBodyBytes;
+        }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            if ("POST".equals(exchange.getRequestMethod())) {
+                LoginRequest request;
+                try {
+                    request = LoginRequest.parse(JsonRequestReader.readBody(exchange, maxBodyBytes));
+                } catch (RequestParseException e) {
+                    sendError(exchange, e);
+                    return;
+                }
+                String username = request.getUsername(); 
+                
+                if (username != null && !username.isEmpty()) {
+                    AuthService.Session session = null;
+                    if (auth == null) {
+                        service.ensureMember(username);
+                    } else {
+                        session = auth.login(username, request.getPassword(), request.getEnrolmentCode());
+                        if (session == null) {
+                            sendResponse(exchange, 401, "{\"success\": false, \"message\": \"學號或密碼錯誤\"}");
+                            return;
+                        }
+                    }
+                    
+                    JsonWriter json = JsonWriter.acquire();
+                    try {
+                        json.streamTo(exchange, 200)
+                            .beginObject()
+                            .name("success").value(true)
+                            .name("studentId").value(username);
+                        if (session != null) {
+                            json.name("token").value(session.getToken())
+                                .name("expiresAt").value(session.getExpiresAt());
+                        }
+                        json.endObject().finish();
+                    } finally {
+                        json.release();
+                    }
+                } else {
+                    String response = "{\"success\": false, \"message\": \"登入失敗\"}";
+                    sendResponse(exchange, 400, response);
+                }
+            } else if ("DELETE".equals(exchange.getRequestMethod())) {
+                // 登出：撤銷 Authorization 標頭中的 Token
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (auth != null && authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)
+                        && auth.revoke(authorization.substring(7).trim())) {
+                    sendResponse(exchange, 200, "{\"success\": true}");
+                } else {
+                    sendResponse(exchange, 400, "{\"success\": false}");
+                }
+            }
+        }
+    }
+    
+    /*============================ Handler 2: Schedules ================================= */
+    static class ScheduleHandler implements HttpHandler {
+        private final ReservationManager service;
+        private final ScheduleCache cache;
         
-        // 用初始化好的資料創建 Service
-        final ReservationManager service = new ReservationManager(initialData);
+        public ScheduleHandler(ReservationManager service, ScheduleCache cache) {
+            this.service = service;
+            this.cache = cache;
+        }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            if ("GET".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+                String dateStr = params.get("date");
+                String timeStr = params.get("time");
+                String routeName = params.get("route"); 
+                LocalDate queryDate;
+                LocalTime queryTime = null;
+
+                try {
+                    queryDate = LocalDate.parse(dateStr, DATE_FORMATTER);
+                    if (timeStr != null && !timeStr.isEmpty()) {
+                        queryTime = LocalTime.parse(timeStr, DateTimeFormatter.ISO_LOCAL_TIME);
+                    }
+                } catch (Exception e) {
+                    sendResponse(exchange, 400, "{\"error\": \"日期或時間格式錯誤\"}");
+                    return;
+                }
+                
+                List<Trip> filtered = service.getFilteredTrips(queryDate, queryTime, routeName);
+                
+                if (filtered.isEmpty() && queryDate.isAfter(service.getLastBookableDate())) {
+                    sendResponse(exchange, 400, "{\"error\": \"尚未開放預約\"}");
+                    return;
+                }
+                
+                if (filtered.isEmpty()) {
+                    sendResponse(exchange, 200, "[]");
+                    return;
+                }
+                
+                ScheduleCache.Entry entry = cache.getOrRender(queryDate, routeName, filtered, trips -> {
+                    JsonWriter json = JsonWriter.acquire();
+                    try {
+                        renderSchedules(json, trips);
+                        return json.toByteArray();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e); // 未綁定回應時只寫入記憶體，不會發生
+                    } finally {
+                        json.release();
+                    }
+                });
+                exchange.getResponseHeaders().set("ETag", entry.getEtag());
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), entry.getEtag())) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                sendResponse(exchange, 200, entry.getBody());
+            }
+        }
         
-        HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
+        static void renderSchedules(JsonWriter json, List<Trip> filtered) throws IOException {
+            json.beginArray();
+            for (Trip t : filtered) {
+                json.beginObject()
+                    .name("id").value(t.getTripId())
+                    .name("date").value(t.getDate())
+                    .name("route").value(t.getRoute().getRouteName())
+                    .name("departureTime").value(t.getDepartureTime())
+                    .name("totalSeats").value(t.getTotalSeats())
+                    .name("availableSeats").value(t.getAvailableSeats())
+                    .name("occupiedSeats").beginArray();
+                for (int seatNum = t.nextOccupiedSeat(1); seatNum != -1; seatNum = t.nextOccupiedSeat(seatNum + 1)) {
+                    json.stringValue(seatNum);
+                }
+                // 保留中的座位同時列在 occupiedSeats（不可預約），此處標示其中哪些只是暫時保留
+                json.endArray().name("heldSeats").beginArray();
+                for (int seatNum = t.nextHeldSeat(1); seatNum != -1; seatNum = t.nextHeldSeat(seatNum + 1)) {
+                    json.stringValue(seatNum);
+                }
+                json.endArray().endObject();
+            }
+            json.endArray();
+        }
+    }
+
+    /*============================ Handler 2-1: Schedule Stream ================================= */
+    // GET /api/schedules/stream?date=YYYY-MM-DD&route=路線名稱（皆可省略）
+    static class ScheduleStreamHandler implements HttpHandler {
+        private final SeatEventStream seatStream;
         
-        server.createContext("/api/login", new LoginHandler(service));
-        server.createContext("/api/schedules", new ScheduleHandler(service));
-        server.createContext("/api/bookings", new ReservationHandler(service));
-        server.createContext("/", new StaticFileHandler());
+        public ScheduleStreamHandler(SeatEventStream seatStream) { this.seatStream = seatStream; }
         
-        server.setExecutor(null);
-        server.start();
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\": \"不支援的請求方法\"}");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            LocalDate date = null;
+            if (params.get("date") != null) {
+                try {
+                    date = LocalDate.parse(params.get("date"), DATE_FORMATTER);
+                } catch (Exception e) {
+                    sendResponse(exchange, 400, "{\"error\": \"日期格式錯誤\"}");
+                    return;
+                }
+            }
+            if (!seatStream.subscribe(exchange, date, params.get("route"))) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                sendResponse(exchange, 503, "{\"error\": \"推送連線數已達上限\"}");
+            }
+            // 訂閱成功時不關閉 exchange，連線交由 SeatEventStream 管理
+        }
+    }
+
+    /*============================ Handler 2-2: Waiting Room ================================= */
+    // GET /api/queue/{ticketId}：查詢號碼牌狀態；加上 ?wait=秒數（上限 30）時等到有結果或逾時才回應，等待期間不占用處理執行緒
+    static class QueueHandler implements HttpHandler {
+        private static final int MAX_WAIT_SECONDS = 30;
+        private final WaitingRoom waitingRoom;
+        
+        public QueueHandler(WaitingRoom waitingRoom) { this.waitingRoom = waitingRoom; }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\": \"不支援的請求方法\"}");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            WaitingRoom.Ticket ticket;
+            try {
+                ticket = waitingRoom.getTicket(Long.parseLong(path.substring(path.lastIndexOf("/") + 1)));
+            } catch (NumberFormatException e) {
+                ticket = null;
+            }
+            Object principal = exchange.getAttribute(AuthFilter.PRINCIPAL);
+            if (ticket == null || (principal != null && !principal.equals(ticket.getStudentId()))) {
+                sendResponse(exchange, 404, "{\"error\": \"號碼牌不存在或已過期\"}");
+                return;
+            }
+            int waitSeconds = Math.min(parseNonNegative(parseQuery(exchange.getRequestURI().getQuery()).get("wait"), 0), MAX_WAIT_SECONDS);
+            if (waitSeconds == 0 || ticket.isResolved()) {
+                renderTicket(exchange, 200, ticket);
+                return;
+            }
+            WaitingRoom.Ticket waiting = ticket;
+            waitingRoom.awaitResult(ticket, TimeUnit.SECONDS.toMillis(waitSeconds), () -> {
+                try {
+                    renderTicket(exchange, 200, waiting);
+                } catch (IOException e) {
+                    exchange.close(); // 用戶已離線
+                }
+            });
+            // 不關閉 exchange，結果產生或逾時後由 WaitingRoom 的通知執行緒回應
+        }
+        
+        static void renderTicket(HttpExchange exchange, int statusCode, WaitingRoom.Ticket ticket) throws IOException {
+            JsonWriter json = JsonWriter.acquire();
+            try {
+                json.streamTo(exchange, statusCode)
+                    .beginObject()
+                    .name("ticket").value(ticket.getTicketId())
+                    .name("scheduleId").value(ticket.getTripId())
+                    .name("seatNumber").value(ticket.getSeatNumber())
+                    .name("status").value(ticket.getStatus())
+                    .name("position").value(ticket.getPosition());
+                if (ticket.getReservationId() != null) {
+                    json.name("id").value(ticket.getReservationId());
+                }
+                if (ticket.getError() != null) {
+                    json.name("error").value(ticket.getError());
+                }
+                json.endObject().finish();
+            } finally {
+                json.release();
+            }
+        }
+    }
+
+    /*============================ Handler 3: Reservations ================================= */
+    static class ReservationHandler implements HttpHandler {
+        private final ReservationManager service;
+        private final int maxBodyBytes;
+        private final WaitingRoom waitingRoom; // 未設定熱門班次時為 null
+        
+        public ReservationHandler(ReservationManager service, int maxBodyBytes, WaitingRoom waitingRoom) {
+            this.service = service;
+            this.maxBodyBytes = maxBodyBytes;
+            this.waitingRoom = waitingRoom;
+        }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            
+            if ("GET".equals(exchange.getRequestMethod()) && path.endsWith("/history")) {
+                // 歷史紀錄：/api/bookings/{studentId}/history?offset=0&limit=20
+                String studentId = path.substring("/api/bookings/".length(), path.length() - "/history".length());
+                if (!authorize(exchange, studentId)) {
+                    return;
+                }
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+                int offset = parseNonNegative(params.get("offset"), 0);
+                int limit = Math.min(parseNonNegative(params.get("limit"), 20), 100);
+                
+                JsonWriter json = JsonWriter.acquire();
+                try {
+                    json.streamTo(exchange, 200)
+                        .beginObject()
+                        .name("total").value(service.getMemberReservationHistoryCount(studentId))
+                        .name("offset").value(offset)
+                        .name("items");
+                    renderHistory(json, service.getMemberReservationHistory(studentId, offset, limit));
+                    json.endObject().finish();
+                } finally {
+                    json.release();
+                }
+
+            } else if ("GET".equals(exchange.getRequestMethod())) {
+                String studentId = path.substring(path.lastIndexOf("/") + 1);
+                if (!authorize(exchange, studentId)) {
+                    return;
+                }
+                
+                List<Reservation> userReservations = service.getMemberReservations(studentId);
+                
+                JsonWriter json = JsonWriter.acquire();
+                try {
+                    json.streamTo(exchange, 200);
+                    renderReservations(json, userReservations, LocalDate.now());
+                    json.finish();
+                } finally {
+                    json.release();
+                }
+
+            } else if ("POST".equals(exchange.getRequestMethod()) && path.endsWith("/checkin")) {
+                // 上車報到：/api/bookings/{reservationId}/checkin?studentId=...
+                String reservationId = path.substring("/api/bookings/".length(), path.length() - "/checkin".length());
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+                String studentId = params.get("studentId");
+                if (!authorize(exchange, studentId)) {
+                    return;
+                }
+                if (studentId != null && service.checkIn(reservationId, studentId)) {
+                    sendResponse(exchange, 200, "{\"success\": true}");
+                } else {
+                    sendResponse(exchange, 400, "{\"error\": \"報到失敗或預約不存在\"}");
+                }
+            } else if ("POST".equals(exchange.getRequestMethod()) && path.endsWith("/batch")) {
+                // 批次預約：/api/bookings/batch，全部成功回應 200，否則 409 並標示各項原因
+                BatchBookingRequest request;
+                try {
+                    request = BatchBookingRequest.parse(JsonRequestReader.readBody(exchange, maxBodyBytes));
+                } catch (RequestParseException e) {
+                    sendError(exchange, e);
+                    return;
+                }
+                if (!request.isComplete()) {
+                    sendResponse(exchange, 400, "{\"error\": \"缺少 studentId 或 items 的 scheduleId / seatNumber\"}");
+                    return;
+                }
+                if (!authorize(exchange, request.getStudentId())) {
+                    return;
+                }
+                renderBatch(exchange, request, bookBatch(request));
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                BookingRequest request;
+                try {
+                    request = BookingRequest.parse(JsonRequestReader.readBody(exchange, maxBodyBytes));
+                } catch (RequestParseException e) {
+                    sendError(exchange, e);
+                    return;
+                }
+                if (!authorize(exchange, request.getStudentId())) {
+                    return;
+                }
+                
+                if (request.isComplete() && waitingRoom != null) {
+                    // 熱門班次改為排隊：回應 202 與號碼牌，由 WaitingRoom 依序建立預約
+                    Trip trip = service.findTripById(request.getScheduleId());
+                    if (trip != null && waitingRoom.isHot(trip)) {
+                        WaitingRoom.Ticket ticket = waitingRoom.enqueue(request.getStudentId(), trip, request.getSeatNumber());
+                        if (ticket == null) {
+                            exchange.getResponseHeaders().set("Retry-After", "5");
+                            sendResponse(exchange, 503, "{\"error\": \"排隊人數已滿，請稍後再試\"}");
+                        } else {
+                            QueueHandler.renderTicket(exchange, 202, ticket);
+                        }
+                        return;
+                    }
+                }
+                if (request.isComplete()) {
+                    // 建立預約
+                    Reservation newReservation = service.createReservation(request.getStudentId(), request.getScheduleId(), request.getSeatNumber());
+                    
+                    if (newReservation != null) {
+                        JsonWriter json = JsonWriter.acquire();
+                        try {
+                            json.streamTo(exchange, 200)
+                                .beginObject()
+                                .name("id").value(newReservation.getReservationId())
+                                .name("success").value(true)
+                                .endObject()
+                                .finish();
+                        } finally {
+                            json.release();
+                        }
+                        return;
+                    }
+                }
+                sendResponse(exchange, 400, "{\"error\": \"預約失敗，可能原因：座位已被預約或違規停權\"}");
+            } else if ("DELETE".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+                CancelRequest request = new CancelRequest(path.substring(path.lastIndexOf("/") + 1), params.get("studentId"));
+                if (!authorize(exchange, request.getStudentId())) {
+                    return;
+                }
+                
+                if (request.isComplete()) {
+                    // 取消預約
+                    if (service.cancelReservation(request.getReservationId(), request.getStudentId())) {
+                        sendResponse(exchange, 200, "{\"success\": true}");
+                        return;
+                    }
+                }
+                sendResponse(exchange, 400, "{\"error\": \"取消失敗或預約不存在\"}");
+            }
+        }
+        
+        // 熱門班次須經由排隊依序處理，不接受批次直接預約
+        private BatchBookingResult bookBatch(BatchBookingRequest request) {
+            if (waitingRoom != null) {
+                String[] errors = new String[request.size()];
+                boolean hot = false;
+                for (int i = 0; i < request.size(); i++) {
+                    Trip trip = service.findTripById(request.getScheduleId(i));
+                    if (trip != null && waitingRoom.isHot(trip)) {
+                        errors[i] = "熱門班次請單獨排隊預約";
+                        hot = true;
+                    }
+                }
+                if (hot) {
+                    return BatchBookingResult.failure(errors);
+                }
+            }
+            return service.createReservations(request.getStudentId(), request.getScheduleIds(), request.getSeatNumbers());
+        }
+        
+        private static void renderBatch(HttpExchange exchange, BatchBookingRequest request, BatchBookingResult result) throws IOException {
+            JsonWriter json = JsonWriter.acquire();
+            try {
+                json.streamTo(exchange, result.isSuccess() ? 200 : 409)
+                    .beginObject()
+                    .name("success").value(result.isSuccess())
+                    .name("items").beginArray();
+                for (int i = 0; i < request.size(); i++) {
+                    json.beginObject()
+                        .name("scheduleId").value(request.getScheduleId(i))
+                        .name("seatNumber").value(request.getSeatNumber(i));
+                    if (result.isSuccess()) {
+                        json.name("id").value(result.getReservation(i).getReservationId());
+                    } else {
+                        json.name("error").value(result.getError(i));
+                    }
+                    json.endObject();
+                }
+                json.endArray().endObject().finish();
+            } finally {
+                json.release();
+            }
+        }
+        
+        static void renderReservations(JsonWriter json, List<Reservation> reservations, LocalDate today) throws IOException {
+            json.beginArray();
+            for (Reservation r : reservations) {
+                Trip t = r.getTrip();
+                
+                String statusDisplay;
+                long daysUntilTrip = ChronoUnit.DAYS.between(today, t.getDate());
+                
+                if (daysUntilTrip <= 3 && daysUntilTrip >= 0) {
+                    statusDisplay = "即將到來";
+                } else if (daysUntilTrip > 3) {
+                    statusDisplay = daysUntilTrip + "天後";
+                } else {
+                    statusDisplay = "已過期"; 
+                }
+                
+                json.beginObject()
+                    .name("id").value(r.getReservationId())
+                    .name("studentId").value(r.getMember().getStudentId())
+                    .name("seatNumber").stringValue(r.getSeat().getSeatNumber())
+                    .name("statusDisplay").value(statusDisplay)
+                    .name("schedule").beginObject()
+                        .name("id").value(t.getTripId())
+                        .name("date").value(t.getDate())
+                        .name("route").value(t.getRoute().getRouteName())
+                        .name("departureTime").value(t.getDepartureTime())
+                    .endObject()
+                    .endObject();
+            }
+            json.endArray();
+        }
+        
+        static void renderHistory(JsonWriter json, List<ArchivedReservation> records) throws IOException {
+            json.beginArray();
+            for (ArchivedReservation r : records) {
+                json.beginObject()
+                    .name("id").value(r.getReservationId())
+                    .name("seatNumber").stringValue(r.getSeatNumber())
+                    .name("status").value(r.getStatus().name())
+                    .name("reservedAt").value(r.getReservationDateTime().toString())
+                    .name("schedule").beginObject()
+                        .name("id").value(r.getTripId())
+                        .name("date").value(r.getDate())
+                        .name("route").value(r.getRouteName())
+                        .name("departureTime").value(r.getDepartureTime())
+                    .endObject()
+                    .endObject();
+            }
+            json.endArray();
+        }
+    }
+    
+    /*============================ Handler 3-1: Seat Holds ================================= */
+    // POST   /api/holds                              保留座位，Body 與建立預約相同
+    // POST   /api/holds/{holdId}/confirm?studentId=  將保留確認為預約
+    // DELETE /api/holds/{holdId}?studentId=          放棄保留
+    static class HoldHandler implements HttpHandler {
+        private final ReservationManager service;
+        private final SeatHoldManager seatHolds;
+        private final int maxBodyBytes;
+        private final WaitingRoom waitingRoom; // 未設定熱門班次時為 null
+        
+        public HoldHandler(ReservationManager service, SeatHoldManager seatHolds, int maxBodyBytes, WaitingRoom waitingRoom) {
+            this.service = service;
+            this.seatHolds = seatHolds;
+            this.maxBodyBytes = maxBodyBytes;
+            this.waitingRoom = waitingRoom;
+        }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            
+            if ("POST".equals(exchange.getRequestMethod()) && path.endsWith("/confirm")) {
+                String studentId = parseQuery(exchange.getRequestURI().getQuery()).get("studentId");
+                if (!authorize(exchange, studentId)) {
+                    return;
+                }
+                SeatHold hold = findHold(path.substring("/api/holds/".length(), path.length() - "/confirm".length()), studentId);
+                Reservation reservation = hold == null ? null : seatHolds.confirm(hold);
+                if (reservation == null) {
+                    sendResponse(exchange, 409, "{\"error\": \"保留已逾時或不存在，請重新選位\"}");
+                    return;
+                }
+                JsonWriter json = JsonWriter.acquire();
+                try {
+                    json.streamTo(exchange, 200)
+                        .beginObject()
+                        .name("id").value(reservation.getReservationId())
+                        .name("success").value(true)
+                        .endObject()
+                        .finish();
+                } finally {
+                    json.release();
+                }
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                BookingRequest request;
+                try {
+                    request = BookingRequest.parse(JsonRequestReader.readBody(exchange, maxBodyBytes));
+                } catch (RequestParseException e) {
+                    sendError(exchange, e);
+                    return;
+                }
+                if (!request.isComplete()) {
+                    sendResponse(exchange, 400, "{\"error\": \"缺少 studentId、scheduleId 或 seatNumber\"}");
+                    return;
+                }
+                if (!authorize(exchange, request.getStudentId())) {
+                    return;
+                }
+                // 熱門班次須經由排隊依序處理，保留會讓先選位的人繞過排隊
+                Trip trip = service.findTripById(request.getScheduleId());
+                if (trip != null && waitingRoom != null && waitingRoom.isHot(trip)) {
+                    sendResponse(exchange, 409, "{\"error\": \"熱門班次請直接排隊預約\"}");
+                    return;
+                }
+                SeatHold hold = seatHolds.hold(request.getStudentId(), request.getScheduleId(), request.getSeatNumber());
+                if (hold == null) {
+                    sendResponse(exchange, 409, "{\"error\": \"保留失敗，可能原因：座位已被預約或保留、保留數已達上限或違規停權\"}");
+                    return;
+                }
+                JsonWriter json = JsonWriter.acquire();
+                try {
+                    json.streamTo(exchange, 200)
+                        .beginObject()
+                        .name("holdId").value(hold.getHoldId())
+                        .name("scheduleId").value(hold.getTrip().getTripId())
+                        .name("seatNumber").stringValue(hold.getSeatNumber())
+                        .name("expiresAt").value(hold.getExpiresAtMillis() / 1000)
+                        .name("ttlSeconds").value(seatHolds.getTtlMillis() / 1000)
+                        .endObject()
+                        .finish();
+                } finally {
+                    json.release();
+                }
+            } else if ("DELETE".equals(exchange.getRequestMethod())) {
+                String studentId = parseQuery(exchange.getRequestURI().getQuery()).get("studentId");
+                if (!authorize(exchange, studentId)) {
+                    return;
+                }
+                SeatHold hold = findHold(path.substring(path.lastIndexOf("/") + 1), studentId);
+                if (hold != null && seatHolds.release(hold)) {
+                    sendResponse(exchange, 200, "{\"success\": true}");
+                } else {
+                    sendResponse(exchange, 404, "{\"error\": \"保留已逾時或不存在\"}");
+                }
+            } else {
+                sendResponse(exchange, 405, "{\"error\": \"不支援的請求方法\"}");
+            }
+        }
         
-        System.out.println("Server started at http://localhost:8080");
+        private SeatHold findHold(String holdId, String studentId) {
+            if (studentId == null) {
+                return null;
+            }
+            try {
+                return seatHolds.find(Long.parseLong(holdId), studentId);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
     }
+    
+    /*============================ Handler 3-2: Waitlist ================================= */
+    // POST   /api/waitlist                             候補額滿班次，Body: {"studentId", "scheduleId"}
+    // GET    /api/waitlist/{entryId}?studentId=&wait=  查詢候補狀態；加上 wait=秒數（上限 30）時等到遞補或逾時才回應，
+    //                                                  座位一釋放就收到結果，不必反覆查詢班次；等待期間不占用處理執行緒
+    // DELETE /api/waitlist/{entryId}?studentId=        離開候補
+    static class WaitlistHandler implements HttpHandler {
+        private static final int MAX_WAIT_SECONDS = 30;
+        private final WaitlistManager waitlist;
+        private final int maxBodyBytes;
 
-    // 資料生成方法
-    private static DataStore initializeSystemData() {
-        // Member 初始化
-        Map<String, Member> members = new HashMap<>();
-        members.put("A001", new Member("A001", "password123")); 
-        members.put("B11100001", new Member("B11100001", "pass"));
-        // Route 初始化
-        Map<String, Route> routes = new HashMap<>();
-        Route route1 = new Route("R01", "中央大學-桃園高鐵站");
-        Route route2 = new Route("R02", "桃園高鐵站-中央大學");
-        Route route3 = new Route("R03", "中央大學-中壢火車站");
-        Route route4 = new Route("R04", "中壢火車站-中央大學");
-        
-        routes.put(route1.getRouteName(), route1);
-        routes.put(route2.getRouteName(), route2);
-        routes.put(route3.getRouteName(), route3);
-        routes.put(route4.getRouteName(), route4);
-        
-        List<Route> allRoutes = List.of(route1, route2, route3, route4);
+        public WaitlistHandler(WaitlistManager waitlist, int maxBodyBytes) {
+            this.waitlist = waitlist;
+            this.maxBodyBytes = maxBodyBytes;
+        }
 
-        // Trip 初始化
-        List<Trip> allTrips = new ArrayList<>();
-        LocalTime[] times = {
-            LocalTime.of(8, 0), LocalTime.of(9, 30), LocalTime.of(11, 0),
-            LocalTime.of(13, 30), LocalTime.of(15, 0), LocalTime.of(16, 30)
-        };
-        
-        long tripIdCounter = 1; // ID 計數器
-        LocalDate today = LocalDate.now();
-        
-        // 生成一個月的 Trip 資料
-        for (int i = 0; i < 30; i++){
-            LocalDate date = today.plusDays(i);
-            for (Route r : allRoutes){
-                for (LocalTime time : times){
-                    String tripIdStr = String.valueOf(tripIdCounter++);
-                    allTrips.add(new Trip(tripIdStr, r, date, time)); 
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORSHeaders(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            if ("POST".equals(exchange.getRequestMethod())) {
+                WaitlistRequest request;
+                try {
+                    request = WaitlistRequest.parse(JsonRequestReader.readBody(exchange, maxBodyBytes));
+                } catch (RequestParseException e) {
+                    sendError(exchange, e);
+                    return;
+                }
+                if (!request.isComplete()) {
+                    sendResponse(exchange, 400, "{\"error\": \"缺少 studentId 或 scheduleId\"}");
+                    return;
+                }
+                if (!authorize(exchange, request.getStudentId())) {
+                    return;
+                }
+                WaitlistEntry entry = waitlist.join(request.getStudentId(), request.getScheduleId());
+                if (entry == null) {
+                    sendResponse(exchange, 409, "{\"error\": \"候補失敗，可能原因：班次仍有空位、候補人數或候補班次數已達上限、班次已發車或違規停權\"}");
+                    return;
+                }
+                renderEntry(exchange, entry);
+                return;
+            }
+
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            String studentId = params.get("studentId");
+            if (!authorize(exchange, studentId)) {
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            WaitlistEntry entry = findEntry(path.substring(path.lastIndexOf("/") + 1), studentId);
+            if ("GET".equals(exchange.getRequestMethod())) {
+                if (entry == null) {
+                    sendResponse(exchange, 404, "{\"error\": \"候補不存在或已過期\"}");
+                    return;
+                }
+                int waitSeconds = Math.min(parseNonNegative(params.get("wait"), 0), MAX_WAIT_SECONDS);
+                if (waitSeconds == 0 || !entry.isWaiting()) {
+                    renderEntry(exchange, entry);
+                    return;
+                }
+                waitlist.awaitResult(entry, TimeUnit.SECONDS.toMillis(waitSeconds), () -> {
+                    try {
+                        renderEntry(exchange, entry);
+                    } catch (IOException e) {
+                        exchange.close(); // 用戶已離線
+                    }
+                });
+                // 不關閉 exchange，遞補或逾時後由 WaitlistManager 的通知執行緒回應
+            } else if ("DELETE".equals(exchange.getRequestMethod())) {
+                if (entry != null && waitlist.leave(entry)) {
+                    sendResponse(exchange, 200, "{\"success\": true}");
+                } else {
+                    sendResponse(exchange, 404, "{\"error\": \"候補不存在或已結束\"}");
                 }
+            } else {
+                sendResponse(exchange, 405, "{\"error\": \"不支援的請求方法\"}");
+            }
+        }
+
+        private WaitlistEntry findEntry(String entryId, String studentId) {
+            if (studentId == null) {
+                return null;
+            }
+            try {
+                return waitlist.find(Long.parseLong(entryId), studentId);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private void renderEntry(HttpExchange exchange, WaitlistEntry entry) throws IOException {
+            JsonWriter json = JsonWriter.acquire();
+            try {
+                json.streamTo(exchange, 200)
+                    .beginObject()
+                    .name("entryId").value(entry.getEntryId())
+                    .name("scheduleId").value(entry.getTrip().getTripId())
+                    .name("status").value(entry.getStateName())
+                    .name("position").value(waitlist.position(entry));
+                Reservation reservation = entry.getReservation();
+                if (reservation != null) {
+                    json.name("id").value(reservation.getReservationId())
+                        .name("seatNumber").value(reservation.getSeatNumber());
+                }
+                json.endObject().finish();
+            } finally {
+                json.release();
             }
         }
-        System.out.println("系統初始化：共生成 " + allTrips.size() + " 筆班次資料。");
-        
-        return new DataStore(allTrips, members, routes);
     }
 
-    /*============================ Handler 1: Login ================================= */
-    static class LoginHandler implements HttpHandler {
-        private final ReservationManager service;
+    /*============================ Handler 4: Static Files ================================= */
+    // 由 StaticAssetCache 提供檔案：支援 gzip、強 ETag / Last-Modified 條件式請求（304）與 HEAD
+    static class StaticFileHandler implements HttpHandler {
+        private final StaticAssetCache assets;
         
-        public LoginHandler(ReservationManager service) { this.service = service; }
+        public StaticFileHandler(StaticAssetCache assets) { this.assets = assets; }
         
         public void handle(HttpExchange exchange) throws IOException {
-            setCORSHeaders(exchange);
-            if ("OPTIONS".equals(exchange.getRequestMethod())) {
-                exchange.sendResponseHeaders(200, -1);
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equals(method);
+            if (!"GET".equals(method) && !head) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendResponse(exchange, 405, "405 Method Not Allowed");
                 return;
             }
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/")) path = "/index.html";
             
-            if ("POST".equals(exchange.getRequestMethod())) {
-                String body = getRequestBody(exchange);
-                String username = extractJsonValue(body, "username"); 
-                
-                if (username != null && !username.isEmpty()) {
-                    service.findOrCreateMember(username); 
-                    
-                    String response = "{\"success\": true, \"studentId\": \"" + username + "\"}";
-                    sendResponse(exchange, 200, response);
-                } else {
-                    String response = "{\"success\": false, \"message\": \"登入失敗\"}";
-                    sendResponse(exchange, 400, response);
+            StaticAssetCache.Asset asset = assets.lookup(path);
+            if (asset == null) {
+                sendResponse(exchange, 404, "404 Not Found");
+                return;
+            }
+            Headers request = exchange.getRequestHeaders();
+            boolean gzip = asset.getGzipBody() != null && acceptsGzip(request.getFirst("Accept-Encoding"));
+            String etag = gzip ? asset.getGzipEtag() : asset.getEtag();
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", asset.getContentType());
+            headers.set("ETag", etag);
+            headers.set("Last-Modified", asset.getLastModified());
+            headers.set("Cache-Control", asset.getCacheControl());
+            headers.set("Vary", "Accept-Encoding");
+            if (isNotModified(request, etag, asset.getLastModifiedMillis())) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            if (gzip) {
+                headers.set("Content-Encoding", "gzip");
+            }
+            if (head) {
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = gzip ? asset.getGzipBody() : asset.getBody();
+            if (body != null) {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+                return;
+            }
+            // 大檔案不放入記憶體，由 FileChannel 直接傳送到回應串流
+            try (FileChannel channel = FileChannel.open(asset.getPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                exchange.sendResponseHeaders(200, size);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    WritableByteChannel target = Channels.newChannel(os);
+                    long position = 0;
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, target);
+                    }
+                }
+            }
+        }
+        
+        // If-None-Match 優先；沒有時才比較 If-Modified-Since（HTTP 日期只精確到秒）
+        private static boolean isNotModified(Headers request, String etag, long lastModifiedMillis) {
+            String ifNoneMatch = request.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                return etagMatches(ifNoneMatch, etag);
+            }
+            String ifModifiedSince = request.getFirst("If-Modified-Since");
+            if (ifModifiedSince == null) {
+                return false;
+            }
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return lastModifiedMillis / 1000 <= since / 1000;
+            } catch (DateTimeException e) {
+                return false;
+            }
+        }
+        
+        private static boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String token : acceptEncoding.split(",")) {
+                String[] parts = token.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
                 }
             }
+            return false;
         }
     }
     
-    /*============================ Handler 2: Schedules ================================= */
-    static class ScheduleHandler implements HttpHandler {
+    /*============================ Handler 5: Status ================================= */
+    static class StatusHandler implements HttpHandler {
         private final ReservationManager service;
+        private final RequestExecutor executor;
+        private final ScheduleCache scheduleCache;
+        private final SeatEventStream seatStream;
+        private final AdmissionController admission; // 未啟用准入控制時為 null
+        private final WaitingRoom waitingRoom;       // 未設定熱門班次時為 null
+        private final SeatHoldManager seatHolds;
+        private final WaitlistManager waitlist;
         
-        public ScheduleHandler(ReservationManager service) { this.service = service; }
+        public StatusHandler(ReservationManager service, RequestExecutor executor, ScheduleCache scheduleCache, SeatEventStream seatStream,
+                             AdmissionController admission, WaitingRoom waitingRoom, SeatHoldManager seatHolds, WaitlistManager waitlist) {
+            this.service = service;
+            this.executor = executor;
+            this.scheduleCache = scheduleCache;
+            this.seatStream = seatStream;
+            this.admission = admission;
+            this.waitingRoom = waitingRoom;
+            this.seatHolds = seatHolds;
+            this.waitlist = waitlist;
+        }
         
         public void handle(HttpExchange exchange) throws IOException {
             setCORSHeaders(exchange);
@@ -502,174 +7473,308 @@ public class SimpleApp {
             }
             
             if ("GET".equals(exchange.getRequestMethod())) {
-                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
-                String dateStr = params.get("date");
-                String timeStr = params.get("time");
-                String routeName = params.get("route"); 
-                LocalDate queryDate;
-                LocalTime queryTime = null;
+                SweepResult sweep = service.getLastSweep();
+                String response = "{"
+                    + "\"executorMode\":\"" + executor.getMode() + "\","
+                    + "\"activeWorkers\":" + executor.getActiveWorkers() + ","
+                    + "\"poolSize\":" + executor.getPoolSize() + ","
+                    + "\"queueDepth\":" + executor.getQueueDepth() + ","
+                    + "\"rejectedRequests\":" + executor.getRejectedCount() + ","
+                    + "\"scheduleCache\":{"
+                    + "\"size\":" + scheduleCache.size() + ","
+                    + "\"hits\":" + scheduleCache.getHits() + ","
+                    + "\"misses\":" + scheduleCache.getMisses() + ","
+                    + "\"evictions\":" + scheduleCache.getEvictions() + ","
+                    + "\"invalidations\":" + scheduleCache.getInvalidations()
+                    + "},"
+                    + "\"seatStream\":{"
+                    + "\"subscribers\":" + seatStream.getSubscriberCount() + ","
+                    + "\"events\":" + seatStream.getPublishedEvents() + ","
+                    + "\"droppedSubscribers\":" + seatStream.getDroppedSubscribers()
+                    + "},"
+                    + "\"noShowSweep\":{"
+                    + "\"lastExpiredTrips\":" + sweep.getExpiredTrips() + ","
+                    + "\"lastProcessedReservations\":" + sweep.getProcessedReservations() + ","
+                    + "\"lastNoShows\":" + sweep.getNoShows() + ","
+                    + "\"lastMillis\":" + String.format(Locale.ROOT, "%.1f", sweep.getElapsedMillis()) + ","
+                    + "\"totalNoShows\":" + service.getTotalNoShows()
+                    + "},"
+                    + "\"admission\":" + (admission == null ? "null" : "{"
+                        + "\"inFlight\":" + admission.getInFlight() + ","
+                        + "\"admitted\":" + admission.getAdmitted() + ","
+                        + "\"rateLimited\":" + admission.getRateLimited() + ","
+                        + "\"shedBooking\":" + admission.getShedBooking() + ","
+                        + "\"shedBrowse\":" + admission.getShedBrowse() + ","
+                        + "\"trackedKeys\":" + admission.getTrackedKeys()
+                        + "}") + ","
+                    + "\"waitingRoom\":" + (waitingRoom == null ? "null" : "{"
+                        + "\"hotTrips\":" + waitingRoom.getHotTripCount() + ","
+                        + "\"activeQueues\":" + waitingRoom.getActiveQueues() + ","
+                        + "\"tickets\":" + waitingRoom.getTrackedTickets() + ","
+                        + "\"confirmed\":" + waitingRoom.getConfirmed() + ","
+                        + "\"failed\":" + waitingRoom.getFailed() + ","
+                        + "\"rejected\":" + waitingRoom.getRejected()
+                        + "}") + ","
+                    + "\"seatHolds\":{"
+                    + "\"active\":" + seatHolds.getActiveHolds() + ","
+                    + "\"placed\":" + seatHolds.getPlaced() + ","
+                    + "\"confirmed\":" + seatHolds.getConfirmed() + ","
+                    + "\"released\":" + seatHolds.getReleased() + ","
+                    + "\"expired\":" + seatHolds.getExpired() + ","
+                    + "\"rejected\":" + seatHolds.getRejected()
+                    + "},"
+                    + "\"waitlist\":{"
+                    + "\"waiting\":" + waitlist.getWaiting() + ","
+                    + "\"joined\":" + waitlist.getJoined() + ","
+                    + "\"promoted\":" + waitlist.getPromoted() + ","
+                    + "\"left\":" + waitlist.getLeft() + ","
+                    + "\"dropped\":" + waitlist.getDropped() + ","
+                    + "\"expired\":" + waitlist.getExpired() + ","
+                    + "\"rejected\":" + waitlist.getRejected()
+                    + "}"
+                    + "}";
+                sendResponse(exchange, 200, response);
+            }
+        }
+    }
+    
+    /*============================ Handler 6: Metrics ================================= */
+    // GET /api/metrics：Prometheus 文字格式
+    static class MetricsHandler implements HttpHandler {
+        private final MetricsRegistry metrics;
+        
+        public MetricsHandler(MetricsRegistry metrics) { this.metrics = metrics; }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
 
-                try {
-                    queryDate = LocalDate.parse(dateStr, DATE_FORMATTER);
-                    if (timeStr != null && !timeStr.isEmpty()) {
-                        queryTime = LocalTime.parse(timeStr, DateTimeFormatter.ISO_LOCAL_TIME);
-                    }
-                } catch (Exception e) {
-                    sendResponse(exchange, 400, "{\"error\": \"日期或時間格式錯誤\"}");
-                    return;
+    /*============================ Filter: Metrics ================================= */
+    // 依端點、方法與狀態碼類別記錄回應時間；放在最外層，被限流或卸載（429/503）的請求也會計入。
+    // 交由其他執行緒回應的長輪詢在 Handler 返回時尚未回應，不計入
+    static class MetricsFilter extends Filter {
+        private static final String[] METHODS = { "GET", "POST", "DELETE", "HEAD", "OPTIONS", "OTHER" };
+        private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+        private final MetricsRegistry metrics;
+        private final String endpoint;
+        // 依 方法 x 狀態碼類別 快取直方圖參照；同時寫入時登錄處回傳同一個物件，不需同步
+        private final LatencyHistogram[] histograms = new LatencyHistogram[METHODS.length * STATUS_CLASSES.length];
+        
+        public MetricsFilter(MetricsRegistry metrics, String endpoint) {
+            this.metrics = metrics;
+            this.endpoint = endpoint;
+        }
+        
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                int code = exchange.getResponseCode();
+                if (code >= 100 && code < 600) {
+                    histogram(exchange.getRequestMethod(), code / 100 - 1).recordSince(start);
                 }
-                
-                List<Trip> filtered = service.getFilteredTrips(queryDate, queryTime, routeName);
-                
-                if (filtered.isEmpty() && queryDate.isAfter(LocalDate.now().plusDays(30))) {
-                    sendResponse(exchange, 400, "{\"error\": \"尚未開放預約\"}");
+            }
+        }
+        
+        private LatencyHistogram histogram(String method, int statusClass) {
+            int methodIndex = METHODS.length - 1;
+            for (int i = 0; i < METHODS.length - 1; i++) {
+                if (METHODS[i].equals(method)) {
+                    methodIndex = i;
+                    break;
+                }
+            }
+            int index = methodIndex * STATUS_CLASSES.length + statusClass;
+            LatencyHistogram histogram = histograms[index];
+            if (histogram == null) {
+                histogram = metrics.histogram("bus_http_request_duration_seconds", "HTTP response time by endpoint, method and status class",
+                    MetricsRegistry.label("endpoint", endpoint) + "," + MetricsRegistry.label("method", METHODS[methodIndex].toLowerCase(Locale.ROOT))
+                    + "," + MetricsRegistry.label("status", STATUS_CLASSES[statusClass]));
+                histograms[index] = histogram;
+            }
+            return histogram;
+        }
+        
+        public String description() {
+            return "Records response time per endpoint for /api/metrics";
+        }
+    }
+
+    /*============================ Filter: Journal ================================= */
+    // 預約日誌寫入失敗時，異動沒有寫入磁碟，改回應 503 而不是讓 Handler 回報成功
+    static class JournalFailureFilter extends Filter {
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            try {
+                chain.doFilter(exchange);
+            } catch (JournalFailedException e) {
+                if (exchange.getResponseCode() == -1) {
+                    setCORSHeaders(exchange);
+                    sendResponse(exchange, 503, "{\"error\": \"預約紀錄無法寫入，請稍後再試\"}");
+                } else {
+                    throw e;
+                }
+            }
+        }
+        
+        public String description() {
+            return "Answers 503 when a change could not be written to the reservation journal";
+        }
+    }
+
+    /*============================ Filter: Auth ================================= */
+    // 驗證 Authorization: Bearer Token，通過後把學號存入 exchange 屬性，由 Handler 比對請求中的學號；CORS 預檢不需 Token
+    static class AuthFilter extends Filter {
+        static final String PRINCIPAL = "auth.studentId";
+        private final AuthService auth;
+        
+        public AuthFilter(AuthService auth) { this.auth = auth; }
+        
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!"OPTIONS".equals(exchange.getRequestMethod())) {
+                String studentId = auth.authenticateHeader(exchange.getRequestHeaders().getFirst("Authorization"));
+                if (studentId == null) {
+                    setCORSHeaders(exchange);
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    sendResponse(exchange, 401, "{\"error\": \"請先登入\"}");
                     return;
                 }
-                
-                StringBuilder json = new StringBuilder("[");
-                for (int i = 0; i < filtered.size(); i++) {
-                    if (i > 0) json.append(",");
-                    Trip t = filtered.get(i);
-                    
-                    StringBuilder occupiedSeats = new StringBuilder("[");
-                    boolean first = true;
-                    for (String seatNum : t.getOccupiedSeats()) {
-                        if (!first) occupiedSeats.append(",");
-                        occupiedSeats.append("\"").append(seatNum).append("\"");
-                        first = false;
-                    }
-                    occupiedSeats.append("]");
-                    
-                    json.append("{")
-                        .append("\"id\":").append("\"").append(t.getTripId()).append("\",")
-                        .append("\"date\":\"").append(t.getDate()).append("\",")
-                        .append("\"route\":\"").append(t.getRoute().getRouteName()).append("\",") 
-                        .append("\"departureTime\":\"").append(t.getDepartureTime()).append("\",")
-                        .append("\"totalSeats\":").append(t.getTotalSeats()).append(",")
-                        .append("\"availableSeats\":").append(t.getAvailableSeats()).append(",") 
-                        .append("\"occupiedSeats\":").append(occupiedSeats.toString())
-                        .append("}");
-                }
-                json.append("]");
-                
-                sendResponse(exchange, 200, json.toString());
+                exchange.setAttribute(PRINCIPAL, studentId);
             }
+            chain.doFilter(exchange);
+        }
+        
+        public String description() {
+            return "Requires a valid session token and records its student ID";
         }
     }
 
-    /*============================ Handler 3: Reservations ================================= */
-    static class ReservationHandler implements HttpHandler {
-        private final ReservationManager service;
+    /*============================ Filter: Overload ================================= */
+    // 執行緒池與佇列皆滿時，直接回應 503 與 Retry-After，不進入 Handler
+    static class OverloadFilter extends Filter {
+        private final RequestExecutor executor;
         
-        public ReservationHandler(ReservationManager service) { this.service = service; }
+        public OverloadFilter(RequestExecutor executor) { this.executor = executor; }
         
-        public void handle(HttpExchange exchange) throws IOException {
-            setCORSHeaders(exchange);
-            if ("OPTIONS".equals(exchange.getRequestMethod())) {
-                exchange.sendResponseHeaders(200, -1);
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (executor.isCurrentRequestRejected()) {
+                executor.recordRejection();
+                setCORSHeaders(exchange);
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(executor.getRetryAfterSeconds()));
+                exchange.getResponseHeaders().set("Connection", "close");
+                sendResponse(exchange, 503, "{\"error\": \"系統忙碌中，請稍後再試\"}");
                 return;
             }
+            chain.doFilter(exchange);
+        }
+        
+        public String description() {
+            return "Rejects requests that overflow the worker queue with 503";
+        }
+    }
+
+    /*============================ Filter: Admission ================================= */
+    // 准入控制：學號 / IP 超過速率回應 429，系統負載過高時先卸載瀏覽類請求，再卸載預約類請求（503）
+    static class AdmissionFilter extends Filter {
+        private final AdmissionController admission;
+        private final AuthService auth; // 未啟用驗證時為 null
+        private final int maxBodyBytes;
+        
+        public AdmissionFilter(AdmissionController admission, AuthService auth, int maxBodyBytes) {
+            this.admission = admission;
+            this.auth = auth;
+            this.maxBodyBytes = maxBodyBytes;
+        }
+        
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equals(method)) {
+                chain.doFilter(exchange);
+                return;
+            }
+            String studentId;
+            try {
+                studentId = findStudentId(exchange);
+            } catch (RequestParseException e) {
+                setCORSHeaders(exchange);
+                sendError(exchange, e);
+                return;
+            }
+            int priority = "GET".equals(method) ? AdmissionController.PRIORITY_BROWSE : AdmissionController.PRIORITY_BOOKING;
+            InetSocketAddress remote = exchange.getRemoteAddress();
+            String ip = remote.getAddress() != null ? remote.getAddress().getHostAddress() : remote.getHostString();
             
+            int result = admission.tryAdmit(ip, studentId, priority);
+            if (result == AdmissionController.RATE_LIMITED) {
+                setCORSHeaders(exchange);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(exchange, 429, "{\"error\": \"請求過於頻繁，請稍後再試\"}");
+                return;
+            }
+            if (result == AdmissionController.SHED) {
+                setCORSHeaders(exchange);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(exchange, 503, "{\"error\": \"系統忙碌中，請稍後再試\"}");
+                return;
+            }
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                admission.release();
+            }
+        }
+        
+        // 啟用驗證時只採用 Token 驗證後的學號，請求中自稱的學號可任意填寫，不能用來分配額度；
+        // 未帶有效 Token（例如登入請求）時只以 IP 限流。
+        // 未啟用驗證時依序從查詢參數、路徑（/api/bookings/{studentId}）與請求內容（studentId / username）找出學號；
+        // 讀過的請求內容放回 exchange，讓 Handler 可以再讀一次
+        private String findStudentId(HttpExchange exchange) throws IOException, RequestParseException {
+            if (auth != null) {
+                return auth.authenticateHeader(exchange.getRequestHeaders().getFirst("Authorization"));
+            }
+            String studentId = parseQuery(exchange.getRequestURI().getQuery()).get("studentId");
+            if (studentId != null) {
+                return studentId;
+            }
+            String method = exchange.getRequestMethod();
             String path = exchange.getRequestURI().getPath();
-            
-            if ("GET".equals(exchange.getRequestMethod())) {
-                String studentId = path.substring(path.lastIndexOf("/") + 1);
-                
-                List<Reservation> userReservations = service.getMemberReservations(studentId);
-                
-                StringBuilder json = new StringBuilder("[");
-                for (int i = 0; i < userReservations.size(); i++) {
-                    if (i > 0) json.append(",");
-                    Reservation r = userReservations.get(i);
-                    Trip t = r.getTrip();
-                    
-                    String statusDisplay;
-                    long daysUntilTrip = ChronoUnit.DAYS.between(LocalDate.now(), t.getDate());
-                    
-                    if (daysUntilTrip <= 3 && daysUntilTrip >= 0) {
-                        statusDisplay = "即將到來";
-                    } else if (daysUntilTrip > 3) {
-                        statusDisplay = daysUntilTrip + "天後";
-                    } else {
-                        statusDisplay = "已過期"; 
-                    }
-                    
-                    json.append("{")
-                        .append("\"id\":").append("\"").append(r.getReservationId()).append("\",") 
-                        .append("\"studentId\":\"").append(r.getMember().getStudentId()).append("\",")
-                        .append("\"seatNumber\":\"").append(r.getSeatNumber()).append("\",")
-                        .append("\"statusDisplay\":\"").append(statusDisplay).append("\",") 
-                        .append("\"schedule\":{")
-                        .append("\"id\":").append("\"").append(t.getTripId()).append("\",")
-                        .append("\"date\":\"").append(t.getDate()).append("\",")
-                        .append("\"route\":\"").append(t.getRoute().getRouteName()).append("\",") 
-                        .append("\"departureTime\":\"").append(t.getDepartureTime()).append("\"")
-                        .append("}")
-                        .append("}");
-                }
-                json.append("]");
-                sendResponse(exchange, 200, json.toString());
-
-            } else if ("POST".equals(exchange.getRequestMethod())) {
-                String body = getRequestBody(exchange);
-                String studentId = extractJsonValue(body, "studentId");
-                String scheduleIdStr = extractJsonValue(body, "scheduleId");
-                String seatNumber = extractJsonValue(body, "seatNumber");
-                
-                if (studentId != null && scheduleIdStr != null && seatNumber != null) {
-                    // 建立預約
-                    Reservation newReservation = service.createReservation(studentId, scheduleIdStr, seatNumber);
-                    
-                    if (newReservation != null) {
-                        String response = "{\"id\": \"" + newReservation.getReservationId() + "\", \"success\": true}"; 
-                        sendResponse(exchange, 200, response);
-                        return;
-                    }
-                }
-                sendResponse(exchange, 400, "{\"error\": \"預約失敗，可能原因：座位已被預約或違規停權\"}");
-            } else if ("DELETE".equals(exchange.getRequestMethod())) {
-                String reservationIdStr = path.substring(path.lastIndexOf("/") + 1);
-                Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
-                String studentId = params.get("studentId");
-                
-                if (reservationIdStr != null && studentId != null) {
-                    // 取消預約
-                    if (service.cancelReservation(reservationIdStr, studentId)) {
-                        sendResponse(exchange, 200, "{\"success\": true}");
-                        return;
+            if ("GET".equals(method) && path.startsWith("/api/bookings/")) {
+                String rest = path.substring("/api/bookings/".length());
+                int slash = rest.indexOf('/');
+                return slash < 0 ? rest : rest.substring(0, slash);
+            }
+            if (!"POST".equals(method)) {
+                return null;
+            }
+            byte[] body = JsonRequestReader.readBody(exchange, maxBodyBytes);
+            exchange.setStreams(new ByteArrayInputStream(body), null);
+            String[] found = new String[1];
+            try {
+                JsonRequestReader.parseObject(body, (name, value) -> {
+                    if ("studentId".equals(name) || "username".equals(name)) {
+                        found[0] = value;
                     }
-                }
-                sendResponse(exchange, 400, "{\"error\": \"取消失敗或預約不存在\"}");
+                });
+            } catch (RequestParseException e) {
+                return null; // 格式錯誤交給 Handler 回應，這裡只以 IP 限流
             }
+            return found[0];
+        }
+        
+        public String description() {
+            return "Per-student / per-IP rate limiting and prioritised load shedding";
         }
-    }
-    
-    /*============================ Handler 4: Static Files ================================= */
-    static class StaticFileHandler implements HttpHandler {
-        public void handle(HttpExchange exchange) throws IOException {
-             String path = exchange.getRequestURI().getPath();
-             if (path.equals("/")) path = "/index.html";
-             
-             File file = new File("." + path);
-             if (file.exists() && file.isFile()) {
-                 String contentType = getContentType(path);
-                 exchange.getResponseHeaders().set("Content-Type", contentType);
-                 exchange.sendResponseHeaders(200, file.length());
-                 
-                 FileInputStream fis = new FileInputStream(file);
-                 OutputStream os = exchange.getResponseBody();
-                 byte[] buffer = new byte[1024];
-                 int bytesRead;
-                 while ((bytesRead = fis.read(buffer)) != -1) {
-                     os.write(buffer, 0, bytesRead);
-                 }
-                 fis.close();
-                 os.close();
-             } else {
-                 String response = "404 Not Found";
-                 sendResponse(exchange, 404, response);
-             }
-         }
     }
     
     /*============================ UTILITY METHODS (輔助方法) ================================= */
@@ -680,24 +7785,65 @@ public class SimpleApp {
     }
     
     private static void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void sendError(HttpExchange exchange, RequestParseException e) throws IOException {
+        JsonWriter json = JsonWriter.acquire();
+        try {
+            json.streamTo(exchange, e.getStatusCode())
+                .beginObject()
+                .name("error").value(e.getMessage())
+                .endObject()
+                .finish();
+        } finally {
+            json.release();
+        }
+    }
+    
+    private static void sendResponse(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-        exchange.sendResponseHeaders(statusCode, response.getBytes("UTF-8").length);
+        exchange.sendResponseHeaders(statusCode, body.length);
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes("UTF-8"));
+            os.write(body);
+        }
+    }
+    
+    // 經過 AuthFilter 的請求，其中的學號必須與 Token 相同，否則回應 403；未啟用驗證或請求未帶學號時交由 Handler 處理
+    private static boolean authorize(HttpExchange exchange, String studentId) throws IOException {
+        Object principal = exchange.getAttribute(AuthFilter.PRINCIPAL);
+        if (principal == null || studentId == null || principal.equals(studentId)) {
+            return true;
         }
+        sendResponse(exchange, 403, "{\"error\": \"無權存取其他學號的預約\"}");
+        return false;
     }
     
-    private static String getRequestBody(HttpExchange exchange) throws IOException {
-         try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                requestBody.append(line);
+    // If-None-Match 可能包含多個以逗號分隔的 ETag 或 *
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals("*") || trimmed.equals(etag)) {
+                return true;
             }
-            return requestBody.toString();
         }
+        return false;
     }
 
+    private static int parseNonNegative(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
     private static Map<String, String> parseQuery(String query) {
         Map<String, String> result = new HashMap<>();
         if (query != null) {
@@ -716,38 +7862,4 @@ public class SimpleApp {
         return result;
     }
     
-    private static String extractJsonValue(String json, String key) {
-         String searchKey = "\"" + key + "\":";
-         int startIndex = json.indexOf(searchKey);
-         if (startIndex == -1) return null;
-         
-         startIndex += searchKey.length();
-         while (startIndex < json.length() && (json.charAt(startIndex) == ' ' || json.charAt(startIndex) == '\t')) {
-             startIndex++;
-         }
-         
-         if (startIndex >= json.length()) return null;
-         
-         char firstChar = json.charAt(startIndex);
-         if (firstChar == '"') {
-             startIndex++;
-             int endIndex = json.indexOf('"', startIndex);
-             if (endIndex == -1) return null;
-             return json.substring(startIndex, endIndex);
-         } else {
-             int endIndex = startIndex;
-             while (endIndex < json.length() && (Character.isDigit(json.charAt(endIndex)) || json.charAt(endIndex) == '.')) {
-                 endIndex++;
-             }
-             if (endIndex == startIndex) return null;
-             return json.substring(startIndex, endIndex);
-         }
-    }
-
-    private static String getContentType(String path) {
-        if (path.endsWith(".html")) return "text/html; charset=utf-8";
-        if (path.endsWith(".css")) return "text/css";
-        if (path.endsWith(".js")) return "application/javascript";
-        return "text/plain";
-    }
 }
@@ -0,0 +1,2813 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*============================ 效能測試主程式 =================================
+ * 編譯與執行（與 SimpleApp.java 放在同一目錄）：
+ *   javac -encoding UTF-8 SimpleApp.java SimpleBenchmark.java
+ *   java -Xmx4g SimpleBenchmark [情境名稱] [--days=30 --routes=4 --trips-per-day=6 --members=1000 --history=50 --threads=8]
+ * 不指定情境時執行全部情境；--key=value 參數設定 hotPaths 情境的資料規模。
+ * ========================================================================= */
+public class SimpleBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final LocalTime[] TIMES = {
+        LocalTime.of(8, 0), LocalTime.of(9, 30), LocalTime.of(11, 0),
+        LocalTime.of(13, 30), LocalTime.of(15, 0), LocalTime.of(16, 30)
+    };
+    private static final int DAYS_AHEAD = 30;
+    private static final int SEMESTER_DAYS = 126; // 18 週
+    private static final long HEAP_BAND_BYTES = 4L << 20; // 學期情境中第 30 天之後 GC 後堆積用量允許的漲幅
+
+    public static void main(String[] args) throws IOException {
+        String scenario = "all";
+        Scale scale = new Scale();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                scale.set(arg);
+            } else {
+                scenario = arg;
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("tripIndex")) {
+            benchmarkTripIndex();
+        }
+        if (scenario.equals("all") || scenario.equals("seatMemory")) {
+            benchmarkSeatMemory();
+        }
+        if (scenario.equals("all") || scenario.equals("durability")) {
+            if (!benchmarkDurability()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("jsonAlloc")) {
+            benchmarkJsonAllocation();
+        }
+        if (scenario.equals("all") || scenario.equals("jsonParse")) {
+            benchmarkJsonParse();
+        }
+        if (scenario.equals("all") || scenario.equals("hotPaths")) {
+            benchmarkHotPaths(scale);
+        }
+        if (scenario.equals("all") || scenario.equals("semester")) {
+            if (!soakSemester()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("noShow")) {
+            if (!benchmarkNoShowSweep()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("hotTrip")) {
+            if (!stressHotTrip()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("waitingRoom")) {
+            if (!benchmarkWaitingRoom()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("batch")) {
+            if (!stressBatchBooking()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("staticFiles")) {
+            benchmarkStaticFiles();
+        }
+        if (scenario.equals("all") || scenario.equals("admission")) {
+            if (!loadAdmission()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("metrics")) {
+            if (!benchmarkMetrics()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("audit")) {
+            if (!benchmarkAuditLog()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("auth")) {
+            if (!benchmarkAuth()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("seatHold")) {
+            if (!benchmarkSeatHolds()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("memberStore")) {
+            if (!benchmarkMemberStore()) {
+                System.exit(1);
+            }
+        }
+        if (scenario.equals("all") || scenario.equals("waitlist")) {
+            if (!benchmarkWaitlist()) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /*============================ 情境 1: 班次索引查找 ================================= */
+    // 班次數量由 10^3 增加到 10^6 時，findTripById 與 getFilteredTrips 的延遲應維持平穩
+    private static void benchmarkTripIndex() {
+        System.out.println("== tripIndex: findTripById / getFilteredTrips ==");
+        System.out.printf("%10s %18s %22s%n", "trips", "findTripById ns/op", "getFilteredTrips ns/op");
+        for (int scale = 1_000; scale <= 1_000_000; scale *= 10) {
+            // 每日每路線固定 6 個時段、30 天，以增加路線數量達到目標班次數
+            int routeCount = Math.max(1, scale / (TIMES.length * DAYS_AHEAD));
+            DataStore dataStore = generateData(DAYS_AHEAD, routeCount);
+            ReservationManager service = new ReservationManager(dataStore);
+            int tripCount = dataStore.getAllTrips().size();
+
+            Random random = new Random(42);
+            String[] ids = new String[4096];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = String.valueOf(1 + random.nextInt(tripCount));
+            }
+            LocalDate[] dates = new LocalDate[ids.length];
+            String[] routeNames = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                dates[i] = LocalDate.now().plusDays(1 + random.nextInt(DAYS_AHEAD - 1));
+                routeNames[i] = routeName(random.nextInt(routeCount));
+            }
+
+            double findNs = measure(200_000, i -> service.findTripById(ids[i & (ids.length - 1)]));
+            double filterNs = measure(200_000, i -> service.getFilteredTrips(
+                dates[i & (dates.length - 1)], LocalTime.of(11, 0), routeNames[i & (routeNames.length - 1)]));
+            System.out.printf("%10d %18.1f %22.1f%n", tripCount, findNs, filterNs);
+        }
+    }
+
+    /*============================ 情境 2: 座位狀態記憶體用量 ================================= */
+    // 量測 10^6 筆班次（每班 20 座）的堆積用量與每班次平均位元組，以及座位查詢的耗時
+    private static void benchmarkSeatMemory() {
+        System.out.println("== seatMemory: heap per trip at 10^6 trips ==");
+        long before = usedHeap();
+        int routeCount = 1_000_000 / (TIMES.length * DAYS_AHEAD);
+        DataStore dataStore = generateData(DAYS_AHEAD, routeCount);
+        List<Trip> trips = dataStore.getAllTrips();
+        // 每班次占用一半座位，模擬熱門時段
+        for (Trip t : trips) {
+            for (int seat = 1; seat <= t.getTotalSeats(); seat += 2) {
+                t.occupySeat(seat);
+            }
+        }
+        long after = usedHeap();
+        System.out.printf("trips=%d heap=%.1fMB bytesPerTrip=%.1f%n",
+            trips.size(), (after - before) / 1048576.0, (after - before) / (double) trips.size());
+
+        Trip sample = trips.get(trips.size() / 2);
+        double countNs = measure(1_000_000, i -> sample.getAvailableSeats());
+        double freeNs = measure(1_000_000, i -> sample.isSeatFree(1 + (i % sample.getTotalSeats())));
+        double listNs = measure(1_000_000, i -> {
+            int n = 0;
+            for (int seat = sample.nextOccupiedSeat(1); seat != -1; seat = sample.nextOccupiedSeat(seat + 1)) {
+                n++;
+            }
+            return n;
+        });
+        System.out.printf("getAvailableSeats=%.1fns isSeatFree=%.1fns listOccupied=%.1fns%n", countNs, freeNs, listNs);
+        sink = trips;
+    }
+
+    /*============================ 情境 3: 熱門班次併發搶位 ================================= */
+    // 數千個併發預約同時搶同一班次，必須恰好 20 人成功、無重複占位且無遺失更新
+    private static boolean stressHotTrip() {
+        System.out.println("== hotTrip: concurrent bookings on one trip ==");
+        final int threads = 64;
+        final int attempts = 5_000;
+        DataStore dataStore = generateData(2, 1);
+        ReservationManager service = new ReservationManager(dataStore);
+        Trip hotTrip = dataStore.getAllTrips().get(dataStore.getAllTrips().size() - 1); // 明天的最後一班，確保尚未發車
+        for (int i = 0; i < attempts; i++) {
+            service.findOrCreateMember("S" + i);
+        }
+
+        ConcurrentLinkedQueue<Reservation> winners = new ConcurrentLinkedQueue<>();
+        AtomicInteger next = new AtomicInteger();
+        long elapsed = runConcurrently(threads, () -> {
+            Random random = ThreadLocalRandom.current();
+            int i;
+            while ((i = next.getAndIncrement()) < attempts) {
+                String seat = String.valueOf(1 + random.nextInt(hotTrip.getTotalSeats()));
+                Reservation r = service.createReservation("S" + i, hotTrip.getTripId(), seat);
+                if (r != null) {
+                    winners.add(r);
+                }
+            }
+        });
+
+        boolean ok = true;
+        Set<String> ids = new HashSet<>();
+        Set<String> seats = new HashSet<>();
+        for (Reservation r : winners) {
+            ok &= ids.add(r.getReservationId());
+            ok &= seats.add(r.getSeatNumber());
+            ok &= !r.getSeat().isAvailable();
+        }
+        int historyTotal = 0;
+        for (Member m : materializedMembers(dataStore)) {
+            historyTotal += m.getActiveReservations().size();
+        }
+        ok &= winners.size() == hotTrip.getTotalSeats();
+        ok &= historyTotal == winners.size();
+        ok &= hotTrip.getAvailableSeats() == 0;
+        System.out.printf("attempts=%d threads=%d winners=%d memberReservations=%d elapsed=%.1fms%n",
+            attempts, threads, winners.size(), historyTotal, elapsed / 1e6);
+
+        // 同一會員的違規次數併發累加不可遺失
+        Member member = service.findOrCreateMember("VIOLATOR");
+        AtomicInteger violations = new AtomicInteger();
+        runConcurrently(threads, () -> {
+            while (violations.getAndIncrement() < attempts) {
+                member.handleViolationTimes();
+            }
+        });
+        ok &= member.getViolationTimes() == attempts;
+        System.out.printf("violations expected=%d actual=%d%n", attempts, member.getViolationTimes());
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 4: 持久化吞吐量與復原時間 ================================= */
+    // 比較關閉/開啟日誌時的每秒預約數，並量測僅重播日誌與由快照復原所需時間（使用本機檔案系統的暫存目錄）；
+    // 最後注入會失敗的檔案通道，確認日誌寫入失敗後不會回報預約成功
+    private static boolean benchmarkDurability() throws IOException {
+        System.out.println("== durability: bookings/s with WAL, recovery time ==");
+        final int threads = 64;
+        final int bookings = 100_000;
+        Path dir = Files.createTempDirectory("shuttle-wal");
+        System.out.println("data dir: " + dir);
+        try {
+            for (boolean durable : new boolean[] {false, true}) {
+                DataStore dataStore = generateData(DAYS_AHEAD, 40);
+                PersistenceManager persistence = durable ? PersistenceManager.open(dir, dataStore) : null;
+                ReservationManager service = new ReservationManager(dataStore,
+                    persistence == null ? null : persistence.getWriteAheadLog());
+                List<Trip> trips = dataStore.getAllTrips();
+                for (int i = 0; i < 10_000; i++) {
+                    service.findOrCreateMember("S" + i);
+                }
+                // 依序填滿每個班次的座位，使每次預約都會成功
+                AtomicInteger next = new AtomicInteger();
+                AtomicInteger booked = new AtomicInteger();
+                long elapsed = runConcurrently(threads, () -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < bookings) {
+                        Trip trip = trips.get(i % trips.size());
+                        String seat = String.valueOf(1 + (i / trips.size()) % trip.getTotalSeats());
+                        if (service.createReservation("S" + (i % 10_000), trip.getTripId(), seat) != null) {
+                            booked.incrementAndGet();
+                        }
+                    }
+                });
+                System.out.printf("durable=%-5s bookings=%d threads=%d throughput=%.0f bookings/s%n",
+                    durable, booked.get(), threads, booked.get() / (elapsed / 1e9));
+                if (persistence != null) {
+                    persistence.close(); // 未啟動快照排程，只關閉日誌
+                }
+            }
+
+            // 僅重播日誌
+            DataStore fromLog = generateData(DAYS_AHEAD, 40);
+            long start = System.nanoTime();
+            PersistenceManager replayed = PersistenceManager.open(dir, fromLog);
+            System.out.printf("recovery from log: records=%d time=%.1fms%n",
+                replayed.getRecoveredRecords(), (System.nanoTime() - start) / 1e6);
+            replayed.writeSnapshot(new ReservationManager(fromLog, replayed.getWriteAheadLog()));
+            replayed.close();
+
+            // 由快照復原
+            DataStore fromSnapshot = generateData(DAYS_AHEAD, 40);
+            start = System.nanoTime();
+            PersistenceManager restored = PersistenceManager.open(dir, fromSnapshot);
+            System.out.printf("recovery from snapshot: records=%d time=%.1fms%n",
+                restored.getRecoveredRecords(), (System.nanoTime() - start) / 1e6);
+            restored.close();
+        } finally {
+            deleteRecursively(dir);
+        }
+        return checkHistoryRecovery() & checkJournalFailure();
+    }
+
+    // 歷史紀錄跨快照與重啟：取消分散在兩次快照之前、快照之間與最後一次快照之後，重啟後每位會員的歷史
+    // 必須與重啟前相同（不遺失、不重複）；第二次快照只附加新結束的紀錄，大小不隨累積的歷史成長
+    private static boolean checkHistoryRecovery() throws IOException {
+        final int members = 200;
+        final int rounds = 3;
+        final int cancelsPerRound = 20;
+        Path dir = Files.createTempDirectory("shuttle-history");
+        PrintStream console = silenceStdout();
+        try {
+            DataStore dataStore = generateData(DAYS_AHEAD, 4);
+            PersistenceManager persistence = PersistenceManager.open(dir, dataStore);
+            ReservationManager service = new ReservationManager(dataStore, persistence.getWriteAheadLog());
+            List<Trip> trips = dataStore.getAllTrips();
+            int bookable = trips.size() - 4 * TIMES.length; // 略過今天的班次，避免逾時取消
+            long slot = 0;
+            long[] snapshotBytes = new long[rounds];
+            for (int round = 0; round < rounds; round++) {
+                for (int m = 0; m < members; m++) {
+                    String studentId = "S" + m;
+                    service.findOrCreateMember(studentId);
+                    for (int c = 0; c < cancelsPerRound; c++, slot++) {
+                        Trip trip = trips.get(trips.size() - 1 - (int) (slot % bookable));
+                        Reservation r = service.createReservation(studentId, trip.getTripId(),
+                            String.valueOf(1 + (slot / bookable) % trip.getTotalSeats()));
+                        if (r != null) {
+                            service.cancelReservation(r.getReservationId(), studentId);
+                        }
+                    }
+                }
+                if (round < rounds - 1) {
+                    persistence.writeSnapshot(service);
+                    snapshotBytes[round] = latestSnapshotSize(dir);
+                }
+            }
+            Map<String, List<String>> before = new HashMap<>();
+            int records = 0;
+            for (int m = 0; m < members; m++) {
+                before.put("S" + m, historyIds(service, "S" + m));
+                records += before.get("S" + m).size();
+            }
+            persistence.getWriteAheadLog().close();
+            dataStore.getArchive().close();
+
+            DataStore recovered = generateData(DAYS_AHEAD, 4);
+            PersistenceManager restored = PersistenceManager.open(dir, recovered);
+            ReservationManager after = new ReservationManager(recovered, restored.getWriteAheadLog());
+            int mismatched = 0;
+            for (int m = 0; m < members; m++) {
+                if (!historyIds(after, "S" + m).equals(before.get("S" + m))) {
+                    mismatched++;
+                }
+            }
+            restored.getWriteAheadLog().close();
+            recovered.getArchive().close();
+            // 第二次快照時歷史已加倍，若仍整份重寫，大小會接近第一次的兩倍
+            boolean appendOnly = snapshotBytes[1] < snapshotBytes[0] * 3 / 2;
+            boolean pass = records > 0 && mismatched == 0 && appendOnly;
+            console.printf("history across snapshots: members=%d records=%d mismatched after recovery=%d snapshot bytes=%d,%d -> %s%n",
+                members, records, mismatched, snapshotBytes[0], snapshotBytes[1], pass ? "PASS" : "FAIL");
+            return pass;
+        } finally {
+            System.setOut(console);
+            deleteRecursively(dir);
+        }
+    }
+
+    private static List<String> historyIds(ReservationManager service, String studentId) {
+        List<String> ids = new ArrayList<>();
+        for (ArchivedReservation r : service.getMemberReservationHistory(studentId, 0, Integer.MAX_VALUE)) {
+            ids.add(r.getReservationId() + ":" + r.getStatus());
+        }
+        return ids;
+    }
+
+    private static long latestSnapshotSize(Path dir) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.dat")) {
+            for (Path file : files) {
+                size = Files.size(file); // 寫完新快照後舊快照已刪除，只剩一份
+            }
+        }
+        return size;
+    }
+
+    // 寫檔失敗後：等待中的預約收到 JournalFailedException、之後的異動直接拒絕、不寫快照；
+    // 重新啟動後只復原失敗前已寫入的預約
+    private static boolean checkJournalFailure() throws IOException {
+        Path dir = Files.createTempDirectory("shuttle-wal-fail");
+        PrintStream console = silenceStdout();
+        try {
+            AtomicBoolean broken = new AtomicBoolean();
+            DataStore dataStore = generateData(3, 1);
+            WriteAheadLog wal = new WriteAheadLog(dir, 0, file -> new FailingChannel(
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), broken));
+            ReservationManager service = new ReservationManager(dataStore, wal);
+            service.findOrCreateMember("S1");
+            service.findOrCreateMember("S2");
+            List<Trip> trips = dataStore.getAllTrips();
+            String tripId = trips.get(trips.size() - 1).getTripId();
+            Reservation kept = service.createReservation("S1", tripId, "1");
+            Trip trip = service.findTripById(tripId);
+            int availableBefore = trip.getAvailableSeats();
+
+            broken.set(true);
+            boolean bookingFailed = failsWithJournalError(() -> service.createReservation("S2", tripId, "2"));
+            boolean laterBookingFailed = failsWithJournalError(() -> service.createReservation("S2", tripId, "3"));
+            boolean cancelRefused = failsWithJournalError(() -> service.cancelReservation(kept.getReservationId(), "S1"));
+            // 失敗的變更不可留在記憶體中：座位仍為空位、會員沒有多出的預約，拒絕的取消不改變原預約與違規次數
+            Member s1Live = service.findMember("S1");
+            boolean memoryClean = trip.isSeatFree(2) && trip.isSeatFree(3) && trip.getAvailableSeats() == availableBefore
+                && service.getMemberReservations("S2").isEmpty()
+                && kept.getStatus() == ReservationStatus.RESERVED && !trip.isSeatFree(1)
+                && s1Live.getActiveReservations().size() == 1 && s1Live.getViolationTimes() == 0;
+            boolean snapshotSkipped = false;
+            try {
+                wal.rotate();
+            } catch (IOException e) {
+                snapshotSkipped = true;
+            }
+            wal.close();
+
+            DataStore recovered = generateData(3, 1);
+            PersistenceManager persistence = PersistenceManager.open(dir, recovered);
+            Member s1 = recovered.getMembers().peek("S1");
+            Member s2 = recovered.getMembers().peek("S2");
+            boolean keptRecovered = s1 != null && s1.getActiveReservations().size() == 1
+                && s1.getActiveReservations().get(0).getStatus() == ReservationStatus.RESERVED;
+            boolean failedAbsent = s2 == null || s2.getActiveReservations().isEmpty();
+            persistence.close();
+
+            boolean pass = kept != null && bookingFailed && laterBookingFailed && cancelRefused && memoryClean
+                && snapshotSkipped && keptRecovered && failedAbsent;
+            console.printf("journal failure: booking rejected=%s, later changes refused=%s, in-memory state clean=%s, snapshot skipped=%s, "
+                + "recovered acknowledged=%s, unacknowledged absent=%s -> %s%n",
+                bookingFailed, laterBookingFailed && cancelRefused, memoryClean, snapshotSkipped, keptRecovered, failedAbsent, pass ? "PASS" : "FAIL");
+            return pass;
+        } finally {
+            System.setOut(console);
+            deleteRecursively(dir);
+        }
+    }
+
+    private static boolean failsWithJournalError(Runnable action) {
+        try {
+            action.run();
+            return false;
+        } catch (JournalFailedException e) {
+            return true;
+        }
+    }
+
+    // 委派給實際檔案的通道；broken 設定後寫入與 fsync 皆拋出 IOException（模擬磁碟已滿或裝置錯誤）
+    static final class FailingChannel extends FileChannel {
+        private final FileChannel delegate;
+        private final AtomicBoolean broken;
+
+        FailingChannel(FileChannel delegate, AtomicBoolean broken) {
+            this.delegate = delegate;
+            this.broken = broken;
+        }
+
+        private void check() throws IOException {
+            if (broken.get()) {
+                throw new IOException("injected write failure");
+            }
+        }
+
+        public int write(java.nio.ByteBuffer src) throws IOException { check(); return delegate.write(src); }
+        public long write(java.nio.ByteBuffer[] srcs, int offset, int length) throws IOException { check(); return delegate.write(srcs, offset, length); }
+        public int write(java.nio.ByteBuffer src, long position) throws IOException { check(); return delegate.write(src, position); }
+        public void force(boolean metaData) throws IOException { check(); delegate.force(metaData); }
+        public int read(java.nio.ByteBuffer dst) throws IOException { return delegate.read(dst); }
+        public long read(java.nio.ByteBuffer[] dsts, int offset, int length) throws IOException { return delegate.read(dsts, offset, length); }
+        public int read(java.nio.ByteBuffer dst, long position) throws IOException { return delegate.read(dst, position); }
+        public long position() throws IOException { return delegate.position(); }
+        public FileChannel position(long newPosition) throws IOException { delegate.position(newPosition); return this; }
+        public long size() throws IOException { return delegate.size(); }
+        public FileChannel truncate(long size) throws IOException { delegate.truncate(size); return this; }
+        public long transferTo(long position, long count, java.nio.channels.WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+        public long transferFrom(java.nio.channels.ReadableByteChannel src, long position, long count) throws IOException {
+            check();
+            return delegate.transferFrom(src, position, count);
+        }
+        public java.nio.MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return delegate.map(mode, position, size); }
+        public java.nio.channels.FileLock lock(long position, long size, boolean shared) throws IOException { return delegate.lock(position, size, shared); }
+        public java.nio.channels.FileLock tryLock(long position, long size, boolean shared) throws IOException { return delegate.tryLock(position, size, shared); }
+        protected void implCloseChannel() throws IOException { delegate.close(); }
+    }
+
+    /*============================ 情境 5: JSON 回應配置量 ================================= */
+    // 比較舊的字串串接 + 兩次 getBytes 與 JsonWriter 在每個請求配置的位元組數
+    private static void benchmarkJsonAllocation() throws IOException {
+        System.out.println("== jsonAlloc: bytes allocated per response ==");
+        DataStore dataStore = generateData(DAYS_AHEAD, 4);
+        ReservationManager service = new ReservationManager(dataStore);
+        service.findOrCreateMember("A001");
+        List<Trip> trips = dataStore.getAllTrips();
+        for (int i = 0; i < 10; i++) {
+            Trip trip = trips.get(trips.size() - 1 - i * 7);
+            service.createReservation("A001", trip.getTripId(), String.valueOf(1 + i));
+        }
+        Trip sample = trips.get(trips.size() - 1);
+        List<Trip> schedule = service.getFilteredTrips(sample.getDate(), null, sample.getRoute().getRouteName());
+        List<Reservation> reservations = service.getMemberReservations("A001");
+        OutputStream discard = new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        };
+
+        System.out.printf("%-14s %14s %14s%n", "response", "legacy B/op", "JsonWriter B/op");
+        System.out.printf("%-14s %14.0f %14.0f%n", "schedules",
+            allocatedPerOp(20_000, () -> writeLegacy(discard, legacySchedules(schedule))),
+            allocatedPerOp(20_000, () -> {
+                JsonWriter json = JsonWriter.acquire();
+                SimpleApp.ScheduleHandler.renderSchedules(json, schedule);
+                json.writeTo(discard);
+                json.release();
+            }));
+        LocalDate today = LocalDate.now();
+        System.out.printf("%-14s %14.0f %14.0f%n", "myBookings",
+            allocatedPerOp(20_000, () -> writeLegacy(discard, legacyReservations(reservations, today))),
+            allocatedPerOp(20_000, () -> {
+                JsonWriter json = JsonWriter.acquire();
+                SimpleApp.ReservationHandler.renderReservations(json, reservations, today);
+                json.writeTo(discard);
+                json.release();
+            }));
+    }
+
+    // 舊版 sendResponse：計算長度與寫出時各呼叫一次 getBytes
+    private static void writeLegacy(OutputStream out, String response) throws IOException {
+        sink = response.getBytes("UTF-8").length;
+        out.write(response.getBytes("UTF-8"));
+    }
+
+    // 舊版 ScheduleHandler 的字串串接
+    private static String legacySchedules(List<Trip> filtered) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < filtered.size(); i++) {
+            if (i > 0) json.append(",");
+            Trip t = filtered.get(i);
+            StringBuilder occupiedSeats = new StringBuilder("[");
+            boolean first = true;
+            Set<String> occupied = new HashSet<>();
+            for (int seat = t.nextOccupiedSeat(1); seat != -1; seat = t.nextOccupiedSeat(seat + 1)) {
+                occupied.add(String.valueOf(seat));
+            }
+            for (String seatNum : occupied) {
+                if (!first) occupiedSeats.append(",");
+                occupiedSeats.append("\"").append(seatNum).append("\"");
+                first = false;
+            }
+            occupiedSeats.append("]");
+            json.append("{")
+                .append("\"id\":").append("\"").append(t.getTripId()).append("\",")
+                .append("\"date\":\"").append(t.getDate()).append("\",")
+                .append("\"route\":\"").append(t.getRoute().getRouteName()).append("\",")
+                .append("\"departureTime\":\"").append(t.getDepartureTime()).append("\",")
+                .append("\"totalSeats\":").append(t.getTotalSeats()).append(",")
+                .append("\"availableSeats\":").append(t.getAvailableSeats()).append(",")
+                .append("\"occupiedSeats\":").append(occupiedSeats.toString())
+                .append("}");
+        }
+        json.append("]");
+        return json.toString();
+    }
+
+    // 舊版 ReservationHandler GET 的字串串接
+    private static String legacyReservations(List<Reservation> reservations, LocalDate today) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < reservations.size(); i++) {
+            if (i > 0) json.append(",");
+            Reservation r = reservations.get(i);
+            Trip t = r.getTrip();
+            long daysUntilTrip = java.time.temporal.ChronoUnit.DAYS.between(today, t.getDate());
+            String statusDisplay = daysUntilTrip <= 3 && daysUntilTrip >= 0 ? "即將到來"
+                : daysUntilTrip > 3 ? daysUntilTrip + "天後" : "已過期";
+            json.append("{")
+                .append("\"id\":").append("\"").append(r.getReservationId()).append("\",")
+                .append("\"studentId\":\"").append(r.getMember().getStudentId()).append("\",")
+                .append("\"seatNumber\":\"").append(r.getSeatNumber()).append("\",")
+                .append("\"statusDisplay\":\"").append(statusDisplay).append("\",")
+                .append("\"schedule\":{")
+                .append("\"id\":").append("\"").append(t.getTripId()).append("\",")
+                .append("\"date\":\"").append(t.getDate()).append("\",")
+                .append("\"route\":\"").append(t.getRoute().getRouteName()).append("\",")
+                .append("\"departureTime\":\"").append(t.getDepartureTime()).append("\"")
+                .append("}")
+                .append("}");
+        }
+        json.append("]");
+        return json.toString();
+    }
+
+    /*============================ 情境 6: JSON 請求解析 ================================= */
+    // 比較舊版 BufferedReader + 三次 extractJsonValue 與單次掃描的 JsonRequestReader
+    private static void benchmarkJsonParse() throws IOException {
+        System.out.println("== jsonParse: booking request parsing ==");
+        byte[] body = "{\"studentId\":\"A001\",\"scheduleId\":\"R01-20261018-0800\",\"seatNumber\":12}"
+            .getBytes("UTF-8");
+        IoTask legacy = () -> {
+            String json = legacyRequestBody(new ByteArrayInputStream(body));
+            sink = legacyExtractJsonValue(json, "studentId");
+            sink = legacyExtractJsonValue(json, "scheduleId");
+            sink = legacyExtractJsonValue(json, "seatNumber");
+        };
+        IoTask reader = () -> {
+            try {
+                sink = BookingRequest.parse(body);
+            } catch (RequestParseException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        Operation legacyOp = i -> {
+            try {
+                legacy.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sink;
+        };
+        Operation readerOp = i -> {
+            try {
+                reader.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sink;
+        };
+
+        System.out.printf("%-18s %10s %10s%n", "parser", "ns/op", "B/op");
+        System.out.printf("%-18s %10.0f %10.0f%n", "legacy",
+            measure(200_000, legacyOp), allocatedPerOp(200_000, legacy));
+        System.out.printf("%-18s %10.0f %10.0f%n", "JsonRequestReader",
+            measure(200_000, readerOp), allocatedPerOp(200_000, reader));
+    }
+
+    // 舊版 getRequestBody：逐行讀取並串接
+    private static String legacyRequestBody(InputStream in) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+            StringBuilder requestBody = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                requestBody.append(line);
+            }
+            return requestBody.toString();
+        }
+    }
+
+    // 舊版 extractJsonValue：每個欄位各自以 indexOf 搜尋一次
+    private static String legacyExtractJsonValue(String json, String key) {
+        String searchKey = "\"" + key + "\":";
+        int startIndex = json.indexOf(searchKey);
+        if (startIndex == -1) return null;
+        startIndex += searchKey.length();
+        while (startIndex < json.length() && (json.charAt(startIndex) == ' ' || json.charAt(startIndex) == '\t')) {
+            startIndex++;
+        }
+        if (startIndex >= json.length()) return null;
+        if (json.charAt(startIndex) == '"') {
+            startIndex++;
+            int endIndex = json.indexOf('"', startIndex);
+            if (endIndex == -1) return null;
+            return json.substring(startIndex, endIndex);
+        }
+        int endIndex = startIndex;
+        while (endIndex < json.length() && (Character.isDigit(json.charAt(endIndex)) || json.charAt(endIndex) == '.')) {
+            endIndex++;
+        }
+        return endIndex == startIndex ? null : json.substring(startIndex, endIndex);
+    }
+
+    /*============================ 情境 7: 預約與班次查詢熱路徑 ================================= */
+    // 依 Scale 參數產生資料後，分別量測班次查詢、預約/取消併發、有效預約查詢與班次 JSON 輸出
+    private static void benchmarkHotPaths(Scale scale) throws IOException {
+        System.out.println("== hotPaths: " + scale + " ==");
+        DataStore dataStore = generateData(scale.days, scale.routes, scale.tripsPerDay);
+        ReservationManager service = new ReservationManager(dataStore, null, new MetricsRegistry(), null, scale.days);
+        List<Trip> trips = dataStore.getAllTrips();
+        LocalTime[] times = departureTimes(scale.tripsPerDay);
+        PrintStream console = silenceStdout();
+        try {
+            for (int i = 0; i < scale.members; i++) {
+                service.findOrCreateMember("S" + i);
+            }
+            // 每位會員累積 history 筆已取消預約與 1 筆有效預約（只使用明天以後的班次，避免逾時取消與已發車）
+            int bookable = trips.size() - scale.routes * scale.tripsPerDay;
+            int seats = trips.get(0).getTotalSeats();
+            long slot = 0;
+            for (int m = 0; m < scale.members; m++) {
+                for (int h = 0; h <= scale.history; h++) {
+                    Trip trip = trips.get(trips.size() - 1 - (int) (slot % bookable));
+                    String seat = String.valueOf(1 + (slot / bookable) % seats);
+                    slot++;
+                    Reservation r = service.createReservation("S" + m, trip.getTripId(), seat);
+                    if (r != null && h < scale.history) {
+                        service.cancelReservation(r.getReservationId(), "S" + m);
+                    }
+                }
+            }
+
+            Random random = new Random(42);
+            int mask = 4095;
+            String[] ids = new String[mask + 1];
+            LocalDate[] dates = new LocalDate[ids.length];
+            String[] routeNames = new String[ids.length];
+            LocalTime[] startTimes = new LocalTime[ids.length];
+            Member[] members = new Member[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = trips.get(random.nextInt(trips.size())).getTripId();
+                dates[i] = LocalDate.now().plusDays(1 + random.nextInt(Math.max(1, scale.days - 1)));
+                routeNames[i] = routeName(random.nextInt(scale.routes));
+                startTimes[i] = times[random.nextInt(times.length)];
+                members[i] = dataStore.getMembers().find("S" + random.nextInt(scale.members));
+            }
+
+            console.printf("%-28s %12s%n", "operation", "ns/op");
+            console.printf("%-28s %12.1f%n", "findTripById",
+                measure(200_000, i -> service.findTripById(ids[i & mask])));
+            console.printf("%-28s %12.1f%n", "getFilteredTrips",
+                measure(200_000, i -> service.getFilteredTrips(dates[i & mask], startTimes[i & mask], routeNames[i & mask])));
+            console.printf("%-28s %12.1f%n", "getActiveReservations",
+                measure(200_000, i -> members[i & mask].getActiveReservations()));
+            // 歷史紀錄超過記憶體上限的部分在歷史檔中，分頁時才讀取
+            console.printf("%-28s %12.1f%n", "historyPage (20, on disk)",
+                measure(20_000, i -> service.getMemberReservationHistory(members[i & mask].getStudentId(), 0, 20)));
+
+            OutputStream discard = new OutputStream() {
+                public void write(int b) { }
+                public void write(byte[] b, int off, int len) { }
+            };
+            console.printf("%-28s %12.1f%n", "renderSchedules",
+                measure(20_000, i -> {
+                    List<Trip> result = service.getFilteredTrips(dates[i & mask], null, routeNames[i & mask]);
+                    JsonWriter json = JsonWriter.acquire();
+                    try {
+                        SimpleApp.ScheduleHandler.renderSchedules(json, result);
+                        json.writeTo(discard);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        json.release();
+                    }
+                    return result;
+                }));
+            ScheduleCache cache = new ScheduleCache(10_000);
+            service.addSeatChangeListener(cache);
+            console.printf("%-28s %12.1f%n", "renderSchedules (cached)",
+                measure(20_000, i -> {
+                    List<Trip> result = service.getFilteredTrips(dates[i & mask], null, routeNames[i & mask]);
+                    return cache.getOrRender(dates[i & mask], routeNames[i & mask], result, list -> {
+                        JsonWriter json = JsonWriter.acquire();
+                        try {
+                            SimpleApp.ScheduleHandler.renderSchedules(json, list);
+                            return json.toByteArray();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        } finally {
+                            json.release();
+                        }
+                    });
+                }));
+
+            // 所有執行緒輪流在少數熱門班次上預約後立即取消
+            List<Trip> hot = trips.subList(trips.size() - Math.min(4, trips.size()), trips.size());
+            console.printf("%-28s %8s %12s%n", "create+cancel (4 hot trips)", "threads", "ops/s");
+            for (int threads = 1; threads <= scale.threads; threads *= 2) {
+                final int opsPerThread = 10_000;
+                AtomicLong done = new AtomicLong();
+                long elapsed = runConcurrently(threads, () -> {
+                    Random r = ThreadLocalRandom.current();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        String studentId = "S" + r.nextInt(scale.members);
+                        Trip trip = hot.get(r.nextInt(hot.size()));
+                        Reservation reservation = service.createReservation(studentId, trip.getTripId(),
+                            String.valueOf(1 + r.nextInt(trip.getTotalSeats())));
+                        if (reservation != null) {
+                            service.cancelReservation(reservation.getReservationId(), studentId);
+                        }
+                        done.incrementAndGet();
+                    }
+                });
+                console.printf("%-28s %8d %12.0f%n", "", threads, done.get() / (elapsed / 1e9));
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /*============================ 情境 8: 學期長時間運行 ================================= */
+    // 以模擬時鐘逐日推進一整個學期：每天補上新班次、下架前一天的班次並持續預約/取消，
+    // 班次索引與有效預約數必須維持平穩，已下架班次必須能被回收
+    private static boolean soakSemester() throws IOException {
+        System.out.println("== semester: rolling trip window over " + SEMESTER_DAYS + " days ==");
+        final int windowDays = 30;
+        final int bookingsPerDay = 2_000;
+        List<LocalTime> timetable = Arrays.asList(TIMES);
+        List<Route> routes = new ArrayList<>();
+        Map<String, Route> routesByName = new HashMap<>();
+        for (int r = 0; r < 4; r++) {
+            Route route = new Route(String.format("R%02d", r), routeName(r), Route.DEFAULT_SEAT_CAPACITY, timetable);
+            routes.add(route);
+            routesByName.put(route.getRouteName(), route);
+        }
+        LocalDate start = LocalDate.now().plusDays(1); // 模擬日期皆在實際時間之後，預約檢查不會判定為已發車
+        List<Trip> initial = TripScheduler.generateTrips(routes, start, start.plusDays(windowDays - 1));
+        DataStore dataStore = new DataStore(new ArrayList<>(initial), new MemberStore(), routesByName);
+        ReservationManager service = new ReservationManager(dataStore);
+        TripScheduler scheduler = new TripScheduler(service, routes, windowDays, start.plusDays(windowDays - 1));
+        for (int i = 0; i < 2_000; i++) {
+            service.findOrCreateMember("S" + i);
+        }
+        List<java.lang.ref.WeakReference<Trip>> firstDay = new ArrayList<>();
+        for (Trip t : initial) {
+            if (t.getDate().equals(start)) {
+                firstDay.add(new java.lang.ref.WeakReference<>(t));
+            }
+        }
+        initial = null;
+
+        PrintStream console = silenceStdout();
+        boolean ok = true;
+        int expectedTrips = windowDays * routes.size() * TIMES.length;
+        int maxActive = 0;
+        final int baselineDay = 30;
+        long baselineHeap = 0;
+        long maxHeap = 0;
+        try {
+            console.printf("%5s %8s %10s %10s %10s %10s %12s%n", "day", "trips", "active", "archived", "resident", "heapMB", "advance ms");
+            Random random = new Random(42);
+            for (int day = 0; day < SEMESTER_DAYS; day++) {
+                LocalDate today = start.plusDays(day);
+                long begin = System.nanoTime();
+                scheduler.advance(today.atStartOfDay());
+                double advanceMs = (System.nanoTime() - begin) / 1e6;
+                // 預約今天起一週內的班次，其中約三成在發車前取消
+                for (int i = 0; i < bookingsPerDay; i++) {
+                    Route route = routes.get(random.nextInt(routes.size()));
+                    Trip trip = service.findTripById(Trip.idFor(route, today.plusDays(random.nextInt(7)), TIMES[random.nextInt(TIMES.length)]));
+                    String studentId = "S" + random.nextInt(2_000);
+                    Reservation r = service.createReservation(studentId, trip.getTripId(),
+                        String.valueOf(1 + random.nextInt(trip.getTotalSeats())));
+                    if (r != null && random.nextInt(10) < 3) {
+                        service.cancelReservation(r.getReservationId(), studentId);
+                    } else if (r != null) {
+                        service.checkIn(r.getReservationId(), studentId); // 全數報到，避免未報到停權影響長時間預約量
+                    }
+                }
+                int active = 0;
+                int archived = 0;
+                for (Member m : materializedMembers(dataStore)) {
+                    active += m.getActiveReservationCount();
+                    archived += service.getMemberReservationHistoryCount(m.getStudentId());
+                }
+                maxActive = Math.max(maxActive, active);
+                ok &= service.getTripCount() == expectedTrips;
+                if (day % 15 == 0 || day == SEMESTER_DAYS - 1) {
+                    long heap = usedHeap();
+                    if (day == baselineDay) {
+                        baselineHeap = heap;
+                    } else if (day > baselineDay) {
+                        maxHeap = Math.max(maxHeap, heap);
+                    }
+                    console.printf("%5d %8d %10d %10d %10d %10.1f %12.2f%n", day, service.getTripCount(), active, archived,
+                        dataStore.getArchive().getResidentCount(), heap / 1048576.0, advanceMs);
+                }
+            }
+        } finally {
+            System.setOut(console);
+        }
+        usedHeap();
+        int collected = 0;
+        for (java.lang.ref.WeakReference<Trip> ref : firstDay) {
+            if (ref.get() == null) {
+                collected++;
+            }
+        }
+        // 任一時刻有效預約只涵蓋一週內的班次，不應超過一週的座位總數
+        ok &= maxActive <= 7 * routes.size() * TIMES.length * Route.DEFAULT_SEAT_CAPACITY;
+        ok &= collected == firstDay.size();
+        // 班次窗口在第 30 天填滿，之後歷史持續累積但只應落在磁碟上，GC 後的堆積用量須維持在第 30 天的固定範圍內
+        long heapBand = HEAP_BAND_BYTES;
+        ok &= maxHeap <= baselineHeap + heapBand;
+        System.out.printf("tripsPerWindow=%d maxActive=%d firstDayTripsCollected=%d/%d%n",
+            expectedTrips, maxActive, collected, firstDay.size());
+        System.out.printf("heap after GC: day %d=%.1f MB, max after=%.1f MB (band +%.0f MB)%n", baselineDay,
+            baselineHeap / 1048576.0, maxHeap / 1048576.0, heapBand / 1048576.0);
+        dataStore.getArchive().close();
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 9: 未報到結算 ================================= */
+    // 明天所有班次坐滿，其中一半報到；模擬時鐘推進到所有班次發車後，一次結算應標記另一半為 NOSHOW，
+    // 並依會員累加違規次數；結算期間另一個執行緒持續預約後天的班次，量測其最長延遲
+    // 目前為止所有收集器的累計暫停時間
+    private static long gcMillis() {
+        long total = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static boolean benchmarkNoShowSweep() {
+        System.out.println("== noShow: batch sweep of departed trips ==");
+        final int routeCount = 100;
+        DataStore dataStore = generateData(3, routeCount);
+        ReservationManager service = new ReservationManager(dataStore);
+        List<Trip> tomorrow = new ArrayList<>();
+        List<Trip> later = new ArrayList<>();
+        LocalDate day = LocalDate.now().plusDays(1);
+        for (Trip t : dataStore.getAllTrips()) {
+            if (t.getDate().equals(day)) {
+                tomorrow.add(t);
+            } else if (t.getDate().isAfter(day)) {
+                later.add(t);
+            }
+        }
+        int members = 10_000;
+        for (int i = 0; i < members; i++) {
+            service.findOrCreateMember("S" + i);
+        }
+        PrintStream console = silenceStdout();
+        boolean ok = true;
+        try {
+            int expectedNoShows = 0;
+            int n = 0;
+            Map<String, Integer> expectedViolations = new HashMap<>();
+            for (Trip trip : tomorrow) {
+                for (int seat = 1; seat <= trip.getTotalSeats(); seat++) {
+                    String studentId = "S" + (n++ % members);
+                    Reservation r = service.createReservation(studentId, trip.getTripId(), String.valueOf(seat));
+                    if (seat % 2 == 0) {
+                        service.checkIn(r.getReservationId(), studentId);
+                    } else {
+                        expectedNoShows++;
+                        expectedViolations.merge(studentId, 1, Integer::sum);
+                    }
+                }
+            }
+
+            AtomicBoolean sweeping = new AtomicBoolean(true);
+            AtomicLong maxBookingNs = new AtomicLong();
+            AtomicInteger concurrentBookings = new AtomicInteger();
+            CountDownLatch warmedUp = new CountDownLatch(1);
+            Thread booker = new Thread(() -> {
+                Random random = new Random(7);
+                for (int i = 0; i < 20_000; i++) { // 先讓預約路徑完成 JIT 編譯，量到的才是結算造成的等待
+                    Trip trip = later.get(random.nextInt(later.size()));
+                    String studentId = "S" + random.nextInt(members);
+                    Reservation r = service.createReservation(studentId, trip.getTripId(),
+                        String.valueOf(1 + random.nextInt(trip.getTotalSeats())));
+                    if (r != null) {
+                        service.cancelReservation(r.getReservationId(), studentId);
+                    }
+                }
+                warmedUp.countDown();
+                while (sweeping.get()) {
+                    Trip trip = later.get(random.nextInt(later.size()));
+                    String studentId = "S" + random.nextInt(members);
+                    long gcBefore = gcMillis();
+                    long begin = System.nanoTime();
+                    Reservation r = service.createReservation(studentId, trip.getTripId(),
+                        String.valueOf(1 + random.nextInt(trip.getTotalSeats())));
+                    long elapsed = System.nanoTime() - begin - (gcMillis() - gcBefore) * 1_000_000; // 扣除期間的 GC 暫停
+                    maxBookingNs.accumulateAndGet(elapsed, Math::max);
+                    concurrentBookings.incrementAndGet();
+                    if (r != null) {
+                        service.cancelReservation(r.getReservationId(), studentId);
+                    }
+                }
+            });
+            booker.start();
+            try {
+                warmedUp.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            SweepResult result = service.expireDepartedTrips(day.atTime(23, 59));
+            sweeping.set(false);
+            try {
+                booker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Map.Entry<String, Integer> e : expectedViolations.entrySet()) {
+                ok &= dataStore.getMembers().find(e.getKey()).getViolationTimes() == e.getValue();
+            }
+            ok &= result.getNoShows() == expectedNoShows;
+            ok &= result.getProcessedReservations() == tomorrow.size() * Route.DEFAULT_SEAT_CAPACITY;
+            // 結算逐班次取鎖，其他班次的預約不應等到整批結算結束：最慢的一筆（扣除 GC 暫停）須遠小於結算時間
+            double maxBookingMs = maxBookingNs.get() / 1e6;
+            double bookingBoundMs = result.getElapsedMillis() / 4;
+            ok &= concurrentBookings.get() > 0 && maxBookingMs < bookingBoundMs;
+            console.printf("trips=%d processed=%d completed=%d noShows=%d penalizedMembers=%d sweep=%.1fms "
+                + "concurrentBookings=%d maxConcurrentBooking=%.2fms (bound %.1fms)%n",
+                result.getExpiredTrips(), result.getProcessedReservations(), result.getCompleted(), result.getNoShows(),
+                result.getPenalizedMembers(), result.getElapsedMillis(), concurrentBookings.get(), maxBookingMs, bookingBoundMs);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 10: 熱門班次排隊模式 ================================= */
+    // 數千名學生搶同一班次：直接搶位時每人失敗後改選其他空位重試直到額滿；排隊模式下每人只送出一次，
+    // 由 WaitingRoom 依序處理。比較兩者呼叫 createReservation 的次數與售完所需時間，並驗證排隊結果
+    private static boolean benchmarkWaitingRoom() throws IOException {
+        System.out.println("== waitingRoom: direct contention vs. fair queue on one hot trip ==");
+        final int students = 5_000;
+        final int threads = 64;
+        boolean ok = true;
+        PrintStream console = silenceStdout();
+        try {
+            // 直接搶位：失敗就換一個隨機座位重試，直到班次額滿
+            DataStore dataStore = generateData(2, 1);
+            ReservationManager service = new ReservationManager(dataStore);
+            Trip trip = dataStore.getAllTrips().get(dataStore.getAllTrips().size() - 1);
+            for (int i = 0; i < students; i++) {
+                service.findOrCreateMember("S" + i);
+            }
+            AtomicInteger next = new AtomicInteger();
+            AtomicLong attempts = new AtomicLong();
+            long directNanos = runConcurrently(threads, () -> {
+                Random random = ThreadLocalRandom.current();
+                int i;
+                while ((i = next.getAndIncrement()) < students) {
+                    while (trip.getAvailableSeats() > 0) {
+                        attempts.incrementAndGet();
+                        if (service.createReservation("S" + i, trip.getTripId(),
+                                String.valueOf(1 + random.nextInt(trip.getTotalSeats()))) != null) {
+                            break;
+                        }
+                    }
+                }
+            });
+            ok &= trip.getAvailableSeats() == 0;
+
+            // 排隊模式：每人送出一次，等待全部號碼牌有結果
+            DataStore queuedStore = generateData(2, 1);
+            ReservationManager queuedService = new ReservationManager(queuedStore);
+            Trip hotTrip = queuedStore.getAllTrips().get(queuedStore.getAllTrips().size() - 1);
+            for (int i = 0; i < students; i++) {
+                queuedService.findOrCreateMember("S" + i);
+            }
+            WaitingRoom room = new WaitingRoom(queuedService,
+                Set.of(WaitingRoom.hotTripKey(hotTrip.getRoute().getRouteId(), hotTrip.getDepartureTime())), 100_000, students);
+            CountDownLatch resolved = new CountDownLatch(students);
+            List<WaitingRoom.Ticket> tickets = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger nextStudent = new AtomicInteger();
+            long queuedNanos = runConcurrently(threads, () -> {
+                Random random = ThreadLocalRandom.current();
+                int i;
+                while ((i = nextStudent.getAndIncrement()) < students) {
+                    WaitingRoom.Ticket ticket = room.enqueue("S" + i, hotTrip, String.valueOf(1 + random.nextInt(hotTrip.getTotalSeats())));
+                    tickets.add(ticket);
+                    room.awaitResult(ticket, 60_000, resolved::countDown);
+                }
+                try {
+                    resolved.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            room.shutdown();
+
+            // 先來先處理：成功的號碼牌都排在第一張「已額滿」號碼牌之前
+            int confirmed = 0;
+            long lastConfirmed = 0;
+            long firstSoldOut = Long.MAX_VALUE;
+            Set<String> seats = new HashSet<>();
+            for (WaitingRoom.Ticket t : tickets) {
+                if (WaitingRoom.Ticket.CONFIRMED.equals(t.getStatus())) {
+                    confirmed++;
+                    lastConfirmed = Math.max(lastConfirmed, t.getTicketId());
+                    ok &= seats.add(t.getSeatNumber());
+                } else {
+                    ok &= WaitingRoom.Ticket.FAILED.equals(t.getStatus());
+                    if ("班次已額滿".equals(t.getError())) {
+                        firstSoldOut = Math.min(firstSoldOut, t.getTicketId());
+                    }
+                }
+            }
+            ok &= lastConfirmed < firstSoldOut;
+            ok &= confirmed == hotTrip.getTotalSeats() && hotTrip.getAvailableSeats() == 0;
+            ok &= room.getConfirmed() + room.getFailed() == students;
+            console.printf("%-8s %10s %12s %12s%n", "mode", "students", "attempts", "elapsed ms");
+            console.printf("%-8s %10d %12d %12.1f%n", "direct", students, attempts.get(), directNanos / 1e6);
+            console.printf("%-8s %10d %12d %12.1f%n", "queued", students, room.getAttempts(), queuedNanos / 1e6);
+            console.printf("queued confirmed=%d failed=%d%n", room.getConfirmed(), room.getFailed());
+            ok &= checkJournaledHotTrips(console);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    // 開啟日誌時同時有多個熱門班次：逐張呼叫 createReservation（每張各等一次 fsync，即單一排程執行緒的做法）
+    // 與 WaitingRoom 平行處理各班次、每批只等待一次 fsync 相比；重啟後每張已確認的號碼牌都必須能復原
+    private static boolean checkJournaledHotTrips(PrintStream console) throws IOException {
+        final int hotTrips = 4;
+        final int studentsPerTrip = 500;
+        Path sequentialDir = Files.createTempDirectory("shuttle-queue-seq");
+        Path queuedDir = Files.createTempDirectory("shuttle-queue");
+        try {
+            DataStore sequentialStore = generateData(2, hotTrips);
+            PersistenceManager sequentialLog = PersistenceManager.open(sequentialDir, sequentialStore);
+            ReservationManager sequential = new ReservationManager(sequentialStore, sequentialLog.getWriteAheadLog());
+            List<Trip> sequentialTrips = lastTrips(sequentialStore, hotTrips);
+            long begin = System.nanoTime();
+            for (int i = 0; i < studentsPerTrip; i++) {
+                for (int t = 0; t < hotTrips; t++) {
+                    String studentId = "S" + (t * studentsPerTrip + i);
+                    sequential.findOrCreateMember(studentId);
+                    Trip trip = sequentialTrips.get(t);
+                    sequential.createReservation(studentId, trip.getTripId(), String.valueOf(1 + i % trip.getTotalSeats()));
+                }
+            }
+            long sequentialNanos = System.nanoTime() - begin;
+            sequentialLog.getWriteAheadLog().close();
+
+            DataStore queuedStore = generateData(2, hotTrips);
+            PersistenceManager queuedLog = PersistenceManager.open(queuedDir, queuedStore);
+            ReservationManager queued = new ReservationManager(queuedStore, queuedLog.getWriteAheadLog());
+            List<Trip> trips = lastTrips(queuedStore, hotTrips);
+            Set<String> keys = new HashSet<>();
+            for (Trip trip : trips) {
+                keys.add(WaitingRoom.hotTripKey(trip.getRoute().getRouteId(), trip.getDepartureTime()));
+            }
+            for (int i = 0; i < hotTrips * studentsPerTrip; i++) {
+                queued.findOrCreateMember("S" + i);
+            }
+            WaitingRoom room = new WaitingRoom(queued, keys, 100_000, studentsPerTrip);
+            CountDownLatch resolved = new CountDownLatch(hotTrips * studentsPerTrip);
+            List<WaitingRoom.Ticket> tickets = new ArrayList<>();
+            begin = System.nanoTime();
+            for (int i = 0; i < studentsPerTrip; i++) {
+                for (int t = 0; t < hotTrips; t++) {
+                    Trip trip = trips.get(t);
+                    WaitingRoom.Ticket ticket = room.enqueue("S" + (t * studentsPerTrip + i), trip,
+                        String.valueOf(1 + i % trip.getTotalSeats()));
+                    tickets.add(ticket);
+                    room.awaitResult(ticket, 60_000, resolved::countDown);
+                }
+            }
+            try {
+                resolved.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long queuedNanos = System.nanoTime() - begin;
+            room.shutdown();
+            queuedLog.getWriteAheadLog().close();
+            queuedStore.getArchive().close();
+
+            DataStore recovered = generateData(2, hotTrips);
+            PersistenceManager restored = PersistenceManager.open(queuedDir, recovered);
+            ReservationManager after = new ReservationManager(recovered, restored.getWriteAheadLog());
+            int confirmed = 0;
+            int lost = 0;
+            for (WaitingRoom.Ticket ticket : tickets) {
+                if (WaitingRoom.Ticket.CONFIRMED.equals(ticket.getStatus())) {
+                    confirmed++;
+                    boolean found = false;
+                    for (Reservation r : after.getMemberReservations(ticket.getStudentId())) {
+                        found |= r.getReservationId().equals(ticket.getReservationId());
+                    }
+                    lost += found ? 0 : 1;
+                }
+            }
+            restored.getWriteAheadLog().close();
+            recovered.getArchive().close();
+            int seats = 0;
+            for (Trip trip : trips) {
+                seats += trip.getTotalSeats();
+            }
+            boolean pass = confirmed == seats && lost == 0;
+            console.printf("journaled, %d hot trips: sequential %.1f ms, queued %.1f ms, confirmed=%d lost after recovery=%d -> %s%n",
+                hotTrips, sequentialNanos / 1e6, queuedNanos / 1e6, confirmed, lost, pass ? "PASS" : "FAIL");
+            return pass;
+        } finally {
+            deleteRecursively(sequentialDir);
+            deleteRecursively(queuedDir);
+        }
+    }
+
+    // 各路線的最後一班（最晚日期、最晚時段），彼此屬於不同的熱門時段
+    private static List<Trip> lastTrips(DataStore dataStore, int routes) {
+        List<Trip> all = dataStore.getAllTrips();
+        List<Trip> trips = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (int i = all.size() - 1; i >= 0 && trips.size() < routes; i--) {
+            if (seen.add(all.get(i).getRoute().getRouteId())) {
+                trips.add(all.get(i));
+            }
+        }
+        return trips;
+    }
+
+    /*============================ 情境 11: 批次預約 ================================= */
+    // 64 個執行緒同時送出跨 4 個班次、項目順序隨機的批次預約（含來回與團體），驗證不會死結、
+    // 每一批全部成功或全部未建立、座位不重複；另比較 8 個座位逐筆預約與一次批次預約的耗時
+    private static boolean stressBatchBooking() {
+        System.out.println("== batch: all-or-nothing bookings across trips ==");
+        final int threads = 64;
+        final int batches = 20_000;
+        final int members = 2_000;
+        DataStore dataStore = generateData(3, 2);
+        ReservationManager service = new ReservationManager(dataStore);
+        LocalDate day = LocalDate.now().plusDays(2);
+        List<Trip> trips = new ArrayList<>();
+        for (Trip t : dataStore.getAllTrips()) {
+            if (t.getDate().equals(day) && trips.size() < 4) {
+                trips.add(t);
+            }
+        }
+        for (int i = 0; i < members; i++) {
+            service.findOrCreateMember("S" + i);
+        }
+        boolean ok = true;
+        PrintStream console = silenceStdout();
+        try {
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger succeeded = new AtomicInteger();
+            AtomicInteger expectedActive = new AtomicInteger(); // 成功且未取消的批次項目數
+            long elapsed = runConcurrently(threads, () -> {
+                Random random = ThreadLocalRandom.current();
+                int n;
+                while ((n = next.getAndIncrement()) < batches) {
+                    int size = 1 + random.nextInt(4);
+                    String[] tripIds = new String[size];
+                    String[] seatNumbers = new String[size];
+                    for (int i = 0; i < size; i++) {
+                        Trip trip = trips.get(random.nextInt(trips.size()));
+                        tripIds[i] = trip.getTripId();
+                        seatNumbers[i] = String.valueOf(1 + random.nextInt(trip.getTotalSeats()));
+                    }
+                    String studentId = "S" + random.nextInt(members);
+                    BatchBookingResult result = service.createReservations(studentId, tripIds, seatNumbers);
+                    if (result.isSuccess()) {
+                        succeeded.incrementAndGet();
+                        // 大部分成功的批次隨即取消，讓座位持續有人搶
+                        if (random.nextInt(10) > 0) {
+                            for (int i = 0; i < size; i++) {
+                                service.cancelReservation(result.getReservation(i).getReservationId(), studentId);
+                            }
+                        } else {
+                            expectedActive.addAndGet(size);
+                        }
+                    }
+                }
+            });
+            // 每個已占用座位恰好對應一筆有效預約，且有效預約全部來自成功的批次（失敗的批次沒有留下任何預約）
+            int occupied = 0;
+            for (Trip t : trips) {
+                occupied += t.getTotalSeats() - t.getAvailableSeats();
+            }
+            int active = 0;
+            Set<String> seats = new HashSet<>();
+            for (Member m : materializedMembers(dataStore)) {
+                for (Reservation r : m.getActiveReservations()) {
+                    active++;
+                    ok &= seats.add(r.getTrip().getTripId() + "#" + r.getSeatNumber());
+                }
+            }
+            ok &= occupied == active && active == expectedActive.get();
+            console.printf("batches=%d threads=%d succeeded=%d activeReservations=%d occupiedSeats=%d elapsed=%.1fms%n",
+                batches, threads, succeeded.get(), active, occupied, elapsed / 1e6);
+
+            // 團體預約 8 個座位：逐筆 vs 批次（每輪在新的班次上執行，前 1/4 輪為暖機不計）
+            DataStore groupStore = generateData(DAYS_AHEAD, 10);
+            ReservationManager groupService = new ReservationManager(groupStore);
+            groupService.findOrCreateMember("S0");
+            groupService.findOrCreateMember("S1");
+            List<Trip> groupTrips = new ArrayList<>();
+            for (Trip t : groupStore.getAllTrips()) {
+                if (!t.getDate().isBefore(LocalDate.now().plusDays(1))) {
+                    groupTrips.add(t);
+                }
+            }
+            String[] seatNumbers = { "1", "2", "3", "4", "5", "6", "7", "8" };
+            int total = groupTrips.size() / 2;
+            int warmup = total / 4;
+            int rounds = total - warmup;
+            long singleNanos = 0;
+            long batchNanos = 0;
+            for (int round = 0; round < total; round++) {
+                Trip single = groupTrips.get(round * 2);
+                Trip batch = groupTrips.get(round * 2 + 1);
+                long begin = System.nanoTime();
+                for (String seat : seatNumbers) {
+                    ok &= groupService.createReservation("S0", single.getTripId(), seat) != null;
+                }
+                long singleElapsed = System.nanoTime() - begin;
+                String[] tripIds = new String[seatNumbers.length];
+                Arrays.fill(tripIds, batch.getTripId());
+                begin = System.nanoTime();
+                ok &= groupService.createReservations("S1", tripIds, seatNumbers).isSuccess();
+                if (round >= warmup) {
+                    singleNanos += singleElapsed;
+                    batchNanos += System.nanoTime() - begin;
+                }
+            }
+            console.printf("group of 8 seats: single=%.1fus batch=%.1fus (%d rounds, in-process; HTTP saves 7 round trips per group)%n",
+                singleNanos / 1e3 / rounds, batchNanos / 1e3 / rounds, rounds);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 12: 靜態檔案 ================================= */
+    // 比較舊版每次開檔並以 1 KB 緩衝複製，與 StaticAssetCache 由記憶體回應的耗時、配置量與傳輸量（暫存目錄中產生的檔案）
+    private static void benchmarkStaticFiles() throws IOException {
+        System.out.println("== staticFiles: per-request disk copy vs. in-memory assets ==");
+        Path dir = Files.createTempDirectory("static-bench");
+        try {
+            StringBuilder page = new StringBuilder("<!DOCTYPE html><html><body>");
+            StringBuilder script = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                page.append("<div class=\"trip\" id=\"t").append(i).append("\">班次 ").append(i).append("</div>\n");
+                script.append("function render").append(i).append("(trip) { return `<div>${trip.id}</div>`; }\n");
+            }
+            page.append("</body></html>");
+            Files.writeString(dir.resolve("index.html"), page);
+            Files.writeString(dir.resolve("script.js"), script);
+            StaticAssetCache cache = new StaticAssetCache(dir);
+            OutputStream discard = new OutputStream() {
+                public void write(int b) { }
+                public void write(byte[] b, int off, int len) { }
+            };
+
+            System.out.printf("%-12s %10s %12s %10s %12s %10s %10s%n",
+                "file", "bytes", "legacy ns", "legacy B", "cached ns", "cached B", "gzip bytes");
+            for (String name : new String[] { "index.html", "script.js" }) {
+                File file = dir.resolve(name).toFile();
+                IoTask legacy = () -> {
+                    if (file.exists() && file.isFile()) {
+                        sink = file.length();
+                        try (FileInputStream fis = new FileInputStream(file)) {
+                            byte[] buffer = new byte[1024];
+                            int bytesRead;
+                            while ((bytesRead = fis.read(buffer)) != -1) {
+                                discard.write(buffer, 0, bytesRead);
+                            }
+                        }
+                    }
+                };
+                IoTask cached = () -> discard.write(cache.lookup("/" + name).getGzipBody());
+                double legacyBytes = allocatedPerOp(20_000, legacy);
+                double cachedBytes = allocatedPerOp(20_000, cached);
+                double legacyNs = measure(20_000, i -> { runIo(legacy); return null; });
+                double cachedNs = measure(20_000, i -> { runIo(cached); return null; });
+                StaticAssetCache.Asset asset = cache.lookup("/" + name);
+                System.out.printf("%-12s %10d %12.0f %10.0f %12.0f %10.0f %10d%n",
+                    name, asset.getBody().length, legacyNs, legacyBytes, cachedNs, cachedBytes, asset.getGzipBody().length);
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void runIo(IoTask task) {
+        try {
+            task.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*============================ 情境 13: 超載下的准入控制 ================================= */
+    // 另啟一個伺服器行程，先以基準併發量、再以 10 倍併發量送出混合請求（一半查詢班次、一半預約後取消，
+    // 超載時另有少數固定學號的腳本持續搶位），比較關閉 / 開啟准入控制時「被接受請求」的 p99 延遲。
+    // 所有請求都來自本機同一個 IP，因此將每 IP 限流放寬，只驗證學號限流與分級卸載。
+    private static final int LOAD_PORT = 18080;
+    private static final int LOAD_BASE_CLIENTS = 16;
+    private static final int LOAD_MEMBERS = 10_000;
+
+    private static boolean loadAdmission() throws IOException {
+        System.out.println("== admission: p99 of admitted requests under 10x overload ==");
+        System.out.printf("%-10s %8s %10s %10s %8s %8s %12s %12s%n",
+            "admission", "clients", "admitted", "req/s", "429", "503", "p50 ms", "p99 ms");
+        String date = LocalDate.now().plusDays(1).toString();
+        String schedules = "/api/schedules?date=" + date + "&route=" + URLEncoder.encode("中央大學-桃園高鐵站", StandardCharsets.UTF_8);
+        LoadResult[] on = null;
+        for (String mode : new String[] { "off", "on" }) {
+            Process server = startServer("--admission=" + mode, "--rate-ip=1000000", "--burst-ip=1000000");
+            try (LoadClient client = new LoadClient()) {
+                client.awaitServer();
+                for (int i = 0; i < LOAD_MEMBERS; i++) {
+                    client.send("POST", "/api/login", "{\"username\":\"S" + i + "\",\"password\":\"x\"}");
+                }
+                List<String> tripIds = new ArrayList<>();
+                java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"id\":\"([^\"]+)\"")
+                    .matcher(client.send("GET", schedules, null).body);
+                while (m.find()) {
+                    tripIds.add(m.group(1));
+                }
+
+                runLoad(schedules, tripIds, LOAD_BASE_CLIENTS, 3); // 暖機
+                LoadResult[] results = {
+                    runLoad(schedules, tripIds, LOAD_BASE_CLIENTS, 8),
+                    runLoad(schedules, tripIds, LOAD_BASE_CLIENTS * 10, 8)
+                };
+                for (LoadResult r : results) {
+                    System.out.printf("%-10s %8d %10d %10.0f %8d %8d %12.2f %12.2f%n",
+                        mode, r.clients, r.admitted(), r.admitted() / (double) r.seconds, r.rateLimited, r.shed,
+                        r.percentile(0.50) / 1e6, r.percentile(0.99) / 1e6);
+                }
+                if (mode.equals("on")) {
+                    on = results;
+                }
+            } finally {
+                server.destroy();
+                try {
+                    server.waitFor(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        // 開啟准入控制時，10 倍超載下被接受請求的 p99 不應超過基準的 3 倍（基準極小時容許 20ms 的絕對誤差）
+        long baseP99 = on[0].percentile(0.99);
+        long overP99 = on[1].percentile(0.99);
+        boolean ok = overP99 <= Math.max(3 * baseP99, baseP99 + 20_000_000L) && on[1].rateLimited + on[1].shed > 0;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    // 以目前的 classpath 另啟伺服器行程（關閉持久化、稽核日誌與 Token 驗證，輸出丟棄）
+    private static Process startServer(String... options) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+            Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", System.getProperty("java.class.path"), "SimpleApp",
+            "--port=" + LOAD_PORT, "--persistence=off", "--audit=off", "--auth=off"));
+        command.addAll(Arrays.asList(options));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+
+    // clients 個執行緒不間斷送出請求 seconds 秒；超出基準量的執行緒中每 10 個有 1 個是固定學號的搶位腳本
+    private static LoadResult runLoad(String schedules, List<String> tripIds, int clients, int seconds) {
+        LoadResult result = new LoadResult(clients, seconds);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicInteger nextClient = new AtomicInteger();
+        runConcurrently(clients, () -> {
+            int index = nextClient.getAndIncrement();
+            boolean script = index >= LOAD_BASE_CLIENTS && index % 10 == 0;
+            Random random = new Random(index);
+            long[] latencies = new long[1024];
+            int count = 0;
+            int rateLimited = 0;
+            int shed = 0;
+            try (LoadClient client = new LoadClient()) {
+                while (System.nanoTime() < deadline) {
+                    String studentId = script ? "S" + (index % LOAD_MEMBERS) : "S" + random.nextInt(LOAD_MEMBERS);
+                    boolean browse = !script && random.nextBoolean();
+                    LoadClient.Response response;
+                    long begin = System.nanoTime();
+                    try {
+                        response = browse
+                            ? client.send("GET", schedules, null)
+                            : client.send("POST", "/api/bookings", "{\"studentId\":\"" + studentId + "\",\"scheduleId\":\""
+                                + tripIds.get(random.nextInt(tripIds.size())) + "\",\"seatNumber\":\""
+                                + (1 + random.nextInt(Route.DEFAULT_SEAT_CAPACITY)) + "\"}");
+                    } catch (IOException e) {
+                        shed++; // 連線被拒或中斷也視為未被接受
+                        continue;
+                    }
+                    long latency = System.nanoTime() - begin;
+                    if (response.status == 429) {
+                        rateLimited++;
+                        continue;
+                    }
+                    if (response.status == 503) {
+                        shed++;
+                        continue;
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = latency;
+                    if (!browse && response.status == 200) {
+                        // 預約成功後立即取消，讓座位維持可預約
+                        String id = response.body.replaceAll(".*\"id\":\"([^\"]+)\".*", "$1");
+                        try {
+                            client.send("DELETE", "/api/bookings/" + id + "?studentId=" + studentId, null);
+                        } catch (IOException e) {
+                            // 取消失敗只影響座位數，不列入統計
+                        }
+                    }
+                }
+            }
+            result.add(Arrays.copyOf(latencies, count), rateLimited, shed);
+        });
+        return result;
+    }
+
+    static class LoadResult {
+        final int clients;
+        final int seconds;
+        final List<long[]> latencies = new ArrayList<>();
+        long rateLimited;
+        long shed;
+        private long[] sorted;
+
+        LoadResult(int clients, int seconds) {
+            this.clients = clients;
+            this.seconds = seconds;
+        }
+
+        synchronized void add(long[] values, int rateLimited, int shed) {
+            latencies.add(values);
+            this.rateLimited += rateLimited;
+            this.shed += shed;
+        }
+
+        long admitted() {
+            return sorted().length;
+        }
+
+        long percentile(double p) {
+            long[] values = sorted();
+            return values.length == 0 ? 0 : values[Math.min(values.length - 1, (int) (values.length * p))];
+        }
+
+        private synchronized long[] sorted() {
+            if (sorted == null) {
+                sorted = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            }
+            return sorted;
+        }
+    }
+
+    // 最小的 HTTP/1.1 keep-alive 用戶端：整個請求一次寫出並關閉 Nagle，
+    // 避免標頭與內容分兩次送出時被延遲確認拖慢（JDK 內建用戶端的 POST 每次約多 40ms）
+    static class LoadClient implements Closeable {
+        static class Response {
+            final int status;
+            final String body;
+            Response(int status, String body) {
+                this.status = status;
+                this.body = body;
+            }
+        }
+
+        private Socket socket;
+        private BufferedInputStream in;
+        private OutputStream out;
+
+        Response send(String method, String path, String body) throws IOException {
+            byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            byte[] head = (method + " " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + content.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+            byte[] request = Arrays.copyOf(head, head.length + content.length);
+            System.arraycopy(content, 0, request, head.length, content.length);
+            if (socket == null) {
+                Socket connection = new Socket();
+                connection.setTcpNoDelay(true);
+                try {
+                    connection.connect(new InetSocketAddress("localhost", LOAD_PORT));
+                } catch (IOException e) {
+                    connection.close();
+                    throw e;
+                }
+                in = new BufferedInputStream(connection.getInputStream());
+                out = connection.getOutputStream();
+                socket = connection;
+            }
+            try {
+                out.write(request);
+                out.flush();
+                return readResponse();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private Response readResponse() throws IOException {
+            String statusLine = readLine();
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            int length = -1;
+            boolean chunked = false;
+            boolean closeAfter = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                String lower = line.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("content-length:")) {
+                    length = Integer.parseInt(lower.substring(15).trim());
+                } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                    chunked = true;
+                } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                    closeAfter = true;
+                }
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (chunked) {
+                int size;
+                while ((size = Integer.parseInt(readLine().trim(), 16)) > 0) {
+                    body.write(in.readNBytes(size));
+                    readLine();
+                }
+                readLine();
+            } else if (length > 0) {
+                body.write(in.readNBytes(length));
+            }
+            if (closeAfter) {
+                close();
+            }
+            return new Response(status, body.toString(StandardCharsets.UTF_8));
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException("連線已關閉");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        // 伺服器啟動需要數秒，重試連線直到 /api/status 回應
+        void awaitServer() throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (true) {
+                try {
+                    send("GET", "/api/status", null);
+                    return;
+                } catch (IOException e) {
+                    if (System.nanoTime() > deadline) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        public void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 關閉失敗不影響量測
+                }
+                socket = null;
+            }
+        }
+    }
+
+    // hotPaths 情境的資料規模，以 --key=value 指定
+    static class Scale {
+        int days = DAYS_AHEAD;
+        int routes = 4;
+        int tripsPerDay = TIMES.length;
+        int members = 1_000;
+        int history = 50;
+        int threads = 8;
+
+        void set(String arg) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("參數格式應為 --key=value: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            int value = Integer.parseInt(arg.substring(eq + 1));
+            switch (key) {
+                case "days": days = Math.max(2, value); break;
+                case "routes": routes = value; break;
+                case "trips-per-day": tripsPerDay = value; break;
+                case "members": members = value; break;
+                case "history": history = value; break;
+                case "threads": threads = value; break;
+                default: throw new IllegalArgumentException("未知的參數: " + arg);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("days=%d routes=%d tripsPerDay=%d members=%d history=%d threads=%d",
+                days, routes, tripsPerDay, members, history, threads);
+        }
+    }
+
+    /*============================ 測試資料 ================================= */
+    static DataStore generateData(int daysAhead, int routeCount) {
+        return generateData(daysAhead, routeCount, TIMES.length);
+    }
+
+    static DataStore generateData(int daysAhead, int routeCount, int tripsPerDay) {
+        LocalTime[] times = departureTimes(tripsPerDay);
+        MemberStore members = new MemberStore();
+        Map<String, Route> routes = new HashMap<>();
+        List<Route> allRoutes = new ArrayList<>();
+        for (int r = 0; r < routeCount; r++) {
+            Route route = new Route(String.format("R%05d", r), routeName(r));
+            routes.put(route.getRouteName(), route);
+            allRoutes.add(route);
+        }
+        List<Trip> allTrips = new ArrayList<>();
+        long tripIdCounter = 1;
+        LocalDate today = LocalDate.now();
+        for (int i = 0; i < daysAhead; i++) {
+            LocalDate date = today.plusDays(i);
+            for (Route r : allRoutes) {
+                for (LocalTime time : times) {
+                    allTrips.add(new Trip(String.valueOf(tripIdCounter++), r, date, time));
+                }
+            }
+        }
+        return new DataStore(allTrips, members, routes);
+    }
+
+    // 預設 6 個時段；其他數量則在 06:00 ~ 22:00 間平均分配
+    static LocalTime[] departureTimes(int tripsPerDay) {
+        if (tripsPerDay == TIMES.length) {
+            return TIMES;
+        }
+        LocalTime[] times = new LocalTime[tripsPerDay];
+        int step = 16 * 3600 / tripsPerDay;
+        for (int i = 0; i < tripsPerDay; i++) {
+            times[i] = LocalTime.of(6, 0).plusSeconds((long) i * step);
+        }
+        return times;
+    }
+
+    /*============================ 情境 14: 監控指標 ================================= */
+    // 熱門班次搶位時比對預約結果計數是否完整（無遺失更新），並量測直方圖記錄成本與 /api/metrics 匯出耗時
+    private static boolean benchmarkMetrics() {
+        System.out.println("== metrics: outcome counts under contention, record cost, scrape time ==");
+        final int threads = 64;
+        final int attempts = 5_000;
+        MetricsRegistry metrics = new MetricsRegistry();
+        DataStore dataStore = generateData(2, 1);
+        ReservationManager service = new ReservationManager(dataStore, null, metrics);
+        Trip hotTrip = dataStore.getAllTrips().get(dataStore.getAllTrips().size() - 1);
+        for (int i = 0; i < attempts; i++) {
+            service.findOrCreateMember("S" + i);
+        }
+        PrintStream console = silenceStdout();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger winners = new AtomicInteger();
+        try {
+            runConcurrently(threads, () -> {
+                Random random = ThreadLocalRandom.current();
+                int i;
+                while ((i = next.getAndIncrement()) < attempts) {
+                    String seat = String.valueOf(1 + random.nextInt(hotTrip.getTotalSeats()));
+                    if (service.createReservation("S" + i, hotTrip.getTripId(), seat) != null) {
+                        winners.incrementAndGet();
+                    }
+                }
+            });
+        } finally {
+            System.setOut(console);
+        }
+        LatencyHistogram booked = metrics.histogram("bus_booking_duration_seconds", "", MetricsRegistry.label("outcome", "booked"));
+        LatencyHistogram taken = metrics.histogram("bus_booking_duration_seconds", "", MetricsRegistry.label("outcome", "seat_taken"));
+        LatencyHistogram lockWait = metrics.histogram("bus_booking_lock_wait_seconds", "", MetricsRegistry.label("op", "book"));
+        boolean ok = booked.getCount() == winners.get()
+            && booked.getCount() + taken.getCount() == attempts
+            && lockWait.getCount() == attempts;
+        System.out.printf("attempts=%d booked=%d seatTaken=%d lockWaits=%d%n",
+            attempts, booked.getCount(), taken.getCount(), lockWait.getCount());
+        System.out.printf("booking p50=%.1fus p99=%.1fus  lock wait p50=%.1fus p99=%.1fus%n",
+            booked.percentile(0.5) / 1e3, booked.percentile(0.99) / 1e3, lockWait.percentile(0.5) / 1e3, lockWait.percentile(0.99) / 1e3);
+
+        // 直方圖本身：單執行緒與多執行緒的每次記錄成本，以及多執行緒同時記錄時計數是否完整
+        LatencyHistogram histogram = new LatencyHistogram();
+        double singleNs = measure(1_000_000, i -> { histogram.record(i * 37L); return null; });
+        final int perThread = 1_000_000;
+        final int recordThreads = 4;
+        LatencyHistogram shared = new LatencyHistogram();
+        long elapsed = runConcurrently(recordThreads, () -> {
+            for (int i = 0; i < perThread; i++) {
+                shared.record(i * 37L);
+            }
+        });
+        ok &= shared.getCount() == (long) perThread * recordThreads;
+        System.out.printf("record: %.1f ns/op single-thread, %.1f ns/op with %d threads (count=%d)%n",
+            singleNs, elapsed / (double) perThread / recordThreads, recordThreads, shared.getCount());
+
+        // 分位數誤差不超過一格（約 12.5%）
+        LatencyHistogram uniform = new LatencyHistogram();
+        for (int i = 1; i <= 100_000; i++) {
+            uniform.record(i * 1_000L);
+        }
+        double p99Error = Math.abs(uniform.percentile(0.99) - 99_000_000.0) / 99_000_000.0;
+        ok &= p99Error <= 0.125;
+        System.out.printf("p99 of 1..100ms uniform: %.2fms (error %.1f%%)%n", uniform.percentile(0.99) / 1e6, p99Error * 100);
+
+        // 一般規模資料的匯出耗時
+        MetricsRegistry full = new MetricsRegistry();
+        new ReservationManager(generateData(DAYS_AHEAD, 4), null, full);
+        String text = full.toPrometheusText();
+        double scrapeNs = measure(50, i -> full.toPrometheusText());
+        System.out.printf("scrape: %.2fms for %d lines (%d bytes)%n", scrapeNs / 1e6, text.split("\n").length, text.length());
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 15: 非同步稽核日誌 ================================= */
+    // 8 個執行緒各自在不同班次反覆預約、取消：比較舊版每次以 System.out 同步輸出（導向檔案）與 AuditLog 的吞吐量，
+    // 並驗證 block 模式不遺失事件、drop 模式在緩衝過小時「寫出 + 捨棄」等於總事件數
+    private static boolean benchmarkAuditLog() throws IOException {
+        System.out.println("== audit: synchronous stdout vs. async audit log ==");
+        final int threads = 8;
+        final int cyclesPerThread = 50_000;
+        Path dir = Files.createTempDirectory("audit-bench");
+        PrintStream console = System.out;
+        boolean ok = true;
+        try {
+            // 舊版：預約與取消各輸出一行到 stdout（此處導向暫存檔）
+            Path stdoutFile = dir.resolve("stdout.log");
+            try (PrintStream fileOut = new PrintStream(new FileOutputStream(stdoutFile.toFile()), false, "UTF-8")) {
+                System.setOut(fileOut);
+                ReservationManager legacy = new ReservationManager(generateData(2, 4));
+                double legacyOps = bookCancelThroughput(legacy, threads, cyclesPerThread, true);
+                System.setOut(console);
+                System.out.printf("stdout println : %,10.0f book+cancel/s%n", legacyOps);
+            }
+
+            Path blockDir = dir.resolve("block");
+            AuditLog blocking = new AuditLog(blockDir, 65_536, AuditLog.OVERFLOW_BLOCK, 64L * 1024 * 1024);
+            ReservationManager audited = new ReservationManager(generateData(2, 4), null, new MetricsRegistry(), blocking);
+            double auditOps = bookCancelThroughput(audited, threads, cyclesPerThread, false);
+            blocking.close();
+            long expected = 2L * threads * cyclesPerThread;
+            long lines = countLines(blockDir);
+            ok &= lines == expected && blocking.getDropped() == 0;
+            System.out.printf("audit (block)  : %,10.0f book+cancel/s, events=%d lines=%d dropped=%d%n",
+                auditOps, expected, lines, blocking.getDropped());
+
+            Path dropDir = dir.resolve("drop");
+            AuditLog dropping = new AuditLog(dropDir, 64, AuditLog.OVERFLOW_DROP, 64L * 1024 * 1024);
+            ReservationManager lossy = new ReservationManager(generateData(2, 4), null, new MetricsRegistry(), dropping);
+            double dropOps = bookCancelThroughput(lossy, threads, cyclesPerThread, false);
+            dropping.close();
+            lines = countLines(dropDir);
+            ok &= lines + dropping.getDropped() == expected && lines == dropping.getWritten();
+            System.out.printf("audit (drop,64): %,10.0f book+cancel/s, lines=%d dropped=%d%n", dropOps, lines, dropping.getDropped());
+        } finally {
+            System.setOut(console);
+            deleteRecursively(dir);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 16: 登入與 Token 驗證 ================================= */
+    // 比較需要計算 PBKDF2 的登入與憑證快取命中的登入成本、每次 API 請求的 Token 驗證成本，
+    // 並確認名冊外的學號、未附開通碼的未設定密碼帳號、錯誤密碼、竄改、撤銷與過期的 Token 都被拒絕
+    private static boolean benchmarkAuth() throws IOException {
+        System.out.println("== auth: slow hash vs. cached login, token validation ==");
+        final int iterations = 310_000;
+        ReservationManager manager = new ReservationManager(generateData(2, 1));
+        AuthService auth = new AuthService(manager, AuthService.signingKey(null), iterations, 3600, 10_000);
+        boolean ok = true;
+
+        // 名冊：C0..C4 與 LEGACY 附開通碼，CLAIM 沒有開通碼
+        final int coldLogins = 5;
+        Path roster = Files.createTempFile("shuttle-roster", ".txt");
+        try {
+            List<String> lines = new ArrayList<>();
+            lines.add("# 學號,開通碼");
+            for (int i = 0; i < coldLogins; i++) {
+                lines.add("C" + i + ",code-" + i);
+            }
+            lines.add("LEGACY, legacy-code ");
+            lines.add("");
+            lines.add("CLAIM");
+            Files.write(roster, lines, StandardCharsets.UTF_8);
+            ok &= AuthService.loadRoster(roster, manager, auth) == coldLogins + 2;
+        } finally {
+            Files.deleteIfExists(roster);
+        }
+
+        // 名冊外的學號不能登入，也不會因此建立帳號
+        ok &= auth.login("GHOST", "anything") == null && manager.findMember("GHOST") == null;
+        // 第一次登入：憑開通碼設定密碼並計算一次 PBKDF2
+        long start = System.nanoTime();
+        for (int i = 0; i < coldLogins; i++) {
+            ok &= auth.login("C" + i, "secret-" + i, "code-" + i) != null;
+        }
+        double coldMs = (System.nanoTime() - start) / 1e6 / coldLogins;
+        // 未設定密碼的帳號不能先搶先設定：沒有或錯誤的開通碼都被拒絕，密碼維持未設定
+        ok &= auth.login("LEGACY", "first") == null && auth.login("LEGACY", "first", "wrong") == null;
+        ok &= Member.UNSET_PASSWORD.equals(manager.findMember("LEGACY").getHashedPassword());
+        ok &= auth.login("LEGACY", "first", "legacy-code") != null;
+        ok &= manager.findMember("LEGACY").getHashedPassword().startsWith(AuthService.HASH_PREFIX);
+        ok &= auth.login("LEGACY", "second", "legacy-code") == null; // 開通碼只能用來設定一次密碼
+        ok &= auth.login("CLAIM", "first") == null;
+        // 以 --claim-unset 開放時，未設定密碼的帳號才能在第一次登入直接設定
+        AuthService claiming = new AuthService(manager, AuthService.signingKey(null), 1_000, 3600, 16, true);
+        ok &= claiming.login("CLAIM", "first") != null && claiming.login("CLAIM", "second") == null;
+        ok &= claiming.login("GHOST", "anything") == null;
+        ok &= auth.login("C0", "wrong") == null; // 快取中有 C0，錯誤密碼仍不能通過
+        System.out.printf("login (PBKDF2, %d iterations): %8.2f ms%n", iterations, coldMs);
+
+        double cachedNs = measure(100_000, i -> auth.login("C1", "secret-1"));
+        System.out.printf("login (cached credential)    : %8.2f us%n", cachedNs / 1e3);
+        ok &= cachedNs * 100 < coldMs * 1e6;
+
+        String token = auth.login("C2", "secret-2").getToken();
+        double validateNs = measure(1_000_000, i -> auth.authenticate(token));
+        final int threads = 8;
+        final int perThread = 200_000;
+        AtomicInteger accepted = new AtomicInteger();
+        long elapsed = runConcurrently(threads, () -> {
+            int mine = 0;
+            for (int i = 0; i < perThread; i++) {
+                if ("C2".equals(auth.authenticateHeader("Bearer " + token))) {
+                    mine++;
+                }
+            }
+            accepted.addAndGet(mine);
+        });
+        ok &= accepted.get() == threads * perThread;
+        System.out.printf("token validation             : %8.2f us/op single-thread, %,.0f ops/s with %d threads%n",
+            validateNs / 1e3, threads * (double) perThread / (elapsed / 1e9), threads);
+
+        // 竄改學號、竄改簽章、撤銷、過期、其他伺服器（不同密鑰）簽發的 Token
+        int dot = token.indexOf('.');
+        String forgedPayload = Base64.getUrlEncoder().withoutPadding().encodeToString(
+            new String(Base64.getUrlDecoder().decode(token.substring(0, dot)), StandardCharsets.UTF_8)
+                .replaceFirst("^C2", "C3").getBytes(StandardCharsets.UTF_8));
+        ok &= auth.authenticate(forgedPayload + token.substring(dot)) == null;
+        ok &= auth.authenticate(token.substring(0, token.length() - 2) + "AA") == null;
+        ok &= auth.authenticate("garbage") == null && auth.authenticateHeader(null) == null;
+        String other = auth.login("C3", "secret-3").getToken();
+        ok &= auth.revoke(other) && auth.authenticate(other) == null && "C2".equals(auth.authenticate(token));
+        AuthService expired = new AuthService(manager, AuthService.signingKey("k"), iterations, -1, 16);
+        ok &= expired.authenticate(expired.login("C1", "secret-1").getToken()) == null;
+        AuthService foreign = new AuthService(manager, AuthService.signingKey("other"), iterations, 3600, 16);
+        ok &= foreign.authenticate(token) == null;
+        System.out.printf("logins=%d failed=%d cacheHits=%d slowHashes=%d revoked=%d%n",
+            auth.getLogins(), auth.getFailedLogins(), auth.getCacheHits(), auth.getSlowHashes(), auth.getRevokedCount());
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    /*============================ 情境 17: 座位保留 ================================= */
+    // 1. 熱門班次上學生依（可能過時的）座位圖選位、填表後送出：比較直接預約（失敗後重新查詢、重選）與
+    //    先保留再確認的總請求數，以及填表後才失敗的次數
+    // 2. 同時保留約 8.6 萬個座位後全部到期：計時輪的到期延遲、計時執行緒耗用的 CPU 與每 tick 掃描全部保留的成本比較
+    // 3. 多執行緒隨機保留、確認、放棄、逾時與取消後，座位、保留與預約的計數必須一致
+    private static boolean benchmarkSeatHolds() throws IOException {
+        System.out.println("== seatHold: retries vs. holds, timer-wheel expiry, consistency ==");
+        boolean ok = true;
+        PrintStream console = silenceStdout();
+        try {
+            final int students = 200;
+            final int threads = 32;
+            long[] direct = bookWithThinkTime(false, students, threads);
+            long[] held = bookWithThinkTime(true, students, threads);
+            ok &= direct[0] == held[0] && held[2] == 0;
+            console.printf("direct booking: %d booked, %d requests (%.1f per booking), %d failed after filling the form%n",
+                direct[0], direct[1], direct[1] / (double) direct[0], direct[2]);
+            console.printf("hold + confirm: %d booked, %d requests (%.1f per booking), %d failed after filling the form%n",
+                held[0], held[1], held[1] / (double) held[0], held[2]);
+
+            ok &= expireManyHolds(console);
+            ok &= stressHolds(console);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    // 每位學生：查詢座位圖 → 隨機選一個空位 → 填表（1~3ms）→ 送出；額滿即放棄。回傳 {成功數, 請求數, 填表後失敗數}
+    private static long[] bookWithThinkTime(boolean useHolds, int students, int threads) {
+        ReservationManager service = new ReservationManager(generateData(2, 1));
+        SeatHoldManager holds = new SeatHoldManager(service, 60_000, 1);
+        Trip trip = service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(0)).get(0);
+        for (int i = 0; i < students; i++) {
+            service.findOrCreateMember("S" + i);
+        }
+        AtomicInteger next = new AtomicInteger();
+        LongAdder booked = new LongAdder();
+        LongAdder requests = new LongAdder();
+        LongAdder lateFailures = new LongAdder();
+        runConcurrently(threads, () -> {
+            Random random = ThreadLocalRandom.current();
+            int i;
+            while ((i = next.getAndIncrement()) < students) {
+                String studentId = "S" + i;
+                while (true) {
+                    requests.increment(); // 查詢座位圖
+                    List<Integer> free = new ArrayList<>();
+                    for (int seat = 1; seat <= trip.getTotalSeats(); seat++) {
+                        if (trip.isSeatFree(seat)) {
+                            free.add(seat);
+                        }
+                    }
+                    if (free.isEmpty()) {
+                        break;
+                    }
+                    String seat = String.valueOf(free.get(random.nextInt(free.size())));
+                    SeatHold hold = null;
+                    if (useHolds) {
+                        requests.increment();
+                        hold = holds.hold(studentId, trip.getTripId(), seat);
+                        if (hold == null) {
+                            continue; // 選位時就知道被搶走，重新查詢
+                        }
+                    }
+                    sleepMillis(1 + random.nextInt(3));
+                    requests.increment();
+                    Reservation r = useHolds ? holds.confirm(hold) : service.createReservation(studentId, trip.getTripId(), seat);
+                    if (r != null) {
+                        booked.increment();
+                        break;
+                    }
+                    lateFailures.increment();
+                }
+            }
+        });
+        holds.shutdown();
+        return new long[] { booked.sum(), requests.sum(), lateFailures.sum() };
+    }
+
+    private static boolean expireManyHolds(PrintStream console) {
+        final long ttlMillis = 2_000; // 建立 8.6 萬個保留約需數百毫秒，期限須涵蓋建立時間
+        DataStore data = generateData(2, 120, 36);
+        ReservationManager service = new ReservationManager(data);
+        SeatHoldManager holds = new SeatHoldManager(service, ttlMillis, Integer.MAX_VALUE, 10);
+        List<Trip> trips = new ArrayList<>();
+        for (int r = 0; r < 120; r++) {
+            trips.addAll(service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(r)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            service.findOrCreateMember("H" + i);
+        }
+        // 座位釋放時記錄距離期限多久（以保留建立時間 + ttl 估計）
+        Map<String, Long> deadlines = new ConcurrentHashMap<>();
+        LatencyHistogram lateness = new LatencyHistogram();
+        service.addSeatChangeListener((trip, seat, occupied) -> {
+            Long deadline = occupied ? null : deadlines.remove(trip.getTripId() + "#" + seat);
+            if (deadline != null) {
+                lateness.record(System.nanoTime() - deadline);
+            }
+        });
+        int placed = 0;
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        for (Trip trip : trips) {
+            for (int seat = 1; seat <= trip.getTotalSeats(); seat++) {
+                long deadline = System.nanoTime() + ttlNanos;
+                deadlines.put(trip.getTripId() + "#" + seat, deadline);
+                if (holds.hold("H" + (placed % 1000), trip.getTripId(), String.valueOf(seat)) != null) {
+                    placed++;
+                }
+            }
+        }
+        int active = holds.getActiveHolds();
+        // 對照：每個 tick 掃描全部保留、找出到期者的成本
+        List<SeatHold> all = new ArrayList<>();
+        for (Trip trip : trips) {
+            for (int seat = 1; seat <= trip.getTotalSeats(); seat++) {
+                SeatHold hold = trip.getHold(seat);
+                if (hold != null) {
+                    all.add(hold);
+                }
+            }
+        }
+        double scanNs = measure(20, i -> {
+            long now = System.nanoTime();
+            int due = 0;
+            for (SeatHold hold : all) {
+                if (hold.isActive() && hold.getDeadlineNanos() <= now) {
+                    due++;
+                }
+            }
+            return due;
+        });
+        long wheelCpuBefore = threadCpuNanos("hold-expiry");
+        long waitStart = System.nanoTime();
+        while (holds.getActiveHolds() > 0 && System.nanoTime() - waitStart < TimeUnit.SECONDS.toNanos(10)) {
+            sleepMillis(10);
+        }
+        long wheelCpu = threadCpuNanos("hold-expiry") - wheelCpuBefore;
+        int stillHeld = 0;
+        for (Trip trip : trips) {
+            stillHeld += trip.getOccupiedSeatCount() + trip.getHeldSeatCount();
+        }
+        holds.shutdown();
+        boolean ok = active == placed && holds.getExpired() == placed && holds.getActiveHolds() == 0 && stillHeld == 0;
+        console.printf("expiry of %,d holds (ttl %dms, 10ms ticks): lateness p50=%.1fms p99=%.1fms max=%.1fms, expiry thread CPU %.1fms total%n",
+            placed, ttlMillis, lateness.percentile(0.5) / 1e6, lateness.percentile(0.99) / 1e6, lateness.percentile(1.0) / 1e6, wheelCpu / 1e6);
+        console.printf("scanning all holds instead: %.2fms per tick (x%d ticks over the ttl)%n", scanNs / 1e6, ttlMillis / 10);
+        return ok;
+    }
+
+    // 32 個執行緒在同一班次隨機保留、確認、放棄或放著逾時，確認後的預約大多再取消，讓座位持續流動
+    private static boolean stressHolds(PrintStream console) {
+        final int threads = 32;
+        final int opsPerThread = 2_000;
+        ReservationManager service = new ReservationManager(generateData(2, 1));
+        SeatHoldManager holds = new SeatHoldManager(service, 5, 3, 1);
+        Trip trip = service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(0)).get(0);
+        for (int t = 0; t < threads; t++) {
+            service.findOrCreateMember("T" + t);
+        }
+        AtomicInteger nextThread = new AtomicInteger();
+        LongAdder cancelled = new LongAdder();
+        long elapsed = runConcurrently(threads, () -> {
+            String studentId = "T" + nextThread.getAndIncrement();
+            Random random = ThreadLocalRandom.current();
+            for (int i = 0; i < opsPerThread; i++) {
+                SeatHold hold = holds.hold(studentId, trip.getTripId(), String.valueOf(1 + random.nextInt(trip.getTotalSeats())));
+                if (hold == null) {
+                    continue;
+                }
+                int action = random.nextInt(4);
+                if (action == 0) {
+                    Reservation r = holds.confirm(hold);
+                    if (r != null && random.nextInt(8) != 0 && service.cancelReservation(r.getReservationId(), studentId)) {
+                        cancelled.increment();
+                    }
+                } else if (action == 1) {
+                    holds.release(hold);
+                } else if (action == 2) {
+                    sleepMillis(1);
+                    Reservation r = holds.confirm(hold); // 可能已逾時
+                    if (r != null && random.nextInt(8) != 0 && service.cancelReservation(r.getReservationId(), studentId)) {
+                        cancelled.increment();
+                    }
+                }
+                // action == 3：放著讓它逾時
+            }
+        });
+        long waitStart = System.nanoTime();
+        while (holds.getActiveHolds() > 0 && System.nanoTime() - waitStart < TimeUnit.SECONDS.toNanos(5)) {
+            sleepMillis(5);
+        }
+        holds.shutdown();
+        int activeReservations = 0;
+        for (int t = 0; t < threads; t++) {
+            for (Reservation r : service.getMemberReservations("T" + t)) {
+                if (r.getTrip() == trip) {
+                    activeReservations++;
+                }
+            }
+        }
+        long settled = holds.getConfirmed() + holds.getReleased() + holds.getExpired();
+        boolean ok = holds.getActiveHolds() == 0 && trip.getHeldSeatCount() == 0
+            && trip.getOccupiedSeatCount() == activeReservations
+            && activeReservations == holds.getConfirmed() - cancelled.sum()
+            && settled == holds.getPlaced();
+        console.printf("stress: %,d holds placed in %.0fms (confirmed=%d released=%d expired=%d rejected=%d cancelled=%d), occupied=%d active=%d held=%d%n",
+            holds.getPlaced(), elapsed / 1e6, holds.getConfirmed(), holds.getReleased(), holds.getExpired(), holds.getRejected(), cancelled.sum(),
+            trip.getOccupiedSeatCount(), activeReservations, trip.getHeldSeatCount());
+        return ok;
+    }
+
+    static void sleepMillis(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 指定名稱的執行緒至今耗用的 CPU 時間（奈秒）
+    static long threadCpuNanos(String threadName) {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(threadName)) {
+                return Math.max(0, bean.getThreadCpuTime(t.getId()));
+            }
+        }
+        return 0;
+    }
+
+    // 每個執行緒使用明天的不同班次與固定學號，只在輸出端互相競爭；回傳每秒完成的預約 + 取消次數
+    private static double bookCancelThroughput(ReservationManager service, int threads, int cycles, boolean println) {
+        List<Trip> trips = new ArrayList<>();
+        for (Trip t : service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(0))) {
+            trips.add(t);
+        }
+        for (int r = 1; trips.size() < threads; r++) {
+            trips.addAll(service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(r)));
+        }
+        AtomicInteger nextThread = new AtomicInteger();
+        long elapsed = runConcurrently(threads, () -> {
+            int t = nextThread.getAndIncrement();
+            String studentId = "T" + t;
+            service.findOrCreateMember(studentId);
+            String tripId = trips.get(t).getTripId();
+            for (int i = 0; i < cycles; i++) {
+                Reservation r = service.createReservation(studentId, tripId, "1");
+                if (println) {
+                    System.out.println("創建預約成功 " + r.getReservationId());
+                }
+                service.cancelReservation(r.getReservationId(), studentId);
+                if (println) {
+                    System.out.println("取消預約 " + r.getReservationId());
+                }
+            }
+        });
+        return threads * (double) cycles / (elapsed / 1e9);
+    }
+
+    private static long countLines(Path dir) throws IOException {
+        long lines = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    while (reader.readLine() != null) {
+                        lines++;
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+
+    static String routeName(int index) {
+        return "路線-" + index;
+    }
+
+    /*============================ 情境 18: 會員儲存區 ================================= */
+    // 5 萬名會員（全校名冊加校友）時，比較 MemberStore 與原本 ConcurrentHashMap<String, Member> 的每位會員堆積用量
+    // 與查詢延遲；LegacyMember 重現舊版 Member 的欄位配置（學號字串、密碼、違規次數、預先配置的預約表與 LocalDate）
+    private static final class LegacyMember {
+        final String studentId;
+        volatile String hashedPassword;
+        int violationTimes;
+        final Map<String, Reservation> activeReservations = new LinkedHashMap<>();
+        LocalDate suspensionEndDate;
+        LegacyMember(String studentId, String hashedPassword) {
+            this.studentId = studentId;
+            this.hashedPassword = hashedPassword;
+        }
+        synchronized int getViolationTimes() {
+            return violationTimes;
+        }
+    }
+
+    private static boolean benchmarkMemberStore() {
+        System.out.println("== memberStore: heap per member and lookup latency ==");
+        final int count = 50_000;
+        boolean ok = true;
+
+        long before = usedHeap();
+        Map<String, LegacyMember> legacy = new ConcurrentHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String id = rosterId(i);
+            legacy.put(id, new LegacyMember(id, Member.UNSET_PASSWORD));
+        }
+        long legacyBytes = usedHeap() - before;
+
+        before = usedHeap();
+        MemberStore store = new MemberStore();
+        for (int i = 0; i < count; i++) {
+            store.add(rosterId(i), Member.UNSET_PASSWORD);
+        }
+        long storeBytes = usedHeap() - before;
+        // 一成會員登入或預約後才建立 Member
+        for (int i = 0; i < count; i += 10) {
+            store.member(i);
+        }
+        long materializedBytes = usedHeap() - before;
+        System.out.printf("members=%d  ConcurrentHashMap+Member: %.1f B/member  MemberStore: %.1f B/member  (10%% materialized: %.1f B/member)%n",
+            count, legacyBytes / (double) count, storeBytes / (double) count, materializedBytes / (double) count);
+        ok &= storeBytes * 3 < legacyBytes;
+
+        // 查詢用新的字串物件，與 HTTP 請求解析出的學號相同
+        Random random = new Random(42);
+        String[] queries = new String[4096];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = rosterId(random.nextInt(count));
+        }
+        int mask = queries.length - 1;
+        double legacyGet = measure(1_000_000, i -> legacy.get(queries[i & mask]));
+        double storeIndex = measure(1_000_000, i -> store.indexOf(queries[i & mask]));
+        double legacyViolations = measure(1_000_000, i -> legacy.get(queries[i & mask]).getViolationTimes());
+        double storeViolations = measure(1_000_000, i -> store.find(queries[i & mask]).getViolationTimes());
+        System.out.printf("%-28s %14s %14s%n", "operation", "map ns/op", "store ns/op");
+        System.out.printf("%-28s %14.1f %14.1f%n", "lookup", legacyGet, storeIndex);
+        System.out.printf("%-28s %14.1f %14.1f%n", "lookup + violation count", legacyViolations, storeViolations);
+
+        // 正確性：學號編碼可還原、同一會員只有一個 Member、無法編碼的學號改存一般 Map
+        for (int i = 0; i < count; i += 97) {
+            String id = rosterId(i);
+            ok &= store.indexOf(id) == i && store.studentIdAt(i).equals(id);
+            ok &= store.find(id) == store.find(id);
+        }
+        ok &= MemberStore.decode(MemberStore.encode("ZZZZZZZZZZZZ")).equals("ZZZZZZZZZZZZ");
+        ok &= MemberStore.encode("b111") == 0 && MemberStore.encode("") == 0;
+        int overflow = store.add("alumni_b111", Member.UNSET_PASSWORD);
+        ok &= store.add("alumni_b111", "other") == overflow && store.studentIdAt(overflow).equals("alumni_b111");
+        ok &= store.find("alumni_b111").getHashedPassword().equals(Member.UNSET_PASSWORD);
+        ok &= store.indexOf("B999999999") < 0 && store.find("nobody") == null;
+        ok &= legacy.size() == count && store.size() == count + 1;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok & checkSnapshotDuringSignups();
+    }
+
+    // 快照與新會員同時進行：快照刪除的日誌分段中每一筆會員建立紀錄都必須包含在快照內，否則重啟後該會員（與其密碼雜湊）消失。
+    // 先重現最窄的情況：建立紀錄已寫入日誌、插入儲存區前停頓（例如雜湊表擴充）時寫入快照並立即重啟；
+    // 再以多個執行緒持續註冊會員、同時反覆寫入快照，最後由磁碟復原並逐一核對
+    private static boolean checkSnapshotDuringSignups() {
+        final int threads = 4;
+        final long runMillis = 2_000;
+        Path dir = null;
+        PrintStream console = silenceStdout();
+        try {
+            dir = Files.createTempDirectory("shuttle-members");
+            DataStore first = generateData(2, 1);
+            PersistenceManager stalledRun = PersistenceManager.open(dir, first);
+            WriteAheadLog firstLog = stalledRun.getWriteAheadLog();
+            String stalledId = "STALLED1";
+            CountDownLatch appended = new CountDownLatch(1);
+            Thread stalled = new Thread(() -> first.getMembers().add(stalledId, "hash-stalled", () -> {
+                firstLog.appendMemberCreated(stalledId, "hash-stalled");
+                appended.countDown();
+                sleepMillis(200);
+            }));
+            stalled.start();
+            appended.await();
+            stalledRun.writeSnapshot(new ReservationManager(first, firstLog));
+            stalled.join();
+            firstLog.close();
+
+            DataStore dataStore = generateData(2, 1);
+            PersistenceManager persistence = PersistenceManager.open(dir, dataStore);
+            int stalledIndex = dataStore.getMembers().indexOf(stalledId);
+            boolean stalledKept = stalledIndex >= 0 && "hash-stalled".equals(dataStore.getMembers().password(stalledIndex));
+
+            ReservationManager service = new ReservationManager(dataStore, persistence.getWriteAheadLog());
+            AtomicInteger nextId = new AtomicInteger();
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicInteger snapshots = new AtomicInteger();
+            Thread snapshotter = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        persistence.writeSnapshot(service);
+                        snapshots.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            snapshotter.start();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(runMillis);
+            runConcurrently(threads, () -> {
+                while (System.nanoTime() < deadline) {
+                    int i = nextId.getAndIncrement();
+                    service.registerMember(rosterId(i), "hash-" + i);
+                }
+            });
+            running.set(false);
+            snapshotter.join();
+            persistence.getWriteAheadLog().close();
+
+            DataStore recovered = generateData(2, 1);
+            PersistenceManager.open(dir, recovered).getWriteAheadLog().close();
+            int created = nextId.get();
+            int missing = 0;
+            for (int i = 0; i < created; i++) {
+                int index = recovered.getMembers().indexOf(rosterId(i));
+                if (index < 0 || !("hash-" + i).equals(recovered.getMembers().password(index))) {
+                    missing++;
+                }
+            }
+            boolean pass = stalledKept && missing == 0 && snapshots.get() > 1;
+            console.printf("snapshot during sign-ups: stalled member kept=%s members=%d snapshots=%d missing after recovery=%d -> %s%n",
+                stalledKept, created, snapshots.get(), missing, pass ? "PASS" : "FAIL");
+            return pass;
+        } catch (IOException | InterruptedException e) {
+            console.println("snapshot during sign-ups: " + e + " -> FAIL");
+            return false;
+        } finally {
+            System.setOut(console);
+            if (dir != null) {
+                try {
+                    deleteRecursively(dir);
+                } catch (IOException e) {
+                    // 暫存目錄，刪除失敗不影響結果
+                }
+            }
+        }
+    }
+
+    // 學號格式如 B11100001：一碼身分、三碼入學年、五碼序號
+    private static String rosterId(int i) {
+        return (char) ('A' + i % 4) + String.valueOf(110_000_000 + i);
+    }
+
+    /*============================ 情境 19: 候補遞補 ================================= */
+    // 1. 額滿班次上 100 位學生等人取消：比較每 50ms 查詢一次班次、有空位就搶，與加入候補等待通知兩種方式，
+    //    量測取消到學生取得座位的延遲、查詢班次的次數，以及候補是否依加入順序遞補、取消後是否出現可搶的空位
+    // 2. 停權者輪到時被略過、保留到期遞補、有空位時不可候補、離開候補與班次下架
+    // 3. 多執行緒同時預約、取消、加入與離開候補後，有人候補的班次不得留有空位，座位與預約計數一致
+    private static final int WAITLIST_CONTENDERS = 100;
+    private static final int WAITLIST_CANCELS = 40;
+    private static final int CANCEL_INTERVAL_MILLIS = 20;
+    private static final int POLL_INTERVAL_MILLIS = 50;
+
+    private static boolean benchmarkWaitlist() {
+        System.out.println("== waitlist: schedule polling vs. promotion on cancel ==");
+        boolean ok = true;
+        PrintStream console = silenceStdout();
+        try {
+            long[] polled = contendForFreedSeats(false, console);
+            long[] waited = contendForFreedSeats(true, console);
+            ok &= polled[0] == WAITLIST_CANCELS && waited[0] == WAITLIST_CANCELS && waited[1] == 0 && waited[2] == 0 && waited[3] == 1;
+            console.printf("schedule reads: %,d polling vs. %,d with the waitlist%n", polled[1], waited[1]);
+            ok &= checkWaitlistPaths(console);
+            ok &= stressWaitlist(console);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    // 60 個座位的班次額滿後每 20ms 取消一筆，共 40 筆。回傳 {取得座位數, 查詢班次次數, 取消後出現空位的次數, 候補是否依序遞補(1/0)}
+    private static long[] contendForFreedSeats(boolean useWaitlist, PrintStream console) {
+        Route route = new Route("R00", routeName(0), 60, List.of(LocalTime.of(8, 0)));
+        Trip trip = new Trip(Trip.idFor(route, LocalDate.now().plusDays(1), LocalTime.of(8, 0)), route, LocalDate.now().plusDays(1), LocalTime.of(8, 0));
+        ReservationManager service = new ReservationManager(new DataStore(new ArrayList<>(List.of(trip)), new MemberStore(), new HashMap<>()));
+        String tripId = trip.getTripId();
+        int seats = trip.getTotalSeats();
+        List<Reservation> booked = new ArrayList<>();
+        for (int s = 1; s <= seats; s++) {
+            service.findOrCreateMember("H" + s);
+            booked.add(service.createReservation("H" + s, tripId, String.valueOf(s)));
+        }
+        for (int i = 0; i < WAITLIST_CONTENDERS; i++) {
+            service.findOrCreateMember("C" + i);
+        }
+        AtomicLongArray cancelledAt = new AtomicLongArray(seats + 1); // 座位 -> 開始取消的時間
+        LatencyHistogram latency = new LatencyHistogram();           // 開始取消到學生得知取得座位
+        LongAdder reads = new LongAdder();
+        LongAdder attempts = new LongAdder();
+        LongAdder obtained = new LongAdder();
+        AtomicLong lastPromotedEntry = new AtomicLong();
+        WaitlistManager waitlist = null;
+        ScheduledExecutorService pollers = null;
+        long requests;
+        if (useWaitlist) {
+            waitlist = new WaitlistManager(service, 1, WAITLIST_CONTENDERS);
+            for (int i = 0; i < WAITLIST_CONTENDERS; i++) {
+                WaitlistEntry entry = waitlist.join("C" + i, tripId);
+                waitlist.awaitResult(entry, 30_000, () -> {
+                    if (entry.getState() == WaitlistEntry.PROMOTED) {
+                        latency.record(System.nanoTime() - cancelledAt.get(entry.getReservation().getSeat().getSeatNumber()));
+                        lastPromotedEntry.accumulateAndGet(entry.getEntryId(), Math::max);
+                        obtained.increment();
+                    }
+                });
+            }
+            requests = 2L * WAITLIST_CONTENDERS; // 加入候補 + 一次等待結果
+        } else {
+            pollers = Executors.newScheduledThreadPool(4);
+            Random random = new Random(11);
+            for (int i = 0; i < WAITLIST_CONTENDERS; i++) {
+                String studentId = "C" + i;
+                AtomicBoolean done = new AtomicBoolean();
+                pollers.scheduleAtFixedRate(() -> {
+                    if (done.get()) {
+                        return;
+                    }
+                    reads.increment();
+                    Trip current = service.findTripById(tripId);
+                    if (current.getAvailableSeats() == 0) {
+                        return;
+                    }
+                    for (int s = 1; s <= seats; s++) {
+                        if (current.isSeatFree(s)) {
+                            attempts.increment();
+                            if (service.createReservation(studentId, tripId, String.valueOf(s)) != null) {
+                                latency.record(System.nanoTime() - cancelledAt.get(s));
+                                obtained.increment();
+                                done.set(true);
+                            }
+                            return;
+                        }
+                    }
+                }, random.nextInt(POLL_INTERVAL_MILLIS), POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            requests = 0;
+        }
+        Collections.shuffle(booked, new Random(7));
+        int freeAfterCancel = 0;
+        long start = System.nanoTime();
+        for (Reservation r : booked.subList(0, WAITLIST_CANCELS)) {
+            cancelledAt.set(r.getSeat().getSeatNumber(), System.nanoTime());
+            service.cancelReservation(r.getReservationId(), r.getMember().getStudentId());
+            if (trip.getAvailableSeats() > 0) {
+                freeAfterCancel++;
+            }
+            sleepMillis(CANCEL_INTERVAL_MILLIS);
+        }
+        long waitStart = System.nanoTime();
+        while (obtained.sum() < WAITLIST_CANCELS && System.nanoTime() - waitStart < TimeUnit.SECONDS.toNanos(5)) {
+            sleepMillis(5);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (pollers != null) {
+            pollers.shutdownNow();
+            requests = reads.sum() + attempts.sum();
+        }
+        boolean inOrder = true;
+        if (waitlist != null) {
+            // 最早加入的 40 位依序遞補，之後的候補者仍在等待
+            inOrder = lastPromotedEntry.get() == WAITLIST_CANCELS && waitlist.getWaiting() == WAITLIST_CONTENDERS - WAITLIST_CANCELS;
+            waitlist.shutdown();
+        }
+        console.printf("%-9s %d/%d freed seats taken, cancel-to-seat p50=%.2fms p99=%.2fms, %,d schedule reads (%.0f/s), %,d requests, "
+                + "%d booking collisions, seat left free after %d cancels%s%n",
+            useWaitlist ? "waitlist:" : "polling:", obtained.sum(), WAITLIST_CANCELS, latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+            reads.sum(), reads.sum() / seconds, requests, attempts.sum() - (useWaitlist ? 0 : obtained.sum()), freeAfterCancel,
+            useWaitlist ? (inOrder ? ", promoted in join order" : ", NOT in join order") : "");
+        return new long[] { obtained.sum(), reads.sum(), freeAfterCancel, inOrder ? 1 : 0 };
+    }
+
+    private static boolean checkWaitlistPaths(PrintStream console) {
+        ReservationManager service = new ReservationManager(generateData(2, 1));
+        SeatHoldManager holds = new SeatHoldManager(service, 50, 1, 10);
+        WaitlistManager waitlist = new WaitlistManager(service, 2, 10);
+        Trip trip = service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(0)).get(0);
+        String tripId = trip.getTripId();
+        int seats = trip.getTotalSeats();
+        for (String studentId : new String[] { "HOLDER", "S1", "S2", "S3", "S4", "S5", "S6" }) {
+            service.findOrCreateMember(studentId);
+        }
+        List<Reservation> booked = new ArrayList<>();
+        for (int s = 1; s < seats; s++) {
+            service.findOrCreateMember("H" + s);
+            booked.add(service.createReservation("H" + s, tripId, String.valueOf(s)));
+        }
+        boolean ok = holds.hold("HOLDER", tripId, String.valueOf(seats)) != null;
+
+        // 保留中的座位也算占用，可以候補；保留到期後直接遞補
+        WaitlistEntry first = waitlist.join("S1", tripId);
+        long waitStart = System.nanoTime();
+        while (first != null && first.isWaiting() && System.nanoTime() - waitStart < TimeUnit.SECONDS.toNanos(2)) {
+            sleepMillis(5);
+        }
+        boolean holdPath = first != null && first.getState() == WaitlistEntry.PROMOTED && trip.getHeldSeatCount() == 0
+            && trip.getAvailableSeats() == 0 && first.getReservation().getSeat().getSeatNumber() == seats;
+
+        // 輪到時已停權的候補者被略過，座位給下一位
+        WaitlistEntry suspended = waitlist.join("S2", tripId);
+        WaitlistEntry next = waitlist.join("S3", tripId);
+        service.findMember("S2").addViolations(3);
+        service.cancelReservation(booked.get(0).getReservationId(), "H1");
+        boolean skipPath = suspended.getState() == WaitlistEntry.DROPPED && next.getState() == WaitlistEntry.PROMOTED
+            && trip.getAvailableSeats() == 0;
+
+        // 沒有人候補時取消才會留下空位；有空位時不可候補
+        service.cancelReservation(booked.get(1).getReservationId(), "H2");
+        boolean rejectPath = trip.getAvailableSeats() == 1 && waitlist.join("S4", tripId) == null
+            && service.createReservation("S4", tripId, "2") != null;
+
+        // 離開候補後不再遞補；班次下架時仍在候補者結束候補
+        WaitlistEntry leaving = waitlist.join("S5", tripId);
+        WaitlistEntry stranded = waitlist.join("S6", tripId);
+        boolean leavePath = waitlist.position(stranded) == 2 && waitlist.leave(leaving) && !waitlist.leave(leaving)
+            && waitlist.position(stranded) == 1;
+        service.expireDepartedTrips(LocalDateTime.now().plusDays(3));
+        boolean expirePath = stranded.getState() == WaitlistEntry.EXPIRED && waitlist.getWaiting() == 0
+            && waitlist.getJoined() == waitlist.getPromoted() + waitlist.getLeft() + waitlist.getDropped() + waitlist.getExpired();
+        holds.shutdown();
+        waitlist.shutdown();
+        ok &= holdPath && skipPath && rejectPath && leavePath && expirePath;
+        console.printf("paths: hold expiry=%s suspended skipped=%s no waitlist while seats free=%s leave=%s departure=%s%n",
+            holdPath ? "promoted" : "FAIL", skipPath ? "ok" : "FAIL", rejectPath ? "ok" : "FAIL", leavePath ? "ok" : "FAIL",
+            expirePath ? "expired" : "FAIL");
+        return ok;
+    }
+
+    // 8 個執行緒各自使用 8 個學號，在同一班次上隨機預約、取消、加入與離開候補
+    private static boolean stressWaitlist(PrintStream console) {
+        final int threads = 8;
+        final int studentsPerThread = 8;
+        final int opsPerThread = 5_000;
+        ReservationManager service = new ReservationManager(generateData(2, 1));
+        WaitlistManager waitlist = new WaitlistManager(service, 1, threads * studentsPerThread);
+        Trip trip = service.getFilteredTrips(LocalDate.now().plusDays(1), null, routeName(0)).get(0);
+        String tripId = trip.getTripId();
+        for (int i = 0; i < threads * studentsPerThread; i++) {
+            service.findOrCreateMember("W" + i);
+        }
+        AtomicInteger nextThread = new AtomicInteger();
+        LongAdder cancelled = new LongAdder();
+        LongAdder freeWhileWaiting = new LongAdder();
+        long elapsed = runConcurrently(threads, () -> {
+            int base = nextThread.getAndIncrement() * studentsPerThread;
+            Map<String, WaitlistEntry> entries = new HashMap<>();
+            Random random = ThreadLocalRandom.current();
+            for (int i = 0; i < opsPerThread; i++) {
+                String studentId = "W" + (base + random.nextInt(studentsPerThread));
+                switch (random.nextInt(4)) {
+                    case 0:
+                        service.createReservation(studentId, tripId, String.valueOf(1 + random.nextInt(trip.getTotalSeats())));
+                        break;
+                    case 1:
+                        for (Reservation r : service.getMemberReservations(studentId)) {
+                            if (service.cancelReservation(r.getReservationId(), studentId)) {
+                                cancelled.increment();
+                            }
+                            break;
+                        }
+                        break;
+                    case 2:
+                        WaitlistEntry entry = waitlist.join(studentId, tripId);
+                        if (entry != null) {
+                            entries.put(studentId, entry);
+                        }
+                        break;
+                    default:
+                        WaitlistEntry own = entries.remove(studentId);
+                        if (own != null) {
+                            waitlist.leave(own);
+                        }
+                        break;
+                }
+                // 有人候補時班次不得有空位（在班次鎖內檢查）
+                java.util.concurrent.locks.ReentrantLock lock = trip.getBookingLock();
+                lock.lock();
+                try {
+                    TripWaitlist list = trip.getWaitlist(false);
+                    if (list != null && list.size() > 0 && trip.getAvailableSeats() > 0) {
+                        freeWhileWaiting.increment();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        int activeReservations = 0;
+        for (int i = 0; i < threads * studentsPerThread; i++) {
+            activeReservations += service.getMemberReservations("W" + i).size();
+        }
+        long settled = waitlist.getPromoted() + waitlist.getLeft() + waitlist.getDropped() + waitlist.getExpired();
+        boolean ok = freeWhileWaiting.sum() == 0 && trip.getOccupiedSeatCount() == activeReservations
+            && waitlist.getJoined() == settled + waitlist.getWaiting() && waitlist.getPromoted() > 0;
+        waitlist.shutdown();
+        console.printf("stress: %,d ops in %.0fms, joined=%d promoted=%d left=%d cancelled=%d, occupied=%d active=%d waiting=%d, free seat while waiting: %d%n",
+            threads * opsPerThread, elapsed / 1e6, waitlist.getJoined(), waitlist.getPromoted(), waitlist.getLeft(), cancelled.sum(),
+            trip.getOccupiedSeatCount(), activeReservations, waitlist.getWaiting(), freeWhileWaiting.sum());
+        return ok;
+    }
+
+    /*============================ 量測工具 ================================= */
+    // 只有建立過 Member 的會員才可能有預約，檢查預約時不必為其餘會員建立物件
+    static List<Member> materializedMembers(DataStore dataStore) {
+        MemberStore store = dataStore.getMembers();
+        List<Member> members = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            Member m = store.materialized(i);
+            if (m != null) {
+                members.add(m);
+            }
+        }
+        return members;
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // 預約流程會逐筆輸出訊息，量測期間先關閉標準輸出；回傳原本的輸出供情境列印結果
+    static PrintStream silenceStdout() {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+        return console;
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    interface Operation {
+        Object run(int i);
+    }
+
+    static volatile Object sink; // 避免 JIT 消除無用運算
+
+    interface IoTask {
+        void run() throws IOException;
+    }
+
+    // 以 HotSpot 的執行緒配置計數量測每次操作平均配置的位元組數（先暖機讓 JIT 完成逃逸分析）
+    static double allocatedPerOp(int ops, IoTask task) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < ops; i++) {
+            task.run();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ops; i++) {
+            task.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / (double) ops;
+    }
+
+    // 回傳每次操作的平均耗時（奈秒），取量測回合中的最佳值
+    static double measure(int opsPerRound, Operation op) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            runRound(opsPerRound, op);
+        }
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            runRound(opsPerRound, op);
+            best = Math.min(best, (System.nanoTime() - start) / (double) opsPerRound);
+        }
+        return best;
+    }
+
+    // 以 threads 個執行緒同時開始執行 task，回傳全部完成所花的奈秒數
+    static long runConcurrently(int threads, Runnable task) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                ready.countDown();
+                start.await();
+                task.run();
+                return null;
+            }));
+        }
+        try {
+            ready.await();
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            return System.nanoTime() - begin;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // 每次操作的結果都折進 acc，回合結束才寫入 sink，JIT 無法判定任何一次呼叫的結果未被使用
+    private static void runRound(int opsPerRound, Operation op) {
+        long acc = 0;
+        for (int i = 0; i < opsPerRound; i++) {
+            acc = acc * 31 + fingerprint(op.run(i));
+        }
+        sink = acc;
+    }
+
+    // 取結果的廉價指紋：集合取大小、字串取長度、數值取值，其餘取 identity hash（不走訪內容，避免量測到雜湊本身）
+    private static long fingerprint(Object result) {
+        if (result == null) {
+            return 0;
+        }
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size() + 1;
+        }
+        if (result instanceof CharSequence) {
+            return ((CharSequence) result).length() + 1;
+        }
+        if (result instanceof Number) {
+            return ((Number) result).longValue();
+        }
+        return System.identityHashCode(result);
+    }
+}
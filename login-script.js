@@ -29,9 +29,14 @@ document.addEventListener('DOMContentLoaded', function() {
         
         const formData = new FormData(loginForm);
         const loginData = {
-            studentId: formData.get('studentId'),
+            username: formData.get('studentId'),
             password: formData.get('password')
         };
+        // 尚未設定密碼的帳號第一次登入時須附上名冊中的開通碼
+        const enrolmentCode = (formData.get('enrolmentCode') || '').trim();
+        if (enrolmentCode) {
+            loginData.enrolmentCode = enrolmentCode;
+        }
 
         // 發送登入請求
         fetch('/api/login', {
@@ -45,7 +50,7 @@ document.addEventListener('DOMContentLoaded', function() {
         .then(data => {
             if (data.success) {
                 // 登入成功，跳轉到主頁面
-                localStorage.setItem('studentId', loginData.studentId);
+                localStorage.setItem('studentId', loginData.username);
                 window.location.href = 'index.html';
             } else {
                 alert('登入失敗：' + (data.message || '學號或密碼錯誤'));
@@ -3,15 +3,21 @@ const API_BASE = 'http://localhost:8080/api';
 
 // 用戶和預約資料
 let currentUser = null;
+let authToken = null; // 登入後取得的 Token，預約相關請求以 Authorization 標頭送出
 let myBookings = [];
 let selectedSeat = null;
 let currentBookingInfo = null;
+let seatStream = null; // 座位變動推送連線 (EventSource)
+let currentHold = null; // 選位後暫時保留的座位 { holdId, scheduleId, seatNumber, expiresAt }
+let holdTimer = null;   // 保留倒數計時
+let myWaitlist = {};    // 候補中的班次：scheduleId -> { entryId, scheduleId, status, position }
 
 // DOM 元素
 const loginPage = document.getElementById('loginPage');
 const mainPage = document.getElementById('mainPage');
 const usernameInput = document.getElementById('username');
 const passwordInput = document.getElementById('password');
+const enrolmentCodeInput = document.getElementById('enrolmentCode');
 const loginBtn = document.getElementById('loginBtn');
 const registerBtn = document.getElementById('registerBtn');
 const toRegister = document.getElementById('toRegister');
@@ -47,6 +53,11 @@ function initializeEventListeners() {
     if (searchBtn) searchBtn.addEventListener('click', searchSchedule);
 }
 
+// 附加 Authorization 標頭
+function authHeaders(headers = {}) {
+    return authToken ? { ...headers, 'Authorization': `Bearer ${authToken}` } : headers;
+}
+
 // DOM載入完成後初始化
 document.addEventListener('DOMContentLoaded', initializeEventListeners);
 
@@ -54,25 +65,29 @@ document.addEventListener('DOMContentLoaded', initializeEventListeners);
 async function login() {
     const username = usernameInput.value.trim();
     const password = passwordInput.value.trim();
+    const enrolmentCode = enrolmentCodeInput ? enrolmentCodeInput.value.trim() : '';
     
     if (!username || !password) {
         alert('請輸入學號和密碼');
         return;
     }
     
+    // 尚未設定密碼的帳號第一次登入時須附上名冊中的開通碼，之後不需再填
+    const loginData = enrolmentCode ? { username, password, enrolmentCode } : { username, password };
     try {
         const response = await fetch(`${API_BASE}/login`, {
             method: 'POST',
             headers: {
                 'Content-Type': 'application/json',
             },
-            body: JSON.stringify({ username, password })
+            body: JSON.stringify(loginData)
         });
         
         const result = await response.json();
         
         if (result.success) {
             currentUser = result.studentId;
+            authToken = result.token || null;
             myBookings = []; // 清空前一個用戶的預約記錄
             userDisplay.textContent = `歡迎，${username}`;
             
@@ -84,8 +99,11 @@ async function login() {
             loginPage.style.display = 'none';
             mainPage.style.display = 'block';
             loadMyBookings();
+        } else if (response.status === 401 && !enrolmentCode) {
+            alert((result.message || '登入失敗') + '\n第一次登入的帳號請填寫開通碼');
+            if (enrolmentCodeInput) enrolmentCodeInput.focus();
         } else {
-            alert('登入失敗');
+            alert(result.message || '登入失敗');
         }
     } catch (error) {
         console.error('登入錯誤:', error);
@@ -95,11 +113,22 @@ async function login() {
 
 // 登出功能
 function logout() {
+    if (authToken) {
+        // 撤銷 Token；失敗時不影響前端登出
+        fetch(`${API_BASE}/login`, { method: 'DELETE', headers: authHeaders() }).catch(() => {});
+        authToken = null;
+    }
     currentUser = null;
     myBookings = []; // 清空預約記錄
+    myWaitlist = {}; // 停止等待遞補（等待中的請求回應後即結束）
     usernameInput.value = '';
     passwordInput.value = '';
+    if (enrolmentCodeInput) enrolmentCodeInput.value = '';
     scheduleList.innerHTML = ''; // 清空班次列表
+    if (seatStream) {
+        seatStream.close(); // 停止接收座位變動
+        seatStream = null;
+    }
     
     // 重置日期、時間和路線
     if (dateInput) dateInput.value = '';
@@ -215,6 +244,7 @@ async function searchSchedule() {
         }
         
         displaySchedule(schedules, selectedDate);
+        subscribeSeatChanges(selectedDate, selectedRoute);
     } catch (error) {
         console.error('查詢班次錯誤:', error);
         alert('查詢失敗，請檢查網路連線');
@@ -232,6 +262,13 @@ function displaySchedule(schedules, date) {
     }
     
     scheduleList.innerHTML = schedules.map(schedule => {
+        // 額滿班次改為候補；有人取消時座位直接遞補給候補者，不需反覆查詢
+        const waiting = myWaitlist[schedule.id];
+        const action = schedule.availableSeats > 0
+            ? `<button class="btn-secondary" onclick="openSeatSelection('${schedule.id}', '${schedule.route}', '${schedule.departureTime}', '${date}')">選位預約</button>`
+            : waiting
+                ? `<button class="btn-secondary" onclick="leaveWaitlist('${schedule.id}')">候補第 ${waiting.position} 位，取消候補</button>`
+                : `<button class="btn-secondary" onclick="joinWaitlist('${schedule.id}')">已滿，加入候補</button>`;
         return `
             <div class="schedule-card">
                 <div class="schedule-info">
@@ -241,16 +278,67 @@ function displaySchedule(schedules, date) {
                         剩餘座位：${schedule.availableSeats} 位
                     </div>
                 </div>
-                <button class="btn-secondary" 
-                        onclick="openSeatSelection(${schedule.id}, '${schedule.route}', '${schedule.departureTime}', '${date}')"
-                        ${schedule.availableSeats === 0 ? 'disabled' : ''}>
-                    ${schedule.availableSeats === 0 ? '已滿' : '選位預約'}
-                </button>
+                ${action}
             </div>
         `;
     }).join('');
 }
 
+// 訂閱查詢條件內的座位變動，即時更新班次列表與座位圖
+function subscribeSeatChanges(date, route) {
+    if (seatStream) seatStream.close();
+    if (!window.EventSource) return;
+    
+    let url = `${API_BASE}/schedules/stream?date=${date}`;
+    if (route) {
+        url += `&route=${encodeURIComponent(route)}`;
+    }
+    seatStream = new EventSource(url);
+    seatStream.addEventListener('seat', event => {
+        const change = JSON.parse(event.data);
+        const schedule = window.currentSchedules?.find(s => s.id === change.tripId);
+        if (!schedule) return;
+        
+        const seat = change.seat.toString();
+        schedule.occupiedSeats = (schedule.occupiedSeats || []).filter(s => s !== seat);
+        if (change.occupied) schedule.occupiedSeats.push(seat);
+        schedule.heldSeats = (schedule.heldSeats || []).filter(s => s !== seat);
+        if (change.held) schedule.heldSeats.push(seat);
+        schedule.availableSeats = change.availableSeats;
+        displaySchedule(window.currentSchedules, date);
+        
+        // 自己保留的座位也會收到占用事件（可能早於保留的回應），不需更新；被他人搶先保留時由保留的回應處理
+        const ownHold = currentHold ? currentHold.scheduleId === change.tripId && currentHold.seatNumber === seat
+                                    : change.held && selectedSeat === change.seat;
+        if (currentBookingInfo && currentBookingInfo.scheduleId === change.tripId && !ownHold) {
+            updateSeatElement(change.seat, change.occupied, change.held);
+        }
+    });
+}
+
+// 更新座位圖中的單一座位
+function updateSeatElement(num, occupied, held = false) {
+    const seat = document.querySelector(`.seat[data-num="${num}"]`);
+    if (!seat) return;
+    
+    if (occupied) {
+        if (selectedSeat === num) {
+            selectedSeat = null;
+            confirmBooking.disabled = true;
+        }
+        const replacement = seat.cloneNode(true); // 移除點選事件
+        replacement.className = held ? 'seat occupied held' : 'seat occupied';
+        replacement.title = held ? '其他同學選位中' : '';
+        seat.replaceWith(replacement);
+    } else if (seat.classList.contains('occupied')) {
+        const replacement = seat.cloneNode(true);
+        replacement.className = 'seat available';
+        replacement.title = '';
+        replacement.addEventListener('click', () => selectSeat(num, replacement));
+        seat.replaceWith(replacement);
+    }
+}
+
 // 開啟座位選擇
 function openSeatSelection(scheduleId, route, time, date) {
     currentBookingInfo = { scheduleId, route, time, date };
@@ -271,16 +359,25 @@ function generateSeatMap(schedule) {
     selectedSeat = null;
     confirmBooking.disabled = true;
     
-    const leftOrder = [1, 3, 5, 7, 9, 11, 13, 15, 17, 19];
-    const rightOrder = [2, 4, 6, 8, 10, 12, 14, 16, 18, 20];
+    // 依班次座位數產生座位：單數在左、雙數在右
+    const totalSeats = schedule && schedule.totalSeats ? schedule.totalSeats : 20;
+    const leftOrder = [];
+    const rightOrder = [];
+    for (let num = 1; num <= totalSeats; num++) {
+        (num % 2 === 1 ? leftOrder : rightOrder).push(num);
+    }
     const occupiedSeats = schedule ? schedule.occupiedSeats || [] : [];
+    const heldSeats = schedule ? schedule.heldSeats || [] : []; // 他人保留中，逾時後可能釋出
     
     function createSeat(num) {
         const seat = document.createElement('div');
         seat.dataset.num = num;
         seat.innerHTML = `<div class="seat-number">${num}</div>`;
         
-        if (occupiedSeats.includes(num.toString())) {
+        if (heldSeats.includes(num.toString())) {
+            seat.className = 'seat occupied held';
+            seat.title = '其他同學選位中';
+        } else if (occupiedSeats.includes(num.toString())) {
             seat.className = 'seat occupied';
         } else {
             seat.className = 'seat available';
@@ -299,19 +396,94 @@ function generateSeatMap(schedule) {
     });
 }
 
-// 選擇座位
-function selectSeat(seatNumber, seatElement) {
+// 選擇座位：先向伺服器保留座位，確認預約前不會被他人搶走
+async function selectSeat(seatNumber, seatElement) {
     // 清除之前選擇
     document.querySelectorAll('.seat.selected').forEach(s => {
         s.classList.remove('selected');
         s.classList.add('available');
     });
+    releaseHold();
     
     // 選擇新座位
     seatElement.classList.remove('available');
     seatElement.classList.add('selected');
     selectedSeat = seatNumber;
-    confirmBooking.disabled = false;
+    confirmBooking.disabled = true;
+    
+    const bookingInfo = currentBookingInfo;
+    try {
+        const response = await fetch(`${API_BASE}/holds`, {
+            method: 'POST',
+            headers: authHeaders({
+                'Content-Type': 'application/json',
+            }),
+            body: JSON.stringify({
+                studentId: currentUser,
+                scheduleId: bookingInfo.scheduleId,
+                seatNumber: seatNumber.toString()
+            })
+        });
+        const result = await response.json();
+        if (selectedSeat !== seatNumber || currentBookingInfo !== bookingInfo) {
+            // 等待回應期間已改選其他座位或關閉視窗
+            if (response.ok) releaseHold({ holdId: result.holdId });
+            return;
+        }
+        if (response.ok) {
+            currentHold = { holdId: result.holdId, scheduleId: result.scheduleId, seatNumber: result.seatNumber,
+                            expiresAt: Date.now() + result.ttlSeconds * 1000 };
+            startHoldCountdown();
+        } else if (response.status === 409 && result.error && result.error.includes('熱門班次')) {
+            // 熱門班次不提供保留，直接預約並排隊
+        } else {
+            alert('無法選擇此座位：' + (result.error || '未知錯誤'));
+            updateSeatElement(seatNumber, true);
+            selectedSeat = null;
+            return;
+        }
+        confirmBooking.disabled = false;
+    } catch (error) {
+        console.error('保留座位錯誤:', error);
+        confirmBooking.disabled = false; // 保留失敗時仍可直接預約
+    }
+}
+
+// 在確認按鈕顯示保留剩餘秒數，逾時後需重新選位
+function startHoldCountdown() {
+    clearInterval(holdTimer);
+    const update = () => {
+        const seconds = Math.max(0, Math.round((currentHold.expiresAt - Date.now()) / 1000));
+        confirmBooking.textContent = `確認預約（保留 ${seconds} 秒）`;
+        if (seconds === 0) {
+            clearInterval(holdTimer);
+            currentHold = null;
+            selectedSeat = null;
+            confirmBooking.disabled = true;
+            confirmBooking.textContent = '確認預約';
+            alert('座位保留已逾時，請重新選位');
+            document.querySelectorAll('.seat.selected').forEach(s => {
+                s.classList.remove('selected');
+                s.classList.add('available');
+            });
+        }
+    };
+    update();
+    holdTimer = setInterval(update, 1000);
+}
+
+// 放棄保留（改選座位或關閉視窗）
+function releaseHold(hold = currentHold) {
+    if (hold === currentHold) {
+        clearInterval(holdTimer);
+        currentHold = null;
+        confirmBooking.textContent = '確認預約';
+    }
+    if (!hold) return;
+    fetch(`${API_BASE}/holds/${hold.holdId}?studentId=${encodeURIComponent(currentUser)}`, {
+        method: 'DELETE',
+        headers: authHeaders()
+    }).catch(() => {});
 }
 
 // 確認預約
@@ -319,11 +491,33 @@ async function confirmSeatBooking() {
     if (!selectedSeat || !currentBookingInfo) return;
     
     try {
+        if (currentHold) {
+            // 已保留座位：直接確認為預約
+            const hold = currentHold;
+            clearInterval(holdTimer);
+            currentHold = null;
+            confirmBooking.textContent = '確認預約';
+            const response = await fetch(`${API_BASE}/holds/${hold.holdId}/confirm?studentId=${encodeURIComponent(currentUser)}`, {
+                method: 'POST',
+                headers: authHeaders()
+            });
+            const result = await response.json();
+            if (result.id) {
+                closeSeatModal();
+                showSuccessMessage(`預約成功！`);
+                loadMyBookings();
+                searchSchedule();
+            } else {
+                alert('預約失敗：' + (result.error || '未知錯誤'));
+            }
+            return;
+        }
+        
         const response = await fetch(`${API_BASE}/bookings`, {
             method: 'POST',
-            headers: {
+            headers: authHeaders({
                 'Content-Type': 'application/json',
-            },
+            }),
             body: JSON.stringify({
                 studentId: currentUser,
                 scheduleId: currentBookingInfo.scheduleId,
@@ -331,7 +525,12 @@ async function confirmSeatBooking() {
             })
         });
         
-        const result = await response.json();
+        let result = await response.json();
+        if (response.status === 202) {
+            // 熱門班次需排隊，等待號碼牌的結果
+            confirmBooking.disabled = true;
+            result = await waitForTicket(result);
+        }
         
         if (result.id) {
             closeSeatModal();
@@ -348,8 +547,104 @@ async function confirmSeatBooking() {
     }
 }
 
+// 等待排隊結果：每次最多等 25 秒，期間顯示目前順位
+async function waitForTicket(ticket) {
+    while (ticket.status === 'QUEUED') {
+        confirmBooking.textContent = `排隊中，目前第 ${ticket.position} 位`;
+        const response = await fetch(`${API_BASE}/queue/${ticket.ticket}?wait=25`, { headers: authHeaders() });
+        if (response.status === 429 || response.status === 503) {
+            await new Promise(resolve => setTimeout(resolve, 1000));
+            continue;
+        }
+        ticket = await response.json();
+        if (!response.ok) {
+            break;
+        }
+    }
+    confirmBooking.textContent = '確認預約';
+    return ticket;
+}
+
+// 加入額滿班次的候補
+async function joinWaitlist(scheduleId) {
+    try {
+        const response = await fetch(`${API_BASE}/waitlist`, {
+            method: 'POST',
+            headers: authHeaders({
+                'Content-Type': 'application/json',
+            }),
+            body: JSON.stringify({
+                studentId: currentUser,
+                scheduleId: scheduleId
+            })
+        });
+        const entry = await response.json();
+        if (!response.ok) {
+            alert('候補失敗：' + (entry.error || '未知錯誤'));
+            return;
+        }
+        myWaitlist[scheduleId] = entry;
+        displaySchedule(window.currentSchedules, dateInput.value);
+        showSuccessMessage(`已加入候補，目前第 ${entry.position} 位`);
+        waitForPromotion(entry);
+    } catch (error) {
+        console.error('候補錯誤:', error);
+        alert('候補失敗，請檢查網路連線');
+    }
+}
+
+// 等待遞補：每次最多等 25 秒，有人取消時伺服器立即回應
+async function waitForPromotion(entry) {
+    const isCurrent = () => myWaitlist[entry.scheduleId] && myWaitlist[entry.scheduleId].entryId === entry.entryId;
+    while (entry.status === 'WAITING' && isCurrent()) {
+        const response = await fetch(`${API_BASE}/waitlist/${entry.entryId}?studentId=${encodeURIComponent(currentUser)}&wait=25`, { headers: authHeaders() });
+        if (response.status === 429 || response.status === 503) {
+            await new Promise(resolve => setTimeout(resolve, 1000));
+            continue;
+        }
+        if (!response.ok) {
+            break;
+        }
+        entry = await response.json();
+        if (isCurrent()) {
+            myWaitlist[entry.scheduleId].position = entry.position;
+        }
+    }
+    if (!isCurrent()) return; // 已取消候補或已登出
+    delete myWaitlist[entry.scheduleId];
+    if (entry.status === 'PROMOTED') {
+        showSuccessMessage(`候補成功！已為您預約座位 ${entry.seatNumber}`);
+        loadMyBookings();
+    } else if (entry.status === 'DROPPED') {
+        alert('候補已取消：違規停權中');
+    } else if (entry.status === 'EXPIRED') {
+        alert('候補未成功：班次已發車');
+    }
+    if (window.currentSchedules) displaySchedule(window.currentSchedules, dateInput.value);
+}
+
+// 取消候補
+async function leaveWaitlist(scheduleId) {
+    const entry = myWaitlist[scheduleId];
+    if (!entry || !confirm('確定要取消候補嗎？')) return;
+    delete myWaitlist[scheduleId];
+    displaySchedule(window.currentSchedules, dateInput.value);
+    try {
+        const response = await fetch(`${API_BASE}/waitlist/${entry.entryId}?studentId=${encodeURIComponent(currentUser)}`, {
+            method: 'DELETE',
+            headers: authHeaders()
+        });
+        if (!response.ok) {
+            loadMyBookings(); // 取消前已遞補
+        }
+    } catch (error) {
+        console.error('取消候補錯誤:', error);
+    }
+}
+
 // 關閉座位選擇彈窗
 function closeSeatModal() {
+    releaseHold();
     seatModal.style.display = 'none';
     selectedSeat = null;
     currentBookingInfo = null;
@@ -360,7 +655,7 @@ async function loadMyBookings() {
     if (!currentUser) return;
     
     try {
-        const response = await fetch(`${API_BASE}/bookings/${currentUser}`);
+        const response = await fetch(`${API_BASE}/bookings/${currentUser}`, { headers: authHeaders() });
         myBookings = await response.json();
         displayMyBookings();
     } catch (error) {
@@ -405,7 +700,7 @@ function displayMyBookings() {
                     <div class="route">${booking.schedule.route}</div>
                     <div class="seats">日期：${booking.schedule.date} | 座位：${booking.seatNumber}</div>
                 </div>
-                <button class="delete-btn" onclick="deleteBooking(${booking.id})">
+                <button class="delete-btn" onclick="deleteBooking('${booking.id}')">
                     刪除
                 </button>
             </div>
@@ -419,7 +714,8 @@ async function deleteBooking(bookingId) {
     
     try {
         const response = await fetch(`${API_BASE}/bookings/${bookingId}?studentId=${currentUser}`, {
-            method: 'DELETE'
+            method: 'DELETE',
+            headers: authHeaders()
         });
         
         const result = await response.json();